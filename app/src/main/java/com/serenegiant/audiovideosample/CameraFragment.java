@@ -1,6 +1,7 @@
 package com.serenegiant.audiovideosample;
 
 import android.os.Bundle;
+import android.os.Environment;
 import androidx.fragment.app.Fragment;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -10,16 +11,38 @@ import android.view.ViewGroup;
 import android.widget.ImageButton;
 import android.widget.TextView;
 
+import com.serenegiant.encoder.CodecIndex;
+import com.serenegiant.encoder.EncoderPool;
 import com.serenegiant.encoder.MediaAudioEncoder;
 import com.serenegiant.encoder.MediaEncoder;
 import com.serenegiant.encoder.MediaMuxerWrapper;
 import com.serenegiant.encoder.MediaVideoEncoder;
+import com.serenegiant.encoder.RecordingProfile;
+import com.serenegiant.net.HttpFileServer;
 
+import java.io.File;
 import java.io.IOException;
 
 public class CameraFragment extends Fragment {
 	private static final boolean DEBUG = BuildConfig.DEBUG;
 	private static final String TAG = "CameraFragment";
+	/**
+	 * write encoded data from MediaCodec.Callback instead of polling(API >= 23)
+	 */
+	private static final boolean USE_ASYNC_DRAIN = true;
+	/**
+	 * container of the output, MediaMuxerWrapper.MUXER_FRAGMENTED_MP4 writes fragmented mp4
+	 * that survives crash while recording
+	 */
+	private static final int MUXER_TYPE = MediaMuxerWrapper.MUXER_MP4;
+	/**
+	 * encoding parameters of this deployment, e.g. lower bitrate for longer recording
+	 */
+	private static final RecordingProfile RECORDING_PROFILE = RecordingProfile.DEFAULT;
+	/**
+	 * serve recording directory over http while this fragment is resumed
+	 */
+	private static final boolean ENABLE_HTTP_SERVER = false;
 
 	/**
 	 * for camera preview display
@@ -37,6 +60,19 @@ public class CameraFragment extends Fragment {
 	 * muxer for audio/video recording
 	 */
 	private MediaMuxerWrapper mMuxer;
+	/**
+	 * http server to pull recordings from LAN
+	 */
+	private HttpFileServer mHttpServer;
+	/**
+	 * RECORDING_PROFILE if this device supports it, otherwise default profile,
+	 * null while validating on private thread
+	 */
+	private RecordingProfile mProfile;
+	/**
+	 * encoders and render thread kept between recordings, so that recording starts quickly
+	 */
+	private EncoderPool mEncoderPool;
 
 	public CameraFragment() {
 		super();
@@ -47,12 +83,25 @@ public class CameraFragment extends Fragment {
 	public View onCreateView(final LayoutInflater inflater, final ViewGroup container, final Bundle savedInstanceState) {
 		final View rootView = inflater.inflate(R.layout.fragment_main, container, false);
 		mCameraView = (CameraGLView)rootView.findViewById(R.id.cameraView);
-		mCameraView.setVideoSize(1280, 720);
+		// assume the profile is supported until validation finishes
+		final RecordingProfile profile = mProfile != null ? mProfile : RECORDING_PROFILE;
+		mCameraView.setPreviewSize(profile.width, profile.height);
+		mCameraView.setVideoSize(profile.width, profile.height);
 		mCameraView.setOnClickListener(mOnClickListener);
 		mScaleModeView = rootView.findViewById(R.id.scalemode_textview);
 		updateScaleModeText();
 		mRecordButton = rootView.findViewById(R.id.record_button);
 		mRecordButton.setOnClickListener(mOnClickListener);
+		if (mEncoderPool == null) {
+			mEncoderPool = new EncoderPool();
+			mEncoderPool.register(getContext());
+		}
+		if (mProfile == null) {
+			// recording starts after encoders of this device are known
+			mRecordButton.setEnabled(false);
+			CodecIndex.init(getContext());
+			mEncoderPool.execute(mValidateTask);
+		}
 		return rootView;
 	}
 
@@ -61,16 +110,89 @@ public class CameraFragment extends Fragment {
 		super.onResume();
 		if (DEBUG) Log.v(TAG, "onResume:");
 		mCameraView.onResume();
+		if (mEncoderPool == null) {
+			mEncoderPool = new EncoderPool();
+			mEncoderPool.register(getContext());
+		}
+		if (mProfile != null) {
+			// configure encoders in background before the record button is tapped
+			mEncoderPool.prewarm(mProfile, mCameraView.getVideoWidth(), mCameraView.getVideoHeight(), USE_ASYNC_DRAIN);
+		}
+		if (ENABLE_HTTP_SERVER) {
+			startHttpServer();
+		}
 	}
 
 	@Override
 	public void onPause() {
 		if (DEBUG) Log.v(TAG, "onPause:");
 		stopRecording();
+		if (mHttpServer != null) {
+			mHttpServer.stop();
+			mHttpServer = null;
+		}
+		if (mEncoderPool != null) {
+			// idle hardware encoders should not be kept while other apps may need them
+			mEncoderPool.evictAll();
+		}
 		mCameraView.onPause();
 		super.onPause();
 	}
 
+	@Override
+	public void onDestroy() {
+		if (mEncoderPool != null) {
+			mEncoderPool.release();
+			mEncoderPool = null;
+		}
+		super.onDestroy();
+	}
+
+	/**
+	 * build CodecIndex(this scans all encoders on first start or after firmware update)
+	 * and validate RECORDING_PROFILE on the private thread of EncoderPool, then apply it on UI thread
+	 */
+	private final Runnable mValidateTask = new Runnable() {
+		@Override
+		public void run() {
+			RecordingProfile profile;
+			try {
+				final RecordingProfile.Encoders encoders = RECORDING_PROFILE.validate();
+				if (DEBUG) Log.v(TAG, "validate:" + encoders);
+				profile = RECORDING_PROFILE;
+			} catch (final IllegalArgumentException e) {
+				Log.w(TAG, "profile is not supported, use default:" + e.getMessage());
+				profile = RecordingProfile.DEFAULT;
+			}
+			final RecordingProfile selected = profile;
+			final View view = mRecordButton;
+			view.post(new Runnable() {
+				@Override
+				public void run() {
+					applyProfile(selected);
+				}
+			});
+		}
+	};
+
+	/**
+	 * this is called on UI thread after validation
+	 */
+	private void applyProfile(final RecordingProfile profile) {
+		if (DEBUG) Log.v(TAG, "applyProfile:" + profile);
+		mProfile = profile;
+		if (getView() == null) return;
+		if (profile != RECORDING_PROFILE) {
+			// preview size is applied when the camera starts next time
+			mCameraView.setPreviewSize(profile.width, profile.height);
+			mCameraView.setVideoSize(profile.width, profile.height);
+		}
+		mRecordButton.setEnabled(true);
+		if (isResumed() && (mEncoderPool != null)) {
+			mEncoderPool.prewarm(profile, mCameraView.getVideoWidth(), mCameraView.getVideoHeight(), USE_ASYNC_DRAIN);
+		}
+	}
+
 	/**
 	 * method when touch record button
 	 */
@@ -104,9 +226,8 @@ public class CameraFragment extends Fragment {
 
 	/**
 	 * start resorcing
-	 * This is a sample project and call this on UI thread to avoid being complicated
-	 * but basically this should be called on private thread because prepareing
-	 * of encoder is heavy work
+	 * This is called on UI thread, heavy work of preparing encoders(codec/EGL setup)
+	 * runs on private threads by MediaMuxerWrapper#startRecordingAsync
 	 */
 	private void startRecording() {
 		if (DEBUG) Log.v(TAG, "startRecording:");
@@ -115,17 +236,18 @@ public class CameraFragment extends Fragment {
 			mRecordButton.setColorFilter(0xffff0000);
 			// if you record audio only, ".m4a" is also OK.
 			// M4A是MPEG-4 音频标准的文件的扩展名。
-			mMuxer = new MediaMuxerWrapper(".mp4", getContext());
+			mMuxer = new MediaMuxerWrapper(".mp4", getContext(), MUXER_TYPE);
+			mMuxer.setRecordingProfile(mProfile);
+			mMuxer.setEncoderPool(mEncoderPool);
 			if (true) {
 				// for video capturing，capture：捕获
-				new MediaVideoEncoder(mMuxer, mMediaEncoderListener, mCameraView.getVideoWidth(), mCameraView.getVideoHeight());
+				new MediaVideoEncoder(mMuxer, mMediaEncoderListener, mCameraView.getVideoWidth(), mCameraView.getVideoHeight(), USE_ASYNC_DRAIN);
 			}
 			if (true) {
 				// for audio capturing，capture：捕获
-				new MediaAudioEncoder(mMuxer, mMediaEncoderListener);
+				new MediaAudioEncoder(mMuxer, mMediaEncoderListener, USE_ASYNC_DRAIN, MediaAudioEncoder.CAPTURE_RING);
 			}
-			mMuxer.prepare();
-			mMuxer.startRecording();
+			mMuxer.startRecordingAsync(mOnStartListener);
 		} catch (final IOException e) {
 			mRecordButton.setColorFilter(0);
 			Log.e(TAG, "startCapture:", e);
@@ -145,6 +267,43 @@ public class CameraFragment extends Fragment {
 		}
 	}
 
+	private void startHttpServer() {
+		try {
+			final File dir = MediaMuxerWrapper.getCaptureDir(getContext(), Environment.DIRECTORY_MOVIES);
+			dir.mkdirs();
+			mHttpServer = new HttpFileServer(dir, HttpFileServer.DEFAULT_PORT);
+			mHttpServer.start();
+			if (DEBUG) Log.v(TAG, "startHttpServer:port=" + mHttpServer.getPort() + ",dir=" + dir);
+		} catch (final IOException e) {
+			mHttpServer = null;
+			Log.e(TAG, "startHttpServer:", e);
+		}
+	}
+
+	/**
+	 * callback methods from muxer, these are called on private thread
+	 */
+	private final MediaMuxerWrapper.OnStartListener mOnStartListener = new MediaMuxerWrapper.OnStartListener() {
+		@Override
+		public void onStarted(final MediaMuxerWrapper muxer, final MediaMuxerWrapper.StartTimings timings) {
+			if (DEBUG) Log.v(TAG, "onStarted:" + timings);
+		}
+
+		@Override
+		public void onError(final MediaMuxerWrapper muxer, final Exception e) {
+			Log.e(TAG, "startCapture:", e);
+			mRecordButton.post(new Runnable() {
+				@Override
+				public void run() {
+					if (mMuxer == muxer) {
+						mMuxer = null;
+						mRecordButton.setColorFilter(0);
+					}
+				}
+			});
+		}
+	};
+
 	/**
 	 * callback methods from encoder
 	 */
@@ -6,7 +6,10 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
+import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
 import javax.microedition.khronos.opengles.GL10;
 
 import android.content.Context;
@@ -28,6 +31,7 @@ import android.view.WindowManager;
 
 import com.serenegiant.encoder.MediaVideoEncoder;
 import com.serenegiant.glutilsOld.GLDrawer2D;
+import com.serenegiant.glutilsOld.ProgramCache;
 
 /**
  * Sub class of GLSurfaceView to display camera preview and write video frame to capturing surface
@@ -48,6 +52,10 @@ public final class CameraGLView extends GLSurfaceView {
     private boolean mHasSurface;
     private CameraHandler mCameraHandler = null;
     private int mVideoWidth, mVideoHeight;
+    /**
+     * requested size of camera preview, the camera uses closest supported size
+     */
+    private int mPreviewWidth = 1280, mPreviewHeight = 720;
     private int mRotation;
     private int mScaleMode = SCALE_STRETCH_FIT;
 
@@ -62,8 +70,12 @@ public final class CameraGLView extends GLSurfaceView {
     public CameraGLView(final Context context, final AttributeSet attrs, final int defStyle) {
         super(context, attrs);
         if (DEBUG) Log.v(TAG, "CameraGLView:");
+        // shader programs of the preview and the encoder are loaded from binaries saved before
+        ProgramCache.init(context);
         mRenderer = new CameraSurfaceRenderer(this);
         setEGLContextClientVersion(2);    // GLES 2.0, API >= 8
+        // OpenGL|ES 3.0 context is required to use program binaries, the context falls back to 2.0
+        setEGLContextFactory(new ContextFactory());
         setRenderer(mRenderer);
 /*		// the frequency of refreshing of camera preview is at most 15 fps
 		// and RENDERMODE_WHEN_DIRTY is better to reduce power consumption
@@ -124,6 +136,14 @@ public final class CameraGLView extends GLSurfaceView {
         });
     }
 
+    /**
+     * set requested size of camera preview, this is applied when the preview starts next time
+     */
+    public void setPreviewSize(final int width, final int height) {
+        mPreviewWidth = width;
+        mPreviewHeight = height;
+    }
+
     public int getVideoWidth() {
         return mVideoWidth;
     }
@@ -171,7 +191,33 @@ public final class CameraGLView extends GLSurfaceView {
             thread.start();
             mCameraHandler = thread.getHandler();
         }
-        mCameraHandler.startPreview(1280, 720/*width, height*/);
+        mCameraHandler.startPreview(mPreviewWidth, mPreviewHeight/*width, height*/);
+    }
+
+    /**
+     * create OpenGL|ES 3.0 context if it is available, otherwise 2.0 context
+     */
+    private static final class ContextFactory implements GLSurfaceView.EGLContextFactory {
+        private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+
+        @Override
+        public EGLContext createContext(final EGL10 egl, final EGLDisplay display, final EGLConfig config) {
+            EGLContext context = egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT,
+                new int[] {EGL_CONTEXT_CLIENT_VERSION, 3, EGL10.EGL_NONE});
+            if ((context == null) || (context == EGL10.EGL_NO_CONTEXT)) {
+                if (DEBUG) Log.w(TAG, "createContext:OpenGL|ES 3.0 is not available, err=" + egl.eglGetError());
+                context = egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT,
+                    new int[] {EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE});
+            }
+            return context;
+        }
+
+        @Override
+        public void destroyContext(final EGL10 egl, final EGLDisplay display, final EGLContext context) {
+            if (!egl.eglDestroyContext(display, context)) {
+                Log.e(TAG, "destroyContext:err=" + egl.eglGetError());
+            }
+        }
     }
 
     /**
@@ -187,6 +233,8 @@ public final class CameraGLView extends GLSurfaceView {
         private GLDrawer2D mDrawer;
         private final float[] mStMatrix = new float[16];
         private final float[] mMvpMatrix = new float[16];
+        // capture time of the latest camera frame, System#nanoTime base
+        private long mTimestampNs;
         private MediaVideoEncoder mVideoEncoder;
 
         public CameraSurfaceRenderer(final CameraGLView parent) {
@@ -324,6 +372,8 @@ public final class CameraGLView extends GLSurfaceView {
                 mSTexture.updateTexImage();
                 // get texture matrix
                 mSTexture.getTransformMatrix(mStMatrix);
+                // get capture time of the frame
+                mTimestampNs = mSTexture.getTimestamp();
             }
             // draw to preview screen
             mDrawer.draw(hTex, mStMatrix);
@@ -333,7 +383,7 @@ public final class CameraGLView extends GLSurfaceView {
                     if (mVideoEncoder != null) {
                         // notify to capturing thread that the camera frame is available.
 //						mVideoEncoder.frameAvailableSoon(mStMatrix);
-                        mVideoEncoder.frameAvailableSoon(mStMatrix, mMvpMatrix);
+                        mVideoEncoder.frameAvailableSoon(mStMatrix, mMvpMatrix, mTimestampNs);
                     }
                 }
             }
@@ -0,0 +1,104 @@
+package com.serenegiant.encoder;
+
+import java.nio.ByteBuffer;
+
+import android.media.AudioRecord;
+
+/**
+ * Read PCM data from AudioSourceBackend(AudioRecord) in exact AAC frame units(1024 samples per channel)
+ * and derive presentationTimeUs of each frame from the number of captured samples with AudioClock
+ * 按照 AAC 帧（每声道 1024 个采样）读取 PCM 数据，并根据已采集的采样数计算每帧的时间戳
+ */
+public class AacFrameAccumulator {
+
+    /**
+     * number of samples per channel in one AAC(LC) frame
+     */
+    public static final int SAMPLES_PER_FRAME = 1024;
+
+    private final int mSampleRate;
+    private final int mBytesPerFrame;   // bytes of one sample of all channels
+    private final int mFrameBytes;      // bytes of one AAC frame
+    private final AudioClock mClock;
+    private long mSampleCount;          // number of samples per channel captured so far
+    private long mFramePTSUs;
+
+    /**
+     * Constructor
+     *
+     * @param sampleRate     sampling rate [Hz]
+     * @param channelCount   number of channels
+     * @param bytesPerSample bytes per sample of one channel, 2 for ENCODING_PCM_16BIT
+     */
+    public AacFrameAccumulator(final int sampleRate, final int channelCount, final int bytesPerSample) {
+        mSampleRate = sampleRate;
+        mBytesPerFrame = channelCount * bytesPerSample;
+        mFrameBytes = SAMPLES_PER_FRAME * mBytesPerFrame;
+        mClock = new AudioClock(sampleRate);
+    }
+
+    /**
+     * @return bytes of one AAC frame, every buffer passed to #readFrame should have this capacity at least
+     */
+    public int getFrameBytes() {
+        return mFrameBytes;
+    }
+
+    /**
+     * @return duration of one AAC frame in microseconds
+     */
+    public long getFrameDurationUs() {
+        return SAMPLES_PER_FRAME * 1000000L / mSampleRate;
+    }
+
+    public AudioClock getClock() {
+        return mClock;
+    }
+
+    /**
+     * @return presentationTimeUs of the frame read by last #readFrame
+     */
+    public long getFramePTSUs() {
+        return mFramePTSUs;
+    }
+
+    /**
+     * read exactly one AAC frame into the head of direct buffer
+     * this blocks until whole frame is available(about 23ms at 44.1kHz)
+     * on return, position of dst is 0 and limit is the number of valid bytes
+     *
+     * @return #getFrameBytes if success, otherwise error code of AudioRecord#read
+     */
+    public int readFrame(final AudioSourceBackend source, final ByteBuffer dst) {
+        final long frameStart = mSampleCount;
+        int total = 0;
+        dst.clear();
+        while (total < mFrameBytes) {
+            final int readBytes;
+            if (total == 0) {
+                readBytes = source.read(dst, mFrameBytes);
+            } else {
+                // AudioRecord writes from the head of buffer on some devices,
+                // so pass sliced buffer for the rest of frame(this is rare case)
+                dst.limit(mFrameBytes);
+                dst.position(total);
+                readBytes = source.read(dst.slice(), mFrameBytes - total);
+            }
+            if (readBytes <= 0) {
+                // drop the partial frame but keep clock advancing
+                mSampleCount += total / mBytesPerFrame;
+                mClock.update(source, mSampleCount);
+                dst.clear();
+                dst.limit(0);
+                return readBytes < 0 ? readBytes : AudioRecord.ERROR;
+            }
+            total += readBytes;
+        }
+        mSampleCount += SAMPLES_PER_FRAME;
+        mClock.update(source, mSampleCount);
+        mFramePTSUs = mClock.getPTSUs(frameStart);
+        dst.limit(mFrameBytes);
+        dst.position(0);
+        return mFrameBytes;
+    }
+}
@@ -0,0 +1,97 @@
+package com.serenegiant.encoder;
+
+import java.nio.ByteBuffer;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.AudioTimestamp;
+import android.media.MediaRecorder;
+import android.os.Build;
+
+/**
+ * AudioSourceBackend that delegates to android.media.AudioRecord
+ */
+public class AndroidAudioSourceBackend implements AudioSourceBackend {
+
+    private static final int[] AUDIO_SOURCES = new int[]{
+            MediaRecorder.AudioSource.MIC,                  // 麦克风
+            MediaRecorder.AudioSource.DEFAULT,              // 默认音频源
+            MediaRecorder.AudioSource.CAMCORDER,            // 摄像机
+            MediaRecorder.AudioSource.VOICE_COMMUNICATION,  // 语音交流
+            MediaRecorder.AudioSource.VOICE_RECOGNITION,    // 语音识别
+    };
+
+    /**
+     * create AudioRecord of the first available audio source(internal mic)
+     */
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public AudioSourceBackend createSource(final int sampleRate, final int channelMask, final int frameBytes) {
+            // 返回成功创建AudioRecord对象所需要的最小缓冲区大小
+            final int min_buffer_size = AudioRecord.getMinBufferSize(
+                    sampleRate,
+                    channelMask, // 声道：单声道、双声道等
+                    AudioFormat.ENCODING_PCM_16BIT // 音频采样精度，指定采样的数据的格式和每次采样的大小，只支持8位和16位。
+            );
+            int buffer_size = frameBytes * MediaAudioEncoder.FRAMES_PER_BUFFER;
+            if (buffer_size < min_buffer_size)
+                buffer_size = ((min_buffer_size / frameBytes) + 1) * frameBytes * 2;
+
+            for (final int source : AUDIO_SOURCES) {
+                AudioRecord audioRecord;
+                try {
+                    audioRecord = new AudioRecord(
+                            source, // audioSource，音频采集的来源
+                            sampleRate, // sampleRateInHz，音频采样率
+                            channelMask, // channelConfig，声道：单声道、双声道等
+                            AudioFormat.ENCODING_PCM_16BIT, // audioFormat，音频采样精度
+                            buffer_size // bufferSizeInBytes，缓冲区大小，用于存放AudioRecord采集到的音频数据
+                    );
+                    // AudioRecord.STATE_INITIALIZED：初始完毕
+                    if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+                        audioRecord.release();
+                        audioRecord = null;
+                    }
+                } catch (final Exception e) {
+                    audioRecord = null;
+                }
+                if (audioRecord != null) {
+                    return new AndroidAudioSourceBackend(audioRecord);
+                }
+            }
+            return null;
+        }
+    };
+
+    private final AudioRecord mAudioRecord;
+
+    public AndroidAudioSourceBackend(final AudioRecord audioRecord) {
+        mAudioRecord = audioRecord;
+    }
+
+    @Override
+    public void startRecording() {
+        mAudioRecord.startRecording();
+    }
+
+    @Override
+    public void stop() {
+        mAudioRecord.stop();
+    }
+
+    @Override
+    public void release() {
+        mAudioRecord.release();
+    }
+
+    @Override
+    public int read(final ByteBuffer audioBuffer, final int sizeInBytes) {
+        return mAudioRecord.read(audioBuffer, sizeInBytes);
+    }
+
+    @Override
+    public boolean getTimestamp(final AudioTimestamp outTimestamp) {
+        return (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+            && (mAudioRecord.getTimestamp(outTimestamp, AudioTimestamp.TIMEBASE_MONOTONIC) == AudioRecord.SUCCESS);
+    }
+}
@@ -0,0 +1,169 @@
+package com.serenegiant.encoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.Surface;
+
+/**
+ * CodecBackend that delegates to android.media.MediaCodec
+ */
+public class AndroidCodecBackend implements CodecBackend {
+
+    /**
+     * create hardware/software encoder that the device has
+     */
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public CodecBackend createEncoder(final MediaFormat format) throws IOException {
+            final String mimeType = format.getString(MediaFormat.KEY_MIME);
+            if (mimeType == null) {
+                return null;
+            }
+            final CodecIndex.Codec codec = mimeType.startsWith("video/")
+                    ? MediaVideoEncoder.selectVideoCodec(format)
+                    : MediaAudioEncoder.selectAudioCodec(format);
+            if (codec == null) {
+                return null;
+            }
+            // create the selected one, createEncoderByType may choose another encoder
+            return new AndroidCodecBackend(MediaCodec.createByCodecName(codec.name));
+        }
+    };
+
+    private final MediaCodec mMediaCodec;    // API >= 16(Android4.1.2)
+
+    public AndroidCodecBackend(final MediaCodec codec) {
+        mMediaCodec = codec;
+    }
+
+    @Override
+    public String getName() {
+        return mMediaCodec.getName();
+    }
+
+    @Override
+    public void setCallback(final Callback callback, final Handler handler) {
+        mMediaCodec.setCallback(new MediaCodec.Callback() {    // API >= 23
+            @Override
+            public void onInputBufferAvailable(final MediaCodec codec, final int index) {
+                callback.onInputBufferAvailable(index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(final MediaCodec codec, final int index, final MediaCodec.BufferInfo info) {
+                callback.onOutputBufferAvailable(index, info);
+            }
+
+            @Override
+            public void onError(final MediaCodec codec, final MediaCodec.CodecException e) {
+                callback.onError(e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+                callback.onOutputFormatChanged(format);
+            }
+        }, handler);
+    }
+
+    @Override
+    public void configure(final MediaFormat format, final int flags) {
+        mMediaCodec.configure(format, null, null, flags);
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return mMediaCodec.createInputSurface();    // API >= 18
+    }
+
+    @Override
+    public Surface createPersistentInputSurface() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+            ? MediaCodec.createPersistentInputSurface() : null;    // API >= 23
+    }
+
+    @Override
+    public void setInputSurface(final Surface surface) {
+        mMediaCodec.setInputSurface(surface);    // API >= 23
+    }
+
+    @Override
+    public void start() {
+        mMediaCodec.start();
+    }
+
+    @Override
+    public void stop() {
+        mMediaCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        mMediaCodec.release();
+    }
+
+    @Override
+    public void reset() {
+        mMediaCodec.reset();    // API >= 21
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mMediaCodec.signalEndOfInputStream();    // API >= 18
+    }
+
+    @Override
+    public int dequeueInputBuffer(final long timeoutUs) {
+        return mMediaCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(final int index) {
+        return mMediaCodec.getInputBuffer(index);    // API >= 21
+    }
+
+    @Override
+    public void queueInputBuffer(final int index, final int offset, final int size, final long presentationTimeUs, final int flags) {
+        mMediaCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(final MediaCodec.BufferInfo info, final long timeoutUs) {
+        return mMediaCodec.dequeueOutputBuffer(info, timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(final int index) {
+        return mMediaCodec.getOutputBuffer(index);    // API >= 21
+    }
+
+    @Override
+    public void releaseOutputBuffer(final int index) {
+        mMediaCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mMediaCodec.getOutputFormat();
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        final Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mMediaCodec.setParameters(params);    // API >= 19
+    }
+
+    @Override
+    public void setVideoBitrate(final int bitrate) {
+        final Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        mMediaCodec.setParameters(params);    // API >= 19
+    }
+}
@@ -0,0 +1,46 @@
+package com.serenegiant.encoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+/**
+ * MuxerBackend that writes mp4 file using android.media.MediaMuxer
+ */
+public class AndroidMuxerBackend implements MuxerBackend {
+
+    private final MediaMuxer mMediaMuxer;    // API >= 18
+
+    public AndroidMuxerBackend(final String outputPath) throws IOException {
+        mMediaMuxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public int addTrack(final MediaFormat format) {
+        // 添加媒体通道，传入MediaFormat对象，通常从MediaExtractor或者MediaCodec中获取
+        return mMediaMuxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        mMediaMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+        mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        mMediaMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        mMediaMuxer.release();
+    }
+}
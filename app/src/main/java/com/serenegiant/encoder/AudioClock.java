@@ -0,0 +1,109 @@
+package com.serenegiant.encoder;
+
+import android.media.AudioTimestamp;
+import android.os.Build;
+import android.util.Log;
+
+import com.serenegiant.audiovideosample.BuildConfig;
+
+/**
+ * Audio clock that derives presentationTimeUs from the number of captured samples
+ * 根据已采集的采样数计算时间戳的音频时钟
+ * <p>
+ * The sample count is steady but the actual sampling rate of hardware differs slightly
+ * from nominal one, so the clock is slowly disciplined against AudioRecord#getTimestamp(API>=24)
+ * or the monotonic clock at read completion. Each correction is limited to MAX_SLEW_US
+ * so that presentationTimeUs never jumps and stays monotonic.
+ * All time values are based on System#nanoTime / 1000.
+ */
+public class AudioClock {
+    private static final boolean DEBUG = BuildConfig.DEBUG;
+    private static final String TAG = AudioClock.class.getSimpleName();
+
+    /**
+     * interval of discipline
+     */
+    private static final long UPDATE_INTERVAL_US = 1000000L;
+    /**
+     * maximum correction per update, 100ppm of drift is only 100us/sec
+     */
+    private static final long MAX_SLEW_US = 2000L;
+
+    private final int mSampleRate;
+    private final AudioTimestamp mTimestamp;
+    private boolean mStarted;
+    private long mBaseUs;
+    private long mCorrectionUs;
+    private long mLastUpdateUs;
+    /**
+     * minimum error observed on monotonic clock since last update,
+     * scheduling delay only makes error larger, so minimum is the best estimate
+     */
+    private long mMinErrorUs = Long.MAX_VALUE;
+
+    public AudioClock(final int sampleRate) {
+        mSampleRate = sampleRate;
+        mTimestamp = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ? new AudioTimestamp() : null;
+    }
+
+    /**
+     * @return accumulated drift correction so far
+     */
+    public long getCorrectionUs() {
+        return mCorrectionUs;
+    }
+
+    /**
+     * get presentationTimeUs of specific sample
+     *
+     * @param samplePosition number of samples per channel captured before the sample
+     */
+    public long getPTSUs(final long samplePosition) {
+        return mBaseUs + mCorrectionUs + samplePosition * 1000000L / mSampleRate;
+    }
+
+    /**
+     * update the clock, should be called just after every AudioSourceBackend#read
+     *
+     * @param capturedSamples total number of samples per channel captured so far
+     */
+    public void update(final AudioSourceBackend source, final long capturedSamples) {
+        final long nowUs = System.nanoTime() / 1000L;
+        final long errorUs = nowUs - getPTSUs(capturedSamples);
+        if (!mStarted) {
+            // the last captured sample is nearly now
+            mStarted = true;
+            mBaseUs = nowUs - capturedSamples * 1000000L / mSampleRate;
+            mLastUpdateUs = nowUs;
+            if (measure(source)) {
+                mBaseUs += mMinErrorUs;
+            }
+            mMinErrorUs = Long.MAX_VALUE;
+            return;
+        }
+        if (errorUs < mMinErrorUs) {
+            mMinErrorUs = errorUs;
+        }
+        if (nowUs - mLastUpdateUs < UPDATE_INTERVAL_US) return;
+        mLastUpdateUs = nowUs;
+        // prefer hardware timestamp and fall back to monotonic clock
+        measure(source);
+        final long correctionUs = Math.max(-MAX_SLEW_US, Math.min(MAX_SLEW_US, mMinErrorUs / 2));
+        mCorrectionUs += correctionUs;
+        if (DEBUG) Log.v(TAG, "update:error=" + mMinErrorUs + ",correction=" + mCorrectionUs);
+        mMinErrorUs = Long.MAX_VALUE;
+    }
+
+    /**
+     * measure the error of this clock with AudioSourceBackend#getTimestamp(AudioRecord#getTimestamp)
+     *
+     * @return true if the error was measured and stored into mMinErrorUs
+     */
+    private boolean measure(final AudioSourceBackend source) {
+        if ((mTimestamp != null) && source.getTimestamp(mTimestamp)) {
+            mMinErrorUs = mTimestamp.nanoTime / 1000L - getPTSUs(mTimestamp.framePosition);
+            return true;
+        }
+        return false;
+    }
+}
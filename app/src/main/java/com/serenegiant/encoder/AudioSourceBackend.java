@@ -0,0 +1,47 @@
+package com.serenegiant.encoder;
+
+import java.nio.ByteBuffer;
+
+import android.media.AudioTimestamp;
+
+/**
+ * Narrow interface of the PCM source that MediaAudioEncoder captures from,
+ * AndroidAudioSourceBackend delegates to android.media.AudioRecord and FakeAudioSourceBackend(in unit tests)
+ * generates silent PCM data so that audio capturing can run on the plain JVM.
+ * Methods and return values have the same meaning as AudioRecord, PCM data is always 16bit.
+ */
+public interface AudioSourceBackend {
+
+    /**
+     * create AudioSourceBackend instance
+     */
+    interface Factory {
+        /**
+         * @param sampleRate  sampling rate [Hz]
+         * @param channelMask AudioFormat.CHANNEL_IN_MONO or AudioFormat.CHANNEL_IN_STEREO
+         * @param frameBytes  bytes of one AAC frame, the source should buffer several frames at least
+         * @return null if no source is available
+         */
+        AudioSourceBackend createSource(int sampleRate, int channelMask, int frameBytes);
+    }
+
+    void startRecording();
+
+    void stop();
+
+    void release();
+
+    /**
+     * read PCM data into direct buffer, this blocks until the data is available
+     *
+     * @return number of bytes read, or negative error code of AudioRecord
+     */
+    int read(ByteBuffer audioBuffer, int sizeInBytes);
+
+    /**
+     * get the time when specific frame was captured, based on System#nanoTime
+     *
+     * @return false if the timestamp is not available
+     */
+    boolean getTimestamp(AudioTimestamp outTimestamp);
+}
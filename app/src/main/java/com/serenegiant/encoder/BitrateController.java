@@ -0,0 +1,157 @@
+package com.serenegiant.encoder;
+
+import java.util.Locale;
+
+/**
+ * Adaptive bitrate controller of video encoder
+ * 视频编码器的自适应码率控制
+ * <p>
+ * #update is called periodically with the state of outputs(Signals) and returns new bitrate.
+ * The bitrate is decreased multiplicatively while local writer or live sink is congested,
+ * and increased additively after outputs stay clear for a while. Between the high and low
+ * thresholds of congestion the bitrate is kept(hysteresis), and small changes are ignored,
+ * so the encoder is not retuned frequently. The bitrate never exceeds the user ceiling and
+ * estimated throughputs of the storage and the network(with headroom for audio and overhead).
+ * This class does not depend on Android framework, so it can run on JVM with simulated link.
+ * This class is not thread safe.
+ */
+public class BitrateController {
+
+    /**
+     * snapshot of outputs, negative value means unknown
+     */
+    public static final class Signals {
+        /**
+         * throughput of the storage while writing [bits/sec]
+         */
+        public long storageBps = -1;
+        /**
+         * ratio of memory used by samples waiting for the writer, 0 to 1
+         */
+        public float storageQueueRatio = -1;
+        /**
+         * estimated throughput of the live sink [bits/sec]
+         */
+        public long liveBps = -1;
+        /**
+         * age of the oldest sample waiting for the live sink [msec]
+         */
+        public long liveBacklogMs = -1;
+
+        public void reset() {
+            storageBps = -1;
+            storageQueueRatio = -1;
+            liveBps = -1;
+            liveBacklogMs = -1;
+        }
+    }
+
+    public static final float QUEUE_RATIO_HIGH = 0.5f;
+    public static final float QUEUE_RATIO_LOW = 0.1f;
+    public static final long BACKLOG_HIGH_MS = 500;
+    public static final long BACKLOG_LOW_MS = 100;
+    /**
+     * video may use this ratio of the throughput of the storage/network
+     */
+    private static final float STORAGE_HEADROOM = 0.5f;
+    private static final float LIVE_HEADROOM = 0.8f;
+    private static final float DECREASE_FACTOR = 0.75f;
+    private static final float INCREASE_STEP = 0.1f;
+    /**
+     * changes smaller than this ratio of current bitrate are ignored
+     */
+    private static final float DEADBAND = 0.05f;
+    private static final long DECREASE_INTERVAL_MS = 1000;
+    private static final long INCREASE_INTERVAL_MS = 3000;
+
+    private final int mMinBitrate;
+    private final int mMaxBitrate;
+    private int mCeiling;
+    private int mBitrate;
+    private long mLastChangeMs = Long.MIN_VALUE / 2;
+    private long mLastCongestionMs = Long.MIN_VALUE / 2;
+    private int mDecreaseCount, mIncreaseCount;
+
+    /**
+     * Constructor
+     *
+     * @param minBitrate lower limit [bits/sec]
+     * @param maxBitrate upper limit and initial bitrate [bits/sec], usually the bitrate at #prepare
+     */
+    public BitrateController(final int minBitrate, final int maxBitrate) {
+        if ((minBitrate <= 0) || (maxBitrate < minBitrate))
+            throw new IllegalArgumentException("invalid bitrate range");
+        mMinBitrate = minBitrate;
+        mMaxBitrate = mCeiling = mBitrate = maxBitrate;
+    }
+
+    /**
+     * set upper limit by user, e.g. from settings or data plan
+     *
+     * @param ceiling [bits/sec]
+     */
+    public void setCeiling(final int ceiling) {
+        mCeiling = Math.max(mMinBitrate, Math.min(mMaxBitrate, ceiling));
+    }
+
+    public int getCeiling() {
+        return mCeiling;
+    }
+
+    public int getBitrate() {
+        return mBitrate;
+    }
+
+    /**
+     * evaluate outputs and decide bitrate
+     *
+     * @param nowMs   monotonic time [msec]
+     * @param signals current state of outputs
+     * @return new bitrate if it should be changed, 0 to keep current bitrate
+     */
+    public int update(final long nowMs, final Signals signals) {
+        long limit = mCeiling;
+        if (signals.storageBps > 0) {
+            limit = Math.min(limit, (long) (signals.storageBps * STORAGE_HEADROOM));
+        }
+        final boolean storageCongested = signals.storageQueueRatio >= QUEUE_RATIO_HIGH;
+        final boolean liveCongested = signals.liveBacklogMs >= BACKLOG_HIGH_MS;
+        if (liveCongested && (signals.liveBps > 0)) {
+            // the link is saturated, so the estimation is real throughput, not lower bound
+            limit = Math.min(limit, (long) (signals.liveBps * LIVE_HEADROOM));
+        }
+        final boolean clear = (signals.storageQueueRatio < QUEUE_RATIO_LOW)
+            && (signals.liveBacklogMs < BACKLOG_LOW_MS);
+        int bitrate = mBitrate;
+        if (storageCongested || liveCongested) {
+            mLastCongestionMs = nowMs;
+            if (nowMs - mLastChangeMs >= DECREASE_INTERVAL_MS) {
+                bitrate = (int) Math.min(limit, (long) (bitrate * DECREASE_FACTOR));
+            }
+        } else if (clear && (nowMs - mLastChangeMs >= INCREASE_INTERVAL_MS)
+            && (nowMs - mLastCongestionMs >= INCREASE_INTERVAL_MS)) {
+            bitrate += (int) (mMaxBitrate * INCREASE_STEP);
+        }
+        // e.g. ceiling is lowered by user or storage became slow
+        bitrate = (int) Math.max(mMinBitrate, Math.min(limit, bitrate));
+        if ((bitrate == mBitrate)
+            || ((Math.abs(bitrate - mBitrate) < mBitrate * DEADBAND)
+                && (bitrate != mMinBitrate) && (bitrate != limit))) {
+            return 0;
+        }
+        if (bitrate < mBitrate) {
+            mDecreaseCount++;
+        } else {
+            mIncreaseCount++;
+        }
+        mBitrate = bitrate;
+        mLastChangeMs = nowMs;
+        return bitrate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "BitrateController(bitrate=%d,range=%d-%d,ceiling=%d,down=%d,up=%d)",
+            mBitrate, mMinBitrate, mMaxBitrate, mCeiling, mDecreaseCount, mIncreaseCount);
+    }
+}
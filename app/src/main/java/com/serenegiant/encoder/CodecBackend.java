@@ -0,0 +1,114 @@
+package com.serenegiant.encoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.view.Surface;
+
+/**
+ * Narrow interface of the encoder that MediaEncoder uses,
+ * AndroidCodecBackend delegates to android.media.MediaCodec and FakeCodecBackend(in unit tests)
+ * emits synthetic encoded samples so that the pipeline can run on the plain JVM.
+ * Methods and return values have the same meaning as MediaCodec.
+ */
+public interface CodecBackend {
+
+    /**
+     * create CodecBackend instance for specific format
+     */
+    interface Factory {
+        /**
+         * @param format format that the encoder will be configured with, this is not modified
+         * @return null if no encoder supports the format
+         */
+        CodecBackend createEncoder(MediaFormat format) throws IOException;
+    }
+
+    /**
+     * callback interface for async mode, same as MediaCodec.Callback
+     */
+    interface Callback {
+        void onInputBufferAvailable(int index);
+
+        void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info);
+
+        void onOutputFormatChanged(MediaFormat format);
+
+        void onError(Exception e);
+    }
+
+    String getName();
+
+    /**
+     * set callback for async mode, this should be called before #configure
+     *
+     * @param handler Handler of the thread that callback methods are called on,
+     *                backend without Looper may ignore this and call on private thread
+     */
+    void setCallback(Callback callback, Handler handler);
+
+    void configure(MediaFormat format, int flags);
+
+    /**
+     * this method only can call between #configure and #start
+     *
+     * @return null if backend has no Surface(then frames are generated by backend itself)
+     */
+    Surface createInputSurface();
+
+    /**
+     * create Surface that can be used with #setInputSurface and is kept across #reset/#configure
+     *
+     * @return null if not supported, e.g. API < 23
+     */
+    Surface createPersistentInputSurface();
+
+    /**
+     * use the Surface of #createPersistentInputSurface instead of #createInputSurface,
+     * this method only can call between #configure and #start
+     */
+    void setInputSurface(Surface surface);
+
+    void start();
+
+    void stop();
+
+    void release();
+
+    /**
+     * return to the state just after creation, this can be called in any state,
+     * the encoder should be configured again before #start
+     */
+    void reset();
+
+    void signalEndOfInputStream();
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    void releaseOutputBuffer(int index);
+
+    MediaFormat getOutputFormat();
+
+    /**
+     * request the encoder to encode next frame as a sync(key) frame
+     */
+    void requestSyncFrame();
+
+    /**
+     * change target bitrate of video encoder while encoding
+     *
+     * @param bitrate [bits/sec]
+     */
+    void setVideoBitrate(int bitrate);
+}
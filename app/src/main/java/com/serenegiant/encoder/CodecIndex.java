@@ -0,0 +1,469 @@
+package com.serenegiant.encoder;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.content.Context;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import com.serenegiant.audiovideosample.BuildConfig;
+import com.serenegiant.utils.FileUtils;
+
+/**
+ * Index of encoders and their capabilities that is built once and persisted
+ * 编码器能力索引，只扫描一次并持久化
+ * <p>
+ * Scanning MediaCodecList and calling getCapabilitiesForType takes long time(tens or hundreds
+ * of msec on some devices), so this scans all encoders only once and saves the result into
+ * the storage of the app with Build.FINGERPRINT. Later starts load the file, and the index is
+ * rebuilt only when the firmware is updated. Encoders are grouped by MIME type in order of
+ * MediaCodecList(that is the order of preference), #findEncoder checks the few encoders of the MIME type
+ * one by one and returns the first match, so it does not touch MediaCodecList at all.
+ * Color formats and sample rates are sorted for binary search, and profile/level pairs are sorted by profile.
+ * Call #init with Context to enable persistence, otherwise the index is built in memory on first use.
+ */
+public class CodecIndex {
+    private static final boolean DEBUG = BuildConfig.DEBUG;
+    private static final String TAG = CodecIndex.class.getSimpleName();
+
+    private static final String FILE_NAME = "codec_index.bin";
+    private static final int MAGIC = 0x43494458;    // "CIDX"
+    private static final int VERSION = 1;
+
+    /**
+     * capabilities of an encoder for one MIME type
+     */
+    public static final class Codec {
+        public final String name;
+        public final String mimeType;
+        /**
+         * sorted color formats, empty for audio encoders
+         */
+        private final int[] colorFormats;
+        /**
+         * pairs of profile and the maximum level of it, sorted by profile
+         */
+        private final int[] profileLevels;
+        public final int maxWidth, maxHeight, maxFrameRate;
+        public final int minBitrate, maxBitrate;
+        /**
+         * bit mask of supported bitrate modes(1 << BITRATE_MODE_XXX)
+         */
+        private final int bitrateModes;
+        /**
+         * sorted sample rates, empty if any rate is supported
+         */
+        private final int[] sampleRates;
+        public final int maxChannelCount;
+
+        Codec(final String name, final String mimeType, final int[] colorFormats, final int[] profileLevels,
+              final int maxWidth, final int maxHeight, final int maxFrameRate,
+              final int minBitrate, final int maxBitrate, final int bitrateModes,
+              final int[] sampleRates, final int maxChannelCount) {
+            this.name = name;
+            this.mimeType = mimeType;
+            this.colorFormats = colorFormats;
+            this.profileLevels = profileLevels;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.maxFrameRate = maxFrameRate;
+            this.minBitrate = minBitrate;
+            this.maxBitrate = maxBitrate;
+            this.bitrateModes = bitrateModes;
+            this.sampleRates = sampleRates;
+            this.maxChannelCount = maxChannelCount;
+        }
+
+        public boolean isVideo() {
+            return mimeType.startsWith("video/");
+        }
+
+        public boolean supportsColorFormat(final int colorFormat) {
+            return Arrays.binarySearch(colorFormats, colorFormat) >= 0;
+        }
+
+        /**
+         * @param profile MediaCodecInfo.CodecProfileLevel value, 0 means any
+         * @param level   MediaCodecInfo.CodecProfileLevel value, 0 means any
+         */
+        public boolean supportsProfileLevel(final int profile, final int level) {
+            if (profile <= 0) return true;
+            for (int i = 0; i < profileLevels.length; i += 2) {
+                if ((profileLevels[i] == profile) && (profileLevels[i + 1] >= level)) return true;
+            }
+            return false;
+        }
+
+        /**
+         * check size within the maximum of both orientations, alignment is not checked
+         */
+        public boolean supportsSize(final int width, final int height) {
+            return (Math.max(width, height) <= Math.max(maxWidth, maxHeight))
+                && (Math.min(width, height) <= Math.min(maxWidth, maxHeight));
+        }
+
+        public boolean supportsBitrate(final int bitrate) {
+            return (bitrate >= minBitrate) && (bitrate <= maxBitrate);
+        }
+
+        public boolean supportsBitrateMode(final int mode) {
+            return (mode >= 0) && ((bitrateModes & (1 << mode)) != 0);
+        }
+
+        public boolean supportsSampleRate(final int sampleRate) {
+            return (sampleRates.length == 0) || (Arrays.binarySearch(sampleRates, sampleRate) >= 0);
+        }
+
+        /**
+         * check the format to configure against capabilities of this encoder
+         *
+         * @return null if supported, otherwise the reason
+         */
+        public String checkFormat(final MediaFormat format) {
+            final String type = format.getString(MediaFormat.KEY_MIME);
+            if (!mimeType.equalsIgnoreCase(type))
+                return name + ":" + type + " is not supported";
+            final int bitrateMode = getInteger(format, MediaFormat.KEY_BITRATE_MODE, RecordingProfile.BITRATE_MODE_DEFAULT);
+            final int bitrate = getInteger(format, MediaFormat.KEY_BIT_RATE, 0);
+            if (isVideo()) {
+                final int colorFormat = getInteger(format, MediaFormat.KEY_COLOR_FORMAT, 0);
+                if ((colorFormat != 0) && !supportsColorFormat(colorFormat))
+                    return name + ":color format " + colorFormat + " is not supported";
+                final int width = getInteger(format, MediaFormat.KEY_WIDTH, 0);
+                final int height = getInteger(format, MediaFormat.KEY_HEIGHT, 0);
+                final int frameRate = getInteger(format, MediaFormat.KEY_FRAME_RATE, 0);
+                if (!supportsSize(width, height) || (frameRate > maxFrameRate))
+                    return String.format(Locale.US, "%s:%dx%d@%dfps is not supported", name, width, height, frameRate);
+                if ((bitrateMode != RecordingProfile.BITRATE_MODE_CQ) && (bitrate > 0) && !supportsBitrate(bitrate))
+                    return name + ":bitrate " + bitrate + " is out of " + minBitrate + "-" + maxBitrate;
+                if ((bitrateMode != RecordingProfile.BITRATE_MODE_DEFAULT) && !supportsBitrateMode(bitrateMode))
+                    return name + ":bitrate mode " + bitrateMode + " is not supported";
+                final int profile = getInteger(format, MediaFormat.KEY_PROFILE, 0);
+                final int level = getInteger(format, MediaFormat.KEY_LEVEL, 0);
+                if (!supportsProfileLevel(profile, level))
+                    return name + ":profile " + profile + "/level " + level + " is not supported";
+            } else {
+                final int sampleRate = getInteger(format, MediaFormat.KEY_SAMPLE_RATE, 0);
+                final int channelCount = getInteger(format, MediaFormat.KEY_CHANNEL_COUNT, 1);
+                if (!supportsSampleRate(sampleRate))
+                    return name + ":sample rate " + sampleRate + " is not supported";
+                if (maxChannelCount < channelCount)
+                    return name + ":" + channelCount + " channels are not supported";
+                if ((bitrate > 0) && !supportsBitrate(bitrate))
+                    return name + ":bitrate " + bitrate + " is out of " + minBitrate + "-" + maxBitrate;
+            }
+            return null;
+        }
+
+        /**
+         * MediaFormat#getInteger with default value is only available on API >= 29
+         */
+        private static int getInteger(final MediaFormat format, final String key, final int defaultValue) {
+            return format.containsKey(key) ? format.getInteger(key) : defaultValue;
+        }
+
+        @Override
+        public String toString() {
+            return "Codec(" + name + "," + mimeType + ")";
+        }
+    }
+
+    private static File sFile;
+    private static CodecIndex sIndex;
+
+    /**
+     * set the directory to persist the index, this should be called before first use
+     */
+    public static synchronized void init(final Context context) {
+        if (sFile == null) {
+            sFile = new File(context.getApplicationContext().getNoBackupFilesDir(), FILE_NAME);
+        }
+    }
+
+    /**
+     * get the index, this loads it from the file or scans encoders on first call
+     */
+    public static synchronized CodecIndex get() {
+        if (sIndex == null) {
+            final long start = System.nanoTime();
+            final String fingerprint = Build.FINGERPRINT + "/" + Build.VERSION.SDK_INT;
+            CodecIndex index = null;
+            if ((sFile != null) && sFile.isFile()) {
+                try {
+                    index = read(sFile, fingerprint);
+                } catch (final IOException e) {
+                    Log.w(TAG, "failed to load codec index", e);
+                } catch (final RuntimeException e) {
+                    // broken file, e.g. NegativeArraySizeException from a corrupted length
+                    Log.w(TAG, "failed to load codec index", e);
+                }
+            }
+            if (index == null) {
+                index = scan();
+                if (sFile != null) {
+                    try {
+                        index.write(sFile, fingerprint);
+                    } catch (final IOException e) {
+                        Log.w(TAG, "failed to save codec index", e);
+                    }
+                }
+            }
+            sIndex = index;
+            if (DEBUG) Log.v(TAG, "get:" + (System.nanoTime() - start) / 1000 + "us," + index.mCodecs.keySet());
+        }
+        return sIndex;
+    }
+
+    /**
+     * encoders for each MIME type(lower case) in order of MediaCodecList
+     */
+    private final Map<String, List<Codec>> mCodecs;
+
+    private CodecIndex(final Map<String, List<Codec>> codecs) {
+        mCodecs = codecs;
+    }
+
+    /**
+     * @return encoders for the MIME type, empty if there is none
+     */
+    public List<Codec> getEncoders(final String mimeType) {
+        final List<Codec> list = mCodecs.get(mimeType.toLowerCase(Locale.US));
+        return list != null ? Collections.unmodifiableList(list) : Collections.<Codec>emptyList();
+    }
+
+    /**
+     * @return the first encoder for the MIME type, null if there is none
+     */
+    public Codec findEncoder(final String mimeType) {
+        final List<Codec> list = mCodecs.get(mimeType.toLowerCase(Locale.US));
+        return (list != null) && !list.isEmpty() ? list.get(0) : null;
+    }
+
+    /**
+     * find the first encoder that supports the format, same as MediaCodecList#findEncoderForFormat
+     * but this also checks bitrate, bitrate mode and size without touching MediaCodecList
+     *
+     * @return null if there is none
+     */
+    public Codec findEncoder(final MediaFormat format) {
+        final String mimeType = format.getString(MediaFormat.KEY_MIME);
+        if (mimeType == null) return null;
+        final List<Codec> list = mCodecs.get(mimeType.toLowerCase(Locale.US));
+        if (list == null) return null;
+        for (int i = 0; i < list.size(); i++) {
+            final Codec codec = list.get(i);
+            if (codec.checkFormat(format) == null) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * find the first encoder that supports all conditions
+     *
+     * @param colorFormat MediaCodecInfo.CodecCapabilities value, 0 means any
+     * @param profile     MediaCodecInfo.CodecProfileLevel value, 0 means any
+     * @param width       0 means any
+     * @param height      0 means any
+     * @return null if there is none
+     */
+    public Codec findEncoder(final String mimeType, final int colorFormat, final int profile,
+                             final int width, final int height) {
+        final List<Codec> list = mCodecs.get(mimeType.toLowerCase(Locale.US));
+        if (list == null) return null;
+        for (int i = 0; i < list.size(); i++) {
+            final Codec codec = list.get(i);
+            if (((colorFormat == 0) || codec.supportsColorFormat(colorFormat))
+                && codec.supportsProfileLevel(profile, 0)
+                && ((width <= 0) || (height <= 0) || codec.supportsSize(width, height))) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+//********************************************************************************
+
+    private static CodecIndex scan() {
+        final Map<String, List<Codec>> codecs = new HashMap<String, List<Codec>>();
+        final MediaCodecInfo[] infos = new MediaCodecList(MediaCodecList.ALL_CODECS).getCodecInfos();
+        for (final MediaCodecInfo info : infos) {
+            if (!info.isEncoder()) continue;
+            for (final String type : info.getSupportedTypes()) {
+                final MediaCodecInfo.CodecCapabilities caps;
+                try {
+                    caps = info.getCapabilitiesForType(type);
+                } catch (final RuntimeException e) {
+                    Log.w(TAG, "failed to get capabilities of " + info.getName(), e);
+                    continue;
+                }
+                final String mimeType = type.toLowerCase(Locale.US);
+                List<Codec> list = codecs.get(mimeType);
+                if (list == null) {
+                    list = new ArrayList<Codec>();
+                    codecs.put(mimeType, list);
+                }
+                list.add(toCodec(info.getName(), mimeType, caps));
+            }
+        }
+        return new CodecIndex(codecs);
+    }
+
+    private static Codec toCodec(final String name, final String mimeType,
+                                 final MediaCodecInfo.CodecCapabilities caps) {
+        final int[] colorFormats = caps.colorFormats != null ? caps.colorFormats.clone() : new int[0];
+        Arrays.sort(colorFormats);
+        // keep the maximum level for each profile
+        final Map<Integer, Integer> levels = new TreeMap<Integer, Integer>();
+        if (caps.profileLevels != null) {
+            for (final MediaCodecInfo.CodecProfileLevel pl : caps.profileLevels) {
+                final Integer level = levels.get(pl.profile);
+                if ((level == null) || (level < pl.level)) {
+                    levels.put(pl.profile, pl.level);
+                }
+            }
+        }
+        final int[] profileLevels = new int[levels.size() * 2];
+        int i = 0;
+        for (final Map.Entry<Integer, Integer> entry : levels.entrySet()) {
+            profileLevels[i++] = entry.getKey();
+            profileLevels[i++] = entry.getValue();
+        }
+        int maxWidth = 0, maxHeight = 0, maxFrameRate = 0;
+        int minBitrate = 0, maxBitrate = Integer.MAX_VALUE;
+        int bitrateModes = 0;
+        int[] sampleRates = new int[0];
+        int maxChannelCount = 0;
+        final MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+        if (video != null) {
+            maxWidth = video.getSupportedWidths().getUpper();
+            maxHeight = video.getSupportedHeights().getUpper();
+            maxFrameRate = video.getSupportedFrameRates().getUpper();
+            final Range<Integer> bitrate = video.getBitrateRange();
+            minBitrate = bitrate.getLower();
+            maxBitrate = bitrate.getUpper();
+        }
+        final MediaCodecInfo.AudioCapabilities audio = caps.getAudioCapabilities();
+        if (audio != null) {
+            final Range<Integer> bitrate = audio.getBitrateRange();
+            minBitrate = bitrate.getLower();
+            maxBitrate = bitrate.getUpper();
+            final int[] rates = audio.getSupportedSampleRates();
+            if (rates != null) {
+                sampleRates = rates.clone();
+                Arrays.sort(sampleRates);
+            }
+            maxChannelCount = audio.getMaxInputChannelCount();
+        }
+        final MediaCodecInfo.EncoderCapabilities encoder = caps.getEncoderCapabilities();
+        if (encoder != null) {
+            for (int mode = RecordingProfile.BITRATE_MODE_CQ; mode <= RecordingProfile.BITRATE_MODE_CBR; mode++) {
+                if (encoder.isBitrateModeSupported(mode)) {
+                    bitrateModes |= 1 << mode;
+                }
+            }
+        }
+        return new Codec(name, mimeType, colorFormats, profileLevels, maxWidth, maxHeight, maxFrameRate,
+            minBitrate, maxBitrate, bitrateModes, sampleRates, maxChannelCount);
+    }
+
+    /**
+     * @return null if the file was written on other firmware or by other version
+     */
+    private static CodecIndex read(final File file, final String fingerprint) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION) || !fingerprint.equals(in.readUTF())) {
+                return null;
+            }
+            final Map<String, List<Codec>> codecs = new HashMap<String, List<Codec>>();
+            final int numTypes = in.readInt();
+            for (int i = 0; i < numTypes; i++) {
+                final String mimeType = in.readUTF();
+                final int n = in.readInt();
+                final List<Codec> list = new ArrayList<Codec>(n);
+                for (int j = 0; j < n; j++) {
+                    final String name = in.readUTF();
+                    final int[] colorFormats = readInts(in);
+                    final int[] profileLevels = readInts(in);
+                    final int maxWidth = in.readInt();
+                    final int maxHeight = in.readInt();
+                    final int maxFrameRate = in.readInt();
+                    final int minBitrate = in.readInt();
+                    final int maxBitrate = in.readInt();
+                    final int bitrateModes = in.readInt();
+                    final int[] sampleRates = readInts(in);
+                    final int maxChannelCount = in.readInt();
+                    list.add(new Codec(name, mimeType, colorFormats, profileLevels, maxWidth, maxHeight,
+                        maxFrameRate, minBitrate, maxBitrate, bitrateModes, sampleRates, maxChannelCount));
+                }
+                codecs.put(mimeType, list);
+            }
+            return new CodecIndex(codecs);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void write(final File file, final String fingerprint) throws IOException {
+        FileUtils.writeAtomically(file, new FileUtils.DataWriter() {
+            @Override
+            public void write(final DataOutputStream out) throws IOException {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(fingerprint);
+                out.writeInt(mCodecs.size());
+                for (final Map.Entry<String, List<Codec>> entry : mCodecs.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().size());
+                    for (final Codec codec : entry.getValue()) {
+                        out.writeUTF(codec.name);
+                        writeInts(out, codec.colorFormats);
+                        writeInts(out, codec.profileLevels);
+                        out.writeInt(codec.maxWidth);
+                        out.writeInt(codec.maxHeight);
+                        out.writeInt(codec.maxFrameRate);
+                        out.writeInt(codec.minBitrate);
+                        out.writeInt(codec.maxBitrate);
+                        out.writeInt(codec.bitrateModes);
+                        writeInts(out, codec.sampleRates);
+                        out.writeInt(codec.maxChannelCount);
+                    }
+                }
+            }
+        });
+    }
+
+    private static int[] readInts(final DataInputStream in) throws IOException {
+        final int[] values = new int[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    private static void writeInts(final DataOutputStream out, final int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (final int value : values) {
+            out.writeInt(value);
+        }
+    }
+}
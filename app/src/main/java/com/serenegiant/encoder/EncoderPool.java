@@ -0,0 +1,742 @@
+package com.serenegiant.encoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Surface;
+
+import com.serenegiant.audiovideosample.BuildConfig;
+import com.serenegiant.glutilsOld.RenderHandler;
+
+/**
+ * Pool of encoders that are configured but not started and of render threads for their input Surface
+ * 预热编码器池，在录制之间保持已配置但空闲的编码器和渲染线程
+ * <p>
+ * This is CodecBackend.Factory for MediaMuxerWrapper#setEncoderPool. #prewarm creates and configures
+ * encoders for RecordingProfile on private thread before recording, and an encoder that MediaEncoder
+ * released is reset and configured again with the same MediaFormat on private thread instead of releasing,
+ * so starting a recording only needs MediaCodec#start. Video encoders use persistent input Surface
+ * on API >= 23, so the EGL surface of the pooled RenderHandler also stays valid across recordings.
+ * Idle encoders hold hardware codec instances that other apps need too, so #evictAll should be called
+ * when the app goes background, they are also evicted on memory pressure after #register.
+ */
+public class EncoderPool implements CodecBackend.Factory, ComponentCallbacks2 {
+
+    private static final boolean DEBUG = BuildConfig.DEBUG;
+    private static final String TAG = EncoderPool.class.getSimpleName();
+
+    /**
+     * maximum number of idle encoders for each MIME type
+     */
+    private static final int MAX_IDLE_PER_MIME = 1;
+
+    private final Object mSync = new Object();
+    private final CodecBackend.Factory mFactory;
+    /**
+     * private thread to create/reset/configure encoders
+     */
+    private final ExecutorService mWorker = Executors.newSingleThreadExecutor();
+    private final ArrayList<PooledCodec> mIdle = new ArrayList<PooledCodec>();
+    /**
+     * MIME types of encoders that are being prepared on private thread, same type can be added twice
+     */
+    private final ArrayList<String> mPreparing = new ArrayList<String>();
+    private RenderHandler mIdleRenderHandler;
+    private Context mContext;
+    private boolean mReleased;
+    private int mHitCount, mMissCount, mEvictCount;
+
+    public EncoderPool() {
+        this(AndroidCodecBackend.FACTORY);
+    }
+
+    /**
+     * @param factory factory to create actual encoders
+     */
+    public EncoderPool(final CodecBackend.Factory factory) {
+        mFactory = factory;
+    }
+
+    /**
+     * evict idle encoders on memory pressure until #release
+     */
+    public void register(final Context context) {
+        synchronized (mSync) {
+            if ((mContext == null) && !mReleased) {
+                mContext = context.getApplicationContext();
+                mContext.registerComponentCallbacks(this);
+            }
+        }
+    }
+
+    /**
+     * run the task on private thread in order with #prewarm, e.g. to build CodecIndex and validate
+     * the profile before prewarming without blocking UI thread. this returns immediately.
+     */
+    public void execute(final Runnable task) {
+        synchronized (mSync) {
+            if (mReleased) return;
+            mWorker.execute(task);
+        }
+    }
+
+    /**
+     * create and configure video/audio encoders for the profile on private thread, this returns immediately.
+     * idle encoder of the same MIME type is configured again if the profile or size was changed
+     *
+     * @param width      width of video encoder, same as MediaVideoEncoder
+     * @param height     height of video encoder, same as MediaVideoEncoder
+     * @param asyncDrain same as MediaEncoder
+     */
+    public void prewarm(final RecordingProfile profile, final int width, final int height, final boolean asyncDrain) {
+        final boolean async = asyncDrain && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M);
+        prewarm(MediaVideoEncoder.createFormat(profile, width, height), async, true);
+        prewarm(MediaAudioEncoder.createFormat(profile), async, false);
+    }
+
+    private void prewarm(final MediaFormat format, final boolean async, final boolean surfaceInput) {
+        final String mimeType = format.getString(MediaFormat.KEY_MIME);
+        // MediaFormat#equals compares instances, so configured formats are compared by their string
+        final String key = format.toString();
+        synchronized (mSync) {
+            if (mReleased) return;
+            mPreparing.add(mimeType);
+            mWorker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    PooledCodec codec = null;
+                    try {
+                        synchronized (mSync) {
+                            codec = removeIdle(mimeType);
+                        }
+                        if ((codec != null) && codec.isConfigured(key, async)) {
+                            return;
+                        }
+                        if ((codec != null) && !key.equals(codec.mFormatKey)) {
+                            // other format may need other encoder
+                            codec.releaseBackend();
+                            codec = null;
+                        }
+                        if (codec == null) {
+                            final CodecBackend backend = mFactory.createEncoder(format);
+                            if (backend == null) return;
+                            codec = new PooledCodec(backend, mimeType);
+                        }
+                        codec.configureIdle(format, key, async, surfaceInput);
+                        if (DEBUG) Log.v(TAG, "prewarm:" + codec.getName());
+                    } catch (final Exception e) {
+                        Log.w(TAG, "failed to prewarm " + mimeType, e);
+                        if (codec != null) {
+                            codec.releaseBackend();
+                            codec = null;
+                        }
+                    } finally {
+                        onPrepared(mimeType, codec);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * get idle encoder that was configured in advance with the same format, or create new one
+     * if there is no such encoder. Encoders are selected by the format, so idle encoder that was
+     * configured with other format is released.
+     * this waits for the encoder of the same MIME type that is being prepared on private thread
+     * because it is still faster than creating new one.
+     * returned encoder comes back to this pool by CodecBackend#release
+     */
+    @Override
+    public CodecBackend createEncoder(final MediaFormat format) throws IOException {
+        final String mimeType = format.getString(MediaFormat.KEY_MIME);
+        final String key = format.toString();
+        PooledCodec stale = null;
+        synchronized (mSync) {
+            while (!mReleased && mPreparing.contains(mimeType)) {
+                try {
+                    mSync.wait();
+                } catch (final InterruptedException e) {
+                    break;
+                }
+            }
+            final PooledCodec codec = removeIdle(mimeType);
+            if ((codec != null) && key.equals(codec.mFormatKey)) {
+                mHitCount++;
+                codec.onAcquired();
+                if (DEBUG) Log.v(TAG, "createEncoder:reuse " + codec.getName());
+                return codec;
+            }
+            stale = codec;
+            mMissCount++;
+        }
+        if (stale != null) {
+            stale.releaseBackend();
+        }
+        final CodecBackend backend = mFactory.createEncoder(format);
+        if (backend == null) return null;
+        final PooledCodec codec = new PooledCodec(backend, mimeType);
+        codec.onAcquired();
+        return codec;
+    }
+
+    /**
+     * release all idle encoders and render thread, including ones that are being prepared now
+     */
+    public void evictAll() {
+        if (DEBUG) Log.v(TAG, "evictAll:");
+        evictIdle();
+        synchronized (mSync) {
+            if (!mReleased) {
+                // tasks run in order, so this comes after encoders that are being prepared
+                mWorker.execute(mEvictTask);
+            }
+        }
+    }
+
+    /**
+     * release all idle resources and stop private thread,
+     * encoders that are in use are released when MediaEncoder releases them
+     */
+    public void release() {
+        if (DEBUG) Log.v(TAG, "release:");
+        synchronized (mSync) {
+            if (mReleased) return;
+            mReleased = true;
+            if (mContext != null) {
+                mContext.unregisterComponentCallbacks(this);
+                mContext = null;
+            }
+            mWorker.execute(mEvictTask);
+            mWorker.shutdown();
+            mSync.notifyAll();
+        }
+        evictIdle();
+    }
+
+    @Override
+    public void onTrimMemory(final int level) {
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            evictAll();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        evictAll();
+    }
+
+    @Override
+    public void onConfigurationChanged(final Configuration newConfig) {
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mSync) {
+            return String.format(Locale.US, "EncoderPool(idle=%d,hit=%d,miss=%d,evict=%d)",
+                mIdle.size(), mHitCount, mMissCount, mEvictCount);
+        }
+    }
+
+    /**
+     * get render thread for the input Surface of video encoder, this is called from encoder.
+     */
+    /*package*/ RenderHandler obtainRenderHandler(final String name) {
+        synchronized (mSync) {
+            if (mIdleRenderHandler != null) {
+                final RenderHandler handler = mIdleRenderHandler;
+                mIdleRenderHandler = null;
+                return handler;
+            }
+        }
+        return RenderHandler.createHandler(name);
+    }
+
+    /**
+     * keep render thread for next recording, this is called from encoder instead of RenderHandler#release.
+     */
+    /*package*/ void recycleRenderHandler(final RenderHandler handler) {
+        synchronized (mSync) {
+            if (!mReleased && (mIdleRenderHandler == null)) {
+                mIdleRenderHandler = handler;
+                return;
+            }
+        }
+        handler.release();
+    }
+
+    /**
+     * encoder was released by MediaEncoder, reset and configure it again on private thread
+     */
+    private void recycle(final PooledCodec codec) {
+        synchronized (mSync) {
+            if (!mReleased && codec.canReconfigure()) {
+                mPreparing.add(codec.mMimeType);
+                mWorker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        PooledCodec result = codec;
+                        try {
+                            codec.reconfigureIdle();
+                        } catch (final Exception e) {
+                            // e.g. the encoder is dead, next recording creates new one
+                            Log.w(TAG, "failed to reuse " + codec.mMimeType, e);
+                            codec.releaseBackend();
+                            result = null;
+                        } finally {
+                            onPrepared(codec.mMimeType, result);
+                        }
+                    }
+                });
+                return;
+            }
+        }
+        codec.releaseBackend();
+    }
+
+    /**
+     * encoder was prepared on private thread, keep it and wake up waiting #createEncoder
+     *
+     * @param codec null if failed
+     */
+    private void onPrepared(final String mimeType, final PooledCodec codec) {
+        boolean keep = false;
+        synchronized (mSync) {
+            mPreparing.remove(mimeType);
+            if ((codec != null) && !mReleased && (countIdle(mimeType) < MAX_IDLE_PER_MIME)) {
+                mIdle.add(codec);
+                keep = true;
+            }
+            mSync.notifyAll();
+        }
+        if ((codec != null) && !keep) {
+            codec.releaseBackend();
+        }
+    }
+
+    /**
+     * should be called while holding mSync
+     */
+    private PooledCodec removeIdle(final String mimeType) {
+        for (final Iterator<PooledCodec> iter = mIdle.iterator(); iter.hasNext(); ) {
+            final PooledCodec codec = iter.next();
+            if (codec.mMimeType.equals(mimeType)) {
+                iter.remove();
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * should be called while holding mSync
+     */
+    private int countIdle(final String mimeType) {
+        int result = 0;
+        for (final PooledCodec codec : mIdle) {
+            if (codec.mMimeType.equals(mimeType)) result++;
+        }
+        return result;
+    }
+
+    private void evictIdle() {
+        final ArrayList<PooledCodec> codecs;
+        final RenderHandler handler;
+        synchronized (mSync) {
+            codecs = new ArrayList<PooledCodec>(mIdle);
+            mIdle.clear();
+            handler = mIdleRenderHandler;
+            mIdleRenderHandler = null;
+            mEvictCount += codecs.size();
+        }
+        for (final PooledCodec codec : codecs) {
+            codec.releaseBackend();
+        }
+        if (handler != null) {
+            handler.release();
+        }
+    }
+
+    private final Runnable mEvictTask = new Runnable() {
+        @Override
+        public void run() {
+            evictIdle();
+        }
+    };
+
+    /**
+     * CodecBackend that comes back to the pool when MediaEncoder releases it.
+     * #configure with the same MediaFormat as configured on private thread is skipped,
+     * callbacks of async mode are forwarded from private thread of this instance to the Handler
+     * that current MediaEncoder passed to #setCallback.
+     */
+    /*package*/ final class PooledCodec implements CodecBackend {
+        private final CodecBackend mBackend;
+        private final String mMimeType;
+        /**
+         * callback of MediaEncoder that is using this encoder now
+         */
+        private volatile Callback mTarget;
+        /**
+         * Handler that callbacks to mTarget should be called on, null means private thread of this instance
+         */
+        private volatile Handler mTargetHandler;
+        private boolean mAsyncRequested;
+        /**
+         * format, its string and mode of last #configure, they are used again after reset
+         */
+        private MediaFormat mFormat;
+        private String mFormatKey;
+        private int mFlags;
+        private boolean mAsync;
+        private boolean mSurfaceInput;
+        /**
+         * true while configured and not started yet, #configure with the same format can be skipped
+         */
+        private boolean mIdleConfigured;
+        private boolean mNeedsReset;
+        private Surface mInputSurface;
+        private Surface mPersistentSurface;
+        private boolean mHasInputSurface;
+        private HandlerThread mCallbackThread;
+        private Handler mCallbackHandler;
+        private boolean mInUse;
+
+        private PooledCodec(final CodecBackend backend, final String mimeType) {
+            mBackend = backend;
+            mMimeType = mimeType;
+        }
+
+        @Override
+        public String getName() {
+            return mBackend.getName();
+        }
+
+        /**
+         * the callback is kept and the actual encoder keeps forwarding callback set in advance,
+         * forwarded callbacks are posted to the handler
+         */
+        @Override
+        public void setCallback(final Callback callback, final Handler handler) {
+            mTargetHandler = handler;
+            mTarget = callback;
+            mAsyncRequested = callback != null;
+        }
+
+        @Override
+        public void configure(final MediaFormat format, final int flags) {
+            final String key = format.toString();
+            if (mIdleConfigured && key.equals(mFormatKey)
+                && (flags == mFlags) && (mAsyncRequested == mAsync)) {
+                // already configured on private thread of the pool
+                return;
+            }
+            configureBackend(format, key, flags, mAsyncRequested);
+        }
+
+        @Override
+        public Surface createInputSurface() {
+            if (!mHasInputSurface) {
+                if (mPersistentSurface == null) {
+                    mPersistentSurface = mBackend.createPersistentInputSurface();
+                }
+                if (mPersistentSurface != null) {
+                    mBackend.setInputSurface(mPersistentSurface);
+                    mInputSurface = mPersistentSurface;
+                } else {
+                    mInputSurface = mBackend.createInputSurface();
+                }
+                mHasInputSurface = true;
+                mSurfaceInput = true;
+            }
+            return mInputSurface;
+        }
+
+        /**
+         * the pool creates persistent Surface by itself when it is available
+         */
+        @Override
+        public Surface createPersistentInputSurface() {
+            return null;
+        }
+
+        @Override
+        public void setInputSurface(final Surface surface) {
+            mBackend.setInputSurface(surface);
+        }
+
+        @Override
+        public void start() {
+            mIdleConfigured = false;
+            mBackend.start();
+        }
+
+        @Override
+        public void stop() {
+            mIdleConfigured = false;
+            mBackend.stop();
+        }
+
+        /**
+         * give back the encoder to the pool instead of releasing
+         */
+        @Override
+        public void release() {
+            synchronized (this) {
+                if (!mInUse) return;
+                mInUse = false;
+            }
+            mTarget = null;
+            mTargetHandler = null;
+            mAsyncRequested = false;
+            recycle(this);
+        }
+
+        @Override
+        public void reset() {
+            mIdleConfigured = false;
+            mBackend.reset();
+            releaseInputSurface();
+            mNeedsReset = false;
+        }
+
+        @Override
+        public void signalEndOfInputStream() {
+            mBackend.signalEndOfInputStream();
+        }
+
+        @Override
+        public int dequeueInputBuffer(final long timeoutUs) {
+            return mBackend.dequeueInputBuffer(timeoutUs);
+        }
+
+        @Override
+        public ByteBuffer getInputBuffer(final int index) {
+            return mBackend.getInputBuffer(index);
+        }
+
+        @Override
+        public void queueInputBuffer(final int index, final int offset, final int size, final long presentationTimeUs, final int flags) {
+            mBackend.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+        }
+
+        @Override
+        public int dequeueOutputBuffer(final MediaCodec.BufferInfo info, final long timeoutUs) {
+            return mBackend.dequeueOutputBuffer(info, timeoutUs);
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(final int index) {
+            return mBackend.getOutputBuffer(index);
+        }
+
+        @Override
+        public void releaseOutputBuffer(final int index) {
+            mBackend.releaseOutputBuffer(index);
+        }
+
+        @Override
+        public MediaFormat getOutputFormat() {
+            return mBackend.getOutputFormat();
+        }
+
+        @Override
+        public void requestSyncFrame() {
+            mBackend.requestSyncFrame();
+        }
+
+        @Override
+        public void setVideoBitrate(final int bitrate) {
+            mBackend.setVideoBitrate(bitrate);
+        }
+
+        /**
+         * MediaEncoder got this encoder from the pool
+         */
+        private void onAcquired() {
+            synchronized (this) {
+                mInUse = true;
+            }
+            mTarget = null;
+            mTargetHandler = null;
+            mAsyncRequested = false;
+        }
+
+        private boolean isConfigured(final String key, final boolean async) {
+            return mIdleConfigured && key.equals(mFormatKey) && (async == mAsync);
+        }
+
+        private boolean canReconfigure() {
+            return mFormat != null;
+        }
+
+        /**
+         * configure on private thread of the pool as MediaEncoder#prepare does
+         */
+        private void configureIdle(final MediaFormat format, final String key,
+                                   final boolean async, final boolean surfaceInput) {
+            configureBackend(format, key, MediaCodec.CONFIGURE_FLAG_ENCODE, async);
+            if (surfaceInput) {
+                createInputSurface();
+            }
+            mIdleConfigured = true;
+        }
+
+        /**
+         * configure again with the format of last recording on private thread of the pool
+         */
+        private void reconfigureIdle() {
+            configureIdle(mFormat, mFormatKey, mAsync, mSurfaceInput);
+        }
+
+        private void configureBackend(final MediaFormat format, final String key, final int flags, final boolean async) {
+            if (mNeedsReset) {
+                reset();
+            }
+            mNeedsReset = true;
+            mIdleConfigured = false;
+            if (async) {
+                mBackend.setCallback(mForwarder, getCallbackHandler());
+            }
+            mBackend.configure(format, flags);
+            mFormat = format;
+            mFormatKey = key;
+            mFlags = flags;
+            mAsync = async;
+        }
+
+        private Handler getCallbackHandler() {
+            if (mCallbackHandler == null) {
+                mCallbackThread = new HandlerThread(TAG + ":" + mMimeType);
+                mCallbackThread.start();
+                mCallbackHandler = new Handler(mCallbackThread.getLooper());
+            }
+            return mCallbackHandler;
+        }
+
+        /**
+         * release Surface of #createInputSurface, persistent Surface is kept
+         */
+        private void releaseInputSurface() {
+            if ((mInputSurface != null) && (mInputSurface != mPersistentSurface)) {
+                mInputSurface.release();
+            }
+            mInputSurface = null;
+            mHasInputSurface = false;
+        }
+
+        /**
+         * actually release the encoder
+         */
+        private void releaseBackend() {
+            if (DEBUG) Log.v(TAG, "releaseBackend:" + mMimeType);
+            mTarget = null;
+            mTargetHandler = null;
+            try {
+                mBackend.release();
+            } catch (final Exception e) {
+                Log.w(TAG, "failed releasing encoder", e);
+            }
+            releaseInputSurface();
+            if (mPersistentSurface != null) {
+                mPersistentSurface.release();
+                mPersistentSurface = null;
+            }
+            if (mCallbackThread != null) {
+                mCallbackThread.quitSafely();
+                mCallbackThread = null;
+                mCallbackHandler = null;
+            }
+        }
+
+        /**
+         * run the callback on the Handler of current MediaEncoder,
+         * callbacks are not delivered to the encoder anymore after it released this encoder
+         *
+         * @return false if the callback should be called on the current thread
+         */
+        private boolean postToTarget(final Callback target, final Runnable task) {
+            final Handler handler = mTargetHandler;
+            if ((handler == null) || (handler.getLooper() == Looper.myLooper())) {
+                return false;
+            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mTarget == target) {
+                        task.run();
+                    }
+                }
+            });
+            return true;
+        }
+
+        private final Callback mForwarder = new Callback() {
+            @Override
+            public void onInputBufferAvailable(final int index) {
+                final Callback target = mTarget;
+                if ((target != null) && !postToTarget(target, new Runnable() {
+                    @Override
+                    public void run() {
+                        target.onInputBufferAvailable(index);
+                    }
+                })) {
+                    target.onInputBufferAvailable(index);
+                }
+            }
+
+            @Override
+            public void onOutputBufferAvailable(final int index, final MediaCodec.BufferInfo info) {
+                final Callback target = mTarget;
+                if ((target != null) && !postToTarget(target, new Runnable() {
+                    @Override
+                    public void run() {
+                        target.onOutputBufferAvailable(index, info);
+                    }
+                })) {
+                    target.onOutputBufferAvailable(index, info);
+                }
+            }
+
+            @Override
+            public void onOutputFormatChanged(final MediaFormat format) {
+                final Callback target = mTarget;
+                if ((target != null) && !postToTarget(target, new Runnable() {
+                    @Override
+                    public void run() {
+                        target.onOutputFormatChanged(format);
+                    }
+                })) {
+                    target.onOutputFormatChanged(format);
+                }
+            }
+
+            @Override
+            public void onError(final Exception e) {
+                final Callback target = mTarget;
+                if ((target != null) && !postToTarget(target, new Runnable() {
+                    @Override
+                    public void run() {
+                        target.onError(e);
+                    }
+                })) {
+                    target.onError(e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,127 @@
+package com.serenegiant.encoder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.serenegiant.audiovideosample.BuildConfig;
+import com.serenegiant.media.FragmentedMp4Writer;
+
+/**
+ * MuxerBackend that writes fragmented mp4 file using FragmentedMp4Writer,
+ * the file is playable up to the last fragment even if recording is not stopped normally
+ */
+public class FragmentedMp4MuxerBackend implements MuxerBackend {
+    private static final boolean DEBUG = BuildConfig.DEBUG;
+    private static final String TAG = FragmentedMp4MuxerBackend.class.getSimpleName();
+
+    private final RandomAccessFile mFile;
+    private final FragmentedMp4Writer mWriter;
+
+    public FragmentedMp4MuxerBackend(final String outputPath) throws IOException {
+        this(outputPath, FragmentedMp4Writer.DEFAULT_FRAGMENT_DURATION_US);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param outputPath         path of output file
+     * @param fragmentDurationUs approximate duration of each fragment
+     */
+    public FragmentedMp4MuxerBackend(final String outputPath, final long fragmentDurationUs) throws IOException {
+        mFile = new RandomAccessFile(outputPath, "rw");
+        mFile.setLength(0);
+        mWriter = new FragmentedMp4Writer(mFile.getChannel(), fragmentDurationUs);
+    }
+
+    @Override
+    public int addTrack(final MediaFormat format) {
+        final String mime = format.getString(MediaFormat.KEY_MIME);
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            // csd-0 and csd-1 of H.264 encoder are SPS and PPS with start code
+            return mWriter.addVideoTrack(
+                format.getInteger(MediaFormat.KEY_WIDTH),
+                format.getInteger(MediaFormat.KEY_HEIGHT),
+                getCodecSpecificData(format, "csd-0"),
+                getCodecSpecificData(format, "csd-1"));
+        } else if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            // csd-0 of AAC encoder is AudioSpecificConfig
+            return mWriter.addAudioTrack(
+                format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                getCodecSpecificData(format, "csd-0"));
+        }
+        throw new IllegalArgumentException("unsupported format:" + format);
+    }
+
+    @Override
+    public void start() {
+        try {
+            mWriter.start();
+        } catch (final IOException e) {
+            throw new IllegalStateException("failed to start", e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) return;
+        byteBuf.limit(bufferInfo.offset + bufferInfo.size);
+        byteBuf.position(bufferInfo.offset);
+        try {
+            mWriter.writeSample(trackIndex, byteBuf, bufferInfo.presentationTimeUs,
+                (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        } catch (final IOException e) {
+            throw new IllegalStateException("failed to write sample", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mWriter.stop();
+        } catch (final IOException e) {
+            throw new IllegalStateException("failed to stop", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            mFile.close();
+        } catch (final IOException e) {
+            Log.w(TAG, "release:", e);
+        }
+    }
+
+    /**
+     * get codec specific data without start code
+     */
+    /*package*/ static byte[] getCodecSpecificData(final MediaFormat format, final String key) {
+        final ByteBuffer csd = format.getByteBuffer(key);
+        if (csd == null) {
+            if (DEBUG) Log.w(TAG, "getCodecSpecificData:" + key + " not found");
+            return null;
+        }
+        final ByteBuffer buf = csd.duplicate();
+        buf.position(0);
+        // skip start code(00 00 01 or 00 00 00 01) of H.264 parameter set
+        int zeros = 0;
+        while ((buf.remaining() > 0) && (buf.get(buf.position()) == 0) && (zeros < 3)) {
+            buf.get();
+            zeros++;
+        }
+        if ((zeros >= 2) && (buf.remaining() > 0) && (buf.get(buf.position()) == 1)) {
+            buf.get();
+        } else {
+            buf.position(0);
+        }
+        final byte[] result = new byte[buf.remaining()];
+        buf.get(result);
+        return result;
+    }
+}
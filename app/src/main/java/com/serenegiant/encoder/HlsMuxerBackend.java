@@ -0,0 +1,96 @@
+package com.serenegiant.encoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.serenegiant.audiovideosample.BuildConfig;
+import com.serenegiant.media.HlsPackager;
+
+/**
+ * MuxerBackend that writes HLS(MPEG-TS segments and m3u8 playlist) using HlsPackager,
+ * the output directory can be served by a local web server for live review
+ */
+public class HlsMuxerBackend implements MuxerBackend {
+    private static final boolean DEBUG = BuildConfig.DEBUG;
+    private static final String TAG = HlsMuxerBackend.class.getSimpleName();
+
+    private final HlsPackager mPackager;
+
+    public HlsMuxerBackend(final String playlistPath) {
+        this(playlistPath, HlsPackager.DEFAULT_TARGET_DURATION_US, HlsPackager.DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param playlistPath     path of m3u8 playlist, segments are written into the same directory
+     * @param targetDurationUs approximate duration of each segment
+     * @param windowSize       number of segments listed in the playlist, 0 to keep all segments
+     */
+    public HlsMuxerBackend(final String playlistPath, final long targetDurationUs, final int windowSize) {
+        mPackager = new HlsPackager(new File(playlistPath), targetDurationUs, windowSize);
+    }
+
+    /**
+     * @param request request key frame to video encoder so that segments do not exceed the target duration
+     */
+    public void setSyncFrameRequest(final Runnable request) {
+        mPackager.setSyncFrameRequest(request);
+    }
+
+    @Override
+    public int addTrack(final MediaFormat format) {
+        final String mime = format.getString(MediaFormat.KEY_MIME);
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            return mPackager.addVideoTrack(
+                FragmentedMp4MuxerBackend.getCodecSpecificData(format, "csd-0"),
+                FragmentedMp4MuxerBackend.getCodecSpecificData(format, "csd-1"));
+        } else if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            return mPackager.addAudioTrack(
+                FragmentedMp4MuxerBackend.getCodecSpecificData(format, "csd-0"));
+        }
+        throw new IllegalArgumentException("unsupported format:" + format);
+    }
+
+    @Override
+    public void start() {
+        try {
+            mPackager.start();
+        } catch (final IOException e) {
+            throw new IllegalStateException("failed to start", e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) return;
+        byteBuf.limit(bufferInfo.offset + bufferInfo.size);
+        byteBuf.position(bufferInfo.offset);
+        try {
+            mPackager.writeSample(trackIndex, byteBuf, bufferInfo.presentationTimeUs,
+                (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        } catch (final IOException e) {
+            throw new IllegalStateException("failed to write sample", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mPackager.stop();
+        } catch (final IOException e) {
+            throw new IllegalStateException("failed to stop", e);
+        }
+        if (DEBUG) Log.v(TAG, "stop:");
+    }
+
+    @Override
+    public void release() {
+        mPackager.release();
+    }
+}
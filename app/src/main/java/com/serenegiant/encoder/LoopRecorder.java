@@ -0,0 +1,221 @@
+package com.serenegiant.encoder;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+import android.util.Log;
+
+import com.serenegiant.audiovideosample.BuildConfig;
+
+/**
+ * Loop(dashcam) recording on segmented MediaMuxerWrapper
+ * 循环录制，只保留最近的分段文件
+ * <p>
+ * Keeps recent segments up to specific count and/or total size and deletes the oldest
+ * when a new segment is finalized. Segments are remembered in order of completion with
+ * running total of their file size, each finalized file is stat'ed once on the cleaner thread
+ * so that container overhead(moov, fragment headers) is counted. When a directory is given, segment files
+ * left there by previous runs are scanned only once at construction, so the directory is never rescanned.
+ * Scanning and deletion run on own cleaner thread, not on encoder or writer threads.
+ * Same instance can be set to MediaMuxerWrapper of successive recording sessions.
+ * <pre>
+ * final File dir = MediaMuxerWrapper.getCaptureDir(context, Environment.DIRECTORY_MOVIES);
+ * final LoopRecorder loop = new LoopRecorder(dir, ".mp4", 10, 0, null);
+ * final MediaMuxerWrapper muxer = new MediaMuxerWrapper(".mp4", context, MUXER_FRAGMENTED_MP4, 60_000_000L, 0);
+ * muxer.setOnSegmentListener(loop);
+ * ...
+ * loop.release();
+ * </pre>
+ */
+public class LoopRecorder implements MediaMuxerWrapper.OnSegmentListener {
+    private static final boolean DEBUG = BuildConfig.DEBUG;
+    private static final String TAG = LoopRecorder.class.getSimpleName();
+
+    private static final class Entry {
+        final String path;
+        final long bytes;
+
+        Entry(final String path, final long bytes) {
+            this.path = path;
+            this.bytes = bytes;
+        }
+    }
+
+    private final int mMaxSegments;
+    private final long mMaxBytes;
+    private final ExecutorService mCleaner = Executors.newSingleThreadExecutor();
+    /**
+     * kept segments, oldest first. this is only accessed on the cleaner thread
+     */
+    private final ArrayDeque<Entry> mSegments = new ArrayDeque<Entry>();
+    private volatile long mTotalBytes;
+    private volatile int mDeletedCount;
+    private final MediaMuxerWrapper.OnSegmentListener mListener;
+
+    /**
+     * Constructor
+     *
+     * @param maxSegments maximum number of kept segments, 0 for unlimited
+     * @param maxBytes    maximum total size of kept segments, 0 for unlimited
+     */
+    public LoopRecorder(final int maxSegments, final long maxBytes) {
+        this(maxSegments, maxBytes, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxSegments maximum number of kept segments, 0 for unlimited
+     * @param maxBytes    maximum total size of kept segments, 0 for unlimited
+     * @param listener    listener that is called on the cleaner thread for each kept segment, can be null
+     */
+    public LoopRecorder(final int maxSegments, final long maxBytes,
+                        final MediaMuxerWrapper.OnSegmentListener listener) {
+        if ((maxSegments <= 0) && (maxBytes <= 0))
+            throw new IllegalArgumentException("maxSegments or maxBytes should be positive");
+        mMaxSegments = maxSegments;
+        mMaxBytes = maxBytes;
+        mListener = listener;
+    }
+
+    /**
+     * Constructor, segment files that already exist in the directory are also kept or deleted
+     *
+     * @param dir         directory of segment files, e.g. MediaMuxerWrapper#getCaptureDir
+     * @param ext         extension of segment files
+     * @param maxSegments maximum number of kept segments, 0 for unlimited
+     * @param maxBytes    maximum total size of kept segments, 0 for unlimited
+     * @param listener    listener that is called on the cleaner thread for each kept segment, can be null
+     */
+    public LoopRecorder(final File dir, final String ext, final int maxSegments, final long maxBytes,
+                        final MediaMuxerWrapper.OnSegmentListener listener) {
+        this(maxSegments, maxBytes, listener);
+        mCleaner.execute(new Runnable() {
+            @Override
+            public void run() {
+                scan(dir, ext);
+            }
+        });
+    }
+
+    /**
+     * shut down the cleaner thread after deleting pending segments, kept segments are not deleted
+     */
+    public void release() {
+        mCleaner.shutdown();
+    }
+
+    /**
+     * @return total size of kept segments
+     */
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * @return number of segments deleted so far
+     */
+    public int getDeletedCount() {
+        return mDeletedCount;
+    }
+
+    @Override
+    public void onSegmentFinished(final String path, final long durationUs, final long bytes) {
+        try {
+            mCleaner.execute(new Runnable() {
+                @Override
+                public void run() {
+                    add(path, durationUs, bytes);
+                }
+            });
+        } catch (final Exception e) {
+            // already released
+            Log.w(TAG, "onSegmentFinished:" + path, e);
+        }
+    }
+
+    /**
+     * seed kept segments from segment files(named with suffix _000, _001...) in the directory,
+     * run on the cleaner thread
+     */
+    private void scan(final File dir, final String ext) {
+        final File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(final File file) {
+                return file.isFile() && file.getName().matches(".*_\\d{3,}" + Pattern.quote(ext));
+            }
+        });
+        if (files == null) return;
+        // oldest first, segments of a session have same modified time order as their index
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(final File lhs, final File rhs) {
+                final long l = lhs.lastModified(), r = rhs.lastModified();
+                return l != r ? (l < r ? -1 : 1) : lhs.getName().compareTo(rhs.getName());
+            }
+        });
+        long total = mTotalBytes;
+        for (final File file : files) {
+            // no size is reported for existing files, so use size of the file
+            final long bytes = file.length();
+            mSegments.addLast(new Entry(file.getPath(), bytes));
+            total += bytes;
+        }
+        if (DEBUG) Log.v(TAG, "scan:" + dir + "," + files.length + " segments,total=" + total);
+        mTotalBytes = trim(total);
+    }
+
+    /**
+     * run on the cleaner thread
+     */
+    private void add(final String path, final long durationUs, final long reportedBytes) {
+        // reported bytes are payload only, fall back to it if the segment is not a local file
+        final long length = new File(path).length();
+        final long bytes = length > 0 ? length : reportedBytes;
+        long total = mTotalBytes;
+        // the segment may have been seeded while it was being written
+        for (final Iterator<Entry> it = mSegments.iterator(); it.hasNext(); ) {
+            final Entry entry = it.next();
+            if (entry.path.equals(path)) {
+                it.remove();
+                total -= entry.bytes;
+                break;
+            }
+        }
+        mSegments.addLast(new Entry(path, bytes));
+        mTotalBytes = trim(total + bytes);
+        if (mListener != null) {
+            mListener.onSegmentFinished(path, durationUs, bytes);
+        }
+    }
+
+    /**
+     * delete oldest segments until the limits are satisfied, run on the cleaner thread
+     *
+     * @param total total size of segments in the deque
+     * @return total size of kept segments
+     */
+    private long trim(long total) {
+        // always keep the newest segment even if it exceeds maxBytes alone
+        while ((mSegments.size() > 1)
+            && (((mMaxSegments > 0) && (mSegments.size() > mMaxSegments))
+                || ((mMaxBytes > 0) && (total > mMaxBytes)))) {
+            final Entry oldest = mSegments.pollFirst();
+            total -= oldest.bytes;
+            if (new File(oldest.path).delete()) {
+                mDeletedCount++;
+            } else {
+                Log.w(TAG, "failed to delete:" + oldest.path);
+            }
+            if (DEBUG) Log.v(TAG, "delete:" + oldest.path + ",total=" + total);
+        }
+        return total;
+    }
+}
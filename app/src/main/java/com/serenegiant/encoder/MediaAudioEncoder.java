@@ -3,13 +3,9 @@ package com.serenegiant.encoder;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
-import android.media.AudioFormat;
-import android.media.AudioRecord;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
-import android.media.MediaRecorder;
 import android.util.Log;
 
 import com.serenegiant.audiovideosample.BuildConfig;
@@ -21,22 +17,117 @@ public class MediaAudioEncoder extends MediaEncoder {
 
     // audio type
     private static final String MIME_TYPE = MediaFormat.MIMETYPE_AUDIO_AAC;
-    // 音频采样率，单位Hz，44100Hz是当前唯一能保证在所有设备上工作的采样率；
-    // 44.1[KHz] is only setting guaranteed to be available on all devices.
-    private static final int SAMPLE_RATE = 44100;
-    // 单声道=1 , 双声道=2
-    private static final int CHANNEL_COUNT = 1;
-    // 比特率
-    private static final int BIT_RATE = 64000;
     // 每帧采样数
-    public static final int SAMPLES_PER_FRAME = 1024;    // AAC, bytes/frame/channel
+    public static final int SAMPLES_PER_FRAME = AacFrameAccumulator.SAMPLES_PER_FRAME;    // AAC, samples/frame/channel
     // 每个缓冲区帧数
-    public static final int FRAMES_PER_BUFFER = 25;    // AAC, frame/buffer/sec
+    public static final int FRAMES_PER_BUFFER = 25;    // AAC, frame/buffer of AudioRecord
+    /**
+     * capture mode: read audio data into private buffer and copy it into input buffer of encoder
+     */
+    public static final int CAPTURE_COPY = 0;
+    /**
+     * capture mode: read audio data into input buffer of encoder directly(zero-copy)
+     */
+    public static final int CAPTURE_DIRECT = 1;
+    /**
+     * capture mode: read audio data into PcmRingBuffer and feed them to encoder on another thread,
+     * capturing never blocks even if encoder is slow
+     */
+    public static final int CAPTURE_RING = 2;
+    /**
+     * default number of AAC frames in PcmRingBuffer for CAPTURE_RING, about 370ms
+     */
+    public static final int DEFAULT_RING_DEPTH = 16;
 
+    private final RecordingProfile mProfile;
+    // 音频采样率，单位Hz，44100Hz是当前唯一能保证在所有设备上工作的采样率；
+    private final int mSampleRate;
+    // 单声道=1 , 双声道=2
+    private final int mChannelCount;
+    private final int mChannelMask;
+    // 比特率
+    private final int mBitRate;
+    // 每帧字节数，16bit PCM
+    private final int mFrameBytes;    // AAC, bytes/frame
+    private final int mCaptureMode;
+    private final int mRingDepth;
+    private final AudioSourceBackend.Factory mSourceFactory;
     private AudioThread mAudioThread = null;
+    private volatile PcmRingBuffer mRingBuffer;
+    private final Object mFeederSync = new Object();
+    /**
+     * FeederThread that is passing audio data in the ring to encoder, only used for CAPTURE_RING
+     */
+    private FeederThread mFeeder;
+    /**
+     * EOS was requested while FeederThread was running, FeederThread sends it after draining the ring
+     */
+    private boolean mFeederSendsEOS;
 
     public MediaAudioEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
-        super(muxer, listener);
+        this(muxer, listener, false, CAPTURE_COPY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param captureMode CAPTURE_COPY, CAPTURE_DIRECT or CAPTURE_RING
+     */
+    public MediaAudioEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener,
+                             final boolean asyncDrain, final int captureMode) {
+        this(muxer, listener, asyncDrain, captureMode, DEFAULT_RING_DEPTH);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param captureMode CAPTURE_COPY, CAPTURE_DIRECT or CAPTURE_RING
+     * @param ringDepth   number of AAC frames buffered between capture and encoder, only used for CAPTURE_RING
+     */
+    public MediaAudioEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener,
+                             final boolean asyncDrain, final int captureMode, final int ringDepth) {
+        this(muxer, listener, asyncDrain, captureMode, ringDepth, AndroidAudioSourceBackend.FACTORY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param captureMode   CAPTURE_COPY, CAPTURE_DIRECT or CAPTURE_RING
+     * @param ringDepth     number of AAC frames buffered between capture and encoder, only used for CAPTURE_RING
+     * @param sourceFactory factory to create the PCM source, AndroidAudioSourceBackend.FACTORY captures from internal mic
+     */
+    public MediaAudioEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener,
+                             final boolean asyncDrain, final int captureMode, final int ringDepth,
+                             final AudioSourceBackend.Factory sourceFactory) {
+        super(muxer, listener, asyncDrain);
+        if (sourceFactory == null) throw new NullPointerException("sourceFactory is null");
+        final RecordingProfile profile = muxer.getRecordingProfile();
+        mProfile = profile;
+        mSampleRate = profile.audioSampleRate;
+        mChannelCount = profile.audioChannelCount;
+        mChannelMask = profile.getAudioChannelMask();
+        mBitRate = profile.audioBitrate;
+        mFrameBytes = SAMPLES_PER_FRAME * mChannelCount * 2;
+        mCaptureMode = captureMode;
+        mRingDepth = ringDepth;
+        mSourceFactory = sourceFactory;
+    }
+
+    /**
+     * @return number of AAC frames dropped because the ring was full, only counted for CAPTURE_RING
+     */
+    public long getOverrunCount() {
+        final PcmRingBuffer ring = mRingBuffer;
+        return ring != null ? ring.getOverrunCount() : 0;
+    }
+
+    /**
+     * @return number of times the feeder waited longer than two AAC frames for audio data,
+     * only counted for CAPTURE_RING
+     */
+    public long getUnderrunCount() {
+        final PcmRingBuffer ring = mRingBuffer;
+        return ring != null ? ring.getUnderrunCount() : 0;
     }
 
     @Override
@@ -44,15 +135,38 @@ public class MediaAudioEncoder extends MediaEncoder {
         if (DEBUG) Log.v(TAG, "prepare:");
         mTrackIndex = -1;
         mMuxerStarted = mIsEOS = false;
+        final MediaFormat audioFormat = createFormat(mProfile);
+        if (DEBUG) Log.i(TAG, "format: " + audioFormat);
         // prepare MediaCodec for AAC encoding of audio data from inernal mic.
-        final MediaCodecInfo audioCodecInfo = selectAudioCodec();
-        if (audioCodecInfo == null) {
+        mMediaCodec = createEncoder(audioFormat);
+        if (mMediaCodec == null) {
             Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
             return;
         }
-        if (DEBUG) Log.i(TAG, "selected codec: " + audioCodecInfo.getName());
+        if (DEBUG) Log.i(TAG, "selected codec: " + mMediaCodec.getName());
 
-        final MediaFormat audioFormat = MediaFormat.createAudioFormat(MIME_TYPE, SAMPLE_RATE, CHANNEL_COUNT);
+        setupAsyncDrain();
+        // MediaCodec.CONFIGURE_FLAG_ENCODE 表示编码
+        mMediaCodec.configure(audioFormat, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mMediaCodec.start();
+        if (DEBUG) Log.i(TAG, "prepare finishing");
+        if (mListener != null) {
+            try {
+                mListener.onPrepared(this);
+            } catch (final Exception e) {
+                Log.e(TAG, "prepare:", e);
+            }
+        }
+    }
+
+    /**
+     * create format of audio encoder, this is also used by EncoderPool to configure encoder in advance
+     */
+    /*package*/ static MediaFormat createFormat(final RecordingProfile profile) {
+        // same as MediaFormat#createAudioFormat but this also works with mockable android.jar on JVM
+        final MediaFormat audioFormat = new MediaFormat();
+        audioFormat.setString(MediaFormat.KEY_MIME, MIME_TYPE);
+        audioFormat.setInteger(MediaFormat.KEY_SAMPLE_RATE, profile.audioSampleRate);
         // 要使用的 AAC 配置文件的键（仅 AAC 音频格式时使用）
         // 常量在 android.media.MediaCodecInfo.CodecProfileLevel 中声明
         // 音频编码中最常用的变量是 MediaCodecInfo.CodecProfileLevel.AACObjectLC
@@ -60,28 +174,16 @@ public class MediaAudioEncoder extends MediaEncoder {
         // 音频内容的通道组成的键，在音频编码中需要根据硬件支持去有选择性的选择支持范围内的通道号
         // AudioFormat.CHANNEL_IN_MONO 单声道，一个声道进行采样
         // AudioFormat.CHANNEL_IN_STEREO 双声道，两个声道进行采样
-        audioFormat.setInteger(MediaFormat.KEY_CHANNEL_MASK, AudioFormat.CHANNEL_IN_MONO);
+        audioFormat.setInteger(MediaFormat.KEY_CHANNEL_MASK, profile.getAudioChannelMask());
         // 音视频平均比特率，以位/秒为单位(bit/s)的键
-        audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
+        audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, profile.audioBitrate);
         // 声道数
-        audioFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, CHANNEL_COUNT);
+        audioFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, profile.audioChannelCount);
         // 编解码器中数据缓冲区最大大小的键，以字节(byte)为单位
-        // audioFormat.setLong(MediaFormat.KEY_MAX_INPUT_SIZE, inputFile.length());
+        // every input buffer holds exactly one AAC frame
+        audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, SAMPLES_PER_FRAME * profile.audioChannelCount * 2);
         // audioFormat.setLong(MediaFormat.KEY_DURATION, (long)durationInMs );
-        if (DEBUG) Log.i(TAG, "format: " + audioFormat);
-
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
-        // MediaCodec.CONFIGURE_FLAG_ENCODE 表示编码
-        mMediaCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mMediaCodec.start();
-        if (DEBUG) Log.i(TAG, "prepare finishing");
-        if (mListener != null) {
-            try {
-                mListener.onPrepared(this);
-            } catch (final Exception e) {
-                Log.e(TAG, "prepare:", e);
-            }
-        }
+        return audioFormat;
     }
 
     @Override
@@ -100,13 +202,40 @@ public class MediaAudioEncoder extends MediaEncoder {
         super.release();
     }
 
-    private static final int[] AUDIO_SOURCES = new int[]{
-            MediaRecorder.AudioSource.MIC,                  // 麦克风
-            MediaRecorder.AudioSource.DEFAULT,              // 默认音频源
-            MediaRecorder.AudioSource.CAMCORDER,            // 摄像机
-            MediaRecorder.AudioSource.VOICE_COMMUNICATION,  // 语音交流
-            MediaRecorder.AudioSource.VOICE_RECOGNITION,    // 语音识别
-    };
+    /**
+     * audio data remaining in the ring should be encoded before EOS, otherwise the tail of recording is lost
+     */
+    @Override
+    protected void signalEndOfInputStream() {
+        if (mAsyncDrain) {
+            // this is called on the callback thread, so this must not wait for FeederThread
+            // because FeederThread needs input buffers from the callback
+            synchronized (mFeederSync) {
+                if (mFeeder != null) {
+                    mFeederSendsEOS = true;
+                    return;
+                }
+            }
+        } else {
+            FeederThread feeder;
+            while (mIsCapturing && ((feeder = getFeeder()) != null)) {
+                // FeederThread waits for input buffers that are freed by draining output buffers
+                drain();
+                try {
+                    feeder.join(TIMEOUT_USEC / 1000);
+                } catch (final InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        super.signalEndOfInputStream();
+    }
+
+    private FeederThread getFeeder() {
+        synchronized (mFeederSync) {
+            return mFeeder;
+        }
+    }
 
     /**
      * Thread to capture audio data from internal mic as uncompressed 16bit PCM data
@@ -120,88 +249,46 @@ public class MediaAudioEncoder extends MediaEncoder {
             android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
             int cnt = 0;
             try {
-                // 返回成功创建AudioRecord对象所需要的最小缓冲区大小
-                final int min_buffer_size = AudioRecord.getMinBufferSize(
-                        SAMPLE_RATE,
-                        AudioFormat.CHANNEL_IN_MONO, // 声道：单声道、双声道等
-                        AudioFormat.ENCODING_PCM_16BIT // 音频采样精度，指定采样的数据的格式和每次采样的大小，只支持8位和16位。
-                );
-                int buffer_size = SAMPLES_PER_FRAME * FRAMES_PER_BUFFER;
-                if (buffer_size < min_buffer_size)
-                    buffer_size = ((min_buffer_size / SAMPLES_PER_FRAME) + 1) * SAMPLES_PER_FRAME * 2;
-
-                AudioRecord audioRecord = null;
-                for (final int source : AUDIO_SOURCES) {
-                    try {
-                        audioRecord = new AudioRecord(
-                                source, // audioSource，音频采集的来源
-                                SAMPLE_RATE, // sampleRateInHz，音频采样率
-                                AudioFormat.CHANNEL_IN_MONO, // channelConfig，声道：单声道、双声道等
-                                AudioFormat.ENCODING_PCM_16BIT, // audioFormat，音频采样精度，指定采样的数据的格式和每次采样的大小，只支持8位和16位。
-                                // PCM代表脉冲编码调制，它实际上是原始的音频样本。16位将占用更多的空间和处理能力，但是表示的音频将更接近真实。
-                                buffer_size // bufferSizeInBytes，缓冲区大小，用于存放AudioRecord采集到的音频数据
-                        );
-                        // AudioRecord.STATE_INITIALIZED：初始完毕
-                        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED)
-                            audioRecord = null;
-                    } catch (final Exception e) {
-                        audioRecord = null;
-                    }
-                    if (audioRecord != null) break;
-                }
-                if (audioRecord != null) {
+                final AudioSourceBackend source = mSourceFactory.createSource(mSampleRate, mChannelMask, mFrameBytes);
+                if (source != null) {
                     try {
                         if (mIsCapturing) {
                             if (DEBUG) Log.v(TAG, "AudioThread:start audio recording");
-                            // 字节缓冲区：系统级的内存分配
-                            // https://blog.csdn.net/seebetpro/article/details/49184305
-                            final ByteBuffer buf = ByteBuffer.allocateDirect(SAMPLES_PER_FRAME);
-                            int readBytes;
                             // 开始录制
-                            audioRecord.startRecording();
+                            source.startRecording();
+                            final AacFrameAccumulator accumulator
+                                = new AacFrameAccumulator(mSampleRate, mChannelCount, 2);
                             try {
-                                while (mIsCapturing && !mRequestStop && !mIsEOS) {
-                                    // read audio pcm data from internal mic
-                                    buf.clear();
-                                    readBytes = audioRecord.read(buf, SAMPLES_PER_FRAME);
-                                    if (readBytes > 0) {
-                                        // position指针：这个指针是指向当前有效数据的起始位置，
-                                        // 在初始化分配内存的时候指向数组的起始位置，后续可以通过position方法进行设置，
-                                        // 同时他在很多地方都会发生改变，特别是在读写数据方法get,put的时候，每次读写一次，指针就加一，直到遇到了limit指针，position<=limit；
-                                        // 所以可以看到整个数组中只有position-limit之间的数据是有效的，是可以进行读写操作的。
-                                        // set audio data to encoder
-                                        buf.position(readBytes);
-                                        // 调用flip方法来改变状态，才能正确的读到刚刚写入的数据
-                                        // flip方法把limit设为当前position，把position设为0，一般在从Buffer读出数据前调用。
-                                        buf.flip();
-                                        encode(buf, readBytes, getPTSUs());
-                                        frameAvailableSoon();
-                                        cnt++;
-                                    }
+                                if (mCaptureMode == CAPTURE_DIRECT) {
+                                    cnt = captureDirect(source, accumulator);
+                                } else if (mCaptureMode == CAPTURE_RING) {
+                                    cnt = captureRing(source, accumulator);
+                                } else {
+                                    cnt = captureCopy(source, accumulator);
                                 }
                                 frameAvailableSoon();
                             } finally {
                                 // 停止录制
-                                audioRecord.stop();
+                                source.stop();
                             }
                         }
                     } finally {
                         // 释放资源
-                        audioRecord.release();
+                        source.release();
                     }
                 } else {
-                    Log.e(TAG, "failed to initialize AudioRecord");
+                    Log.e(TAG, "failed to create audio source");
                 }
             } catch (final Exception e) {
                 Log.e(TAG, "AudioThread#run", e);
             }
             if (cnt == 0) {
-                final ByteBuffer buf = ByteBuffer.allocateDirect(SAMPLES_PER_FRAME);
+                final ByteBuffer buf = ByteBuffer.allocateDirect(mFrameBytes);
                 for (int i = 0; mIsCapturing && (i < 5); i++) {
-                    buf.position(SAMPLES_PER_FRAME);
+                    buf.position(mFrameBytes);
                     buf.flip();
                     try {
-                        encode(buf, SAMPLES_PER_FRAME, getPTSUs());
+                        encode(buf, mFrameBytes, getPTSUs());
                         frameAvailableSoon();
                     } catch (final Exception e) {
                         break;
@@ -216,35 +303,189 @@ public class MediaAudioEncoder extends MediaEncoder {
             }
             if (DEBUG) Log.v(TAG, "AudioThread:finished");
         }
+
+        /**
+         * read audio data into private buffer and copy it into input buffer of encoder
+         *
+         * @return number of captured frames
+         */
+        private int captureCopy(final AudioSourceBackend source, final AacFrameAccumulator accumulator) {
+            int cnt = 0;
+            // 字节缓冲区：系统级的内存分配
+            // https://blog.csdn.net/seebetpro/article/details/49184305
+            final ByteBuffer buf = ByteBuffer.allocateDirect(accumulator.getFrameBytes());
+            int readBytes;
+            while (mIsCapturing && !mRequestStop && !mIsEOS) {
+                // read one AAC frame of audio pcm data from internal mic
+                // position and limit of buf are set to the read data
+                readBytes = accumulator.readFrame(source, buf);
+                if (readBytes > 0) {
+                    // set audio data to encoder
+                    encode(buf, readBytes, accumulator.getFramePTSUs());
+                    frameAvailableSoon();
+                    cnt++;
+                }
+            }
+            return cnt;
+        }
+
+        /**
+         * dequeue input buffer of encoder first and let AudioRecord write into it directly,
+         * this removes copying of every PCM frame
+         *
+         * @return number of captured frames
+         */
+        private int captureDirect(final AudioSourceBackend source, final AacFrameAccumulator accumulator) {
+            int cnt = 0;
+            int readBytes;
+            while (mIsCapturing && !mRequestStop && !mIsEOS) {
+                final int index = dequeueInputBuffer();
+                if (index < 0) {
+                    // dequeueInputBuffer waits while capturing, so this means the encoder was stopped/released
+                    // or this thread was interrupted, and it returns -1 immediately on next call
+                    break;
+                }
+                // input buffer of MediaCodec is a direct buffer, so AudioRecord can write into it
+                final ByteBuffer buf = getInputBuffer(index);
+                if ((buf == null) || (buf.capacity() < accumulator.getFrameBytes())) {
+                    // input buffer is too small to hold one AAC frame
+                    cancelInputBuffer(index);
+                    Log.w(TAG, "captureDirect:input buffer is too small, fallback to copy mode");
+                    return cnt + captureCopy(source, accumulator);
+                }
+                readBytes = accumulator.readFrame(source, buf);
+                if (readBytes > 0) {
+                    queueInputBuffer(index, readBytes, accumulator.getFramePTSUs());
+                    frameAvailableSoon();
+                    cnt++;
+                } else {
+                    cancelInputBuffer(index);
+                }
+            }
+            return cnt;
+        }
+
+        /**
+         * read audio data into PcmRingBuffer and let FeederThread pass them to encoder,
+         * AudioRecord#read is never delayed by encoder
+         *
+         * @return number of captured frames
+         */
+        private int captureRing(final AudioSourceBackend source, final AacFrameAccumulator accumulator) {
+            int cnt = 0;
+            final PcmRingBuffer ring = new PcmRingBuffer(accumulator.getFrameBytes(), mRingDepth);
+            // audio data is read into this buffer and discarded while the ring is full
+            final ByteBuffer dropBuf = ByteBuffer.allocateDirect(accumulator.getFrameBytes());
+            mRingBuffer = ring;
+            final FeederThread feeder = new FeederThread(ring,
+                2L * SAMPLES_PER_FRAME * 1000000L / mSampleRate);
+            synchronized (mFeederSync) {
+                mFeeder = feeder;
+            }
+            feeder.start();
+            try {
+                int readBytes;
+                while (mIsCapturing && !mRequestStop && !mIsEOS) {
+                    final ByteBuffer buf = ring.obtainWriteBuffer();
+                    if (buf != null) {
+                        readBytes = accumulator.readFrame(source, buf);
+                        if (readBytes > 0) {
+                            ring.commitWrite(readBytes, accumulator.getFramePTSUs());
+                            cnt++;
+                        }
+                    } else {
+                        // keep reading to avoid overrun of AudioRecord and to advance the clock
+                        accumulator.readFrame(source, dropBuf);
+                    }
+                }
+            } finally {
+                // FeederThread passes remaining data in the ring to encoder and exits
+                feeder.finishCapturing();
+                try {
+                    feeder.join();
+                } catch (final InterruptedException e) {
+                    feeder.interrupt();
+                }
+                if (DEBUG) Log.v(TAG, "captureRing:overrun=" + ring.getOverrunCount()
+                    + ",underrun=" + ring.getUnderrunCount());
+            }
+            return cnt;
+        }
     }
 
     /**
-     * select the first codec that match a specific MIME type
-     * 选择与特定MIME类型匹配的第一个编解码器
+     * Thread to pass audio data in PcmRingBuffer to the MediaCodec encoder,
+     * this keeps running after stop request until the ring becomes empty
      */
-    private static MediaCodecInfo selectAudioCodec() {
-        if (DEBUG) Log.v(TAG, "selectAudioCodec:");
-        MediaCodecInfo result = null;
-        // get the list of available codecs
-        // 获取可用编解码器列表
-        // 过时：final int numCodecs = MediaCodecList.getCodecCount();
-        MediaCodecList mediaCodecList = new MediaCodecList(MediaCodecList.ALL_CODECS);
-        MediaCodecInfo[] codecInfoList = mediaCodecList.getCodecInfos();
-        LOOP:
-        for (final MediaCodecInfo codecInfo : codecInfoList) {
-            if (!codecInfo.isEncoder()) {   // skipp decoder
-                continue;
-            }
-            final String[] types = codecInfo.getSupportedTypes();
-            for (String type : types) {
-                if (DEBUG) Log.i(TAG, "supportedType:" + codecInfo.getName() + ",MIME=" + type);
-                if (type.equalsIgnoreCase(MIME_TYPE)) {
-                    result = codecInfo;
-                    break LOOP;
+    private class FeederThread extends Thread {
+        private final PcmRingBuffer mRing;
+        private final long mTimeoutUs;
+        private volatile boolean mCaptureFinished;
+
+        /**
+         * @param timeoutUs waiting longer than this for audio data is counted as underrun
+         */
+        public FeederThread(final PcmRingBuffer ring, final long timeoutUs) {
+            super("AudioFeeder");
+            mRing = ring;
+            mTimeoutUs = timeoutUs;
+        }
+
+        /**
+         * AudioThread does not write into the ring anymore
+         */
+        public void finishCapturing() {
+            mCaptureFinished = true;
+        }
+
+        @Override
+        public void run() {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_AUDIO);
+            final PcmRingBuffer ring = mRing;
+            try {
+                while (mIsCapturing && !mIsEOS) {
+                    // check this before peeking, otherwise the last chunk may be left in the ring
+                    final boolean finished = mCaptureFinished;
+                    final ByteBuffer buf = ring.peekReadBuffer(finished ? 0 : mTimeoutUs);
+                    if (buf == null) {
+                        if (finished) break;
+                        continue;
+                    }
+                    try {
+                        encode(buf, buf.remaining(), ring.getReadPTSUs());
+                    } finally {
+                        ring.releaseRead();
+                    }
+                    frameAvailableSoon();
+                }
+            } finally {
+                final boolean sendEOS;
+                synchronized (mFeederSync) {
+                    mFeeder = null;
+                    sendEOS = mFeederSendsEOS;
+                    mFeederSendsEOS = false;
+                }
+                if (sendEOS) {
+                    MediaAudioEncoder.super.signalEndOfInputStream();
                 }
             }
+            if (DEBUG) Log.v(TAG, "FeederThread:finished");
+        }
+    }
+
+    /**
+     * select the first codec that supports the format(sample rate, channels and bitrate)
+     * 选择支持该格式的第一个编解码器
+     *
+     * @param format format that #createFormat created
+     */
+    /*package*/ static CodecIndex.Codec selectAudioCodec(final MediaFormat format) {
+        if (DEBUG) Log.v(TAG, "selectAudioCodec:");
+        final CodecIndex.Codec codec = CodecIndex.get().findEncoder(format);
+        if (codec == null) {
+            Log.e(TAG, "couldn't find a codec for " + format);
         }
-        return result;
+        return codec;
     }
 
 }
@@ -3,9 +3,14 @@ package com.serenegiant.encoder;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import com.serenegiant.audiovideosample.BuildConfig;
@@ -51,9 +56,13 @@ public abstract class MediaEncoder implements Runnable {
      */
     protected int mTrackIndex;
     /**
-     * MediaCodec instance for encoding
+     * encoder instance(MediaCodec or fake one)
      */
-    protected MediaCodec mMediaCodec;                // API >= 16(Android4.1.2)
+    protected CodecBackend mMediaCodec;
+    /**
+     * factory to create encoder, this comes from MediaMuxerWrapper
+     */
+    private final CodecBackend.Factory mCodecFactory;
     /**
      * Weak reference of MediaMuxerWrapper instance
      */
@@ -62,25 +71,54 @@ public abstract class MediaEncoder implements Runnable {
      * BufferInfo instance for dequeuing
      */
     private MediaCodec.BufferInfo mBufferInfo;        // API >= 16(Android4.1.2)
+    /**
+     * Flag that indicate encoded data is delivered by MediaCodec.Callback instead of polling
+     */
+    protected final boolean mAsyncDrain;
+    /**
+     * Handler of private thread that MediaCodec.Callback is called on(only for async drain mode)
+     */
+    private Handler mAsyncHandler;
+    /**
+     * indices of input buffers that MediaCodec passed by #onInputBufferAvailable(only for async drain mode)
+     */
+    private final LinkedBlockingQueue<Integer> mInputIndices = new LinkedBlockingQueue<>();
+    private final Object mInputSync = new Object();
+    /**
+     * Flag that EOS is requested but no input buffer was available at that time(only for async drain mode)
+     */
+    private boolean mRequestEOS;
+    private long mRequestEOSPTSUs;
 
     protected final MediaEncoderListener mListener;
 
     public MediaEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
+        this(muxer, listener, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param asyncDrain true: output buffers are written to muxer from MediaCodec.Callback as soon as
+     *                   the codec produces them, this needs API >= 23 and falls back to polling on older devices
+     */
+    public MediaEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener, final boolean asyncDrain) {
         if (listener == null) throw new NullPointerException("MediaEncoderListener is null");
         if (muxer == null) throw new NullPointerException("MediaMuxerWrapper is null");
+        mAsyncDrain = asyncDrain && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M);
         mWeakMuxer = new WeakReference<>(muxer);
+        mCodecFactory = muxer.getCodecFactory();
         muxer.addEncoder(this);
         mListener = listener;
         synchronized (mSync) {
             // create BufferInfo here for effectiveness(to reduce GC)
             // effectiveness：有效性
             mBufferInfo = new MediaCodec.BufferInfo();
-            // wait for starting thread
+            mRequestStop = false;
+            mRequestDrain = 0;
+            // this does not wait for starting thread so that caller(e.g. UI thread) is never blocked,
+            // requests before the thread starts are kept in the flags
             new Thread(this, getClass().getSimpleName()).start();
-            try {
-                mSync.wait();
-            } catch (final InterruptedException ignored) {
-            }
         }
     }
 
@@ -101,8 +139,10 @@ public abstract class MediaEncoder implements Runnable {
             if (!mIsCapturing || mRequestStop) {
                 return false;
             }
-            mRequestDrain++;
-            mSync.notifyAll();
+            if (!mAsyncDrain) {
+                mRequestDrain++;
+                mSync.notifyAll();
+            }
         }
         return true;
     }
@@ -115,10 +155,9 @@ public abstract class MediaEncoder implements Runnable {
         // 声音线程的最高级别，优先程度较THREAD_PRIORITY_AUDIO要高。代码中无法设置为该优先级。值为-19。
         // priority 优先级：-20  ------>  +19 ，对应最高优先级------> 最低优先级。
         android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
-        synchronized (mSync) {
-            mRequestStop = false;
-            mRequestDrain = 0;
-            mSync.notify();
+        if (mAsyncDrain) {
+            runAsync();
+            return;
         }
         final boolean isRunning = true;
         boolean localRequestStop;
@@ -159,6 +198,63 @@ public abstract class MediaEncoder implements Runnable {
         }
     }
 
+    /**
+     * message loop for async drain mode,
+     * MediaCodec.Callback is called on this thread until EOS come or error occurred
+     */
+    private void runAsync() {
+        Looper.prepare();
+        synchronized (mSync) {
+            mAsyncHandler = new Handler(Looper.myLooper());
+            mSync.notifyAll();
+        }
+        Looper.loop();
+        if (DEBUG) Log.d(TAG, "Encoder thread exiting");
+        synchronized (mSync) {
+            mRequestStop = true;
+            mIsCapturing = false;
+            mAsyncHandler = null;
+        }
+    }
+
+    /**
+     * set MediaCodec.Callback when async drain mode,
+     * sub class should call this just after creating MediaCodec and before MediaCodec#configure
+     */
+    protected void setupAsyncDrain() {
+        if (mAsyncDrain && (mMediaCodec != null)) {
+            mInputIndices.clear();
+            mRequestEOS = false;
+            mMediaCodec.setCallback(mCodecCallback, waitAsyncHandler());    // API >= 23
+        }
+    }
+
+    /**
+     * wait until private thread prepares its Looper(async drain mode),
+     * this is called from #prepare that runs on the caller of MediaMuxerWrapper#startRecordingAsync
+     */
+    private Handler waitAsyncHandler() {
+        synchronized (mSync) {
+            while (mAsyncHandler == null) {
+                try {
+                    mSync.wait();
+                } catch (final InterruptedException e) {
+                    break;
+                }
+            }
+            return mAsyncHandler;
+        }
+    }
+
+    /**
+     * create encoder that supports the format
+     *
+     * @return null if no encoder is available
+     */
+    protected CodecBackend createEncoder(final MediaFormat format) throws IOException {
+        return mCodecFactory.createEncoder(format);
+    }
+
     /*
      * prepareing method for each sub class
      * this method should be implemented in sub class, so set this as abstract method
@@ -167,6 +263,20 @@ public abstract class MediaEncoder implements Runnable {
     /*package*/
     abstract void prepare() throws IOException;
 
+    /**
+     * request the encoder to encode next frame as a sync frame, e.g. to start new segment
+     */
+    /*package*/ void requestSyncFrame() {
+        final CodecBackend codec = mMediaCodec;
+        if ((codec != null) && mIsCapturing) {
+            try {
+                codec.requestSyncFrame();
+            } catch (final Exception e) {
+                Log.w(TAG, "requestSyncFrame:", e);
+            }
+        }
+    }
+
     /*package*/ void startRecording() {
         if (DEBUG) Log.v(TAG, "startRecording");
         synchronized (mSync) {
@@ -187,6 +297,9 @@ public abstract class MediaEncoder implements Runnable {
             }
             mRequestStop = true;    // for rejecting newer frame
             mSync.notifyAll();
+            if (mAsyncDrain && (mAsyncHandler != null)) {
+                mAsyncHandler.post(mAsyncStopTask);
+            }
             // We can not know when the encoding and writing finish.
             // so we return immediately after request to avoid delay of caller thread
         }
@@ -219,7 +332,7 @@ public abstract class MediaEncoder implements Runnable {
             final MediaMuxerWrapper muxer = mWeakMuxer != null ? mWeakMuxer.get() : null;
             if (muxer != null) {
                 try {
-                    muxer.stop();
+                    muxer.stop(mTrackIndex);
                 } catch (final Exception e) {
                     Log.e(TAG, "failed stopping muxer", e);
                 }
@@ -246,42 +359,134 @@ public abstract class MediaEncoder implements Runnable {
      */
     protected void encode(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
         if (!mIsCapturing) return;
-        // 从当前编解码器中获取输入缓冲区数组，用于向输入缓冲区中添加要编解码的数据
-        final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
-        while (mIsCapturing) {
-            // 获取输入缓冲区数组中待使用(空闲)的缓冲区数组下标索引，timeoutUs 为 0 时立即返回，小于 0 时表示一直等待直至输入缓冲区数组中有可用的缓冲区为止，大于 0 则表示等待时间为 timeoutUs
-            final int inputBufferIndex = mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
-            if (inputBufferIndex >= 0) {
-                final ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
-                inputBuffer.clear();
-                if (buffer != null) {
-                    inputBuffer.put(buffer);
+        final int inputBufferIndex;
+        if (mAsyncDrain && (length <= 0)) {
+            // EOS never waits for input buffer in async drain mode
+            // because this may be called on the callback thread itself.
+            synchronized (mInputSync) {
+                final Integer index = mInputIndices.poll();
+                if (index == null) {
+                    // send EOS when next input buffer become available
+                    mRequestEOS = true;
+                    mRequestEOSPTSUs = presentationTimeUs;
+                    return;
                 }
-                if (DEBUG) Log.v(TAG, "encode:queueInputBuffer");
-                if (length <= 0) {
-                    // send EOS
-                    mIsEOS = true;
-                    if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
-                    // 向输入缓冲区数组中添加要编解码的数据，index 参数为 dequeueInputBuffer(long timeoutUs)的返回值，
-                    // offset 为要编解码数据的起始偏移，size 为要编解码数据的长度，presentationTimeUs 为 PTS，
-                    // flags 为标记，正常使用时可默认填 0，编解码至结尾时可填 MediaCodec.BUFFER_FLAG_END_OF_STREAM 值
-                    mMediaCodec.queueInputBuffer(inputBufferIndex, 0, 0,
-                            presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                inputBufferIndex = index;
+            }
+        } else {
+            inputBufferIndex = dequeueInputBuffer();
+        }
+        if (inputBufferIndex < 0) return;
+        // 获取输入缓冲区，用于向输入缓冲区中添加要编解码的数据
+        final ByteBuffer inputBuffer = getInputBuffer(inputBufferIndex);
+        if (inputBuffer == null) return;
+        inputBuffer.clear();
+        if (buffer != null) {
+            inputBuffer.put(buffer);
+        }
+        queueInputBuffer(inputBufferIndex, length, presentationTimeUs);
+    }
+
+    /**
+     * dequeue input buffer of encoder, this waits until input buffer become available while capturing.
+     * caller can write raw data into #getInputBuffer directly without copying
+     * and should pass it back by #queueInputBuffer or #cancelInputBuffer
+     *
+     * @return index of input buffer, negative value if encoder is not capturing
+     */
+    protected int dequeueInputBuffer() {
+        while (mIsCapturing) {
+            final CodecBackend codec = mMediaCodec;
+            if (codec == null) break;
+            if (mAsyncDrain) {
+                // input buffers are passed from MediaCodec.Callback#onInputBufferAvailable
+                try {
+                    final Integer index = mInputIndices.poll(TIMEOUT_USEC, TimeUnit.MICROSECONDS);
+                    if (index != null) {
+                        return index;
+                    }
+                } catch (final InterruptedException e) {
                     break;
-                } else {
-                    // 向输入缓冲区数组中添加要编解码的数据，index 参数为 dequeueInputBuffer(long timeoutUs)的返回值，
-                    // offset 为要编解码数据的起始偏移，size 为要编解码数据的长度，presentationTimeUs 为 PTS，
-                    // flags 为标记，正常使用时可默认填 0，编解码至结尾时可填 MediaCodec.BUFFER_FLAG_END_OF_STREAM 值
-                    mMediaCodec.queueInputBuffer(inputBufferIndex, 0, length,
-                            presentationTimeUs, 0);
                 }
-                break;
-            } else if (inputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                // wait for MediaCodec encoder is ready to encode
+            } else {
+                // 获取输入缓冲区数组中待使用(空闲)的缓冲区数组下标索引，timeoutUs 为 0 时立即返回，小于 0 时表示一直等待直至输入缓冲区数组中有可用的缓冲区为止，大于 0 则表示等待时间为 timeoutUs
+                final int index = codec.dequeueInputBuffer(TIMEOUT_USEC);
+                if (index >= 0) {
+                    return index;
+                }
+                // INFO_TRY_AGAIN_LATER: wait for MediaCodec encoder is ready to encode
                 // nothing to do here because MediaCodec#dequeueInputBuffer(TIMEOUT_USEC)
                 // will wait for maximum TIMEOUT_USEC(10msec) on each call
             }
         }
+        return -1;
+    }
+
+    /**
+     * @param index index of input buffer that #dequeueInputBuffer returned
+     * @return null if encoder is already released
+     */
+    protected ByteBuffer getInputBuffer(final int index) {
+        final CodecBackend codec = mMediaCodec;
+        return codec != null ? codec.getInputBuffer(index) : null;
+    }
+
+    /**
+     * pass input buffer back to encoder
+     *
+     * @param index  index of input buffer that #dequeueInputBuffer returned
+     * @param length length of data at the head of input buffer, zero means EOS.
+     */
+    protected void queueInputBuffer(final int index, final int length, final long presentationTimeUs) {
+        synchronized (mInputSync) {
+            if (mIsEOS || (mMediaCodec == null)) return;
+            if (DEBUG) Log.v(TAG, "encode:queueInputBuffer");
+            // 向输入缓冲区数组中添加要编解码的数据，index 参数为 dequeueInputBuffer(long timeoutUs)的返回值，
+            // offset 为要编解码数据的起始偏移，size 为要编解码数据的长度，presentationTimeUs 为 PTS，
+            // flags 为标记，正常使用时可默认填 0，编解码至结尾时可填 MediaCodec.BUFFER_FLAG_END_OF_STREAM 值
+            if (length <= 0) {
+                // send EOS
+                mIsEOS = true;
+                if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
+                mMediaCodec.queueInputBuffer(index, 0, 0,
+                        presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            } else {
+                mMediaCodec.queueInputBuffer(index, 0, length,
+                        presentationTimeUs, 0);
+            }
+        }
+    }
+
+    /**
+     * give back input buffer that #dequeueInputBuffer returned but has no data
+     */
+    protected void cancelInputBuffer(final int index) {
+        if (mAsyncDrain) {
+            offerInputBuffer(index);
+        } else {
+            synchronized (mInputSync) {
+                if (mIsEOS || (mMediaCodec == null)) return;
+                // empty buffer without EOS flag
+                mMediaCodec.queueInputBuffer(index, 0, 0, getPTSUs(), 0);
+            }
+        }
+    }
+
+    /**
+     * input buffer became available in async drain mode,
+     * use it for pending EOS if requested otherwise keep it for #dequeueInputBuffer
+     */
+    private void offerInputBuffer(final int index) {
+        final boolean sendEOS;
+        synchronized (mInputSync) {
+            sendEOS = mRequestEOS && !mIsEOS;
+            if (!sendEOS) {
+                mInputIndices.offer(index);
+            }
+        }
+        if (sendEOS) {
+            queueInputBuffer(index, 0, mRequestEOSPTSUs);
+        }
     }
 
     /**
@@ -290,7 +495,6 @@ public abstract class MediaEncoder implements Runnable {
      */
     protected void drain() {
         if (mMediaCodec == null) return;
-        ByteBuffer[] encoderOutputBuffers = mMediaCodec.getOutputBuffers();
         int encoderStatus, count = 0;
         final MediaMuxerWrapper muxer = mWeakMuxer.get();
         if (muxer == null) {
@@ -311,66 +515,33 @@ public abstract class MediaEncoder implements Runnable {
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
                 if (DEBUG) Log.v(TAG, "INFO_OUTPUT_BUFFERS_CHANGED");
                 // this shoud not come when encoding
-                encoderOutputBuffers = mMediaCodec.getOutputBuffers();
+                // and nothing to do because output buffers are get by index
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                 if (DEBUG) Log.v(TAG, "INFO_OUTPUT_FORMAT_CHANGED");
                 // this status indicate the output format of codec is changed
                 // this should come only once before actual encoded data
                 // but this status never come on Android4.3 or less
                 // and in that case, you should treat when MediaCodec.BUFFER_FLAG_CODEC_CONFIG come.
-                if (mMuxerStarted) {    // second time request is error
-                    throw new RuntimeException("format changed twice");
-                }
-                // get output format from codec and pass them to muxer
                 // getOutputFormat should be called after INFO_OUTPUT_FORMAT_CHANGED otherwise crash.
-                final MediaFormat format = mMediaCodec.getOutputFormat(); // API >= 16
-                mTrackIndex = muxer.addTrack(format);
-                mMuxerStarted = true;
-                if (!muxer.start()) {
-                    // we should wait until muxer is ready
-                    synchronized (muxer) {
-                        while (!muxer.isStarted())
-                            try {
-                                muxer.wait(100);
-                            } catch (final InterruptedException e) {
-                                break LOOP;
-                            }
-                    }
+                if (!startMuxer(muxer, mMediaCodec.getOutputFormat())) { // API >= 16
+                    break LOOP;
                 }
             } else if (encoderStatus < 0) {
                 // unexpected status
                 if (DEBUG)
                     Log.w(TAG, "drain:unexpected result from encoder#dequeueOutputBuffer: " + encoderStatus);
             } else {
-                final ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
+                final ByteBuffer encodedData = mMediaCodec.getOutputBuffer(encoderStatus);
                 if (encodedData == null) {
                     // this never should come...may be a MediaCodec internal error
                     throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
                 }
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // You shoud set output format to muxer here when you target Android4.3 or less
-                    // but MediaCodec#getOutputFormat can not call here(because INFO_OUTPUT_FORMAT_CHANGED don't come yet)
-                    // therefor we should expand and prepare output format from buffer data.
-                    // This sample is for API>=18(>=Android 4.3), just ignore this flag here
-                    if (DEBUG) Log.d(TAG, "drain:BUFFER_FLAG_CODEC_CONFIG");
-                    mBufferInfo.size = 0;
-                }
-
-                if (mBufferInfo.size != 0) {
+                if (writeEncodedData(muxer, encodedData, mBufferInfo)) {
                     // encoded data is ready, clear waiting counter
                     count = 0;
-                    if (!mMuxerStarted) {
-                        // muxer is not ready...this will prrograming failure.
-                        throw new RuntimeException("drain:muxer hasn't started");
-                    }
-                    // write encoded data to muxer(need to adjust presentationTimeUs.
-                    mBufferInfo.presentationTimeUs = getPTSUs();
-                    // 向mp4文件中写入数据
-                    muxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    prevOutputPTSUs = mBufferInfo.presentationTimeUs;
                 }
                 // return buffer to encoder
-                mMediaCodec.releaseOutputBuffer(encoderStatus, false);
+                mMediaCodec.releaseOutputBuffer(encoderStatus);
                 if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                     // when EOS come.
                     mIsCapturing = false;
@@ -380,6 +551,147 @@ public abstract class MediaEncoder implements Runnable {
         }
     }
 
+    /**
+     * add track to muxer and wait until muxer is ready
+     *
+     * @param format output format from codec
+     * @return false if interrupted while waiting muxer
+     */
+    private boolean startMuxer(final MediaMuxerWrapper muxer, final MediaFormat format) {
+        if (mMuxerStarted) {    // second time request is error
+            throw new RuntimeException("format changed twice");
+        }
+        // get output format from codec and pass them to muxer
+        mTrackIndex = muxer.addTrack(format);
+        mMuxerStarted = true;
+        if (!muxer.start()) {
+            // we should wait until muxer is ready
+            synchronized (muxer) {
+                while (!muxer.isStarted())
+                    try {
+                        muxer.wait(100);
+                    } catch (final InterruptedException e) {
+                        return false;
+                    }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * write encoded data to muxer
+     *
+     * @return true if actual encoded data was written
+     */
+    private boolean writeEncodedData(final MediaMuxerWrapper muxer, final ByteBuffer encodedData, final MediaCodec.BufferInfo bufferInfo) {
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // You shoud set output format to muxer here when you target Android4.3 or less
+            // but MediaCodec#getOutputFormat can not call here(because INFO_OUTPUT_FORMAT_CHANGED don't come yet)
+            // therefor we should expand and prepare output format from buffer data.
+            // This sample is for API>=18(>=Android 4.3), just ignore this flag here
+            if (DEBUG) Log.d(TAG, "drain:BUFFER_FLAG_CODEC_CONFIG");
+            bufferInfo.size = 0;
+        }
+
+        if (bufferInfo.size != 0) {
+            if (!mMuxerStarted) {
+                // muxer is not ready...this will prrograming failure.
+                throw new RuntimeException("drain:muxer hasn't started");
+            }
+            // write encoded data to muxer,
+            // presentationTimeUs is capture time that came through the encoder and is kept as is
+            // so that encoder latency is not added and reordered frames keep their own time.
+            // 向mp4文件中写入数据
+            muxer.writeSampleData(mTrackIndex, encodedData, bufferInfo);
+            prevOutputPTSUs = bufferInfo.presentationTimeUs;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * callback from MediaCodec for async drain mode, this is called on private thread
+     */
+    private final CodecBackend.Callback mCodecCallback = new CodecBackend.Callback() {
+        @Override
+        public void onInputBufferAvailable(final int index) {
+            offerInputBuffer(index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(final int index, final MediaCodec.BufferInfo info) {
+            final CodecBackend codec = mMediaCodec;
+            if (codec == null) return;
+            final boolean isCapturing = mIsCapturing;
+            try {
+                if (isCapturing) {
+                    final MediaMuxerWrapper muxer = mWeakMuxer.get();
+                    if (muxer == null) {
+                        Log.w(TAG, "muxer is unexpectedly null");
+                    } else {
+                        writeEncodedData(muxer, codec.getOutputBuffer(index), info);
+                    }
+                }
+            } finally {
+                // output buffer should be returned even if it is not written,
+                // e.g. output of pooled encoder before starting, otherwise the encoder stalls
+                codec.releaseOutputBuffer(index);
+            }
+            if (isCapturing && ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)) {
+                // when EOS come. release on next loop because codec should not be stopped in callback
+                mIsCapturing = false;
+                mAsyncHandler.post(mAsyncReleaseTask);
+            }
+        }
+
+        @Override
+        public void onError(final Exception e) {
+            Log.e(TAG, "onError:", e);
+            mAsyncHandler.post(mAsyncReleaseTask);
+        }
+
+        @Override
+        public void onOutputFormatChanged(final MediaFormat format) {
+            if (DEBUG) Log.v(TAG, "onOutputFormatChanged");
+            final MediaMuxerWrapper muxer = mWeakMuxer.get();
+            if ((muxer == null) || !startMuxer(muxer, format)) {
+                mAsyncHandler.post(mAsyncReleaseTask);
+            }
+        }
+    };
+
+    /**
+     * request EOS on private thread(async drain mode)
+     */
+    private final Runnable mAsyncStopTask = new Runnable() {
+        @Override
+        public void run() {
+            if ((mMediaCodec == null) || !mIsCapturing) {
+                mAsyncReleaseTask.run();
+            } else {
+                // remaining output and EOS will come through MediaCodec.Callback
+                signalEndOfInputStream();
+            }
+        }
+    };
+
+    /**
+     * release all related objects and terminate private thread(async drain mode)
+     */
+    private final Runnable mAsyncReleaseTask = new Runnable() {
+        @Override
+        public void run() {
+            // #release clears mBufferInfo, this prevents releasing twice on EOS and error
+            if (mBufferInfo != null) {
+                release();
+            }
+            final Looper looper = Looper.myLooper();
+            if (looper != null) {
+                looper.quitSafely();
+            }
+        }
+    };
+
     /**
      * previous presentationTimeUs for writing
      * 上次写入时间
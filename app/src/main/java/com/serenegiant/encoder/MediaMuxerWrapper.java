@@ -4,18 +4,25 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import android.content.Context;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.os.Environment;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.serenegiant.audiovideosample.BuildConfig;
+import com.serenegiant.net.SendQueue;
 
 /**
  * Muxer：复用器
@@ -26,13 +33,160 @@ public class MediaMuxerWrapper {
     private static final String TAG = MediaMuxerWrapper.class.getSimpleName();
 
     private static final String DIR_NAME = "AVRecSample";
+    /**
+     * muxer type: mp4 file written by MediaMuxer, moov is written on stop
+     */
+    public static final int MUXER_MP4 = 0;
+    /**
+     * muxer type: fragmented mp4 file written by FragmentedMp4Writer,
+     * the file is playable up to the last fragment even if the app crashes
+     */
+    public static final int MUXER_FRAGMENTED_MP4 = 1;
+    /**
+     * muxer type: HLS, MPEG-TS segments and m3u8 playlist(output path) written by HlsPackager,
+     * use with ".m3u8" extension
+     */
+    public static final int MUXER_HLS = 2;
+    /**
+     * interval to evaluate BitrateController
+     */
+    public static final long BITRATE_UPDATE_INTERVAL_MS = 500;
+    /**
+     * callback interface of segmented recording
+     */
+    public interface OnSegmentListener {
+        /**
+         * a segment file is finalized, this is called on the worker thread of muxer
+         *
+         * @param path       path of the segment file
+         * @param durationUs duration of the segment
+         * @param bytes      size of samples in the segment
+         */
+        void onSegmentFinished(String path, long durationUs, long bytes);
+    }
+
+    /**
+     * callback interface of #startRecordingAsync, methods are called on private thread
+     */
+    public interface OnStartListener {
+        /**
+         * encoders were prepared and started
+         */
+        void onStarted(MediaMuxerWrapper muxer, StartTimings timings);
+
+        /**
+         * failed to prepare encoders
+         */
+        void onError(MediaMuxerWrapper muxer, Exception e);
+    }
+
+    /**
+     * elapsed time of each phase of #startRecordingAsync [msec]
+     */
+    public static final class StartTimings {
+        /**
+         * from creating this muxer to #startRecordingAsync, e.g. creating encoders on caller thread
+         */
+        public long setupMs;
+        /**
+         * MediaEncoder#prepare of each encoder(create/configure codec), -1 if there is no encoder
+         */
+        public long videoPrepareMs = -1, audioPrepareMs = -1;
+        /**
+         * preparing encoders in parallel
+         */
+        public long prepareMs;
+        /**
+         * starting encoders
+         */
+        public long startMs;
+        /**
+         * from #startRecordingAsync to finish of starting
+         */
+        public long totalMs;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "StartTimings(setup=%d,video=%d,audio=%d,prepare=%d,start=%d,total=%d)",
+                setupMs, videoPrepareMs, audioPrepareMs, prepareMs, startMs, totalMs);
+        }
+    }
+
+    private static final class LiveSink {
+        final MuxerBackend sink;
+        /**
+         * track index of the sink for each track index of the muxer
+         */
+        final int[] tracks = new int[2];
+
+        LiveSink(final MuxerBackend sink) {
+            this.sink = sink;
+        }
+    }
+
     private static final SimpleDateFormat mDateTimeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.CHINA);
 
-    private String mOutputPath;
-    private final MediaMuxer mMediaMuxer;    // API >= 18
+    private volatile String mOutputPath;
+    private final MuxerBackend mMediaMuxer;
+    /**
+     * MUXER_XXX of the muxer or muxers of segments, -1 if the muxer was given by the caller
+     */
+    private final int mMuxerType;
+    private final CodecBackend.Factory mCodecFactory;
     private int mEncoderCount, mStatedCount;
     private boolean mIsStarted;
-    private MediaEncoder mVideoEncoder, mAudioEncoder;
+    private volatile MediaEncoder mVideoEncoder, mAudioEncoder;
+    /**
+     * start time of this recording session on System#nanoTime base,
+     * presentationTimeUs of all tracks are rebased to this so that they begin aligned
+     */
+    private volatile long mSessionStartUs = -1;
+    /**
+     * writer thread, this is available while muxer is started
+     */
+    private volatile MuxerWriter mWriter;
+    /**
+     * pool of direct buffers for encoded samples queued to writer or other sinks
+     */
+    private final SlabPool mBufferPool = new SlabPool();
+    /**
+     * paths of segment files that are not finalized yet
+     */
+    private final Map<Integer, String> mSegmentPaths = new HashMap<Integer, String>();
+    private volatile OnSegmentListener mSegmentListener;
+    /**
+     * additional sinks(e.g. RtmpMuxerBackend) that receive same samples as the muxer
+     */
+    private final ArrayList<LiveSink> mLiveSinks = new ArrayList<LiveSink>();
+    /**
+     * output directory and extension of pre-record mode
+     */
+    private File mPreRecordDir;
+    private String mPreRecordExt;
+    /**
+     * encoding parameters that encoders read when they are created
+     */
+    private RecordingProfile mRecordingProfile = RecordingProfile.DEFAULT;
+    /**
+     * pool of prewarmed encoders that is used instead of mCodecFactory, null if not set
+     */
+    private volatile EncoderPool mEncoderPool;
+    /**
+     * adaptive bitrate of video encoder, null if disabled
+     */
+    private volatile BitrateController mBitrateController;
+    /**
+     * followings are only accessed on the drain thread of video encoder
+     */
+    private final BitrateController.Signals mBitrateSignals = new BitrateController.Signals();
+    private long mLastBitrateUpdateMs;
+    private long mLastWrittenBytes, mLastWriteTimeNs;
+    /**
+     * for #startRecordingAsync
+     */
+    private final long mCreateTimeNs = System.nanoTime();
+    private final Object mStartSync = new Object();
+    private boolean mStarting, mStopRequested;
 
     /**
      * Constructor
@@ -42,21 +196,237 @@ public class MediaMuxerWrapper {
      * @throws IOException
      */
     public MediaMuxerWrapper(String ext, Context context) throws IOException {
+        this(ext, context, MUXER_MP4);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param ext       extension of output file
+     * @param context
+     * @param muxerType MUXER_MP4, MUXER_FRAGMENTED_MP4 or MUXER_HLS
+     * @throws IOException
+     */
+    public MediaMuxerWrapper(String ext, Context context, final int muxerType) throws IOException {
         if (TextUtils.isEmpty(ext)) ext = ".mp4";
         try {
             mOutputPath = getCaptureFile(context, Environment.DIRECTORY_MOVIES, ext).toString();
         } catch (final NullPointerException e) {
             throw new RuntimeException("This app has no permission of writing external storage");
         }
-        mMediaMuxer = new MediaMuxer(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mMediaMuxer = createMuxer(mOutputPath, muxerType);
+        mMuxerType = muxerType;
+        setupSyncFrameRequest(mMediaMuxer);
+        mCodecFactory = AndroidCodecBackend.FACTORY;
+        mEncoderCount = mStatedCount = 0;
+        mIsStarted = false;
+    }
+
+    /**
+     * Constructor for pre-record mode,
+     * encoded samples of last specific duration are kept only in memory until #trigger is called,
+     * then they are written into a new file(named with the time of trigger) followed by live samples.
+     *
+     * @param ext         extension of output file
+     * @param context
+     * @param muxerType   MUXER_MP4 or MUXER_FRAGMENTED_MP4
+     * @param preRecordUs duration of samples kept before trigger
+     * @throws IOException
+     */
+    public MediaMuxerWrapper(String ext, final Context context, final int muxerType,
+                             final long preRecordUs) throws IOException {
+        if (TextUtils.isEmpty(ext)) ext = ".mp4";
+        final File dir;
+        try {
+            dir = getCaptureFile(context, Environment.DIRECTORY_MOVIES, ext).getParentFile();
+        } catch (final NullPointerException e) {
+            throw new RuntimeException("This app has no permission of writing external storage");
+        }
+        final String extension = ext;
+        mMediaMuxer = new PreRecordMuxerBackend(new SegmentedMuxerBackend.SegmentFactory() {
+            @Override
+            public MuxerBackend createSegment(final int segmentIndex) throws IOException {
+                return createMuxer(mOutputPath, muxerType);
+            }
+        }, preRecordUs, PreRecordMuxerBackend.DEFAULT_CAPACITY);
+        setupSyncFrameRequest(mMediaMuxer);
+        mMuxerType = muxerType;
+        mPreRecordDir = dir;
+        mPreRecordExt = extension;
+        mCodecFactory = AndroidCodecBackend.FACTORY;
         mEncoderCount = mStatedCount = 0;
         mIsStarted = false;
     }
 
+    /**
+     * Constructor for segmented recording,
+     * a new file(named with suffix _000, _001...) is started on the next video key frame
+     * when the segment reaches specific duration or size. Encoders keep running while switching.
+     *
+     * @param ext               extension of output file
+     * @param context
+     * @param muxerType         MUXER_MP4 or MUXER_FRAGMENTED_MP4
+     * @param segmentDurationUs maximum duration of a segment, 0 for unlimited
+     * @param segmentBytes      maximum size of a segment, 0 for unlimited
+     * @throws IOException
+     */
+    public MediaMuxerWrapper(String ext, final Context context, final int muxerType,
+                             final long segmentDurationUs, final long segmentBytes) throws IOException {
+        if (TextUtils.isEmpty(ext)) ext = ".mp4";
+        final String basePath;
+        try {
+            final String path = getCaptureFile(context, Environment.DIRECTORY_MOVIES, ext).toString();
+            basePath = path.substring(0, path.length() - ext.length());
+        } catch (final NullPointerException e) {
+            throw new RuntimeException("This app has no permission of writing external storage");
+        }
+        final String extension = ext;
+        mOutputPath = getSegmentPath(basePath, 0, extension);
+        final SegmentedMuxerBackend muxer = new SegmentedMuxerBackend(
+            new SegmentedMuxerBackend.SegmentFactory() {
+                @Override
+                public MuxerBackend createSegment(final int segmentIndex) throws IOException {
+                    final String path = getSegmentPath(basePath, segmentIndex, extension);
+                    synchronized (mSegmentPaths) {
+                        mSegmentPaths.put(segmentIndex, path);
+                    }
+                    return createMuxer(path, muxerType);
+                }
+            },
+            new SegmentedMuxerBackend.SegmentListener() {
+                @Override
+                public void onSegmentFinished(final int segmentIndex, final long durationUs, final long bytes) {
+                    final String path = removeSegmentPath(segmentIndex);
+                    if (DEBUG) Log.v(TAG, "onSegmentFinished:" + path + ",duration=" + durationUs + ",bytes=" + bytes);
+                    final OnSegmentListener listener = mSegmentListener;
+                    if ((listener != null) && (path != null)) {
+                        listener.onSegmentFinished(path, durationUs, bytes);
+                    }
+                }
+
+                @Override
+                public void onSegmentDiscarded(final int segmentIndex) {
+                    final String path = removeSegmentPath(segmentIndex);
+                    if ((path != null) && !new File(path).delete()) {
+                        Log.w(TAG, "failed to delete unused segment:" + path);
+                    }
+                }
+            },
+            segmentDurationUs, segmentBytes);
+        mMediaMuxer = muxer;
+        mMuxerType = muxerType;
+        setupSyncFrameRequest(muxer);
+        mCodecFactory = AndroidCodecBackend.FACTORY;
+        mEncoderCount = mStatedCount = 0;
+        mIsStarted = false;
+    }
+
+    /**
+     * Constructor with specific backends,
+     * e.g. FakeCodecBackend of unit tests to run encoding pipeline without device
+     *
+     * @param outputPath   path of output, this is just for #getOutputPath
+     * @param muxer        muxer to write encoded data
+     * @param codecFactory factory to create encoders
+     */
+    public MediaMuxerWrapper(final String outputPath, final MuxerBackend muxer, final CodecBackend.Factory codecFactory) {
+        if ((muxer == null) || (codecFactory == null)) throw new NullPointerException("backend is null");
+        mOutputPath = outputPath;
+        mMediaMuxer = muxer;
+        mMuxerType = muxer instanceof AndroidMuxerBackend ? MUXER_MP4 : -1;
+        setupSyncFrameRequest(muxer);
+        mCodecFactory = codecFactory;
+        mEncoderCount = mStatedCount = 0;
+        mIsStarted = false;
+    }
+
+    /**
+     * add sink that receives same encoded samples as the muxer, e.g. RtmpMuxerBackend for live streaming.
+     * this should be called before preparing encoders.
+     * writeSampleData of the sink is called on encoder threads and should return immediately
+     * so that slow sink never delays local recording.
+     */
+    public synchronized void addLiveSink(final MuxerBackend sink) {
+        if (mIsStarted || (mEncoderCount > 0))
+            throw new IllegalStateException("sink should be added before adding encoders");
+        mLiveSinks.add(new LiveSink(sink));
+        setupSyncFrameRequest(sink);
+    }
+
+    /**
+     * @return path of output file, path of the first segment on segmented recording
+     */
     public String getOutputPath() {
         return mOutputPath;
     }
 
+    /**
+     * start writing pre-recorded samples and following live samples into a new file,
+     * this is only available on pre-record mode
+     *
+     * @return false if this is not pre-record mode or already triggered
+     */
+    public boolean trigger() {
+        if (!(mMediaMuxer instanceof PreRecordMuxerBackend)) return false;
+        final PreRecordMuxerBackend muxer = (PreRecordMuxerBackend) mMediaMuxer;
+        if (muxer.isTriggered()) return false;
+        if (mPreRecordDir != null) {
+            // output file is created by the writer thread after this
+            mOutputPath = new File(mPreRecordDir, getDateTimeString() + mPreRecordExt).toString();
+        }
+        return muxer.trigger();
+    }
+
+    /**
+     * set encoding parameters, this should be called before creating encoders
+     *
+     * @throws IllegalArgumentException if the video codec can not be written by the muxer or live sinks
+     */
+    public synchronized void setRecordingProfile(final RecordingProfile profile) {
+        if (profile == null) throw new NullPointerException("profile is null");
+        if (mIsStarted || (mEncoderCount > 0))
+            throw new IllegalStateException("profile should be set before adding encoders");
+        // MediaMuxer(also used for segments and pre-record) writes HEVC, other muxers and sinks write AVC only
+        if (!MediaFormat.MIMETYPE_VIDEO_AVC.equals(profile.videoMimeType)
+            && ((mMuxerType != MUXER_MP4) || !mLiveSinks.isEmpty()))
+            throw new IllegalArgumentException("only MUXER_MP4 supports " + profile.videoMimeType);
+        mRecordingProfile = profile;
+    }
+
+    public synchronized RecordingProfile getRecordingProfile() {
+        return mRecordingProfile;
+    }
+
+    /**
+     * get encoders and render thread from the pool and give them back after recording,
+     * this should be called before creating encoders
+     */
+    public synchronized void setEncoderPool(final EncoderPool pool) {
+        if (mIsStarted || (mEncoderCount > 0))
+            throw new IllegalStateException("pool should be set before adding encoders");
+        mEncoderPool = pool;
+    }
+
+    /**
+     * retune bitrate of video encoder while recording by the controller, null to disable.
+     * the controller is evaluated on the drain thread of video encoder every BITRATE_UPDATE_INTERVAL_MS
+     * with throughput and backlog of the writer and live sinks
+     */
+    public void setBitrateController(final BitrateController controller) {
+        mBitrateController = controller;
+    }
+
+    public BitrateController getBitrateController() {
+        return mBitrateController;
+    }
+
+    /**
+     * set listener that is notified when each segment file is finalized on segmented recording
+     */
+    public void setOnSegmentListener(final OnSegmentListener listener) {
+        mSegmentListener = listener;
+    }
+
     public void prepare() throws IOException {
         if (mVideoEncoder != null)
             mVideoEncoder.prepare();
@@ -65,13 +435,113 @@ public class MediaMuxerWrapper {
     }
 
     public void startRecording() {
+        mSessionStartUs = System.nanoTime() / 1000L;
         if (mVideoEncoder != null)
             mVideoEncoder.startRecording();
         if (mAudioEncoder != null)
             mAudioEncoder.startRecording();
     }
 
+    /**
+     * prepare encoders in parallel and start recording on private threads, this returns immediately.
+     * #stopRecording can be called while starting, then encoders are stopped just after they are started
+     *
+     * @param listener null if not needed
+     * @return Future that is done when encoders are started, Future#get throws the exception of #prepare
+     */
+    public Future<StartTimings> startRecordingAsync(final OnStartListener listener) {
+        final long requestNs = System.nanoTime();
+        synchronized (mStartSync) {
+            if (mStarting) throw new IllegalStateException("already starting");
+            mStarting = true;
+            mStopRequested = false;
+        }
+        final MediaEncoder video = mVideoEncoder;
+        final MediaEncoder audio = mAudioEncoder;
+        final FutureTask<StartTimings> task = new FutureTask<StartTimings>(new Callable<StartTimings>() {
+            @Override
+            public StartTimings call() throws Exception {
+                final StartTimings timings = new StartTimings();
+                timings.setupMs = (requestNs - mCreateTimeNs) / 1000000L;
+                try {
+                    long startNs = System.nanoTime();
+                    // audio encoder is prepared on another thread while video encoder is prepared on this thread
+                    final FutureTask<Long> audioTask = audio != null ? prepareTask(audio) : null;
+                    if (audioTask != null) {
+                        new Thread(audioTask, TAG + ":prepare").start();
+                    }
+                    if (video != null) {
+                        video.prepare();
+                        timings.videoPrepareMs = (System.nanoTime() - startNs) / 1000000L;
+                    }
+                    if (audioTask != null) {
+                        try {
+                            timings.audioPrepareMs = audioTask.get();
+                        } catch (final ExecutionException e) {
+                            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                        }
+                    }
+                    timings.prepareMs = (System.nanoTime() - startNs) / 1000000L;
+                    startNs = System.nanoTime();
+                    startRecording();
+                    timings.startMs = (System.nanoTime() - startNs) / 1000000L;
+                    timings.totalMs = (System.nanoTime() - requestNs) / 1000000L;
+                } catch (final Exception e) {
+                    Log.w(TAG, "startRecordingAsync:", e);
+                    finishStarting();
+                    if (listener != null) {
+                        listener.onError(MediaMuxerWrapper.this, e);
+                    }
+                    throw e;
+                }
+                if (DEBUG) Log.v(TAG, "startRecordingAsync:" + timings);
+                finishStarting();
+                if (listener != null) {
+                    listener.onStarted(MediaMuxerWrapper.this, timings);
+                }
+                return timings;
+            }
+        });
+        new Thread(task, TAG + ":start").start();
+        return task;
+    }
+
+    /**
+     * @return task that prepares the encoder and returns elapsed time [msec]
+     */
+    private static FutureTask<Long> prepareTask(final MediaEncoder encoder) {
+        return new FutureTask<Long>(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                final long startNs = System.nanoTime();
+                encoder.prepare();
+                return (System.nanoTime() - startNs) / 1000000L;
+            }
+        });
+    }
+
+    /**
+     * stop encoders if #stopRecording was called while #startRecordingAsync
+     */
+    private void finishStarting() {
+        final boolean stop;
+        synchronized (mStartSync) {
+            mStarting = false;
+            stop = mStopRequested;
+        }
+        if (stop) {
+            stopRecording();
+        }
+    }
+
     public void stopRecording() {
+        synchronized (mStartSync) {
+            mStopRequested = true;
+            if (mStarting) {
+                // encoders are not started yet, #startRecordingAsync stops them after starting
+                return;
+            }
+        }
         if (mVideoEncoder != null)
             mVideoEncoder.stopRecording();
         mVideoEncoder = null;
@@ -106,6 +576,39 @@ public class MediaMuxerWrapper {
         mEncoderCount = (mVideoEncoder != null ? 1 : 0) + (mAudioEncoder != null ? 1 : 0);
     }
 
+    /**
+     * get start time of this recording session, this is called from encoder.
+     *
+     * @return start time on System#nanoTime base [usec], -1 if recording is not started yet
+     */
+    /*package*/ long getSessionStartUs() {
+        return mSessionStartUs;
+    }
+
+    /**
+     * get pool of direct buffers to keep encoded data after releasing codec output buffer
+     */
+    public SlabPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * get factory to create encoder, this is called from encoder.
+     */
+    /*package*/ CodecBackend.Factory getCodecFactory() {
+        final EncoderPool pool = mEncoderPool;
+        return pool != null ? pool : mCodecFactory;
+    }
+
+    /**
+     * get pool of encoders and render thread, this is called from encoder.
+     *
+     * @return null if not set
+     */
+    /*package*/ EncoderPool getEncoderPool() {
+        return mEncoderPool;
+    }
+
     /**
      * request start recording from encoder
      *
@@ -117,6 +620,14 @@ public class MediaMuxerWrapper {
         mStatedCount++;
         if ((mEncoderCount > 0) && (mStatedCount == mEncoderCount)) {
             mMediaMuxer.start();
+            for (final LiveSink live : mLiveSinks) {
+                live.sink.start();
+            }
+            final MediaEncoder video = mVideoEncoder;
+            mWriter = new MuxerWriter(mMediaMuxer, mBufferPool,
+                mEncoderCount, MuxerWriter.DEFAULT_INTERLEAVE_WINDOW_US,
+                video != null ? video.mTrackIndex : -1, mSyncFrameRequest);
+            mWriter.start();
             mIsStarted = true;
             notifyAll();
             if (DEBUG) Log.v(TAG, "MediaMuxer started:");
@@ -126,14 +637,34 @@ public class MediaMuxerWrapper {
 
     /**
      * request stop recording from encoder when encoder received EOS
+     *
+     * @param trackIndex track index of the encoder
      */
     /*package*/
-    synchronized void stop() {
+    synchronized void stop(final int trackIndex) {
         if (DEBUG) Log.v(TAG, "stop:mStatedCount=" + mStatedCount);
         mStatedCount--;
+        final MuxerWriter writer = mWriter;
+        if (writer != null) {
+            writer.endOfTrack(trackIndex);
+        }
         if ((mEncoderCount > 0) && (mStatedCount <= 0)) {
-            mMediaMuxer.stop();
-            mMediaMuxer.release();
+            if (writer != null) {
+                // writer thread stops and releases muxer after writing all queued samples
+                mWriter = null;
+                writer.finish();
+            } else {
+                mMediaMuxer.stop();
+                mMediaMuxer.release();
+            }
+            for (final LiveSink live : mLiveSinks) {
+                try {
+                    live.sink.stop();
+                    live.sink.release();
+                } catch (final Exception e) {
+                    Log.w(TAG, "failed stopping sink", e);
+                }
+            }
             mIsStarted = false;
             if (DEBUG) Log.v(TAG, "MediaMuxer stopped:");
         }
@@ -149,24 +680,90 @@ public class MediaMuxerWrapper {
     synchronized int addTrack(final MediaFormat format) {
         if (mIsStarted)
             throw new IllegalStateException("muxer already started");
-        // 添加媒体通道，传入MediaFormat对象，通常从MediaExtractor或者MediaCodec中获取
         final int trackIx = mMediaMuxer.addTrack(format);
+        for (final LiveSink live : mLiveSinks) {
+            live.tracks[trackIx] = live.sink.addTrack(format);
+        }
         if (DEBUG)
             Log.i(TAG, "addTrack:trackNum=" + mEncoderCount + ",trackIx=" + trackIx + ",format=" + format);
         return trackIx;
     }
 
     /**
-     * write encoded data to muxer
+     * write encoded data to muxer,
+     * the data is copied and queued to the writer thread, so this never waits for storage
      *
      * @param trackIndex
      * @param byteBuf
      * @param bufferInfo
      */
-    /*package*/
-    synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
-        if (mStatedCount > 0)
-            mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+    /*package*/ void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+        final MuxerWriter writer = mWriter;
+        if (writer != null) {
+            final long presentationTimeUs = bufferInfo.presentationTimeUs;
+            if (presentationTimeUs < mSessionStartUs) {
+                // captured before this session(e.g. audio buffered in AudioRecord),
+                // drop it like MediaVideoEncoder#frameAvailableSoon instead of clamping its time to 0
+                writer.skip(trackIndex);
+                return;
+            }
+            // rebase capture time to the session start, encoders keep it monotonic
+            bufferInfo.presentationTimeUs = presentationTimeUs - mSessionStartUs;
+            try {
+                writer.write(trackIndex, byteBuf, bufferInfo);
+                // list of sinks is not changed after starting
+                for (int i = 0; i < mLiveSinks.size(); i++) {
+                    final LiveSink live = mLiveSinks.get(i);
+                    try {
+                        live.sink.writeSampleData(live.tracks[trackIndex], byteBuf, bufferInfo);
+                    } catch (final Exception e) {
+                        Log.w(TAG, "failed writing to sink", e);
+                    }
+                }
+            } finally {
+                bufferInfo.presentationTimeUs = presentationTimeUs;
+            }
+            final MediaEncoder video = mVideoEncoder;
+            if ((video instanceof MediaVideoEncoder) && (trackIndex == video.mTrackIndex)) {
+                updateBitrate(writer, (MediaVideoEncoder) video);
+            }
+        }
+    }
+
+    private void updateBitrate(final MuxerWriter writer, final MediaVideoEncoder video) {
+        final BitrateController controller = mBitrateController;
+        if (controller == null) return;
+        final long nowMs = System.nanoTime() / 1000000L;
+        if (nowMs - mLastBitrateUpdateMs < BITRATE_UPDATE_INTERVAL_MS) return;
+        mLastBitrateUpdateMs = nowMs;
+        final BitrateController.Signals signals = mBitrateSignals;
+        signals.reset();
+        // throughput of the storage during last interval, unknown if it was too short to measure
+        final long writtenBytes = writer.getWrittenBytes();
+        final long writeTimeNs = writer.getWriteTimeNs();
+        if (writeTimeNs - mLastWriteTimeNs >= 1000000L) {
+            signals.storageBps = (writtenBytes - mLastWrittenBytes) * 8 * 1000000000L / (writeTimeNs - mLastWriteTimeNs);
+        }
+        mLastWrittenBytes = writtenBytes;
+        mLastWriteTimeNs = writeTimeNs;
+        signals.storageQueueRatio = mBufferPool.getUsedBytes() / (float) mBufferPool.getCapacity();
+        // the slowest live sink decides
+        for (int i = 0; i < mLiveSinks.size(); i++) {
+            final MuxerBackend sink = mLiveSinks.get(i).sink;
+            if (sink instanceof RtmpMuxerBackend) {
+                final SendQueue queue = ((RtmpMuxerBackend) sink).getPublisher().getSendQueue();
+                signals.liveBacklogMs = Math.max(signals.liveBacklogMs, queue.getBacklogAgeMs());
+                final long bps = queue.getThroughputBps();
+                if ((bps > 0) && ((signals.liveBps < 0) || (bps < signals.liveBps))) {
+                    signals.liveBps = bps;
+                }
+            }
+        }
+        final int bitrate = controller.update(nowMs, signals);
+        final int target = bitrate > 0 ? bitrate : controller.getBitrate();
+        if (target != video.getBitrate()) {
+            video.setBitrate(target);
+        }
     }
 
 //**********************************************************************
@@ -182,11 +779,7 @@ public class MediaMuxerWrapper {
      * @return return null when this app has no writing permission to external storage.
      */
     public File getCaptureFile(Context context, final String type, final String ext) {
-        // final File dir = new File(Environment.getExternalStoragePublicDirectory(type), DIR_NAME);
-        // Environment.getExternalStoragePublicDirectory 在 Android 29 以上废弃
-        // Android 29 以上使用 Context#getExternalFilesDir(String)
-        final File dir = new File(context.getExternalFilesDir(type), DIR_NAME);
-        // /storage/emulated/0/Android/data/com.serenegiant.audiovideosample/files/Movies/AVRecSample
+        final File dir = getCaptureDir(context, type);
         Log.d(TAG, "path=" + dir);
         dir.mkdirs();
         if (dir.canWrite()) {
@@ -195,6 +788,66 @@ public class MediaMuxerWrapper {
         return null;
     }
 
+    /**
+     * get directory of output files, e.g. to serve recordings by HttpFileServer
+     *
+     * @param context context
+     * @param type Environment.DIRECTORY_MOVIES / Environment.DIRECTORY_DCIM etc.
+     */
+    public static File getCaptureDir(final Context context, final String type) {
+        // final File dir = new File(Environment.getExternalStoragePublicDirectory(type), DIR_NAME);
+        // Environment.getExternalStoragePublicDirectory 在 Android 29 以上废弃
+        // Android 29 以上使用 Context#getExternalFilesDir(String)
+        // /storage/emulated/0/Android/data/com.serenegiant.audiovideosample/files/Movies/AVRecSample
+        return new File(context.getExternalFilesDir(type), DIR_NAME);
+    }
+
+    /**
+     * segmented muxer and HLS request key frame to video encoder before switching to next segment,
+     * writer and network sink request it after dropping video frames on congestion
+     */
+    private final Runnable mSyncFrameRequest = new Runnable() {
+        @Override
+        public void run() {
+            final MediaEncoder encoder = mVideoEncoder;
+            if (encoder != null) {
+                encoder.requestSyncFrame();
+            }
+        }
+    };
+
+    private void setupSyncFrameRequest(final MuxerBackend muxer) {
+        if (muxer instanceof SegmentedMuxerBackend) {
+            ((SegmentedMuxerBackend) muxer).setSyncFrameRequest(mSyncFrameRequest);
+        } else if (muxer instanceof PreRecordMuxerBackend) {
+            ((PreRecordMuxerBackend) muxer).setSyncFrameRequest(mSyncFrameRequest);
+        } else if (muxer instanceof HlsMuxerBackend) {
+            ((HlsMuxerBackend) muxer).setSyncFrameRequest(mSyncFrameRequest);
+        } else if (muxer instanceof RtmpMuxerBackend) {
+            ((RtmpMuxerBackend) muxer).getPublisher().setSyncFrameRequest(mSyncFrameRequest);
+        }
+    }
+
+    private static String getSegmentPath(final String basePath, final int segmentIndex, final String ext) {
+        return String.format(Locale.US, "%s_%03d%s", basePath, segmentIndex, ext);
+    }
+
+    private String removeSegmentPath(final int segmentIndex) {
+        synchronized (mSegmentPaths) {
+            return mSegmentPaths.remove(segmentIndex);
+        }
+    }
+
+    private static MuxerBackend createMuxer(final String outputPath, final int muxerType) throws IOException {
+        if (muxerType == MUXER_FRAGMENTED_MP4) {
+            return new FragmentedMp4MuxerBackend(outputPath);
+        } else if (muxerType == MUXER_HLS) {
+            return new HlsMuxerBackend(outputPath);
+        } else {
+            return new AndroidMuxerBackend(outputPath);
+        }
+    }
+
     /**
      * get current date and time as String
      *
@@ -4,7 +4,6 @@ import java.io.IOException;
 
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.opengl.EGLContext;
 import android.util.Log;
@@ -21,25 +20,38 @@ public class MediaVideoEncoder extends MediaEncoder {
     private static final boolean DEBUG = BuildConfig.DEBUG;
     private static final String TAG = MediaVideoEncoder.class.getSimpleName();
 
-    // MediaFormat.MIMETYPE_VIDEO_AVC（H.264）
-    // MediaFormat.MIMETYPE_VIDEO_HEVC（H.265）
-    private static final String MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
-    // parameters for recording
-    // 帧率
-    private static final int FRAME_RATE = 25;
-    private static final float BPP = 0.25f;
-
+    /**
+     * parameters for recording, e.g. codec, bitrate and 帧率
+     */
+    private final RecordingProfile mProfile;
     private final int mWidth;
     private final int mHeight;
-    private RenderHandler mRenderHandler;
+    /**
+     * current target bitrate of the encoder
+     */
+    private volatile int mBitrate;
+    /**
+     * render thread that draws camera frames into the input Surface, this is created on #setEglContext
+     * so that encoder without EGL context(e.g. FakeCodecBackend on JVM) does not start it
+     */
+    private volatile RenderHandler mRenderHandler;
+    /**
+     * set on #release while holding mSync, render thread is not created after this
+     */
+    private boolean mReleased;
     private Surface mSurface;
 
     public MediaVideoEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener, final int width, final int height) {
-        super(muxer, listener);
+        this(muxer, listener, width, height, false);
+    }
+
+    public MediaVideoEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener,
+                             final int width, final int height, final boolean asyncDrain) {
+        super(muxer, listener, asyncDrain);
         if (DEBUG) Log.i(TAG, "MediaVideoEncoder: ");
+        mProfile = muxer.getRecordingProfile();
         mWidth = width;
         mHeight = height;
-        mRenderHandler = RenderHandler.createHandler(TAG);
     }
 
 /*
@@ -52,15 +64,31 @@ public class MediaVideoEncoder extends MediaEncoder {
 */
 
     public void frameAvailableSoon(final float[] tex_matrix, final float[] mvp_matrix) {
-        if (super.frameAvailableSoon())
-            mRenderHandler.draw(tex_matrix, mvp_matrix);
+        final RenderHandler handler = mRenderHandler;
+        if (super.frameAvailableSoon() && (handler != null))
+            handler.draw(tex_matrix, mvp_matrix);
+    }
+
+    /**
+     * request drawing the frame with its capture time
+     *
+     * @param timestampNs capture time of the frame from SurfaceTexture#getTimestamp
+     */
+    public void frameAvailableSoon(final float[] tex_matrix, final float[] mvp_matrix, final long timestampNs) {
+        final MediaMuxerWrapper muxer = mWeakMuxer.get();
+        // skip frames that were captured before starting this session
+        if ((muxer == null) || (timestampNs / 1000L < muxer.getSessionStartUs())) return;
+        final RenderHandler handler = mRenderHandler;
+        if (super.frameAvailableSoon() && (handler != null))
+            handler.draw(tex_matrix, mvp_matrix, timestampNs);
     }
 
     @Override
     public boolean frameAvailableSoon() {
         boolean result = super.frameAvailableSoon();
-        if (result)
-            mRenderHandler.draw(null);
+        final RenderHandler handler = mRenderHandler;
+        if (result && (handler != null))
+            handler.draw(null);
         return result;
     }
 
@@ -70,30 +98,24 @@ public class MediaVideoEncoder extends MediaEncoder {
         mTrackIndex = -1;
         mMuxerStarted = mIsEOS = false;
 
-        final MediaCodecInfo videoCodecInfo = selectVideoCodec();
-        if (videoCodecInfo == null) {
-            Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
+        // MediaFormat.MIMETYPE_VIDEO_AVC（H.264）
+        // MediaFormat.MIMETYPE_VIDEO_HEVC（H.265）
+        final String mimeType = mProfile.videoMimeType;
+        final MediaFormat format = createFormat(mProfile, mWidth, mHeight);
+        mBitrate = calcBitRate();
+        if (DEBUG) Log.i(TAG, "format: " + format);
+
+        // the encoder should support the profile, size and bitrate, not only the MIME type
+        mMediaCodec = createEncoder(format);
+        if (mMediaCodec == null) {
+            Log.e(TAG, "Unable to find an appropriate codec for " + mimeType);
             return;
         }
-        if (DEBUG) Log.i(TAG, "selected codec: " + videoCodecInfo.getName());
-
-        final MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
-        // 指定编码器颜色格式
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);    // API >= 18
-        // 指定比特率
-        // 比特率：简单来说，码率就是指单位时间内传送的数据量，一般以秒为单位，如：128 kbps，
-        // 表示每秒通过网络传送的数据量为 128k bit.
-        // 码率：与比特率是一个概念，从技术的角度来讲，比特率显得更专业一些。码率越大，体积越大。
-        format.setInteger(MediaFormat.KEY_BIT_RATE, calcBitRate());
-        // 指定帧率
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-        // 指定关键帧时间间隔，一般设置为每秒关键帧
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 10);
-        if (DEBUG) Log.i(TAG, "format: " + format);
+        if (DEBUG) Log.i(TAG, "selected codec: " + mMediaCodec.getName());
 
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+        setupAsyncDrain();
         // MediaCodec.CONFIGURE_FLAG_ENCODE 表示编码
-        mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mMediaCodec.configure(format, MediaCodec.CONFIGURE_FLAG_ENCODE);
         // get Surface for encoder input
         // this method only can call between #configure and #start
         // 获取输入Surface
@@ -109,88 +131,112 @@ public class MediaVideoEncoder extends MediaEncoder {
         }
     }
 
+    /**
+     * create format of video encoder, this is also used by EncoderPool to configure encoder in advance
+     */
+    /*package*/ static MediaFormat createFormat(final RecordingProfile profile, final int width, final int height) {
+        // same as MediaFormat#createVideoFormat but this also works with mockable android.jar on JVM
+        final MediaFormat format = new MediaFormat();
+        format.setString(MediaFormat.KEY_MIME, profile.videoMimeType);
+        format.setInteger(MediaFormat.KEY_WIDTH, width);
+        format.setInteger(MediaFormat.KEY_HEIGHT, height);
+        // 指定编码器颜色格式
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);    // API >= 18
+        profile.applyVideoFormat(format, width, height);
+        return format;
+    }
+
+    public int getBitrate() {
+        return mBitrate;
+    }
+
+    /**
+     * change bitrate while recording, e.g. by BitrateController
+     *
+     * @param bitrate [bits/sec]
+     */
+    public void setBitrate(final int bitrate) {
+        final CodecBackend codec = mMediaCodec;
+        if ((codec != null) && mIsCapturing) {
+            try {
+                codec.setVideoBitrate(bitrate);
+                mBitrate = bitrate;
+                if (DEBUG) Log.v(TAG, "setBitrate:" + bitrate);
+            } catch (final Exception e) {
+                Log.w(TAG, "setBitrate:", e);
+            }
+        }
+    }
+
     public void setEglContext(final EGLContext shared_context, final int tex_id) {
-        mRenderHandler.setEglContext(shared_context, tex_id, mSurface, true);
+        final RenderHandler handler;
+        synchronized (mSync) {
+            if (mReleased) return;
+            if (mRenderHandler == null) {
+                // render thread and its EGL surface are reused when the muxer has EncoderPool
+                final EncoderPool pool = getEncoderPool();
+                mRenderHandler = pool != null ? pool.obtainRenderHandler(TAG) : RenderHandler.createHandler(TAG);
+            }
+            handler = mRenderHandler;
+        }
+        handler.setEglContext(shared_context, tex_id, mSurface, true);
     }
 
     @Override
     protected void release() {
         if (DEBUG) Log.i(TAG, "release:");
+        final EncoderPool pool = getEncoderPool();
         if (mSurface != null) {
-            mSurface.release();
+            // input Surface of pooled encoder is kept for next recording
+            if (!(mMediaCodec instanceof EncoderPool.PooledCodec)) {
+                mSurface.release();
+            }
             mSurface = null;
         }
-        if (mRenderHandler != null) {
-            mRenderHandler.release();
+        final RenderHandler handler;
+        synchronized (mSync) {
+            mReleased = true;
+            handler = mRenderHandler;
             mRenderHandler = null;
         }
+        if (handler != null) {
+            if (pool != null) {
+                pool.recycleRenderHandler(handler);
+            } else {
+                handler.release();
+            }
+        }
         super.release();
     }
 
+    private EncoderPool getEncoderPool() {
+        final MediaMuxerWrapper muxer = mWeakMuxer.get();
+        return muxer != null ? muxer.getEncoderPool() : null;
+    }
+
     private int calcBitRate() {
-        final int bitrate = (int) (BPP * FRAME_RATE * mWidth * mHeight);
+        final int bitrate = mProfile.getVideoBitrate(mWidth, mHeight);
         Log.i(TAG, String.format("bitrate=%5.2f[Mbps]", bitrate / 1024f / 1024f));
         return bitrate;
     }
 
     /**
-     * select the first codec that match a specific MIME type
+     * select the first codec that supports the format(MIME type, color format we can use, profile,
+     * size, frame rate and bitrate), this looks up CodecIndex instead of scanning MediaCodecList.
+     * RecordingProfile#validate selects the codec in the same way.
      *
+     * @param format format that #createFormat created
      * @return null if no codec matched
      */
-    protected static MediaCodecInfo selectVideoCodec() {
+    protected static CodecIndex.Codec selectVideoCodec(final MediaFormat format) {
         if (DEBUG) Log.v(TAG, "selectVideoCodec:");
-        // get the list of available codecs
-        // 获取可用编解码器列表
-        // 过时：final int numCodecs = MediaCodecList.getCodecCount();
-        MediaCodecList mediaCodecList = new MediaCodecList(MediaCodecList.ALL_CODECS);
-        MediaCodecInfo[] codecInfoList = mediaCodecList.getCodecInfos();
-        for (MediaCodecInfo codecInfo : codecInfoList) {
-            if (!codecInfo.isEncoder()) {    // skipp decoder
-                continue;
-            }
-            // select first codec that match a specific MIME type and color format
-            final String[] types = codecInfo.getSupportedTypes();
-            for (String type : types) {
-                if (type.equalsIgnoreCase(MIME_TYPE)) {
-                    if (DEBUG) Log.i(TAG, "codec:" + codecInfo.getName() + ",MIME=" + type);
-                    final int format = selectColorFormat(codecInfo);
-                    if (format > 0) {
-                        return codecInfo;
-                    }
-                }
-            }
+        final CodecIndex.Codec codec = CodecIndex.get().findEncoder(format);
+        if (codec != null) {
+            if (DEBUG) Log.i(TAG, "codec:" + codec.name + ",format=" + format);
+        } else {
+            Log.e(TAG, "couldn't find a codec for " + format);
         }
-        return null;
-    }
-
-    /**
-     * select color format available on specific codec and we can use.
-     *
-     * @return 0 if no colorFormat is matched
-     */
-    protected static int selectColorFormat(final MediaCodecInfo codecInfo) {
-        if (DEBUG) Log.i(TAG, "selectColorFormat: ");
-        int result = 0;
-        final MediaCodecInfo.CodecCapabilities caps;
-        try {
-            Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-            // 查询机器上的MediaCodec实现具体支持哪些YUV格式作为输入格式
-            caps = codecInfo.getCapabilitiesForType(MIME_TYPE);
-        } finally {
-            Thread.currentThread().setPriority(Thread.NORM_PRIORITY);
-        }
-        int colorFormat;
-        for (int i = 0; i < caps.colorFormats.length; i++) {
-            colorFormat = caps.colorFormats[i];
-            if (isRecognizedVideoFormat(colorFormat)) {
-                result = colorFormat;
-                break;
-            }
-        }
-        if (result == 0)
-            Log.e(TAG, "couldn't find a good color format for " + codecInfo.getName() + " / " + MIME_TYPE);
-        return result;
+        return codec;
     }
 
     /**
@@ -207,17 +253,6 @@ public class MediaVideoEncoder extends MediaEncoder {
         };
     }
 
-    private static boolean isRecognizedVideoFormat(final int colorFormat) {
-        if (DEBUG) Log.i(TAG, "isRecognizedVideoFormat:colorFormat=" + colorFormat);
-        final int n = recognizedFormats != null ? recognizedFormats.length : 0;
-        for (int i = 0; i < n; i++) {
-            if (recognizedFormats[i] == colorFormat) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     @Override
     protected void signalEndOfInputStream() {
         if (DEBUG) Log.d(TAG, "sending EOS to encoder");
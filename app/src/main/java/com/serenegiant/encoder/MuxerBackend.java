@@ -0,0 +1,26 @@
+package com.serenegiant.encoder;
+
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+/**
+ * Narrow interface of the muxer that MediaMuxerWrapper writes to,
+ * methods have the same meaning as android.media.MediaMuxer.
+ */
+public interface MuxerBackend {
+
+    /**
+     * @return track index
+     */
+    int addTrack(MediaFormat format);
+
+    void start();
+
+    void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo);
+
+    void stop();
+
+    void release();
+}
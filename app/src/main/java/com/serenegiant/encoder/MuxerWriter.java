@@ -0,0 +1,373 @@
+package com.serenegiant.encoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import com.serenegiant.audiovideosample.BuildConfig;
+
+/**
+ * Writer thread of MuxerBackend
+ * 复用器写入线程
+ * <p>
+ * Encoders copy each encoded sample into a block of SlabPool and return immediately,
+ * so slow storage never stalls the drain loop of encoders. Queues are array based
+ * and samples are recycled, so writing allocates nothing on Java heap on steady state.
+ * If the pool or the queue is full, the sample is dropped instead of blocking the encoder.
+ * Following video frames refer to the dropped one, so the rest of its GOP is also dropped
+ * and a sync frame is requested to the encoder, audio samples are dropped one by one.
+ * The writer interleaves tracks by presentationTimeUs: the sample with the smallest time
+ * is written when every running track has a queued sample, or when the other tracks lag
+ * behind more than the interleave window.
+ */
+/*package*/ class MuxerWriter implements Runnable {
+    private static final boolean DEBUG = BuildConfig.DEBUG;
+    private static final String TAG = MuxerWriter.class.getSimpleName();
+
+    /**
+     * default interleave window, samples are never held longer than this on presentation time
+     */
+    public static final long DEFAULT_INTERLEAVE_WINDOW_US = 500000L;
+    /**
+     * maximum number of samples queued to the writer thread
+     */
+    private static final int MAX_QUEUED_SAMPLES = 1024;
+
+    /**
+     * encoded sample copied from codec output buffer
+     */
+    /*package*/ static final class Sample {
+        int trackIndex;
+        SlabPool.Block block;
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        /**
+         * true if this is not a sample but end of track marker
+         */
+        boolean endOfTrack;
+    }
+
+    private final MuxerBackend mMuxer;
+    private final SlabPool mBufferPool;
+    private final int mTrackCount;
+    private final long mInterleaveWindowUs;
+    private final ArrayBlockingQueue<Sample> mQueue = new ArrayBlockingQueue<Sample>(MAX_QUEUED_SAMPLES);
+    private final ArrayBlockingQueue<Sample> mPool = new ArrayBlockingQueue<Sample>(MAX_QUEUED_SAMPLES);
+    private final ArrayDeque<Sample>[] mPending;
+    private final boolean[] mEnded;
+    private volatile boolean mRequestFinish;
+    private volatile boolean mFailed;
+    private final AtomicInteger mDropCount = new AtomicInteger();
+    private final int mVideoTrackIndex;
+    private final Runnable mSyncFrameRequest;
+    /**
+     * video frame was dropped, drop following video frames until next key frame,
+     * only accessed by the thread that writes video track
+     */
+    private boolean mWaitSync;
+    /**
+     * bytes passed to the muxer and time spent in it, only written by the writer thread
+     */
+    private volatile long mWrittenBytes, mWriteTimeNs;
+    private long mMaxPTSUs = Long.MIN_VALUE;
+    private Thread mThread;
+
+    /**
+     * Constructor
+     *
+     * @param muxer              already started muxer, this writer stops and releases it when finished
+     * @param bufferPool         pool of buffers to copy encoded data
+     * @param trackCount         number of tracks added to the muxer
+     * @param interleaveWindowUs maximum difference of presentation time to wait for other tracks
+     */
+    public MuxerWriter(final MuxerBackend muxer, final SlabPool bufferPool,
+                       final int trackCount, final long interleaveWindowUs) {
+        this(muxer, bufferPool, trackCount, interleaveWindowUs, -1, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param muxer              already started muxer, this writer stops and releases it when finished
+     * @param bufferPool         pool of buffers to copy encoded data
+     * @param trackCount         number of tracks added to the muxer
+     * @param interleaveWindowUs maximum difference of presentation time to wait for other tracks
+     * @param videoTrackIndex    index of video track, -1 if there is no video track
+     * @param syncFrameRequest   request key frame to video encoder after dropping video frames, nullable
+     */
+    public MuxerWriter(final MuxerBackend muxer, final SlabPool bufferPool,
+                       final int trackCount, final long interleaveWindowUs,
+                       final int videoTrackIndex, final Runnable syncFrameRequest) {
+        mMuxer = muxer;
+        mBufferPool = bufferPool;
+        mTrackCount = trackCount;
+        mInterleaveWindowUs = interleaveWindowUs;
+        mVideoTrackIndex = videoTrackIndex;
+        mSyncFrameRequest = syncFrameRequest;
+        // generic array can not be created directly
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final ArrayDeque<Sample>[] pending = new ArrayDeque[trackCount];
+        mPending = pending;
+        mEnded = new boolean[trackCount];
+        for (int i = 0; i < trackCount; i++) {
+            mPending[i] = new ArrayDeque<Sample>();
+        }
+    }
+
+    public synchronized void start() {
+        if (mThread == null) {
+            mThread = new Thread(this, TAG);
+            mThread.start();
+        }
+    }
+
+    /**
+     * copy encoded data and queue it, this never waits for writing to storage
+     * position and limit of byteBuf are not changed
+     * this can be called from multiple encoder threads
+     */
+    public void write(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+        if (mRequestFinish || mFailed) return;
+        if ((trackIndex < 0) || (trackIndex >= mTrackCount))
+            throw new IllegalArgumentException("invalid track index:" + trackIndex);
+        final boolean isVideo = (trackIndex == mVideoTrackIndex);
+        if (isVideo && mWaitSync) {
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+                // this frame can not be decoded because the frame it refers to was dropped
+                mDropCount.incrementAndGet();
+                return;
+            }
+            mWaitSync = false;
+        }
+        final SlabPool.Block block = mBufferPool.acquire(bufferInfo.size);
+        if (block == null) {
+            // memory cap is reached because storage is too slow, drop instead of blocking encoder
+            drop(isVideo);
+            return;
+        }
+        final Sample sample = obtain();
+        sample.trackIndex = trackIndex;
+        sample.block = block;
+        final ByteBuffer buf = block.buffer();
+        // read through a duplicate, the caller passes the same buffer to live sinks after this
+        final ByteBuffer src = byteBuf.duplicate();
+        src.limit(bufferInfo.offset + bufferInfo.size);
+        src.position(bufferInfo.offset);
+        buf.put(src);
+        buf.flip();
+        // set fields directly, BufferInfo#set is not available on mockable android.jar
+        sample.info.offset = 0;
+        sample.info.size = bufferInfo.size;
+        sample.info.presentationTimeUs = bufferInfo.presentationTimeUs;
+        sample.info.flags = bufferInfo.flags;
+        if (!mQueue.offer(sample)) {
+            recycle(sample);
+            drop(isVideo);
+        }
+    }
+
+    /**
+     * @return number of samples dropped because pool or queue was full,
+     * this includes video frames dropped until next key frame
+     */
+    public int getDropCount() {
+        return mDropCount.get();
+    }
+
+    /**
+     * @return number of samples waiting for the writer thread
+     */
+    public int getQueuedCount() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return total bytes written to the muxer
+     */
+    public long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    /**
+     * @return total time spent in MuxerBackend#writeSampleData, written bytes per this time
+     * is throughput of the storage
+     */
+    public long getWriteTimeNs() {
+        return mWriteTimeNs;
+    }
+
+    /**
+     * notify the sample is not written on purpose(e.g. it was captured before the session started),
+     * this is not counted as drop, but following video frames are dropped until next key frame
+     * because they may refer to the skipped one
+     */
+    public void skip(final int trackIndex) {
+        if ((trackIndex == mVideoTrackIndex) && !mWaitSync) {
+            mWaitSync = true;
+            final Runnable request = mSyncFrameRequest;
+            if (request != null) {
+                request.run();
+            }
+        }
+    }
+
+    private void drop(final boolean isVideo) {
+        mDropCount.incrementAndGet();
+        if (DEBUG) Log.w(TAG, "drop sample:" + mBufferPool);
+        if (isVideo) {
+            // drop rest of this GOP and restart from new key frame instead of writing broken frames
+            mWaitSync = true;
+            final Runnable request = mSyncFrameRequest;
+            if (request != null) {
+                request.run();
+            }
+        }
+    }
+
+    /**
+     * notify the track will not write any more samples, other tracks do not wait it anymore
+     */
+    public void endOfTrack(final int trackIndex) {
+        if ((trackIndex < 0) || (trackIndex >= mTrackCount)) return;
+        final Sample sample = obtain();
+        sample.trackIndex = trackIndex;
+        sample.endOfTrack = true;
+        putMarker(sample);
+    }
+
+    /**
+     * write all queued samples and then stop and release the muxer on the writer thread
+     */
+    public void finish() {
+        if (mRequestFinish) return;
+        mRequestFinish = true;
+        // samples queued before this marker are still written
+        final Sample sample = obtain();
+        sample.trackIndex = -1;
+        sample.endOfTrack = true;
+        putMarker(sample);
+    }
+
+    /**
+     * markers should not be dropped, so wait for free space of the queue
+     */
+    private void putMarker(final Sample marker) {
+        try {
+            mQueue.put(marker);
+        } catch (final InterruptedException e) {
+            Log.w(TAG, "interrupted while queueing marker", e);
+        }
+    }
+
+    @Override
+    public void run() {
+        if (DEBUG) Log.v(TAG, "writer thread started:");
+        try {
+            for (; ; ) {
+                final Sample sample;
+                try {
+                    sample = mQueue.take();
+                } catch (final InterruptedException e) {
+                    break;
+                }
+                if (sample.trackIndex < 0) {
+                    // finish marker
+                    break;
+                }
+                enqueuePending(sample);
+                writePending(false);
+            }
+            writePending(true);
+        } finally {
+            try {
+                mMuxer.stop();
+                mMuxer.release();
+            } catch (final Exception e) {
+                Log.e(TAG, "failed stopping muxer", e);
+            }
+            for (int i = 0; i < mTrackCount; i++) {
+                for (final Sample sample : mPending[i]) {
+                    recycle(sample);
+                }
+                mPending[i].clear();
+            }
+            Sample sample;
+            while ((sample = mQueue.poll()) != null) {
+                recycle(sample);
+            }
+            if (DEBUG) Log.v(TAG, "writer thread finished:drop=" + mDropCount.get() + "," + mBufferPool);
+        }
+    }
+
+    private Sample obtain() {
+        Sample sample = mPool.poll();
+        if (sample == null) {
+            sample = new Sample();
+        }
+        sample.endOfTrack = false;
+        return sample;
+    }
+
+    private void recycle(final Sample sample) {
+        if (sample.block != null) {
+            sample.block.release();
+            sample.block = null;
+        }
+        mPool.offer(sample);
+    }
+
+    private void enqueuePending(final Sample sample) {
+        if (sample.endOfTrack) {
+            mEnded[sample.trackIndex] = true;
+            recycle(sample);
+        } else {
+            mPending[sample.trackIndex].addLast(sample);
+            if (sample.info.presentationTimeUs > mMaxPTSUs) {
+                mMaxPTSUs = sample.info.presentationTimeUs;
+            }
+        }
+    }
+
+    /**
+     * write queued samples in order of presentation time as far as possible
+     *
+     * @param flush true if all queued samples should be written regardless of window
+     */
+    private void writePending(final boolean flush) {
+        for (; ; ) {
+            Sample head = null;
+            boolean waitOthers = false;
+            for (int i = 0; i < mTrackCount; i++) {
+                final Sample sample = mPending[i].peekFirst();
+                if (sample == null) {
+                    waitOthers |= !mEnded[i];
+                } else if ((head == null)
+                    || (sample.info.presentationTimeUs < head.info.presentationTimeUs)) {
+                    head = sample;
+                }
+            }
+            if (head == null) return;
+            if (waitOthers && !flush
+                && (mMaxPTSUs - head.info.presentationTimeUs < mInterleaveWindowUs)) {
+                // other track may have earlier samples that are not arrived yet
+                return;
+            }
+            mPending[head.trackIndex].pollFirst();
+            if (!mFailed) {
+                try {
+                    final long start = System.nanoTime();
+                    mMuxer.writeSampleData(head.trackIndex, head.block.buffer(), head.info);
+                    mWriteTimeNs += System.nanoTime() - start;
+                    mWrittenBytes += head.info.size;
+                } catch (final Exception e) {
+                    Log.e(TAG, "failed writing sample, drop following samples", e);
+                    mFailed = true;
+                }
+            }
+            recycle(head);
+        }
+    }
+}
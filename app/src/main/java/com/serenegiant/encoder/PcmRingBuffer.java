@@ -0,0 +1,187 @@
+package com.serenegiant.encoder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single-producer/single-consumer ring buffer of preallocated PCM chunks
+ * 单生产者/单消费者的 PCM 环形缓冲区，所有块在构造时预先分配
+ * <p>
+ * The producer (audio capture thread) never blocks: if the ring is full the chunk is
+ * dropped and counted as overrun. The consumer (codec feeder thread) waits for data
+ * with a timeout, and the timeout expiring without data is counted as underrun, so the
+ * consumer should pass a timeout longer than the interval of chunks.
+ */
+public class PcmRingBuffer {
+
+    private final ByteBuffer[] mChunks;
+    private final int[] mLengths;
+    private final long[] mPTSUs;
+    private final int mMask;
+    /**
+     * total number of committed chunks, only written by producer
+     */
+    private final AtomicLong mWritePos = new AtomicLong();
+    /**
+     * total number of released chunks, only written by consumer
+     */
+    private final AtomicLong mReadPos = new AtomicLong();
+    private final AtomicLong mOverrunCount = new AtomicLong();
+    private final AtomicLong mUnderrunCount = new AtomicLong();
+    private volatile Thread mConsumer;
+
+    /**
+     * Constructor
+     *
+     * @param chunkSize capacity of each chunk in bytes
+     * @param depth     number of chunks, rounded up to power of 2
+     */
+    public PcmRingBuffer(final int chunkSize, final int depth) {
+        if ((chunkSize <= 0) || (depth <= 0))
+            throw new IllegalArgumentException("chunkSize and depth should be positive");
+        final int n = depth <= 1 ? 1 : Integer.highestOneBit(depth - 1) << 1;
+        mMask = n - 1;
+        mChunks = new ByteBuffer[n];
+        mLengths = new int[n];
+        mPTSUs = new long[n];
+        for (int i = 0; i < n; i++) {
+            // AudioRecord#read(ByteBuffer, int) only accepts direct buffer
+            mChunks[i] = ByteBuffer.allocateDirect(chunkSize).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    public int getDepth() {
+        return mChunks.length;
+    }
+
+    public int getChunkSize() {
+        return mChunks[0].capacity();
+    }
+
+    /**
+     * @return number of chunks that are committed but not yet released
+     */
+    public int size() {
+        return (int) (mWritePos.get() - mReadPos.get());
+    }
+
+    public long getOverrunCount() {
+        return mOverrunCount.get();
+    }
+
+    public long getUnderrunCount() {
+        return mUnderrunCount.get();
+    }
+
+//********************************************************************************
+// producer side
+
+    /**
+     * get the next free chunk, never blocks
+     *
+     * @return cleared chunk to write into, null if the ring is full (counted as overrun)
+     */
+    public ByteBuffer obtainWriteBuffer() {
+        final long pos = mWritePos.get();
+        if (pos - mReadPos.get() > mMask) {
+            mOverrunCount.incrementAndGet();
+            return null;
+        }
+        final ByteBuffer buf = mChunks[(int) pos & mMask];
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * publish the chunk that was obtained by #obtainWriteBuffer
+     *
+     * @param length number of valid bytes from the head of chunk
+     * @param ptsUs  presentation time of the first sample in this chunk
+     */
+    public void commitWrite(final int length, final long ptsUs) {
+        final long pos = mWritePos.get();
+        final int ix = (int) pos & mMask;
+        mLengths[ix] = length;
+        mPTSUs[ix] = ptsUs;
+        // full volatile store: the consumer publishes mConsumer and then rechecks mWritePos,
+        // so this store must not be reordered with the following load of mConsumer(StoreLoad),
+        // otherwise both sides can miss each other and the consumer sleeps until timeout
+        mWritePos.set(pos + 1);
+        final Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+//********************************************************************************
+// consumer side
+
+    /**
+     * wait for the next committed chunk
+     *
+     * @param timeoutUs maximum time to wait, expiring this is counted as underrun(starvation)
+     *                  if this is positive, 0 only checks whether a chunk is available
+     * @return chunk whose position is 0 and limit is the committed length,
+     * null if no data was available until timeout
+     */
+    public ByteBuffer peekReadBuffer(final long timeoutUs) {
+        final long pos = mReadPos.get();
+        if (mWritePos.get() == pos) {
+            if (timeoutUs <= 0) return null;
+            boolean interrupted = false;
+            mConsumer = Thread.currentThread();
+            try {
+                final long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(timeoutUs);
+                long remaining;
+                while ((mWritePos.get() == pos)
+                    && ((remaining = deadline - System.nanoTime()) > 0)) {
+                    LockSupport.parkNanos(this, remaining);
+                    if (Thread.interrupted()) {
+                        Thread.currentThread().interrupt();
+                        interrupted = true;
+                        break;
+                    }
+                }
+            } finally {
+                mConsumer = null;
+            }
+            if (mWritePos.get() == pos) {
+                if (!interrupted) {
+                    // producer did not commit anything within the timeout
+                    mUnderrunCount.incrementAndGet();
+                }
+                return null;
+            }
+        }
+        final int ix = (int) pos & mMask;
+        // producer never touches this chunk until #releaseRead, so no need to duplicate
+        final ByteBuffer buf = mChunks[ix];
+        buf.position(0);
+        buf.limit(mLengths[ix]);
+        return buf;
+    }
+
+    /**
+     * @return presentation time of the chunk returned by last #peekReadBuffer
+     */
+    public long getReadPTSUs() {
+        return mPTSUs[(int) mReadPos.get() & mMask];
+    }
+
+    /**
+     * return the chunk returned by last #peekReadBuffer to the producer
+     */
+    public void releaseRead() {
+        mReadPos.lazySet(mReadPos.get() + 1);
+    }
+
+    /**
+     * drop all committed chunks, should be called from consumer thread
+     */
+    public void clear() {
+        mReadPos.set(mWritePos.get());
+    }
+}
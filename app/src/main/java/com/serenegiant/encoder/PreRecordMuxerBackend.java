@@ -0,0 +1,323 @@
+package com.serenegiant.encoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.serenegiant.audiovideosample.BuildConfig;
+
+/**
+ * MuxerBackend that keeps the last N seconds of encoded samples in memory until triggered
+ * 预录制：触发前只在内存中保留最近 N 秒的编码数据
+ * <p>
+ * Before #trigger, samples are copied into blocks of own SlabPool and nothing is written
+ * to storage. The ring always begins with a video key frame and whole GOPs are trimmed
+ * from its head while the rest still covers the pre-record duration, or when the pool is full.
+ * On the first sample after #trigger, the output muxer is created with the cached track formats,
+ * the ring is flushed into it and the following samples are written directly without gap.
+ * Presentation time of the output starts at 0.
+ * When the ring has to start over without a key frame(nothing was buffered at #trigger,
+ * or a GOP did not fit into memory), a sync frame is requested so that live samples follow
+ * without waiting for the next key frame of the encoder.
+ * All MuxerBackend methods should be called from the same thread(e.g. MuxerWriter).
+ */
+public class PreRecordMuxerBackend implements MuxerBackend {
+    private static final boolean DEBUG = BuildConfig.DEBUG;
+    private static final String TAG = PreRecordMuxerBackend.class.getSimpleName();
+
+    /**
+     * default size limit of memory for pre-recorded samples
+     */
+    public static final long DEFAULT_CAPACITY = 16L * 1024 * 1024;
+
+    private static final class Entry {
+        int trackIndex;
+        SlabPool.Block block;
+        long presentationTimeUs;
+        int flags;
+        int size;
+    }
+
+    private final SegmentedMuxerBackend.SegmentFactory mFactory;
+    private final long mPreRecordUs;
+    private final SlabPool mPool;
+    private final ArrayList<MediaFormat> mFormats = new ArrayList<MediaFormat>();
+    private int mVideoTrack = -1;
+    /**
+     * buffered samples in order of writing, this begins with a key frame
+     */
+    private final ArrayDeque<Entry> mRing = new ArrayDeque<Entry>();
+    /**
+     * key frames in mRing
+     */
+    private final ArrayDeque<Entry> mKeyFrames = new ArrayDeque<Entry>();
+    private final ArrayDeque<Entry> mFreeEntries = new ArrayDeque<Entry>();
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private volatile boolean mTriggered;
+    private volatile Runnable mSyncFrameRequest;
+    /**
+     * sync frame was requested and not arrived yet
+     */
+    private boolean mSyncRequested;
+    private MuxerBackend mOutput;
+    private int[] mOutputTracks;
+    private long mStartPTSUs;
+    private int mDropCount;
+
+    /**
+     * Constructor
+     *
+     * @param factory     factory of output muxer, this is called once with index 0 after #trigger
+     * @param preRecordUs duration of samples kept before trigger
+     * @param capacity    size limit of memory for kept samples in bytes
+     */
+    public PreRecordMuxerBackend(final SegmentedMuxerBackend.SegmentFactory factory,
+                                 final long preRecordUs, final long capacity) {
+        if (factory == null) throw new NullPointerException("factory is null");
+        mFactory = factory;
+        mPreRecordUs = preRecordUs;
+        mPool = new SlabPool(capacity, (int) Math.min(SlabPool.DEFAULT_MAX_BLOCK_SIZE, capacity));
+    }
+
+    /**
+     * set task to request sync frame to video encoder,
+     * this is called when the ring is empty at trigger or started over after overflow
+     */
+    public void setSyncFrameRequest(final Runnable request) {
+        mSyncFrameRequest = request;
+    }
+
+    /**
+     * @return number of samples dropped because they did not fit into memory or came before the output
+     */
+    public int getDropCount() {
+        return mDropCount;
+    }
+
+    /**
+     * start writing to output with pre-recorded samples, this can be called from any thread
+     *
+     * @return false if already triggered
+     */
+    public boolean trigger() {
+        if (mTriggered) return false;
+        mTriggered = true;
+        return true;
+    }
+
+    public boolean isTriggered() {
+        return mTriggered;
+    }
+
+    @Override
+    public int addTrack(final MediaFormat format) {
+        final String mime = format.getString(MediaFormat.KEY_MIME);
+        if ((mime != null) && mime.startsWith("video/")) {
+            mVideoTrack = mFormats.size();
+        }
+        mFormats.add(format);
+        return mFormats.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        // output is created on trigger
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) return;
+        if ((trackIndex == mVideoTrack) && ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0)) {
+            mSyncRequested = false;
+        }
+        if (mOutput == null) {
+            if (!mTriggered) {
+                buffer(trackIndex, byteBuf, bufferInfo);
+                return;
+            }
+            if (!startOutput(trackIndex, bufferInfo)) return;
+        }
+        if (bufferInfo.presentationTimeUs < mStartPTSUs) {
+            mDropCount++;
+            return;
+        }
+        writeOutput(trackIndex, byteBuf, bufferInfo.offset, bufferInfo.size,
+            bufferInfo.presentationTimeUs, bufferInfo.flags);
+    }
+
+    @Override
+    public void stop() {
+        if (mOutput != null) {
+            mOutput.stop();
+        }
+        if (DEBUG) Log.v(TAG, "stop:triggered=" + mTriggered + ",drop=" + mDropCount + "," + mPool);
+    }
+
+    @Override
+    public void release() {
+        clearRing();
+        if (mOutput != null) {
+            mOutput.release();
+            mOutput = null;
+        }
+    }
+
+//********************************************************************************
+
+    private boolean isKeyFrame(final int trackIndex, final int flags) {
+        return (mVideoTrack < 0)
+            || ((trackIndex == mVideoTrack) && ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0));
+    }
+
+    /**
+     * copy sample into the ring
+     */
+    private void buffer(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+        final boolean keyFrame = isKeyFrame(trackIndex, bufferInfo.flags);
+        if (mRing.isEmpty() && !keyFrame) {
+            // the ring should begin with key frame
+            return;
+        }
+        SlabPool.Block block = mPool.acquire(bufferInfo.size);
+        while ((block == null) && trimHead()) {
+            block = mPool.acquire(bufferInfo.size);
+        }
+        if (block == null) {
+            // single GOP does not fit into memory, start over from next key frame
+            mDropCount++;
+            clearRing();
+            if (keyFrame) {
+                block = mPool.acquire(bufferInfo.size);
+            } else {
+                requestSyncFrame();
+            }
+            if (block == null) return;
+        }
+        final ByteBuffer buf = block.buffer();
+        byteBuf.limit(bufferInfo.offset + bufferInfo.size);
+        byteBuf.position(bufferInfo.offset);
+        buf.put(byteBuf);
+        buf.flip();
+        Entry entry = mFreeEntries.pollFirst();
+        if (entry == null) {
+            entry = new Entry();
+        }
+        entry.trackIndex = trackIndex;
+        entry.block = block;
+        entry.presentationTimeUs = bufferInfo.presentationTimeUs;
+        entry.flags = bufferInfo.flags;
+        entry.size = bufferInfo.size;
+        mRing.addLast(entry);
+        if (keyFrame) {
+            mKeyFrames.addLast(entry);
+        }
+        // trim whole GOP while following samples still cover the pre-record duration
+        while (mKeyFrames.size() >= 2) {
+            final Entry head = mKeyFrames.pollFirst();
+            final Entry next = mKeyFrames.peekFirst();
+            mKeyFrames.addFirst(head);
+            if (bufferInfo.presentationTimeUs - next.presentationTimeUs < mPreRecordUs) break;
+            trimHead();
+        }
+    }
+
+    /**
+     * remove samples from the head of the ring up to the next key frame
+     *
+     * @return false if there is no more GOP to remove
+     */
+    private boolean trimHead() {
+        if (mKeyFrames.size() < 2) return false;
+        mKeyFrames.pollFirst();
+        recycle(mRing.pollFirst());
+        final Entry next = mKeyFrames.peekFirst();
+        while (mRing.peekFirst() != next) {
+            recycle(mRing.pollFirst());
+        }
+        return true;
+    }
+
+    private void clearRing() {
+        Entry entry;
+        while ((entry = mRing.pollFirst()) != null) {
+            recycle(entry);
+        }
+        mKeyFrames.clear();
+    }
+
+    /**
+     * request sync frame once until a key frame arrives
+     */
+    private void requestSyncFrame() {
+        final Runnable request = mSyncFrameRequest;
+        if ((mVideoTrack >= 0) && !mSyncRequested && (request != null)) {
+            if (DEBUG) Log.v(TAG, "requestSyncFrame:");
+            mSyncRequested = true;
+            request.run();
+        }
+    }
+
+    private void recycle(final Entry entry) {
+        if (entry.block != null) {
+            entry.block.release();
+            entry.block = null;
+        }
+        mFreeEntries.addLast(entry);
+    }
+
+    /**
+     * create output muxer and flush the ring into it
+     *
+     * @return false if the output is not ready yet(waiting key frame) or failed
+     */
+    private boolean startOutput(final int trackIndex, final MediaCodec.BufferInfo bufferInfo) {
+        final Entry first = mRing.peekFirst();
+        if ((first == null) && !isKeyFrame(trackIndex, bufferInfo.flags)) {
+            // nothing is buffered, wait for key frame
+            mDropCount++;
+            requestSyncFrame();
+            return false;
+        }
+        final MuxerBackend output;
+        final int[] tracks = new int[mFormats.size()];
+        try {
+            output = mFactory.createSegment(0);
+            for (int i = 0; i < tracks.length; i++) {
+                tracks[i] = output.addTrack(mFormats.get(i));
+            }
+            output.start();
+        } catch (final IOException e) {
+            throw new IllegalStateException("failed to create output", e);
+        }
+        mOutput = output;
+        mOutputTracks = tracks;
+        mStartPTSUs = first != null ? first.presentationTimeUs : bufferInfo.presentationTimeUs;
+        if (DEBUG) Log.v(TAG, "startOutput:pre-recorded "
+            + (bufferInfo.presentationTimeUs - mStartPTSUs) + "us," + mPool);
+        Entry entry;
+        while ((entry = mRing.pollFirst()) != null) {
+            if (entry.presentationTimeUs >= mStartPTSUs) {
+                writeOutput(entry.trackIndex, entry.block.buffer(), 0, entry.size,
+                    entry.presentationTimeUs, entry.flags);
+            }
+            recycle(entry);
+        }
+        mKeyFrames.clear();
+        return true;
+    }
+
+    private void writeOutput(final int trackIndex, final ByteBuffer buf, final int offset, final int size,
+                             final long presentationTimeUs, final int flags) {
+        // set fields directly, BufferInfo#set is not available on mockable android.jar
+        mInfo.offset = offset;
+        mInfo.size = size;
+        mInfo.presentationTimeUs = presentationTimeUs - mStartPTSUs;
+        mInfo.flags = flags;
+        mOutput.writeSampleData(mOutputTracks[trackIndex], buf, mInfo);
+    }
+}
@@ -0,0 +1,296 @@
+package com.serenegiant.encoder;
+
+import java.util.List;
+import java.util.Locale;
+
+import android.media.AudioFormat;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+
+/**
+ * Immutable set of encoding parameters that MediaMuxerWrapper passes to video/audio encoders
+ * 不可变的录制参数，由 MediaMuxerWrapper 传递给视频/音频编码器
+ * <p>
+ * Create with Builder, default values are same as previous fixed constants
+ * (AVC, 1280x720, 25fps, 0.25 bits per pixel, 10 seconds GOP, AAC 44.1kHz mono 64kbps).
+ * Builder#build only checks values themselves, #validate selects encoders on the device(CodecIndex)
+ * that support them so that each deployment can pick own throughput/quality point.
+ * HEVC can only be used with MediaMuxerWrapper#MUXER_MP4(also segmented and pre-record)
+ * because other muxers write AVC only.
+ */
+public final class RecordingProfile {
+
+    /**
+     * bitrate mode: let the encoder decide
+     */
+    public static final int BITRATE_MODE_DEFAULT = -1;
+    public static final int BITRATE_MODE_CQ = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ;
+    public static final int BITRATE_MODE_VBR = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+    public static final int BITRATE_MODE_CBR = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR;
+
+    public static final RecordingProfile DEFAULT = new Builder().build();
+
+    /**
+     * MediaFormat.MIMETYPE_VIDEO_AVC or MediaFormat.MIMETYPE_VIDEO_HEVC
+     */
+    public final String videoMimeType;
+    /**
+     * MediaCodecInfo.CodecProfileLevel values, 0 to let the encoder decide
+     */
+    public final int videoProfile, videoLevel;
+    public final int bitrateMode;
+    /**
+     * video bitrate [bits/sec], 0 to calculate from bits per pixel
+     */
+    public final int videoBitrate;
+    public final float bitsPerPixel;
+    /**
+     * requested capture size, actual size of the encoder is size of camera preview that is closest to this
+     */
+    public final int width, height;
+    public final int frameRate;
+    /**
+     * interval of key frames [sec]
+     */
+    public final int iFrameInterval;
+    public final int audioSampleRate;
+    public final int audioChannelCount;
+    public final int audioBitrate;
+
+    private RecordingProfile(final Builder builder) {
+        videoMimeType = builder.videoMimeType;
+        videoProfile = builder.videoProfile;
+        videoLevel = builder.videoLevel;
+        bitrateMode = builder.bitrateMode;
+        videoBitrate = builder.videoBitrate;
+        bitsPerPixel = builder.bitsPerPixel;
+        width = builder.width;
+        height = builder.height;
+        frameRate = builder.frameRate;
+        iFrameInterval = builder.iFrameInterval;
+        audioSampleRate = builder.audioSampleRate;
+        audioChannelCount = builder.audioChannelCount;
+        audioBitrate = builder.audioBitrate;
+    }
+
+    /**
+     * @return video bitrate for the actual size of the encoder [bits/sec]
+     */
+    public int getVideoBitrate(final int width, final int height) {
+        return videoBitrate > 0 ? videoBitrate : (int) (bitsPerPixel * frameRate * width * height);
+    }
+
+    /**
+     * @return AudioFormat.CHANNEL_IN_MONO or AudioFormat.CHANNEL_IN_STEREO
+     */
+    public int getAudioChannelMask() {
+        return audioChannelCount == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+    }
+
+    /**
+     * set video parameters of this profile except mime type and size into the format
+     */
+    public void applyVideoFormat(final MediaFormat format, final int width, final int height) {
+        format.setInteger(MediaFormat.KEY_BIT_RATE, getVideoBitrate(width, height));
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iFrameInterval);
+        if (bitrateMode != BITRATE_MODE_DEFAULT) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, bitrateMode);
+        }
+        if (videoProfile > 0) {
+            format.setInteger(MediaFormat.KEY_PROFILE, videoProfile);
+            if ((videoLevel > 0) && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)) {
+                format.setInteger(MediaFormat.KEY_LEVEL, videoLevel);    // API >= 23
+            }
+        }
+    }
+
+    /**
+     * select encoders on this device(CodecIndex) for this profile,
+     * encoders select the same ones from the formats of this profile when recording starts
+     * unless the actual video size is different
+     *
+     * @return encoders that support this profile
+     * @throws IllegalArgumentException if no encoder supports this profile, message tells the reason
+     */
+    public Encoders validate() {
+        final CodecIndex index = CodecIndex.get();
+        return new Encoders(
+            select(index.getEncoders(videoMimeType), MediaVideoEncoder.createFormat(this, width, height)),
+            select(index.getEncoders(MediaFormat.MIMETYPE_AUDIO_AAC), MediaAudioEncoder.createFormat(this)));
+    }
+
+    /**
+     * same as CodecIndex#findEncoder(MediaFormat) but this tells the reason when no encoder is found
+     *
+     * @throws IllegalArgumentException if no encoder supports the format
+     */
+    private static CodecIndex.Codec select(final List<CodecIndex.Codec> encoders, final MediaFormat format) {
+        String error = "no encoder for " + format.getString(MediaFormat.KEY_MIME);
+        for (final CodecIndex.Codec codec : encoders) {
+            error = codec.checkFormat(format);
+            if (error == null) return codec;
+        }
+        throw new IllegalArgumentException(error);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+            "RecordingProfile(%s,profile=%d,level=%d,mode=%d,bitrate=%d,bpp=%.2f,%dx%d@%dfps,gop=%ds,audio=%dHz/%dch/%dbps)",
+            videoMimeType, videoProfile, videoLevel, bitrateMode, videoBitrate, bitsPerPixel,
+            width, height, frameRate, iFrameInterval, audioSampleRate, audioChannelCount, audioBitrate);
+    }
+
+    /**
+     * encoders that #validate selected
+     */
+    public static final class Encoders {
+        public final CodecIndex.Codec video;
+        public final CodecIndex.Codec audio;
+
+        private Encoders(final CodecIndex.Codec video, final CodecIndex.Codec audio) {
+            this.video = video;
+            this.audio = audio;
+        }
+
+        @Override
+        public String toString() {
+            return "Encoders(video=" + video.name + ",audio=" + audio.name + ")";
+        }
+    }
+
+    /**
+     * Builder of RecordingProfile
+     */
+    public static final class Builder {
+        private String videoMimeType = MediaFormat.MIMETYPE_VIDEO_AVC;
+        private int videoProfile, videoLevel;
+        private int bitrateMode = BITRATE_MODE_DEFAULT;
+        private int videoBitrate;
+        private float bitsPerPixel = 0.25f;
+        private int width = 1280, height = 720;
+        private int frameRate = 25;
+        private int iFrameInterval = 10;
+        // 44.1[KHz] is only setting guaranteed to be available on all devices.
+        private int audioSampleRate = 44100;
+        private int audioChannelCount = 1;
+        private int audioBitrate = 64000;
+
+        public Builder() {
+        }
+
+        /**
+         * copy all values from the profile
+         */
+        public Builder(final RecordingProfile profile) {
+            videoMimeType = profile.videoMimeType;
+            videoProfile = profile.videoProfile;
+            videoLevel = profile.videoLevel;
+            bitrateMode = profile.bitrateMode;
+            videoBitrate = profile.videoBitrate;
+            bitsPerPixel = profile.bitsPerPixel;
+            width = profile.width;
+            height = profile.height;
+            frameRate = profile.frameRate;
+            iFrameInterval = profile.iFrameInterval;
+            audioSampleRate = profile.audioSampleRate;
+            audioChannelCount = profile.audioChannelCount;
+            audioBitrate = profile.audioBitrate;
+        }
+
+        /**
+         * @param mimeType MediaFormat.MIMETYPE_VIDEO_AVC or MediaFormat.MIMETYPE_VIDEO_HEVC
+         */
+        public Builder setVideoCodec(final String mimeType) {
+            videoMimeType = mimeType;
+            return this;
+        }
+
+        /**
+         * @param profile MediaCodecInfo.CodecProfileLevel value, 0 for encoder default
+         * @param level   MediaCodecInfo.CodecProfileLevel value, 0 for encoder default, only used on API >= 23
+         */
+        public Builder setVideoProfileLevel(final int profile, final int level) {
+            videoProfile = profile;
+            videoLevel = level;
+            return this;
+        }
+
+        /**
+         * @param mode BITRATE_MODE_DEFAULT, BITRATE_MODE_CQ, BITRATE_MODE_VBR or BITRATE_MODE_CBR
+         */
+        public Builder setBitrateMode(final int mode) {
+            bitrateMode = mode;
+            return this;
+        }
+
+        /**
+         * @param bitrate [bits/sec], 0 to calculate from bits per pixel
+         */
+        public Builder setVideoBitrate(final int bitrate) {
+            videoBitrate = bitrate;
+            return this;
+        }
+
+        public Builder setBitsPerPixel(final float bpp) {
+            bitsPerPixel = bpp;
+            return this;
+        }
+
+        public Builder setVideoSize(final int width, final int height) {
+            this.width = width;
+            this.height = height;
+            return this;
+        }
+
+        public Builder setFrameRate(final int frameRate) {
+            this.frameRate = frameRate;
+            return this;
+        }
+
+        /**
+         * @param seconds interval of key frames
+         */
+        public Builder setIFrameInterval(final int seconds) {
+            iFrameInterval = seconds;
+            return this;
+        }
+
+        /**
+         * @param sampleRate   [Hz]
+         * @param channelCount 1 or 2
+         * @param bitrate      [bits/sec]
+         */
+        public Builder setAudio(final int sampleRate, final int channelCount, final int bitrate) {
+            audioSampleRate = sampleRate;
+            audioChannelCount = channelCount;
+            audioBitrate = bitrate;
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException if a value is invalid
+         */
+        public RecordingProfile build() {
+            if (!MediaFormat.MIMETYPE_VIDEO_AVC.equals(videoMimeType)
+                && !MediaFormat.MIMETYPE_VIDEO_HEVC.equals(videoMimeType))
+                throw new IllegalArgumentException("unsupported video codec:" + videoMimeType);
+            if ((bitrateMode < BITRATE_MODE_DEFAULT) || (bitrateMode > BITRATE_MODE_CBR))
+                throw new IllegalArgumentException("invalid bitrate mode:" + bitrateMode);
+            if ((videoProfile < 0) || (videoLevel < 0))
+                throw new IllegalArgumentException("invalid profile/level");
+            if ((videoBitrate < 0) || ((videoBitrate == 0) && (bitsPerPixel <= 0)))
+                throw new IllegalArgumentException("invalid video bitrate");
+            if ((width <= 0) || (height <= 0) || ((width & 1) != 0) || ((height & 1) != 0))
+                throw new IllegalArgumentException("invalid video size:" + width + "x" + height);
+            if ((frameRate <= 0) || (iFrameInterval < 0))
+                throw new IllegalArgumentException("invalid frame rate/GOP");
+            if ((audioSampleRate <= 0) || (audioBitrate <= 0)
+                || ((audioChannelCount != 1) && (audioChannelCount != 2)))
+                throw new IllegalArgumentException("invalid audio parameters");
+            return new RecordingProfile(this);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.serenegiant.encoder;
+
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.serenegiant.audiovideosample.BuildConfig;
+import com.serenegiant.net.RtmpPublisher;
+
+/**
+ * MuxerBackend that publishes encoded samples to RTMP server using RtmpPublisher,
+ * #writeSampleData never blocks, so this can be added to MediaMuxerWrapper as a live sink
+ * together with local recording. Video encoder should not produce B-frames(see RtmpPublisher).
+ */
+public class RtmpMuxerBackend implements MuxerBackend {
+    private static final boolean DEBUG = BuildConfig.DEBUG;
+    private static final String TAG = RtmpMuxerBackend.class.getSimpleName();
+
+    private final RtmpPublisher mPublisher;
+
+    /**
+     * Constructor
+     *
+     * @param url      rtmp://host[:port]/app/stream
+     * @param listener can be null
+     */
+    public RtmpMuxerBackend(final String url, final RtmpPublisher.Listener listener) {
+        mPublisher = new RtmpPublisher(url, listener);
+    }
+
+    public RtmpPublisher getPublisher() {
+        return mPublisher;
+    }
+
+    @Override
+    public int addTrack(final MediaFormat format) {
+        final String mime = format.getString(MediaFormat.KEY_MIME);
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            // RtmpPublisher sends composition time 0, MediaFormat.KEY_MAX_B_FRAMES is API >= 29
+            if (format.containsKey("max-bframes") && (format.getInteger("max-bframes") > 0))
+                throw new IllegalArgumentException("B-frames are not supported on RTMP:" + format);
+            return mPublisher.addVideoTrack(
+                format.getInteger(MediaFormat.KEY_WIDTH),
+                format.getInteger(MediaFormat.KEY_HEIGHT),
+                FragmentedMp4MuxerBackend.getCodecSpecificData(format, "csd-0"),
+                FragmentedMp4MuxerBackend.getCodecSpecificData(format, "csd-1"));
+        } else if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            return mPublisher.addAudioTrack(
+                format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                FragmentedMp4MuxerBackend.getCodecSpecificData(format, "csd-0"));
+        }
+        throw new IllegalArgumentException("unsupported format:" + format);
+    }
+
+    @Override
+    public void start() {
+        mPublisher.start();
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) return;
+        byteBuf.limit(bufferInfo.offset + bufferInfo.size);
+        byteBuf.position(bufferInfo.offset);
+        mPublisher.writeSample(trackIndex, byteBuf, bufferInfo.presentationTimeUs,
+            (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+    }
+
+    @Override
+    public void stop() {
+        if (DEBUG) Log.v(TAG, "stop:drop=" + mPublisher.getDropCount() + ",sent=" + mPublisher.getSentBytes());
+        mPublisher.stop();
+    }
+
+    @Override
+    public void release() {
+        mPublisher.stop();
+    }
+}
@@ -0,0 +1,419 @@
+package com.serenegiant.encoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.serenegiant.audiovideosample.BuildConfig;
+
+/**
+ * MuxerBackend that splits recording into segments by duration or byte size
+ * 按时长或字节数分段录制的复用器
+ * <p>
+ * The next segment is prepared on a preparing thread with the cached track formats(so csd of
+ * encoders is reused) as soon as the current one starts, so it is usually ready when the current
+ * segment reaches its limit. Then a sync frame is requested and the sink switches on the next
+ * video key frame, the writer thread never waits for the preparation: if the next segment is
+ * not ready yet, samples are kept written to the current segment until a later key frame.
+ * Samples of other tracks that are interleaved after the key frame but have earlier presentation
+ * time still go to the old segment, so its finalization is deferred until every track passed
+ * the boundary(or LATE_WINDOW_US elapsed). The old segment is then finalized on a finishing
+ * thread, which is separated from the preparing thread because finalization of a large file
+ * can take long. Presentation time of each segment starts at 0. Encoders keep running while switching.
+ * If the next segment can not be prepared, recording continues on the current segment and
+ * preparation is retried after a backoff that doubles up to MAX_BACKOFF_US.
+ * All MuxerBackend methods should be called from the same thread(e.g. MuxerWriter).
+ */
+public class SegmentedMuxerBackend implements MuxerBackend {
+    private static final boolean DEBUG = BuildConfig.DEBUG;
+    private static final String TAG = SegmentedMuxerBackend.class.getSimpleName();
+
+    /**
+     * previous segment accepts late samples for this duration after the boundary at most,
+     * this is longer than the interleave window of MuxerWriter
+     */
+    private static final long LATE_WINDOW_US = 1000000L;
+    private static final long MIN_BACKOFF_US = 1000000L;
+    private static final long MAX_BACKOFF_US = 32000000L;
+
+    /**
+     * create muxer of each segment, this is called on the preparing thread except the first segment
+     */
+    public interface SegmentFactory {
+        MuxerBackend createSegment(int segmentIndex) throws IOException;
+    }
+
+    /**
+     * callbacks on the finishing thread(or the thread calling #stop for the last segment)
+     */
+    public interface SegmentListener {
+        /**
+         * segment was finalized
+         */
+        void onSegmentFinished(int segmentIndex, long durationUs, long bytes);
+
+        /**
+         * segment was prepared but not used because recording stopped, its output can be deleted
+         */
+        void onSegmentDiscarded(int segmentIndex);
+    }
+
+    private static final class Segment {
+        final int index;
+        final MuxerBackend muxer;
+        final int[] tracks;
+        boolean started;
+        long startPTSUs = -1;
+        long lastPTSUs;
+        long bytes;
+
+        Segment(final int index, final MuxerBackend muxer, final int trackCount) {
+            this.index = index;
+            this.muxer = muxer;
+            this.tracks = new int[trackCount];
+        }
+    }
+
+    private final SegmentFactory mFactory;
+    private final SegmentListener mListener;
+    private final long mMaxDurationUs;
+    private final long mMaxBytes;
+    private final ArrayList<MediaFormat> mFormats = new ArrayList<MediaFormat>();
+    private int mVideoTrack = -1;
+    private final ExecutorService mPreparer = Executors.newSingleThreadExecutor();
+    private final ExecutorService mFinisher = Executors.newSingleThreadExecutor();
+    private volatile Runnable mSyncFrameRequest;
+    private Segment mCurrent;
+    /**
+     * previous segment that is kept open for late samples, or null
+     */
+    private Segment mPrevious;
+    /**
+     * whether each track wrote a sample at or after the start of current segment
+     */
+    private boolean[] mPastBoundary;
+    /**
+     * next segment being prepared, null after the preparation failed
+     */
+    private Future<Segment> mNext;
+    /**
+     * current segment reached its limit and sync frame was requested
+     */
+    private boolean mRolloverRequested;
+    private long mBackoffUs;
+    /**
+     * presentation time to retry preparation of next segment after failure
+     */
+    private long mRetryPTSUs = Long.MAX_VALUE;
+    private volatile int mDropCount;
+
+    /**
+     * Constructor
+     *
+     * @param factory       factory of muxer for each segment
+     * @param listener      listener of segments, can be null
+     * @param maxDurationUs maximum duration of a segment, 0 for unlimited
+     * @param maxBytes      maximum size of samples in a segment, 0 for unlimited
+     */
+    public SegmentedMuxerBackend(final SegmentFactory factory, final SegmentListener listener,
+                                 final long maxDurationUs, final long maxBytes) {
+        if (factory == null) throw new NullPointerException("factory is null");
+        mFactory = factory;
+        mListener = listener;
+        mMaxDurationUs = maxDurationUs;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * set task to request sync frame to video encoder, this is called when rollover is requested
+     */
+    public void setSyncFrameRequest(final Runnable request) {
+        mSyncFrameRequest = request;
+    }
+
+    /**
+     * @return number of samples dropped because they came after the segment they belong to was finalized
+     */
+    public int getDropCount() {
+        return mDropCount;
+    }
+
+    @Override
+    public int addTrack(final MediaFormat format) {
+        if (mCurrent != null) throw new IllegalStateException("already started");
+        final String mime = format.getString(MediaFormat.KEY_MIME);
+        if ((mime != null) && mime.startsWith("video/")) {
+            mVideoTrack = mFormats.size();
+        }
+        mFormats.add(format);
+        return mFormats.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        try {
+            mCurrent = createSegment(0);
+        } catch (final IOException e) {
+            throw new IllegalStateException("failed to create segment", e);
+        }
+        mCurrent.muxer.start();
+        mCurrent.started = true;
+        mPastBoundary = new boolean[mFormats.size()];
+        prepareNext(1);
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+        final long presentationTimeUs = bufferInfo.presentationTimeUs;
+        Segment segment = mCurrent;
+        if ((mNext == null) && (presentationTimeUs >= mRetryPTSUs)) {
+            prepareNext(segment.index + 1);
+        }
+        if (!mRolloverRequested && (mNext != null) && (segment.startPTSUs >= 0)
+            && (((mMaxDurationUs > 0) && (presentationTimeUs - segment.startPTSUs >= mMaxDurationUs))
+                || ((mMaxBytes > 0) && (segment.bytes >= mMaxBytes)))) {
+            requestRollover();
+        }
+        if (mRolloverRequested && isBoundary(trackIndex, bufferInfo)) {
+            segment = switchSegment(presentationTimeUs);
+        }
+        if (segment.startPTSUs < 0) {
+            segment.startPTSUs = presentationTimeUs;
+        }
+        if (presentationTimeUs < segment.startPTSUs) {
+            // this belongs to previous segment but came after the boundary
+            final Segment previous = mPrevious;
+            if ((previous != null) && (presentationTimeUs >= previous.startPTSUs)) {
+                write(previous, trackIndex, byteBuf, bufferInfo);
+            } else {
+                mDropCount++;
+                Log.w(TAG, "writeSampleData:drop late sample,count=" + mDropCount);
+            }
+            return;
+        }
+        write(segment, trackIndex, byteBuf, bufferInfo);
+        if (mPrevious != null) {
+            mPastBoundary[trackIndex] = true;
+            if (allPastBoundary() || (presentationTimeUs - segment.startPTSUs >= LATE_WINDOW_US)) {
+                finishPrevious();
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        final Segment current = mCurrent;
+        mCurrent = null;
+        final Segment previous = mPrevious;
+        mPrevious = null;
+        if (previous != null) {
+            finish(previous);
+        }
+        if (mNext != null) {
+            final Future<Segment> next = mNext;
+            mNext = null;
+            mFinisher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // wait for the preparation on the finishing thread and discard it
+                    final Segment segment = getSegment(next);
+                    if (segment != null) {
+                        finish(segment);
+                    }
+                }
+            });
+        }
+        if (current != null) {
+            // finalize last segment on this thread so that it is complete when stop returns
+            finish(current);
+        }
+        mPreparer.shutdown();
+        mFinisher.shutdown();
+        try {
+            mPreparer.awaitTermination(10, TimeUnit.SECONDS);
+            mFinisher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Log.w(TAG, "stop:interrupted while finalizing segments", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        mPreparer.shutdownNow();
+        mFinisher.shutdownNow();
+    }
+
+//********************************************************************************
+
+    private boolean isBoundary(final int trackIndex, final MediaCodec.BufferInfo bufferInfo) {
+        if (mVideoTrack < 0) {
+            // audio only, every sample can start segment
+            return true;
+        }
+        return (trackIndex == mVideoTrack)
+            && ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+    }
+
+    private static void write(final Segment segment, final int trackIndex,
+                              final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+        final long presentationTimeUs = bufferInfo.presentationTimeUs;
+        // rebase to the start of segment
+        bufferInfo.presentationTimeUs = presentationTimeUs - segment.startPTSUs;
+        try {
+            segment.muxer.writeSampleData(segment.tracks[trackIndex], byteBuf, bufferInfo);
+        } finally {
+            bufferInfo.presentationTimeUs = presentationTimeUs;
+        }
+        if (presentationTimeUs > segment.lastPTSUs) {
+            segment.lastPTSUs = presentationTimeUs;
+        }
+        segment.bytes += bufferInfo.size;
+    }
+
+    private boolean allPastBoundary() {
+        for (final boolean past : mPastBoundary) {
+            if (!past) return false;
+        }
+        return true;
+    }
+
+    /**
+     * no more late sample is expected, finalize previous segment on the finishing thread
+     */
+    private void finishPrevious() {
+        finishLater(mPrevious);
+        mPrevious = null;
+    }
+
+    private void finishLater(final Segment segment) {
+        if (DEBUG) Log.v(TAG, "finishLater:" + segment.index);
+        mFinisher.execute(new Runnable() {
+            @Override
+            public void run() {
+                finish(segment);
+            }
+        });
+    }
+
+    /**
+     * start preparing next segment on the preparing thread
+     */
+    private void prepareNext(final int nextIndex) {
+        if (DEBUG) Log.v(TAG, "prepareNext:" + nextIndex);
+        mRetryPTSUs = Long.MAX_VALUE;
+        mNext = mPreparer.submit(new Callable<Segment>() {
+            @Override
+            public Segment call() throws Exception {
+                return createSegment(nextIndex);
+            }
+        });
+    }
+
+    private void requestRollover() {
+        if (DEBUG) Log.v(TAG, "requestRollover:" + mCurrent.index);
+        mRolloverRequested = true;
+        final Runnable request = mSyncFrameRequest;
+        if (request != null) {
+            request.run();
+        }
+    }
+
+    private Segment switchSegment(final long presentationTimeUs) {
+        final Future<Segment> future = mNext;
+        final Segment prev = mCurrent;
+        if (!future.isDone()) {
+            // never wait here, keep writing to current segment and switch on a later key frame
+            if (DEBUG) Log.v(TAG, "switchSegment:next segment is not ready yet");
+            return prev;
+        }
+        mNext = null;
+        mRolloverRequested = false;
+        final Segment next = getSegment(future);
+        if (next == null) {
+            // keep writing to current segment and retry later
+            backoff(presentationTimeUs);
+            return prev;
+        }
+        try {
+            next.muxer.start();
+            next.started = true;
+        } catch (final Exception e) {
+            Log.e(TAG, "failed to start segment " + next.index, e);
+            finishLater(next);
+            backoff(presentationTimeUs);
+            return prev;
+        }
+        mBackoffUs = 0;
+        if (mPrevious != null) {
+            // rollover came before all tracks passed previous boundary
+            finishPrevious();
+        }
+        mCurrent = next;
+        mPrevious = prev;
+        Arrays.fill(mPastBoundary, false);
+        if (DEBUG) Log.v(TAG, "switchSegment:" + prev.index + "->" + next.index);
+        prepareNext(next.index + 1);
+        return next;
+    }
+
+    private void backoff(final long presentationTimeUs) {
+        mBackoffUs = mBackoffUs > 0 ? Math.min(mBackoffUs * 2, MAX_BACKOFF_US) : MIN_BACKOFF_US;
+        mRetryPTSUs = presentationTimeUs + mBackoffUs;
+        Log.w(TAG, "failed to prepare segment, retry after " + mBackoffUs + "us");
+    }
+
+    private Segment createSegment(final int index) throws IOException {
+        final MuxerBackend muxer = mFactory.createSegment(index);
+        final Segment segment = new Segment(index, muxer, mFormats.size());
+        for (int i = 0; i < mFormats.size(); i++) {
+            // reuse output format(including csd) of encoders
+            segment.tracks[i] = muxer.addTrack(mFormats.get(i));
+        }
+        return segment;
+    }
+
+    /**
+     * @param future this blocks unless the future is done
+     */
+    private Segment getSegment(final Future<Segment> future) {
+        try {
+            return future.get();
+        } catch (final Exception e) {
+            Log.e(TAG, "failed to prepare segment", e);
+            return null;
+        }
+    }
+
+    private void finish(final Segment segment) {
+        try {
+            if (segment.started) {
+                segment.muxer.stop();
+            }
+            segment.muxer.release();
+        } catch (final Exception e) {
+            Log.e(TAG, "failed to finish segment " + segment.index, e);
+        }
+        if (mListener != null) {
+            try {
+                if (segment.started) {
+                    mListener.onSegmentFinished(segment.index,
+                        segment.startPTSUs >= 0 ? segment.lastPTSUs - segment.startPTSUs : 0, segment.bytes);
+                } else {
+                    mListener.onSegmentDiscarded(segment.index);
+                }
+            } catch (final Exception e) {
+                Log.w(TAG, "SegmentListener:", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.serenegiant.encoder;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-classed pool of direct memory blocks for encoded payloads
+ * 编码数据用的按大小分级的堆外内存块池
+ * <p>
+ * Blocks are carved from large direct ByteBuffers(slab) in power of 2 size classes
+ * and never freed, so after warming up acquire/release allocate nothing on Java heap.
+ * The total size of slabs is limited by the capacity and #acquire returns null
+ * instead of allocating more memory. Blocks are reference counted so that
+ * one payload can be shared by several sinks(e.g. muxer and network).
+ * This class is thread safe.
+ */
+public class SlabPool {
+
+    /**
+     * size of the smallest size class, AAC frames fit in this
+     */
+    public static final int MIN_BLOCK_SIZE = 1024;
+    public static final int DEFAULT_MAX_BLOCK_SIZE = 2 * 1024 * 1024;
+    public static final long DEFAULT_CAPACITY = 32L * 1024 * 1024;
+    /**
+     * size of a slab, blocks larger than this get own slab
+     */
+    private static final int SLAB_SIZE = 512 * 1024;
+
+    /**
+     * direct memory block of a size class
+     */
+    public static final class Block {
+        private final SizeClass mClass;
+        private final ByteBuffer mBuffer;
+        private final AtomicInteger mRefCount = new AtomicInteger();
+
+        private Block(final SizeClass sizeClass, final ByteBuffer buffer) {
+            mClass = sizeClass;
+            mBuffer = buffer;
+        }
+
+        /**
+         * @return direct buffer of this block, this is cleared when the block is acquired
+         */
+        public ByteBuffer buffer() {
+            return mBuffer;
+        }
+
+        public int capacity() {
+            return mBuffer.capacity();
+        }
+
+        /**
+         * add reference, each retain should be paired with #release
+         */
+        public Block retain() {
+            if (mRefCount.getAndIncrement() <= 0)
+                throw new IllegalStateException("block is already released");
+            return this;
+        }
+
+        /**
+         * remove reference and return the block to the pool when no one refers it
+         */
+        public void release() {
+            final int count = mRefCount.decrementAndGet();
+            if (count == 0) {
+                mClass.recycle(this);
+            } else if (count < 0) {
+                throw new IllegalStateException("block is released twice");
+            }
+        }
+    }
+
+    private final class SizeClass {
+        private final int mBlockSize;
+        private Block[] mFree = new Block[0];
+        private int mFreeCount;
+
+        private SizeClass(final int blockSize) {
+            mBlockSize = blockSize;
+        }
+
+        private synchronized Block obtain() {
+            return mFreeCount > 0 ? mFree[--mFreeCount] : null;
+        }
+
+        private synchronized void recycle(final Block block) {
+            mFree[mFreeCount++] = block;
+            mUsedBytes.addAndGet(-mBlockSize);
+        }
+
+        /**
+         * allocate new slab and carve blocks from it
+         *
+         * @return false if the pool reached its capacity
+         */
+        private synchronized boolean grow() {
+            final int count = Math.max(1, SLAB_SIZE / mBlockSize);
+            final int slabBytes = count * mBlockSize;
+            for (; ; ) {
+                final long reserved = mReservedBytes.get();
+                if (reserved + slabBytes > mCapacity) return false;
+                if (mReservedBytes.compareAndSet(reserved, reserved + slabBytes)) break;
+            }
+            final ByteBuffer slab = ByteBuffer.allocateDirect(slabBytes);
+            // free list should hold all blocks of this class, so grow it here (not in #recycle)
+            final Block[] free = new Block[mFree.length + count];
+            System.arraycopy(mFree, 0, free, 0, mFreeCount);
+            mFree = free;
+            for (int i = 0; i < count; i++) {
+                slab.limit((i + 1) * mBlockSize);
+                slab.position(i * mBlockSize);
+                mFree[mFreeCount++] = new Block(this, slab.slice());
+            }
+            return true;
+        }
+    }
+
+    private final long mCapacity;
+    private final SizeClass[] mClasses;
+    private final AtomicLong mReservedBytes = new AtomicLong();
+    private final AtomicLong mUsedBytes = new AtomicLong();
+    private final AtomicLong mHighWaterBytes = new AtomicLong();
+    private final AtomicLong mAcquireCount = new AtomicLong();
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mFailCount = new AtomicLong();
+
+    public SlabPool() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_BLOCK_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param capacity     hard limit of direct memory for all slabs in bytes
+     * @param maxBlockSize size of the largest block, rounded up to power of 2
+     */
+    public SlabPool(final long capacity, final int maxBlockSize) {
+        if (maxBlockSize > capacity)
+            throw new IllegalArgumentException("capacity should be larger than maxBlockSize");
+        mCapacity = capacity;
+        int n = 1;
+        for (int size = MIN_BLOCK_SIZE; size < maxBlockSize; size <<= 1) {
+            n++;
+        }
+        mClasses = new SizeClass[n];
+        for (int i = 0; i < n; i++) {
+            mClasses[i] = new SizeClass(MIN_BLOCK_SIZE << i);
+        }
+    }
+
+    /**
+     * get a block that can hold specific size of data
+     *
+     * @param size required size in bytes
+     * @return block with reference count 1, its buffer is cleared.
+     * null if size is larger than the largest block or the pool reached its capacity
+     */
+    public Block acquire(final int size) {
+        mAcquireCount.incrementAndGet();
+        final SizeClass sizeClass = sizeClassOf(size);
+        if (sizeClass == null) {
+            mFailCount.incrementAndGet();
+            return null;
+        }
+        Block block = sizeClass.obtain();
+        if (block != null) {
+            mHitCount.incrementAndGet();
+        } else {
+            while (block == null) {
+                if (!sizeClass.grow()) {
+                    mFailCount.incrementAndGet();
+                    return null;
+                }
+                // other thread may take new blocks before this thread
+                block = sizeClass.obtain();
+            }
+        }
+        block.mRefCount.set(1);
+        block.mBuffer.clear();
+        final long used = mUsedBytes.addAndGet(sizeClass.mBlockSize);
+        for (; ; ) {
+            final long high = mHighWaterBytes.get();
+            if ((used <= high) || mHighWaterBytes.compareAndSet(high, used)) break;
+        }
+        return block;
+    }
+
+    private SizeClass sizeClassOf(final int size) {
+        for (final SizeClass sizeClass : mClasses) {
+            if (size <= sizeClass.mBlockSize) return sizeClass;
+        }
+        return null;
+    }
+
+    public long getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return bytes of direct memory allocated for slabs
+     */
+    public long getReservedBytes() {
+        return mReservedBytes.get();
+    }
+
+    /**
+     * @return bytes of blocks currently in use
+     */
+    public long getUsedBytes() {
+        return mUsedBytes.get();
+    }
+
+    /**
+     * @return maximum bytes of blocks that were in use at the same time
+     */
+    public long getHighWaterBytes() {
+        return mHighWaterBytes.get();
+    }
+
+    /**
+     * @return ratio of acquisitions served without allocating new slab
+     */
+    public float getHitRate() {
+        final long count = mAcquireCount.get();
+        return count > 0 ? mHitCount.get() / (float) count : 0.0f;
+    }
+
+    /**
+     * @return number of acquisitions failed because of size or capacity
+     */
+    public long getFailCount() {
+        return mFailCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "SlabPool(hit=%.3f,used=%d,high=%d,reserved=%d/%d,fail=%d)",
+            getHitRate(), getUsedBytes(), getHighWaterBytes(), getReservedBytes(), mCapacity, getFailCount());
+    }
+}
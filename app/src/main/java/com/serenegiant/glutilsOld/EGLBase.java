@@ -6,6 +6,7 @@ import android.opengl.EGL14;
 import android.opengl.EGLConfig;
 import android.opengl.EGLContext;
 import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
 import android.opengl.EGLSurface;
 import android.os.Build;
 import android.util.Log;
@@ -26,6 +27,7 @@ public class EGLBase {
 	private EGLContext mEglContext = EGL14.EGL_NO_CONTEXT;
 	private EGLDisplay mEglDisplay = EGL14.EGL_NO_DISPLAY;
 	private EGLContext mDefaultContext = EGL14.EGL_NO_CONTEXT;
+	private int mClientVersion;
 
 	public static class EglSurface {
 		private final EGLBase mEgl;
@@ -62,6 +64,14 @@ public class EGLBase {
 			mEgl.swap(mEglSurface);
 		}
 
+		/**
+		 * set presentation time of the next swapped frame, this is passed to MediaCodec
+		 * @param presentationTimeNs
+		 */
+		public void setPresentationTime(final long presentationTimeNs) {
+			mEgl.setPresentationTime(mEglSurface, presentationTimeNs);
+		}
+
 		public EGLContext getContext() {
 			return mEgl.getContext();
 		}
@@ -91,7 +101,8 @@ public class EGLBase {
 		if (DEBUG) Log.v(TAG, "release:");
         if (mEglDisplay != EGL14.EGL_NO_DISPLAY) {
 	    	destroyContext();
-	        EGL14.eglTerminate(mEglDisplay);
+	    	// default display is shared with GLSurfaceView and other EGLBase instances in this process,
+	    	// so this does not call eglTerminate that invalidates their contexts/surfaces
 	        EGL14.eglReleaseThread();
         }
         mEglDisplay = EGL14.EGL_NO_DISPLAY;
@@ -116,6 +127,13 @@ public class EGLBase {
 		return mEglContext;
 	}
 
+	/**
+	 * @return OpenGL|ES version of the context, 3 or 2
+	 */
+	public int getClientVersion() {
+		return mClientVersion;
+	}
+
     public int querySurface(final EGLSurface eglSurface, final int what) {
         final int[] value = new int[1];
         EGL14.eglQuerySurface(mEglDisplay, eglSurface, what, value, 0);
@@ -141,16 +159,25 @@ public class EGLBase {
 
 		shared_context = shared_context != null ? shared_context : EGL14.EGL_NO_CONTEXT;
         if (mEglContext == EGL14.EGL_NO_CONTEXT) {
-            mEglConfig = getConfig(with_depth_buffer, isRecordable);
-            if (mEglConfig == null) {
-                throw new RuntimeException("chooseConfig failed");
+        	// OpenGL|ES 3.0 is required for program binaries of ProgramCache, fallback to 2.0
+            mEglConfig = getConfig(3, with_depth_buffer, isRecordable);
+            if (mEglConfig != null) {
+            	mEglContext = createContext(shared_context, 3);
+            }
+            if (mEglContext == EGL14.EGL_NO_CONTEXT) {
+	            mEglConfig = getConfig(2, with_depth_buffer, isRecordable);
+	            if (mEglConfig == null) {
+	                throw new RuntimeException("chooseConfig failed");
+	            }
+	            // create EGL rendering context
+		        mEglContext = createContext(shared_context, 2);
+		        checkEglError("eglCreateContext");
             }
-            // create EGL rendering context
-	        mEglContext = createContext(shared_context);
         }
         // confirm whether the EGL rendering context is successfully created
         final int[] values = new int[1];
         EGL14.eglQueryContext(mEglDisplay, mEglContext, EGL14.EGL_CONTEXT_CLIENT_VERSION, values, 0);
+        mClientVersion = values[0];
         if (DEBUG) Log.d(TAG, "EGLContext created, client version " + values[0]);
         makeDefault();	// makeCurrent(EGL14.EGL_NO_SURFACE);
 	}
@@ -186,6 +213,12 @@ public class EGLBase {
         }
 	}
 
+	private void setPresentationTime(final EGLSurface surface, final long presentationTimeNs) {
+		if (!EGLExt.eglPresentationTimeANDROID(mEglDisplay, surface, presentationTimeNs)) {
+			if (DEBUG) Log.w(TAG, "setPresentationTime:err=" + EGL14.eglGetError());
+		}
+	}
+
 	private int swap(final EGLSurface surface) {
 //		if (DEBUG) Log.v(TAG, "swap:");
         if (!EGL14.eglSwapBuffers(mEglDisplay, surface)) {
@@ -196,15 +229,22 @@ public class EGLBase {
         return EGL14.EGL_SUCCESS;
     }
 
-    private EGLContext createContext(final EGLContext shared_context) {
+    /**
+     * @return EGL14.EGL_NO_CONTEXT if the context of the version is not available
+     */
+    private EGLContext createContext(final EGLContext shared_context, final int clientVersion) {
 //		if (DEBUG) Log.v(TAG, "createContext:");
 
         final int[] attrib_list = {
-        	EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
+        	EGL14.EGL_CONTEXT_CLIENT_VERSION, clientVersion,
         	EGL14.EGL_NONE
         };
         final EGLContext context = EGL14.eglCreateContext(mEglDisplay, mEglConfig, shared_context, attrib_list, 0);
-        checkEglError("eglCreateContext");
+        if ((context == null) || (context == EGL14.EGL_NO_CONTEXT)) {
+        	// the error is checked by caller
+        	if (DEBUG) Log.w(TAG, "createContext:client version " + clientVersion + " is not available");
+        	return EGL14.EGL_NO_CONTEXT;
+        }
         return context;
     }
 
@@ -285,9 +325,9 @@ public class EGLBase {
     }
 
     @SuppressWarnings("unused")
-    private EGLConfig getConfig(final boolean with_depth_buffer, final boolean isRecordable) {
+    private EGLConfig getConfig(final int clientVersion, final boolean with_depth_buffer, final boolean isRecordable) {
         final int[] attribList = {
-                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_RENDERABLE_TYPE, clientVersion >= 3 ? EGLExt.EGL_OPENGL_ES3_BIT_KHR : EGL14.EGL_OPENGL_ES2_BIT,
                 EGL14.EGL_RED_SIZE, 8,
                 EGL14.EGL_GREEN_SIZE, 8,
                 EGL14.EGL_BLUE_SIZE, 8,
@@ -316,7 +356,8 @@ public class EGLBase {
         }
         final EGLConfig[] configs = new EGLConfig[1];
         final int[] numConfigs = new int[1];
-        if (!EGL14.eglChooseConfig(mEglDisplay, attribList, 0, configs, 0, configs.length, numConfigs, 0)) {
+        if (!EGL14.eglChooseConfig(mEglDisplay, attribList, 0, configs, 0, configs.length, numConfigs, 0)
+        	|| (numConfigs[0] <= 0)) {
         	// XXX it will be better to fallback to RGB565
             Log.w(TAG, "unable to find RGBA8888 / " + " EGLConfig");
             return null;
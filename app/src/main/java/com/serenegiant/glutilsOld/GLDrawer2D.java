@@ -3,6 +3,7 @@ package com.serenegiant.glutilsOld;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.Locale;
 
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
@@ -13,6 +14,8 @@ import com.serenegiant.audiovideosample.BuildConfig;
 
 /**
  * Helper class to draw to whole view using specific texture and texture matrix
+ * Vertices are kept in a static vertex buffer object, and GL state set by this drawer(program,
+ * vertex buffer, texture and uniforms) is cached so that each frame only issues calls that change it.
  */
 public class GLDrawer2D {
 	private static final boolean DEBUG = BuildConfig.DEBUG;
@@ -40,9 +43,11 @@ public class GLDrawer2D {
 	private static final float[] VERTICES = { 1.0f, 1.0f, -1.0f, 1.0f, 1.0f, -1.0f, -1.0f, -1.0f };
 	private static final float[] TEXCOORD = { 1.0f, 1.0f, 0.0f, 1.0f, 1.0f, 0.0f, 0.0f, 0.0f };
 
-	private final FloatBuffer pVertex;
-	private final FloatBuffer pTexCoord;
 	private int hProgram;
+	/**
+	 * buffer object of VERTICES and TEXCOORD(in this order)
+	 */
+	private int hVertexBuffer;
     int maPositionLoc;
     int maTextureCoordLoc;
     int muMVPMatrixLoc;
@@ -52,19 +57,40 @@ public class GLDrawer2D {
 	private static final int FLOAT_SZ = Float.SIZE / 8;
 	private static final int VERTEX_NUM = 4;
 	private static final int VERTEX_SZ = VERTEX_NUM * 2;
+	private static final int STATS_INTERVAL = 300;
+
+	/**
+	 * cache of GL state this drawer set in its context, draw skips calls that do not change it
+	 */
+	private boolean mStateValid;
+	private int mBoundTexId = -1;
+	/**
+	 * values of uniforms uploaded into the program, uniforms belong to the program so they are
+	 * kept even if other code changed state of the context
+	 */
+	private final float[] mUploadedMvpMatrix = new float[16];
+	private final float[] mUploadedTexMatrix = new float[16];
+	/**
+	 * number of GL calls in the last #draw and statistics
+	 */
+	private int mCallCount;
+	private long mFrames, mTotalCalls, mSkippedCalls;
+
 	/**
 	 * Constructor
 	 * this should be called in GL context
 	 */
 	public GLDrawer2D() {
-		pVertex = ByteBuffer.allocateDirect(VERTEX_SZ * FLOAT_SZ)
-				.order(ByteOrder.nativeOrder()).asFloatBuffer();
-		pVertex.put(VERTICES);
-		pVertex.flip();
-		pTexCoord = ByteBuffer.allocateDirect(VERTEX_SZ * FLOAT_SZ)
+		final FloatBuffer vertices = ByteBuffer.allocateDirect(VERTEX_SZ * FLOAT_SZ * 2)
 				.order(ByteOrder.nativeOrder()).asFloatBuffer();
-		pTexCoord.put(TEXCOORD);
-		pTexCoord.flip();
+		vertices.put(VERTICES);
+		vertices.put(TEXCOORD);
+		vertices.flip();
+		final int[] buffers = new int[1];
+		GLES20.glGenBuffers(1, buffers, 0);
+		hVertexBuffer = buffers[0];
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, hVertexBuffer);
+		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, VERTEX_SZ * FLOAT_SZ * 2, vertices, GLES20.GL_STATIC_DRAW);
 
 		hProgram = loadShader(vss, fss);
 		GLES20.glUseProgram(hProgram);
@@ -76,10 +102,9 @@ public class GLDrawer2D {
 		Matrix.setIdentityM(mMvpMatrix, 0);
         GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mMvpMatrix, 0);
         GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, mMvpMatrix, 0);
-		GLES20.glVertexAttribPointer(maPositionLoc, 2, GLES20.GL_FLOAT, false, VERTEX_SZ, pVertex);
-		GLES20.glVertexAttribPointer(maTextureCoordLoc, 2, GLES20.GL_FLOAT, false, VERTEX_SZ, pTexCoord);
-		GLES20.glEnableVertexAttribArray(maPositionLoc);
-		GLES20.glEnableVertexAttribArray(maTextureCoordLoc);
+		System.arraycopy(mMvpMatrix, 0, mUploadedMvpMatrix, 0, 16);
+		System.arraycopy(mMvpMatrix, 0, mUploadedTexMatrix, 0, 16);
+		setupState();
 	}
 
 	/**
@@ -89,23 +114,92 @@ public class GLDrawer2D {
 		if (hProgram >= 0)
 			GLES20.glDeleteProgram(hProgram);
 		hProgram = -1;
+		if (hVertexBuffer > 0) {
+			GLES20.glDeleteBuffers(1, new int[] {hVertexBuffer}, 0);
+		}
+		hVertexBuffer = 0;
+		mStateValid = false;
 	}
 
 	/**
 	 * draw specific texture with specific texture matrix
+	 * the program, vertex buffer and texture are left bound for the next frame,
+	 * call #invalidate if other code changed them in this context
 	 * @param tex_id texture ID
 	 * @param tex_matrix texture matrix、if this is null, the last one use(we don't check size of this array and needs at least 16 of float)
 	 */
 	public void draw(final int tex_id, final float[] tex_matrix) {
+		mCallCount = 0;
+		if (!mStateValid) {
+			setupState();
+		}
+		if (tex_matrix != null) {
+			uploadMatrix(muTexMatrixLoc, tex_matrix, mUploadedTexMatrix);
+		}
+		uploadMatrix(muMVPMatrixLoc, mMvpMatrix, mUploadedMvpMatrix);
+		if (mBoundTexId != tex_id) {
+			GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, tex_id);
+			mBoundTexId = tex_id;
+			mCallCount++;
+		} else {
+			mSkippedCalls++;
+		}
+		GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, VERTEX_NUM);
+		mCallCount++;
+		mTotalCalls += mCallCount;
+		if ((++mFrames % STATS_INTERVAL == 0) && DEBUG) Log.v(TAG, "draw:" + this);
+	}
+
+	/**
+	 * forget cached GL state, next #draw binds the program, vertex buffer and texture again
+	 * this should be called after other code used other program/buffer/texture in same context
+	 */
+	public void invalidate() {
+		mStateValid = false;
+	}
+
+	/**
+	 * @return number of GL calls in the last #draw
+	 */
+	public int getCallCount() {
+		return mCallCount;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "GLDrawer2D(frames=%d,calls/frame=%.2f,last=%d,skipped=%d)",
+			mFrames, mFrames > 0 ? (double)mTotalCalls / mFrames : 0.0, mCallCount, mSkippedCalls);
+	}
+
+	/**
+	 * bind program, vertex buffer and texture unit, and set vertex attributes
+	 */
+	private void setupState() {
 		GLES20.glUseProgram(hProgram);
-		if (tex_matrix != null)
-			GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, tex_matrix, 0);
-        GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mMvpMatrix, 0);
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, hVertexBuffer);
+		GLES20.glVertexAttribPointer(maPositionLoc, 2, GLES20.GL_FLOAT, false, VERTEX_SZ, 0);
+		GLES20.glVertexAttribPointer(maTextureCoordLoc, 2, GLES20.GL_FLOAT, false, VERTEX_SZ, VERTEX_SZ * FLOAT_SZ);
+		GLES20.glEnableVertexAttribArray(maPositionLoc);
+		GLES20.glEnableVertexAttribArray(maTextureCoordLoc);
 		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, tex_id);
-		GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, VERTEX_NUM);
-		GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
-        GLES20.glUseProgram(0);
+		mBoundTexId = -1;
+		mStateValid = true;
+		mCallCount += 7;
+	}
+
+	/**
+	 * upload the matrix into the uniform only when it differs from the uploaded one
+	 */
+	private void uploadMatrix(final int location, final float[] matrix, final float[] uploaded) {
+		for (int i = 0; i < 16; i++) {
+			if (matrix[i] != uploaded[i]) {
+				GLES20.glUniformMatrix4fv(location, 1, false, matrix, 0);
+				System.arraycopy(matrix, 0, uploaded, 0, 16);
+				mCallCount++;
+				return;
+			}
+		}
+		mSkippedCalls++;
 	}
 
 	/**
@@ -151,12 +245,24 @@ public class GLDrawer2D {
 
 	/**
 	 * load, compile and link shader
+	 * the program is loaded from ProgramCache without compiling if its binary was saved before
 	 * @param vss source of vertex shader
 	 * @param fss source of fragment shader
 	 * @return
 	 */
 	public static int loadShader(final String vss, final String fss) {
 		if (DEBUG) Log.v(TAG, "loadShader:");
+		final long start = System.nanoTime();
+		int program = ProgramCache.loadProgram(vss, fss);
+		if (program == 0) {
+			program = compileShader(vss, fss);
+			ProgramCache.saveProgram(program, vss, fss);
+		}
+		if (DEBUG) Log.v(TAG, "loadShader:" + (System.nanoTime() - start) / 1000 + "us," + ProgramCache.getStats());
+		return program;
+	}
+
+	private static int compileShader(final String vss, final String fss) {
 		int vs = GLES20.glCreateShader(GLES20.GL_VERTEX_SHADER);
 		GLES20.glShaderSource(vs, vss);
 		GLES20.glCompileShader(vs);
@@ -183,6 +289,7 @@ public class GLDrawer2D {
 		final int program = GLES20.glCreateProgram();
 		GLES20.glAttachShader(program, vs);
 		GLES20.glAttachShader(program, fs);
+		ProgramCache.prepareLink(program);
 		GLES20.glLinkProgram(program);
 
 		return program;
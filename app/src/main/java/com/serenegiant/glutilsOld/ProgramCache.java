@@ -0,0 +1,289 @@
+package com.serenegiant.glutilsOld;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import com.serenegiant.audiovideosample.BuildConfig;
+import com.serenegiant.utils.FileUtils;
+
+/**
+ * Cache of linked shader programs that is persisted as program binaries
+ * 着色器程序二进制缓存，避免每次创建都重新编译
+ * <p>
+ * Compiling and linking shaders takes long time on some drivers, so after a program is linked
+ * first time, its binary(glGetProgramBinary) is saved into the cache directory of the app and kept
+ * in memory. Later programs with same sources are loaded by glProgramBinary without the shader compiler.
+ * Each file is named by hash of the sources and has the driver(vendor, renderer, version and
+ * Build.FINGERPRINT) in its header, and the binary is ignored and rewritten when the driver does not match
+ * or the driver rejects it. Program binaries require OpenGL|ES 3.0 context(EGL_CONTEXT_CLIENT_VERSION >= 3),
+ * so this does nothing on OpenGL|ES 2.0 context even if the driver supports 3.0.
+ * Call #init with Context to enable persistence, otherwise binaries are only kept in memory.
+ * Files are written/deleted on a background thread so that GL thread never waits for storage.
+ * All methods except #init should be called in GL context.
+ */
+public final class ProgramCache {
+	private static final boolean DEBUG = BuildConfig.DEBUG;
+	private static final String TAG = "ProgramCache";
+
+	private static final String DIR_NAME = "gl_programs";
+	private static final int MAGIC = 0x474c5042;	// "GLPB"
+	private static final int VERSION = 1;
+
+	private static final class Binary {
+		final String driver;
+		final int format;
+		final byte[] data;
+
+		Binary(final String driver, final int format, final byte[] data) {
+			this.driver = driver;
+			this.format = format;
+			this.data = data;
+		}
+	}
+
+	private static File sDir;
+	/**
+	 * binaries loaded/saved in this process, key is hash of sources
+	 */
+	private static final Map<String, Binary> sBinaries = new HashMap<String, Binary>();
+	private static int sHit, sMiss;
+	/**
+	 * single thread to write/delete files in the order of requests
+	 */
+	private static Executor sWriter;
+
+	private ProgramCache() {
+	}
+
+	/**
+	 * set the directory to persist program binaries, this should be called before first use
+	 */
+	public static synchronized void init(final Context context) {
+		if (sDir == null) {
+			sDir = new File(context.getApplicationContext().getCacheDir(), DIR_NAME);
+		}
+	}
+
+	/**
+	 * create program from the cached binary
+	 * @param vss source of vertex shader
+	 * @param fss source of fragment shader
+	 * @return linked program, 0 if there is no valid binary for this driver
+	 */
+	public static int loadProgram(final String vss, final String fss) {
+		final String driver = getDriver();
+		if (driver == null) return 0;
+		final String key = hash(vss, fss);
+		final Binary binary = getBinary(key, driver);
+		if (binary == null) {
+			synchronized (ProgramCache.class) {
+				sMiss++;
+			}
+			return 0;
+		}
+		final int program = GLES20.glCreateProgram();
+		final ByteBuffer buf = ByteBuffer.allocateDirect(binary.data.length).order(ByteOrder.nativeOrder());
+		buf.put(binary.data);
+		buf.flip();
+		GLES30.glProgramBinary(program, binary.format, buf, binary.data.length);
+		final int[] linked = new int[1];
+		GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linked, 0);
+		if (linked[0] == 0) {
+			// e.g. the driver was updated without changing its version string
+			Log.w(TAG, "program binary was rejected:" + GLES20.glGetProgramInfoLog(program));
+			GLES20.glDeleteProgram(program);
+			synchronized (ProgramCache.class) {
+				sBinaries.remove(key);
+				sMiss++;
+				if (sDir != null) {
+					final File file = new File(sDir, key);
+					getWriter().execute(new Runnable() {
+						@Override
+						public void run() {
+							file.delete();
+						}
+					});
+				}
+			}
+			return 0;
+		}
+		synchronized (ProgramCache.class) {
+			sHit++;
+		}
+		return program;
+	}
+
+	/**
+	 * make the program retrievable, this should be called before glLinkProgram
+	 */
+	public static void prepareLink(final int program) {
+		if (getDriver() != null) {
+			GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+		}
+	}
+
+	/**
+	 * save the binary of the linked program
+	 * @param program program that was linked from vss and fss
+	 */
+	public static void saveProgram(final int program, final String vss, final String fss) {
+		final String driver = getDriver();
+		if (driver == null) return;
+		final int[] values = new int[1];
+		GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, values, 0);
+		if (values[0] == 0) return;
+		GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, values, 0);
+		final int length = values[0];
+		if (length <= 0) return;
+		final ByteBuffer buf = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+		final int[] format = new int[1];
+		GLES30.glGetProgramBinary(program, length, values, 0, format, 0, buf);
+		if ((GLES20.glGetError() != GLES20.GL_NO_ERROR) || (values[0] <= 0)) return;
+		final byte[] data = new byte[values[0]];
+		buf.get(data);
+		final String key = hash(vss, fss);
+		final Binary binary = new Binary(driver, format[0], data);
+		if (DEBUG) Log.v(TAG, "saveProgram:" + key + "," + data.length + "bytes");
+		synchronized (ProgramCache.class) {
+			sBinaries.put(key, binary);
+			if (sDir != null) {
+				final File file = new File(sDir, key);
+				getWriter().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							write(file, binary);
+						} catch (final IOException e) {
+							Log.w(TAG, "failed to save program binary", e);
+						}
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * @return identifier of the driver of current context, null if program binaries are not available
+	 */
+	private static String getDriver() {
+		// GL_VERSION shows what the driver supports, not the version of current context,
+		// and GLES30 functions are not available on the context created as OpenGL|ES 2.0
+		final EGLDisplay display = EGL14.eglGetCurrentDisplay();
+		final EGLContext context = EGL14.eglGetCurrentContext();
+		if ((display == EGL14.EGL_NO_DISPLAY) || (context == EGL14.EGL_NO_CONTEXT)) return null;
+		final int[] values = new int[1];
+		if (!EGL14.eglQueryContext(display, context, EGL14.EGL_CONTEXT_CLIENT_VERSION, values, 0)
+			|| (values[0] < 3)) {
+			return null;
+		}
+		GLES30.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, values, 0);
+		if (values[0] <= 0) return null;
+		return GLES20.glGetString(GLES20.GL_VENDOR) + "/" + GLES20.glGetString(GLES20.GL_RENDERER)
+			+ "/" + GLES20.glGetString(GLES20.GL_VERSION) + "/" + Build.FINGERPRINT;
+	}
+
+	private static synchronized Executor getWriter() {
+		if (sWriter == null) {
+			sWriter = Executors.newSingleThreadExecutor();
+		}
+		return sWriter;
+	}
+
+	private static synchronized Binary getBinary(final String key, final String driver) {
+		Binary binary = sBinaries.get(key);
+		if ((binary == null) && (sDir != null)) {
+			final File file = new File(sDir, key);
+			if (file.isFile()) {
+				try {
+					binary = read(file);
+				} catch (final IOException e) {
+					Log.w(TAG, "failed to load program binary", e);
+				} catch (final RuntimeException e) {
+					// broken file, e.g. NegativeArraySizeException from a corrupted length
+					Log.w(TAG, "failed to load program binary", e);
+				}
+				if (binary != null) {
+					sBinaries.put(key, binary);
+				}
+			}
+		}
+		return (binary != null) && driver.equals(binary.driver) ? binary : null;
+	}
+
+	private static String hash(final String vss, final String fss) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(vss.getBytes("UTF-8"));
+			digest.update((byte)0);
+			digest.update(fss.getBytes("UTF-8"));
+			final StringBuilder sb = new StringBuilder();
+			for (final byte b : digest.digest()) {
+				sb.append(String.format(Locale.US, "%02x", b & 0xff));
+			}
+			return sb.toString();
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return null if the file was written by other version
+	 */
+	private static Binary read(final File file) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+				return null;
+			}
+			final String driver = in.readUTF();
+			final int format = in.readInt();
+			final byte[] data = new byte[in.readInt()];
+			in.readFully(data);
+			return new Binary(driver, format, data);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void write(final File file, final Binary binary) throws IOException {
+		FileUtils.writeAtomically(file, new FileUtils.DataWriter() {
+			@Override
+			public void write(final DataOutputStream out) throws IOException {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeUTF(binary.driver);
+				out.writeInt(binary.format);
+				out.writeInt(binary.data.length);
+				out.write(binary.data);
+			}
+		});
+	}
+
+	public static synchronized String getStats() {
+		return String.format(Locale.US, "ProgramCache(hit=%d,miss=%d,cached=%d)", sHit, sMiss, sBinaries.size());
+	}
+}
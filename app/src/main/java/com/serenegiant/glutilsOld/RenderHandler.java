@@ -1,5 +1,8 @@
 package com.serenegiant.glutilsOld;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+
 import android.graphics.SurfaceTexture;
 import android.opengl.EGLContext;
 import android.opengl.GLES20;
@@ -13,17 +16,31 @@ import com.serenegiant.audiovideosample.BuildConfig;
 
 /**
  * Helper class to draw texture to whole view on private thread
+ * EGL context and drawer(compiled program) are kept while the shared context is same,
+ * and only EGL surface is changed when new input Surface of encoder comes.
  */
 public final class RenderHandler implements Runnable {
 	private static final boolean DEBUG = BuildConfig.DEBUG;
 	private static final String TAG = "RenderHandler";
+	/**
+	 * maximum number of EGL surfaces kept for recent input Surfaces
+	 */
+	private static final int MAX_CACHED_SURFACES = 2;
 
 	private final Object mSync = new Object();
     private EGLContext mShard_context;
     private boolean mIsRecordable;
     private Object mSurface;
+	/**
+	 * surface, shared context and flag that current EGL surface was created for,
+	 * these are only changed while holding mSync
+	 */
+	private Object mPreparedSurface;
+	private EGLContext mPreparedContext;
+	private boolean mPreparedRecordable;
 	private int mTexId = -1;
 	private float[] mMatrix = new float[32];
+	private long mPresentationTimeNs;
 
 	private boolean mRequestSetEglContext;
 	private boolean mRequestRelease;
@@ -32,13 +49,8 @@ public final class RenderHandler implements Runnable {
 	public static final RenderHandler createHandler(final String name) {
 		if (DEBUG) Log.v(TAG, "createHandler:");
 		final RenderHandler handler = new RenderHandler();
-		synchronized (handler.mSync) {
-			new Thread(handler, !TextUtils.isEmpty(name) ? name : TAG).start();
-			try {
-				handler.mSync.wait();
-			} catch (final InterruptedException e) {
-			}
-		}
+		// requests before the thread starts are kept in the flags, so this does not wait for it
+		new Thread(handler, !TextUtils.isEmpty(name) ? name : TAG).start();
 		return handler;
 	}
 
@@ -48,6 +60,13 @@ public final class RenderHandler implements Runnable {
 			throw new RuntimeException("unsupported window type:" + surface);
 		synchronized (mSync) {
 			if (mRequestRelease) return;
+			if (!mRequestSetEglContext && (mPreparedSurface != null) && (surface == mPreparedSurface)
+				&& (isRecordable == mPreparedRecordable)
+				&& (shared_context != null) && shared_context.equals(mPreparedContext)) {
+				// same input Surface of pooled encoder, keep EGL context/surface and drawer
+				mTexId = tex_id;
+				return;
+			}
 			mShard_context = shared_context;
 			mTexId = tex_id;
 			mSurface = surface;
@@ -55,11 +74,9 @@ public final class RenderHandler implements Runnable {
 			mRequestSetEglContext = true;
 			Matrix.setIdentityM(mMatrix, 0);
 			Matrix.setIdentityM(mMatrix, 16);
+			// EGL context/surface are created on private thread without blocking the caller(GL thread of preview),
+			// draw requests after this are processed after they are created
 			mSync.notifyAll();
-			try {
-				mSync.wait();
-			} catch (final InterruptedException e) {
-			}
 		}
 	}
 
@@ -79,14 +96,31 @@ public final class RenderHandler implements Runnable {
 		draw(mTexId, tex_matrix, mvp_matrix);
 	}
 
+	public final void draw(final float[] tex_matrix, final float[] mvp_matrix, final long presentationTimeNs) {
+		draw(mTexId, tex_matrix, mvp_matrix, presentationTimeNs);
+	}
+
 	public final void draw(final int tex_id, final float[] tex_matrix) {
 		draw(tex_id, tex_matrix, null);
 	}
 
 	public final void draw(final int tex_id, final float[] tex_matrix, final float[] mvp_matrix) {
+		draw(tex_id, tex_matrix, mvp_matrix, 0);
+	}
+
+	/**
+	 * request drawing with specific presentation time
+	 * @param tex_id
+	 * @param tex_matrix
+	 * @param mvp_matrix
+	 * @param presentationTimeNs capture time of the frame on System#nanoTime base
+	 * 							 (e.g. SurfaceTexture#getTimestamp), 0 if unknown
+	 */
+	public final void draw(final int tex_id, final float[] tex_matrix, final float[] mvp_matrix, final long presentationTimeNs) {
 		synchronized (mSync) {
 			if (mRequestRelease) return;
 			mTexId = tex_id;
+			mPresentationTimeNs = presentationTimeNs;
 			if ((tex_matrix != null) && (tex_matrix.length >= 16)) {
 				System.arraycopy(tex_matrix, 0, mMatrix, 0, 16);
 			} else {
@@ -130,84 +164,180 @@ public final class RenderHandler implements Runnable {
 	private EGLBase mEgl;
 	private EGLBase.EglSurface mInputSurface;
 	private GLDrawer2D mDrawer;
+	/**
+	 * shared context and flag that mEgl was created with
+	 */
+	private EGLContext mEglSharedContext;
+	private boolean mEglRecordable;
+
+	private static final class CachedSurface {
+		final Object surface;
+		final EGLBase.EglSurface eglSurface;
+
+		CachedSurface(final Object surface, final EGLBase.EglSurface eglSurface) {
+			this.surface = surface;
+			this.eglSurface = eglSurface;
+		}
+	}
+
+	/**
+	 * EGL surfaces of recent input surfaces(e.g. persistent Surface of pooled encoder), the last one is current
+	 */
+	private final ArrayList<CachedSurface> mSurfaceCache = new ArrayList<CachedSurface>();
 
 	@Override
 	public final void run() {
 		if (DEBUG) Log.i(TAG, "RenderHandler thread started:");
-		synchronized (mSync) {
-			mRequestSetEglContext = mRequestRelease = false;
-			mRequestDraw = 0;
-			mSync.notifyAll();
-		}
         boolean localRequestDraw;
+        long localPresentationTimeNs = 0, lastPresentationTimeNs = 0;
         for (;;) {
+        	EGLContext sharedContext = null;
+        	Object surface = null;
+        	boolean isRecordable = false;
         	synchronized (mSync) {
         		if (mRequestRelease) break;
 	        	if (mRequestSetEglContext) {
 	        		mRequestSetEglContext = false;
-	        		internalPrepare();
+	        		sharedContext = mShard_context;
+	        		surface = mSurface;
+	        		isRecordable = mIsRecordable;
+	        		// current EGL surface may be released while preparing
+	        		mPreparedSurface = null;
+	        	}
+	        }
+	        if (surface != null) {
+	        	// EGL setup and shader compile take long, draw requests from the GL thread of preview
+	        	// should not wait for them, so this runs without holding mSync
+	        	internalPrepare(sharedContext, surface, isRecordable);
+	        	synchronized (mSync) {
+	        		if (!mRequestSetEglContext) {
+	        			// this is current unless new request came while preparing
+	        			mPreparedSurface = surface;
+	        			mPreparedContext = sharedContext;
+	        			mPreparedRecordable = isRecordable;
+	        			mSurface = null;
+	        		}
+	        		mSync.notifyAll();
 	        	}
+	        }
+        	synchronized (mSync) {
+        		if (mRequestRelease) break;
 	        	localRequestDraw = mRequestDraw > 0;
 	        	if (localRequestDraw) {
 	        		mRequestDraw--;
+	        		localPresentationTimeNs = mPresentationTimeNs;
 //					mSync.notifyAll();
 				}
         	}
         	if (localRequestDraw) {
+        		if ((localPresentationTimeNs > 0) && (localPresentationTimeNs <= lastPresentationTimeNs)) {
+        			// this frame was already sent, encoder needs monotonic presentation time
+        			continue;
+				}
         		if ((mEgl != null) && mTexId >= 0) {
             		mInputSurface.makeCurrent();
-					// clear screen with yellow color so that you can see rendering rectangle
-					GLES20.glClearColor(1.0f, 1.0f, 0.0f, 1.0f);
 					GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 					mDrawer.setMatrix(mMatrix, 16);
             		mDrawer.draw(mTexId, mMatrix);
+            		if (localPresentationTimeNs > 0) {
+            			// keep capture time of the frame instead of the time of swapping
+						mInputSurface.setPresentationTime(localPresentationTimeNs);
+						lastPresentationTimeNs = localPresentationTimeNs;
+					}
             		mInputSurface.swap();
         		}
         	} else {
         		synchronized(mSync) {
         			try {
-						mSync.wait();
+        				// request may come while preparing without holding mSync
+        				if (!mRequestSetEglContext && (mRequestDraw == 0) && !mRequestRelease)
+							mSync.wait();
 					} catch (final InterruptedException e) {
 						break;
 					}
         		}
         	}
         }
+        internalRelease();
         synchronized (mSync) {
         	mRequestRelease = true;
-            internalRelease();
+        	mPreparedSurface = null;
             mSync.notifyAll();
         }
 		if (DEBUG) Log.i(TAG, "RenderHandler thread finished:");
 	}
 
-	private final void internalPrepare() {
+	/**
+	 * create or reuse EGL context, EGL surface and drawer, this is called on private thread without holding mSync
+	 */
+	private final void internalPrepare(final EGLContext sharedContext, final Object surface, final boolean isRecordable) {
 		if (DEBUG) Log.i(TAG, "internalPrepare:");
-		internalRelease();
-		mEgl = new EGLBase(mShard_context, false, mIsRecordable);
-
-   		mInputSurface = mEgl.createFromSurface(mSurface);
-
+		if ((mEgl != null) && ((mEglRecordable != isRecordable)
+			|| (sharedContext == null) || !sharedContext.equals(mEglSharedContext))) {
+			// textures of new shared context(e.g. preview was recreated) are not visible from current context
+			internalRelease();
+		}
+		if (mEgl == null) {
+			mEgl = new EGLBase(sharedContext, false, isRecordable);
+			mEglSharedContext = sharedContext;
+			mEglRecordable = isRecordable;
+		}
+		mInputSurface = obtainEglSurface(surface);
 		mInputSurface.makeCurrent();
-		mDrawer = new GLDrawer2D();
-		mSurface = null;
-		mSync.notifyAll();
+		if (mDrawer == null) {
+			// program is compiled only once for the context
+			mDrawer = new GLDrawer2D();
+			// clear screen with yellow color so that you can see rendering rectangle
+			GLES20.glClearColor(1.0f, 1.0f, 0.0f, 1.0f);
+		}
+	}
+
+	/**
+	 * get EGL surface for the surface from the cache or create new one
+	 */
+	private final EGLBase.EglSurface obtainEglSurface(final Object surface) {
+		CachedSurface found = null;
+		for (final Iterator<CachedSurface> iter = mSurfaceCache.iterator(); iter.hasNext(); ) {
+			final CachedSurface cached = iter.next();
+			if ((cached.surface instanceof Surface) && !((Surface)cached.surface).isValid()) {
+				// Surface of released encoder
+				iter.remove();
+				cached.eglSurface.release();
+			} else if (cached.surface == surface) {
+				iter.remove();
+				found = cached;
+			}
+		}
+		if (found == null) {
+			if (mSurfaceCache.size() >= MAX_CACHED_SURFACES) {
+				mSurfaceCache.remove(0).eglSurface.release();
+			}
+			found = new CachedSurface(surface, mEgl.createFromSurface(surface));
+		}
+		mSurfaceCache.add(found);
+		return found.eglSurface;
 	}
 
 	private final void internalRelease() {
 		if (DEBUG) Log.i(TAG, "internalRelease:");
-		if (mInputSurface != null) {
-			mInputSurface.release();
-			mInputSurface = null;
-		}
 		if (mDrawer != null) {
+			// program should be deleted while the context is current
+			if (mInputSurface != null) {
+				mInputSurface.makeCurrent();
+			}
 			mDrawer.release();
 			mDrawer = null;
 		}
+		mInputSurface = null;
+		for (final CachedSurface cached : mSurfaceCache) {
+			cached.eglSurface.release();
+		}
+		mSurfaceCache.clear();
 		if (mEgl != null) {
 			mEgl.release();
 			mEgl = null;
 		}
+		mEglSharedContext = null;
 	}
 
 }
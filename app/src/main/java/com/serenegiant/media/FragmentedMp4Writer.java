@@ -0,0 +1,655 @@
+package com.serenegiant.media;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Pure Java writer of fragmented mp4(ISO/IEC 14496-12) for H.264 video and AAC audio
+ * 纯 Java 实现的分片 MP4 写入器
+ * <p>
+ * ftyp and moov(without samples) are written on #start, and then every fragment(moof + mdat)
+ * is appended through FileChannel when its duration exceeds the fragment duration.
+ * The file is playable up to the last written fragment even if the app crashes,
+ * and #stop only writes the last fragment regardless of recording length.
+ * This class does not depend on Android framework, so it can run on JVM.
+ * This class is not thread safe.
+ */
+public class FragmentedMp4Writer {
+
+    public static final long DEFAULT_FRAGMENT_DURATION_US = 1000000L;
+
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int MAX_TRACKS = 2;
+    private static final int INITIAL_SAMPLES = 64;
+    // sample_flags of trun
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;      // depends on no other
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;  // depends on others, non sync
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final class Track {
+        final int id;
+        final boolean isVideo;
+        final int timescale;
+        int width, height;
+        byte[] sps, pps;
+        int sampleRate, channelCount;
+        byte[] audioSpecificConfig;
+        /**
+         * payload of samples in current fragment
+         */
+        ByteBuffer data = ByteBuffer.allocate(256 * 1024);
+        int sampleCount;
+        long[] ptsUs = new long[INITIAL_SAMPLES];
+        int[] sizes = new int[INITIAL_SAMPLES];
+        boolean[] syncs = new boolean[INITIAL_SAMPLES];
+        /**
+         * duration of the last sample of previous fragment, used when next sample is unknown
+         */
+        long lastDuration;
+        /**
+         * decode time(=presentation time, this writer does not reorder) of the end of written fragments
+         */
+        long nextDecodeTime = -1;
+
+        Track(final int id, final boolean isVideo, final int timescale) {
+            this.id = id;
+            this.isVideo = isVideo;
+            this.timescale = timescale;
+        }
+
+        long toTimescale(final long us) {
+            return us * timescale / 1000000L;
+        }
+
+        void addSample(final long pts, final int size, final boolean sync) {
+            if (sampleCount == ptsUs.length) {
+                final int n = sampleCount * 2;
+                final long[] p = new long[n];
+                System.arraycopy(ptsUs, 0, p, 0, sampleCount);
+                ptsUs = p;
+                final int[] s = new int[n];
+                System.arraycopy(sizes, 0, s, 0, sampleCount);
+                sizes = s;
+                final boolean[] y = new boolean[n];
+                System.arraycopy(syncs, 0, y, 0, sampleCount);
+                syncs = y;
+            }
+            ptsUs[sampleCount] = pts;
+            sizes[sampleCount] = size;
+            syncs[sampleCount] = sync;
+            sampleCount++;
+        }
+
+        void ensureData(final int size) {
+            if (data.remaining() < size) {
+                final ByteBuffer buf = ByteBuffer.allocate(Math.max(data.capacity() * 2, data.position() + size));
+                data.flip();
+                buf.put(data);
+                data = buf;
+            }
+        }
+    }
+
+    private final FileChannel mChannel;
+    private final long mFragmentDurationUs;
+    private final Track[] mTracks = new Track[MAX_TRACKS];
+    private int mTrackCount;
+    private boolean mIsStarted;
+    private int mSequenceNumber;
+    private long mFragmentStartUs = -1;
+    private ByteBuffer mHeader = ByteBuffer.allocate(64 * 1024);
+    private final ByteBuffer[] mWriteBuffers = new ByteBuffer[MAX_TRACKS + 1];
+    private final int[] mDataOffsetPositions = new int[MAX_TRACKS];
+
+    /**
+     * Constructor
+     *
+     * @param channel            channel to write, this is not closed by this writer
+     * @param fragmentDurationUs approximate duration of each fragment
+     */
+    public FragmentedMp4Writer(final FileChannel channel, final long fragmentDurationUs) {
+        if (channel == null) throw new NullPointerException("channel is null");
+        mChannel = channel;
+        mFragmentDurationUs = fragmentDurationUs;
+    }
+
+    /**
+     * add H.264 video track
+     *
+     * @param sps sequence parameter set without start code
+     * @param pps picture parameter set without start code
+     * @return track index
+     */
+    public int addVideoTrack(final int width, final int height, final byte[] sps, final byte[] pps) {
+        if ((sps == null) || (sps.length < 4) || (pps == null))
+            throw new IllegalArgumentException("invalid sps/pps");
+        final Track track = addTrack(true, VIDEO_TIMESCALE);
+        track.width = width;
+        track.height = height;
+        track.sps = sps;
+        track.pps = pps;
+        track.lastDuration = VIDEO_TIMESCALE / 30;
+        return track.id - 1;
+    }
+
+    /**
+     * add AAC audio track
+     *
+     * @param audioSpecificConfig AudioSpecificConfig(csd-0 of AAC encoder)
+     * @return track index
+     */
+    public int addAudioTrack(final int sampleRate, final int channelCount, final byte[] audioSpecificConfig) {
+        if ((audioSpecificConfig == null) || (audioSpecificConfig.length == 0))
+            throw new IllegalArgumentException("invalid AudioSpecificConfig");
+        final Track track = addTrack(false, sampleRate);
+        track.sampleRate = sampleRate;
+        track.channelCount = channelCount;
+        track.audioSpecificConfig = audioSpecificConfig;
+        track.lastDuration = 1024;  // samples per AAC frame
+        return track.id - 1;
+    }
+
+    private Track addTrack(final boolean isVideo, final int timescale) {
+        if (mIsStarted) throw new IllegalStateException("already started");
+        if (mTrackCount >= MAX_TRACKS) throw new IllegalStateException("too many tracks");
+        final Track track = new Track(mTrackCount + 1, isVideo, timescale);
+        mTracks[mTrackCount++] = track;
+        return track;
+    }
+
+    public int getTrackCount() {
+        return mTrackCount;
+    }
+
+    /**
+     * write ftyp and moov
+     */
+    public void start() throws IOException {
+        if (mIsStarted) throw new IllegalStateException("already started");
+        if (mTrackCount == 0) throw new IllegalStateException("no track");
+        mIsStarted = true;
+        final ByteBuffer buf = header(0);
+        writeFtyp(buf);
+        writeMoov(buf);
+        buf.flip();
+        writeFully(buf);
+    }
+
+    /**
+     * write a sample, the data is copied so the caller can reuse the buffer immediately
+     *
+     * @param data   encoded data from position to limit, H.264 can be Annex-B or length prefixed
+     * @param ptsUs  presentation time, should be monotonic on each track
+     * @param isSync true if the sample is a key frame
+     */
+    public void writeSample(final int trackIndex, final ByteBuffer data, final long ptsUs, final boolean isSync)
+        throws IOException {
+
+        if (!mIsStarted) throw new IllegalStateException("not started");
+        if ((trackIndex < 0) || (trackIndex >= mTrackCount))
+            throw new IllegalArgumentException("invalid track index:" + trackIndex);
+        final Track track = mTracks[trackIndex];
+        if (mFragmentStartUs < 0) {
+            mFragmentStartUs = ptsUs;
+        }
+        // cut fragment at video sample if there is video track, so that its duration is known
+        if ((track.isVideo || !hasVideo())
+            && (ptsUs - mFragmentStartUs >= mFragmentDurationUs)) {
+            flushFragment(track, ptsUs);
+            mFragmentStartUs = ptsUs;
+        }
+        final int size;
+        if (track.isVideo) {
+            size = copyAsLengthPrefixed(track, data);
+        } else {
+            size = data.remaining();
+            track.ensureData(size);
+            track.data.put(data);
+        }
+        if (size > 0) {
+            track.addSample(ptsUs, size, isSync || !track.isVideo);
+        }
+    }
+
+    /**
+     * write the last fragment, the channel is not closed
+     */
+    public void stop() throws IOException {
+        if (!mIsStarted) return;
+        flushFragment(null, -1);
+        mIsStarted = false;
+    }
+
+    private boolean hasVideo() {
+        for (int i = 0; i < mTrackCount; i++) {
+            if (mTracks[i].isVideo) return true;
+        }
+        return false;
+    }
+
+//********************************************************************************
+
+    /**
+     * write moof and mdat of queued samples
+     *
+     * @param nextTrack track whose next sample time is known
+     * @param nextPtsUs presentation time of the next sample of nextTrack
+     */
+    private void flushFragment(final Track nextTrack, final long nextPtsUs) throws IOException {
+        int total = 0;
+        for (int i = 0; i < mTrackCount; i++) {
+            total += mTracks[i].sampleCount;
+        }
+        if (total == 0) return;
+        mSequenceNumber++;
+        final ByteBuffer buf = header(0);
+        final int moof = begin(buf, "moof");
+        final int mfhd = fullBox(buf, "mfhd", 0, 0);
+        buf.putInt(mSequenceNumber);
+        end(buf, mfhd);
+        final int[] dataOffsetPositions = mDataOffsetPositions;
+        for (int i = 0; i < mTrackCount; i++) {
+            final Track track = mTracks[i];
+            if (track.sampleCount == 0) continue;
+            if (track.nextDecodeTime < 0) {
+                // the first fragment starts at the first presentation time, this keeps tracks aligned
+                track.nextDecodeTime = track.toTimescale(track.ptsUs[0]);
+            }
+            final int traf = begin(buf, "traf");
+            final int tfhd = fullBox(buf, "tfhd", 0, 0x020000);  // default-base-is-moof
+            buf.putInt(track.id);
+            end(buf, tfhd);
+            final int tfdt = fullBox(buf, "tfdt", 1, 0);
+            buf.putLong(track.nextDecodeTime);
+            end(buf, tfdt);
+            // data-offset, sample-duration, sample-size, sample-flags
+            final int trun = fullBox(buf, "trun", 0, 0x000701);
+            buf.putInt(track.sampleCount);
+            dataOffsetPositions[i] = buf.position();
+            buf.putInt(0);  // data offset, set later
+            long decodeTime = track.nextDecodeTime;
+            for (int j = 0; j < track.sampleCount; j++) {
+                final long duration;
+                if (j + 1 < track.sampleCount) {
+                    duration = Math.max(1, track.toTimescale(track.ptsUs[j + 1]) - decodeTime);
+                } else if (track == nextTrack) {
+                    duration = Math.max(1, track.toTimescale(nextPtsUs) - decodeTime);
+                } else {
+                    duration = track.lastDuration;
+                }
+                decodeTime += duration;
+                buf.putInt((int) duration);
+                buf.putInt(track.sizes[j]);
+                buf.putInt(track.syncs[j] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+                track.lastDuration = duration;
+            }
+            track.nextDecodeTime = decodeTime;
+            end(buf, trun);
+            end(buf, traf);
+        }
+        end(buf, moof);
+        final int moofSize = buf.position() - moof;
+        int mdatSize = 8;
+        for (int i = 0; i < mTrackCount; i++) {
+            final Track track = mTracks[i];
+            if (track.sampleCount == 0) continue;
+            // data offset is relative to the head of moof
+            buf.putInt(dataOffsetPositions[i], moofSize + mdatSize);
+            mdatSize += track.data.position();
+        }
+        begin(buf, "mdat");
+        buf.putInt(buf.position() - 8, mdatSize);
+        buf.flip();
+        int n = 0;
+        mWriteBuffers[n++] = buf;
+        for (int i = 0; i < mTrackCount; i++) {
+            final Track track = mTracks[i];
+            if (track.sampleCount == 0) continue;
+            track.data.flip();
+            mWriteBuffers[n++] = track.data;
+        }
+        writeFully(mWriteBuffers, n);
+        for (int i = 0; i < mTrackCount; i++) {
+            final Track track = mTracks[i];
+            track.data.clear();
+            track.sampleCount = 0;
+        }
+    }
+
+    /**
+     * copy H.264 access unit as 4 bytes length prefixed NAL units,
+     * parameter sets and access unit delimiters are skipped because they are in avcC
+     *
+     * @return number of written bytes
+     */
+    private static int copyAsLengthPrefixed(final Track track, final ByteBuffer src) {
+        final int start = src.position();
+        final int limit = src.limit();
+        if (startCodeLength(src, start, limit) == 0) {
+            // already length prefixed
+            final int size = limit - start;
+            track.ensureData(size);
+            track.data.put(src);
+            return size;
+        }
+        track.ensureData(limit - start + 16);
+        final int head = track.data.position();
+        int nal = start + startCodeLength(src, start, limit);
+        while (nal < limit) {
+            // find next start code
+            int next = nal;
+            int codeLength = 0;
+            for (; next < limit; next++) {
+                if ((codeLength = startCodeLength(src, next, limit)) > 0) break;
+            }
+            final int end = next;
+            final int type = src.get(nal) & 0x1f;
+            if ((type != 7) && (type != 8) && (type != 9) && (end > nal)) {
+                track.ensureData(end - nal + 4);
+                track.data.putInt(end - nal);
+                src.limit(end).position(nal);
+                track.data.put(src);
+                src.limit(limit);
+            }
+            nal = next + codeLength;
+        }
+        src.position(limit);
+        return track.data.position() - head;
+    }
+
+    private static int startCodeLength(final ByteBuffer buf, final int pos, final int limit) {
+        if ((pos + 3 <= limit) && (buf.get(pos) == 0) && (buf.get(pos + 1) == 0)) {
+            if (buf.get(pos + 2) == 1) return 3;
+            if ((pos + 4 <= limit) && (buf.get(pos + 2) == 0) && (buf.get(pos + 3) == 1)) return 4;
+        }
+        return 0;
+    }
+
+//********************************************************************************
+
+    private void writeFtyp(final ByteBuffer buf) {
+        final int ftyp = begin(buf, "ftyp");
+        buf.put(ascii("isom"));
+        buf.putInt(0x200);
+        buf.put(ascii("isom"));
+        buf.put(ascii("iso6"));
+        buf.put(ascii("avc1"));
+        buf.put(ascii("mp41"));
+        end(buf, ftyp);
+    }
+
+    private void writeMoov(final ByteBuffer buf) {
+        final int moov = begin(buf, "moov");
+        final int mvhd = fullBox(buf, "mvhd", 0, 0);
+        buf.putInt(0);  // creation_time
+        buf.putInt(0);  // modification_time
+        buf.putInt(MOVIE_TIMESCALE);
+        buf.putInt(0);  // duration, unknown for fragmented file
+        buf.putInt(0x00010000);  // rate 1.0
+        buf.putShort((short) 0x0100);  // volume 1.0
+        buf.putShort((short) 0);
+        buf.putInt(0);
+        buf.putInt(0);
+        putMatrix(buf);
+        for (int i = 0; i < 6; i++) {
+            buf.putInt(0);  // pre_defined
+        }
+        buf.putInt(mTrackCount + 1);  // next_track_ID
+        end(buf, mvhd);
+        for (int i = 0; i < mTrackCount; i++) {
+            writeTrak(buf, mTracks[i]);
+        }
+        final int mvex = begin(buf, "mvex");
+        for (int i = 0; i < mTrackCount; i++) {
+            final int trex = fullBox(buf, "trex", 0, 0);
+            buf.putInt(mTracks[i].id);
+            buf.putInt(1);  // default_sample_description_index
+            buf.putInt(0);  // default_sample_duration
+            buf.putInt(0);  // default_sample_size
+            buf.putInt(0);  // default_sample_flags
+            end(buf, trex);
+        }
+        end(buf, mvex);
+        end(buf, moov);
+    }
+
+    private void writeTrak(final ByteBuffer buf, final Track track) {
+        final int trak = begin(buf, "trak");
+        final int tkhd = fullBox(buf, "tkhd", 0, 0x000003);  // enabled, in movie
+        buf.putInt(0);  // creation_time
+        buf.putInt(0);  // modification_time
+        buf.putInt(track.id);
+        buf.putInt(0);  // reserved
+        buf.putInt(0);  // duration
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putShort((short) 0);  // layer
+        buf.putShort((short) 0);  // alternate_group
+        buf.putShort((short) (track.isVideo ? 0 : 0x0100));  // volume
+        buf.putShort((short) 0);
+        putMatrix(buf);
+        buf.putInt(track.width << 16);
+        buf.putInt(track.height << 16);
+        end(buf, tkhd);
+
+        final int mdia = begin(buf, "mdia");
+        final int mdhd = fullBox(buf, "mdhd", 0, 0);
+        buf.putInt(0);  // creation_time
+        buf.putInt(0);  // modification_time
+        buf.putInt(track.timescale);
+        buf.putInt(0);  // duration
+        buf.putShort((short) 0x55c4);  // language 'und'
+        buf.putShort((short) 0);
+        end(buf, mdhd);
+        final int hdlr = fullBox(buf, "hdlr", 0, 0);
+        buf.putInt(0);  // pre_defined
+        buf.put(ascii(track.isVideo ? "vide" : "soun"));
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.put(ascii(track.isVideo ? "VideoHandler" : "SoundHandler"));
+        buf.put((byte) 0);
+        end(buf, hdlr);
+
+        final int minf = begin(buf, "minf");
+        if (track.isVideo) {
+            final int vmhd = fullBox(buf, "vmhd", 0, 1);
+            buf.putShort((short) 0);  // graphicsmode
+            buf.putShort((short) 0);  // opcolor
+            buf.putShort((short) 0);
+            buf.putShort((short) 0);
+            end(buf, vmhd);
+        } else {
+            final int smhd = fullBox(buf, "smhd", 0, 0);
+            buf.putShort((short) 0);  // balance
+            buf.putShort((short) 0);
+            end(buf, smhd);
+        }
+        final int dinf = begin(buf, "dinf");
+        final int dref = fullBox(buf, "dref", 0, 0);
+        buf.putInt(1);
+        end(buf, fullBox(buf, "url ", 0, 1));  // media data is in the same file
+        end(buf, dref);
+        end(buf, dinf);
+
+        final int stbl = begin(buf, "stbl");
+        final int stsd = fullBox(buf, "stsd", 0, 0);
+        buf.putInt(1);
+        if (track.isVideo) {
+            writeAvc1(buf, track);
+        } else {
+            writeMp4a(buf, track);
+        }
+        end(buf, stsd);
+        // sample tables are empty, samples are in fragments
+        final int stts = fullBox(buf, "stts", 0, 0);
+        buf.putInt(0);
+        end(buf, stts);
+        final int stsc = fullBox(buf, "stsc", 0, 0);
+        buf.putInt(0);
+        end(buf, stsc);
+        final int stsz = fullBox(buf, "stsz", 0, 0);
+        buf.putInt(0);
+        buf.putInt(0);
+        end(buf, stsz);
+        final int stco = fullBox(buf, "stco", 0, 0);
+        buf.putInt(0);
+        end(buf, stco);
+        end(buf, stbl);
+        end(buf, minf);
+        end(buf, mdia);
+        end(buf, trak);
+    }
+
+    private static void writeAvc1(final ByteBuffer buf, final Track track) {
+        final int avc1 = begin(buf, "avc1");
+        buf.put(new byte[6]);  // reserved
+        buf.putShort((short) 1);  // data_reference_index
+        buf.putShort((short) 0);  // pre_defined
+        buf.putShort((short) 0);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putShort((short) track.width);
+        buf.putShort((short) track.height);
+        buf.putInt(0x00480000);  // horizresolution 72dpi
+        buf.putInt(0x00480000);  // vertresolution 72dpi
+        buf.putInt(0);
+        buf.putShort((short) 1);  // frame_count
+        buf.put(new byte[32]);  // compressorname
+        buf.putShort((short) 0x0018);  // depth
+        buf.putShort((short) -1);  // pre_defined
+        final int avcC = begin(buf, "avcC");
+        buf.put((byte) 1);  // configurationVersion
+        buf.put(track.sps[1]);  // AVCProfileIndication
+        buf.put(track.sps[2]);  // profile_compatibility
+        buf.put(track.sps[3]);  // AVCLevelIndication
+        buf.put((byte) 0xff);  // lengthSizeMinusOne = 3
+        buf.put((byte) 0xe1);  // numOfSequenceParameterSets = 1
+        buf.putShort((short) track.sps.length);
+        buf.put(track.sps);
+        buf.put((byte) 1);  // numOfPictureParameterSets
+        buf.putShort((short) track.pps.length);
+        buf.put(track.pps);
+        end(buf, avcC);
+        end(buf, avc1);
+    }
+
+    private static void writeMp4a(final ByteBuffer buf, final Track track) {
+        final int mp4a = begin(buf, "mp4a");
+        buf.put(new byte[6]);  // reserved
+        buf.putShort((short) 1);  // data_reference_index
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putShort((short) track.channelCount);
+        buf.putShort((short) 16);  // samplesize
+        buf.putShort((short) 0);
+        buf.putShort((short) 0);
+        buf.putInt(track.sampleRate << 16);
+        final int esds = fullBox(buf, "esds", 0, 0);
+        final int asc = track.audioSpecificConfig.length;
+        // ES_Descriptor
+        buf.put((byte) 0x03);
+        buf.put((byte) (3 + 2 + 13 + 2 + asc + 2 + 1));
+        buf.putShort((short) 0);  // ES_ID
+        buf.put((byte) 0);  // flags
+        // DecoderConfigDescriptor
+        buf.put((byte) 0x04);
+        buf.put((byte) (13 + 2 + asc));
+        buf.put((byte) 0x40);  // objectTypeIndication, MPEG-4 audio
+        buf.put((byte) 0x15);  // streamType audio, upStream 0, reserved 1
+        buf.put((byte) 0);  // bufferSizeDB(24bit)
+        buf.putShort((short) 0);
+        buf.putInt(0);  // maxBitrate
+        buf.putInt(0);  // avgBitrate
+        // DecoderSpecificInfo
+        buf.put((byte) 0x05);
+        buf.put((byte) asc);
+        buf.put(track.audioSpecificConfig);
+        // SLConfigDescriptor
+        buf.put((byte) 0x06);
+        buf.put((byte) 1);
+        buf.put((byte) 0x02);
+        end(buf, esds);
+        end(buf, mp4a);
+    }
+
+    private static void putMatrix(final ByteBuffer buf) {
+        buf.putInt(0x00010000);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(0x00010000);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(0x40000000);
+    }
+
+//********************************************************************************
+
+    /**
+     * get cleared header buffer that has enough capacity
+     */
+    private ByteBuffer header(final int extra) {
+        int required = 64 * 1024 + extra;
+        for (int i = 0; i < mTrackCount; i++) {
+            // duration, size and flags of each sample
+            required += mTracks[i].sampleCount * 12;
+        }
+        if (mHeader.capacity() < required) {
+            mHeader = ByteBuffer.allocate(required * 2);
+        }
+        mHeader.clear();
+        mHeader.order(ByteOrder.BIG_ENDIAN);
+        return mHeader;
+    }
+
+    /**
+     * start box, size is written by #end
+     *
+     * @return position of the box
+     */
+    private static int begin(final ByteBuffer buf, final String type) {
+        final int pos = buf.position();
+        buf.putInt(0);
+        for (int i = 0; i < 4; i++) {
+            buf.put((byte) type.charAt(i));
+        }
+        return pos;
+    }
+
+    private static int fullBox(final ByteBuffer buf, final String type, final int version, final int flags) {
+        final int pos = begin(buf, type);
+        buf.putInt((version << 24) | (flags & 0xffffff));
+        return pos;
+    }
+
+    private static void end(final ByteBuffer buf, final int pos) {
+        buf.putInt(pos, buf.position() - pos);
+    }
+
+    private static byte[] ascii(final String str) {
+        return str.getBytes(ASCII);
+    }
+
+    private void writeFully(final ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            mChannel.write(buf);
+        }
+    }
+
+    private void writeFully(final ByteBuffer[] bufs, final int n) throws IOException {
+        long remaining = 0;
+        for (int i = 0; i < n; i++) {
+            remaining += bufs[i].remaining();
+        }
+        while (remaining > 0) {
+            remaining -= mChannel.write(bufs, 0, n);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.serenegiant.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * HLS(RFC 8216) packager that writes rolling MPEG-TS segments and m3u8 playlist into a directory
+ * HLS 打包器，生成滚动的 TS 分段和 m3u8 播放列表
+ * <p>
+ * Segments are cut on video sync frames(any sample when there is no video) after the target
+ * duration, so that each segment begins with PAT/PMT and a key frame. #EXT-X-TARGETDURATION is
+ * the target duration rounded up to seconds and never changes, so a sync frame is requested when
+ * a segment reaches the target duration, and if the segment would still become longer than
+ * #EXT-X-TARGETDURATION allows(duration rounded to the nearest second), it is cut on the next
+ * video frame even if it is not a sync frame. Duration of a segment includes the duration of
+ * its last sample, which is estimated from the interval of the previous samples of the same track.
+ * The playlist is rewritten
+ * to a temporary file and renamed when a segment is completed, so readers(e.g. local web server)
+ * never see partial playlist. When window size is specified, only the latest segments are listed
+ * and older segment files are deleted.
+ * This class does not depend on Android framework, so it can run on JVM.
+ * This class is not thread safe.
+ */
+public class HlsPackager {
+
+    public static final long DEFAULT_TARGET_DURATION_US = 2000000L;
+    public static final int DEFAULT_WINDOW_SIZE = 6;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final class Segment {
+        final String name;
+        final long durationUs;
+
+        Segment(final String name, final long durationUs) {
+            this.name = name;
+            this.durationUs = durationUs;
+        }
+    }
+
+    private final File mPlaylist;
+    private final File mPlaylistTemp;
+    private final String mBaseName;
+    private final long mTargetDurationUs;
+    /**
+     * value of #EXT-X-TARGETDURATION [sec]
+     */
+    private final int mTargetDurationSec;
+    /**
+     * segments should be shorter than this, EXTINF rounded to the nearest integer
+     * should not be larger than #EXT-X-TARGETDURATION
+     */
+    private final long mMaxDurationUs;
+    private final int mWindowSize;
+    private final MpegTsWriter mWriter = new MpegTsWriter(null);
+    private final ArrayDeque<Segment> mSegments = new ArrayDeque<Segment>();
+    private final StringBuilder mText = new StringBuilder();
+    private int mVideoTrack = -1;
+    private int mMediaSequence;
+    private int mSegmentIndex;
+    private RandomAccessFile mSegmentFile;
+    private String mSegmentName;
+    private long mSegmentStartUs = -1;
+    /**
+     * end time of written samples, presentation time of the last sample plus its duration
+     */
+    private long mEndUs;
+    /**
+     * presentation time and duration of the last sample of each track
+     */
+    private long[] mTrackPtsUs = new long[0];
+    private long[] mTrackDurationUs = new long[0];
+    private boolean mSyncRequested;
+    private Runnable mSyncFrameRequest;
+
+    /**
+     * Constructor
+     *
+     * @param playlist         path of m3u8 playlist, segments are written into the same directory
+     * @param targetDurationUs approximate duration of each segment, #EXT-X-TARGETDURATION is this rounded up to seconds
+     * @param windowSize       number of segments listed in the playlist, 0 to keep all segments
+     */
+    public HlsPackager(final File playlist, final long targetDurationUs, final int windowSize) {
+        mPlaylist = playlist;
+        mPlaylistTemp = new File(playlist.getPath() + ".tmp");
+        final String name = playlist.getName();
+        final int dot = name.lastIndexOf('.');
+        mBaseName = dot > 0 ? name.substring(0, dot) : name;
+        mTargetDurationUs = targetDurationUs;
+        mTargetDurationSec = (int) Math.max(1, (targetDurationUs + 999999L) / 1000000L);
+        mMaxDurationUs = mTargetDurationSec * 1000000L + 499000L;
+        mWindowSize = windowSize;
+    }
+
+    /**
+     * set the request of sync frame to video encoder that is called when a segment reached
+     * the target duration, without this segments may be cut on frames that are not sync frames
+     */
+    public void setSyncFrameRequest(final Runnable request) {
+        mSyncFrameRequest = request;
+    }
+
+    /**
+     * add H.264 video track
+     *
+     * @param sps sequence parameter set without start code
+     * @param pps picture parameter set without start code
+     * @return track index
+     */
+    public int addVideoTrack(final byte[] sps, final byte[] pps) {
+        mVideoTrack = addTrack(mWriter.addVideoTrack(sps, pps));
+        return mVideoTrack;
+    }
+
+    /**
+     * add AAC audio track
+     *
+     * @param audioSpecificConfig AudioSpecificConfig(csd-0 of AAC encoder)
+     * @return track index
+     */
+    public int addAudioTrack(final byte[] audioSpecificConfig) {
+        return addTrack(mWriter.addAudioTrack(audioSpecificConfig));
+    }
+
+    private int addTrack(final int trackIndex) {
+        if (trackIndex >= mTrackPtsUs.length) {
+            final int n = mTrackPtsUs.length;
+            mTrackPtsUs = Arrays.copyOf(mTrackPtsUs, trackIndex + 1);
+            mTrackDurationUs = Arrays.copyOf(mTrackDurationUs, trackIndex + 1);
+            Arrays.fill(mTrackPtsUs, n, trackIndex + 1, -1);
+        }
+        return trackIndex;
+    }
+
+    /**
+     * open the first segment
+     */
+    public void start() throws IOException {
+        openSegment();
+    }
+
+    /**
+     * write encoded sample into current segment, new segment is started if needed
+     *
+     * @param data encoded data from position to limit, position is moved to limit
+     */
+    public void writeSample(final int trackIndex, final ByteBuffer data, final long ptsUs, final boolean isSync)
+        throws IOException {
+
+        final long prevPtsUs = mTrackPtsUs[trackIndex];
+        if ((prevPtsUs >= 0) && (ptsUs > prevPtsUs)) {
+            // assume this sample has the same duration as the previous one
+            mTrackDurationUs[trackIndex] = ptsUs - prevPtsUs;
+        }
+        mTrackPtsUs[trackIndex] = ptsUs;
+        if (mSegmentStartUs >= 0) {
+            final boolean cuttable = (mVideoTrack < 0) || (trackIndex == mVideoTrack);
+            final long elapsedUs = ptsUs - mSegmentStartUs;
+            if (cuttable && (isSync || (mVideoTrack < 0)) && (elapsedUs >= mTargetDurationUs)) {
+                cutSegment(ptsUs);
+            } else if (cuttable && (elapsedUs + mTrackDurationUs[trackIndex] > mMaxDurationUs)) {
+                // sync frame did not come in time, the playlist should not exceed #EXT-X-TARGETDURATION
+                cutSegment(ptsUs);
+            } else if ((elapsedUs >= mTargetDurationUs) && !mSyncRequested) {
+                mSyncRequested = true;
+                final Runnable request = mSyncFrameRequest;
+                if (request != null) {
+                    request.run();
+                }
+            }
+        }
+        if (mSegmentStartUs < 0) {
+            mSegmentStartUs = ptsUs;
+        }
+        final long endUs = ptsUs + mTrackDurationUs[trackIndex];
+        if (endUs > mEndUs) {
+            mEndUs = endUs;
+        }
+        mWriter.writeSample(trackIndex, data, ptsUs, isSync);
+    }
+
+    /**
+     * close the last segment and write playlist with end tag
+     */
+    public void stop() throws IOException {
+        if (mSegmentFile != null) {
+            closeSegment(mEndUs);
+        }
+        writePlaylist(true);
+    }
+
+    /**
+     * close segment file without writing playlist, e.g. on error
+     */
+    public void release() {
+        if (mSegmentFile != null) {
+            try {
+                mSegmentFile.close();
+            } catch (final IOException e) {
+                // ignore
+            }
+            mSegmentFile = null;
+        }
+    }
+
+//********************************************************************************
+
+    private void cutSegment(final long ptsUs) throws IOException {
+        closeSegment(ptsUs);
+        openSegment();
+    }
+
+    private void openSegment() throws IOException {
+        mSegmentName = segmentName(mSegmentIndex++);
+        mSegmentFile = new RandomAccessFile(new File(mPlaylist.getParentFile(), mSegmentName), "rw");
+        mSegmentFile.setLength(0);
+        mWriter.setOutput(mSegmentFile.getChannel());
+        mSegmentStartUs = -1;
+        mSyncRequested = false;
+    }
+
+    /**
+     * @param endUs presentation time of the end of segment(= start of next segment)
+     */
+    private void closeSegment(final long endUs) throws IOException {
+        mWriter.flush();
+        mSegmentFile.close();
+        mSegmentFile = null;
+        final long durationUs = mSegmentStartUs >= 0 ? Math.max(0, endUs - mSegmentStartUs) : 0;
+        mSegments.addLast(new Segment(mSegmentName, durationUs));
+        while ((mWindowSize > 0) && (mSegments.size() > mWindowSize)) {
+            mSegments.pollFirst();
+            // clients that loaded previous playlist may still request the removed segment,
+            // so delete the one before it
+            if (mMediaSequence > 0) {
+                new File(mPlaylist.getParentFile(), segmentName(mMediaSequence - 1)).delete();
+            }
+            mMediaSequence++;
+        }
+        writePlaylist(false);
+    }
+
+    private String segmentName(final int index) {
+        return String.format(Locale.US, "%s_%05d.ts", mBaseName, index);
+    }
+
+    private void writePlaylist(final boolean end) throws IOException {
+        final StringBuilder sb = mText;
+        sb.setLength(0);
+        sb.append("#EXTM3U\n");
+        sb.append("#EXT-X-VERSION:3\n");
+        sb.append("#EXT-X-TARGETDURATION:").append(mTargetDurationSec).append('\n');
+        sb.append("#EXT-X-MEDIA-SEQUENCE:").append(mMediaSequence).append('\n');
+        if (mWindowSize <= 0) {
+            sb.append("#EXT-X-PLAYLIST-TYPE:EVENT\n");
+        }
+        for (final Segment segment : mSegments) {
+            sb.append(String.format(Locale.US, "#EXTINF:%.3f,\n", segment.durationUs / 1000000.0));
+            sb.append(segment.name).append('\n');
+        }
+        if (end) {
+            sb.append("#EXT-X-ENDLIST\n");
+        }
+        final RandomAccessFile file = new RandomAccessFile(mPlaylistTemp, "rw");
+        try {
+            file.setLength(0);
+            final FileChannel channel = file.getChannel();
+            final ByteBuffer buf = ASCII.encode(sb.toString());
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        } finally {
+            file.close();
+        }
+        if (!mPlaylistTemp.renameTo(mPlaylist)) {
+            throw new IOException("failed to update playlist:" + mPlaylist);
+        }
+    }
+}
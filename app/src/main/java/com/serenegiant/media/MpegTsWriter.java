@@ -0,0 +1,390 @@
+package com.serenegiant.media;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Pure Java MPEG-TS(ISO/IEC 13818-1) packetizer for H.264 video and AAC audio
+ * 纯 Java 实现的 MPEG-TS 打包器
+ * <p>
+ * Each encoded sample becomes one PES packet. H.264 access units are written as Annex-B
+ * with AUD and, on sync frames, SPS/PPS. AAC frames get ADTS header built from AudioSpecificConfig.
+ * PAT/PMT are written at the beginning of each output and before every video sync frame,
+ * PCR is carried on the video PID(audio PID when there is no video).
+ * Packets are built directly from the sample buffer into one reusable direct buffer
+ * that is written to the channel when it is full or on #flush, so no allocation happens per sample.
+ * This class does not depend on Android framework, so it can run on JVM.
+ * This class is not thread safe.
+ */
+public class MpegTsWriter {
+
+    public static final int PACKET_SIZE = 188;
+    private static final int PID_PAT = 0x0000;
+    private static final int PID_PMT = 0x1000;
+    private static final int PID_VIDEO = 0x0100;
+    private static final int PID_AUDIO = 0x0101;
+    private static final int STREAM_TYPE_H264 = 0x1b;
+    private static final int STREAM_TYPE_AAC = 0x0f;
+    private static final int STREAM_ID_VIDEO = 0xe0;
+    private static final int STREAM_ID_AUDIO = 0xc0;
+    private static final int PROGRAM_NUMBER = 1;
+    private static final int MAX_TRACKS = 2;
+    /**
+     * offset added to PTS so that PCR can precede PTS of the first sample
+     */
+    private static final long PTS_OFFSET_US = 500000L;
+    private static final int BUFFERED_PACKETS = 64;
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+    private static final byte[] AUD = {0, 0, 0, 1, 0x09, (byte) 0xf0};
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        // CRC-32/MPEG-2: polynomial 0x04C11DB7, not reflected
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private static final class Track {
+        final boolean isVideo;
+        final int pid;
+        final int streamId;
+        int continuityCounter;
+        byte[] sps, pps;
+        /**
+         * ADTS header template, frame length is filled per sample
+         */
+        byte[] adts;
+
+        Track(final boolean isVideo) {
+            this.isVideo = isVideo;
+            this.pid = isVideo ? PID_VIDEO : PID_AUDIO;
+            this.streamId = isVideo ? STREAM_ID_VIDEO : STREAM_ID_AUDIO;
+        }
+    }
+
+    private WritableByteChannel mChannel;
+    private final Track[] mTracks = new Track[MAX_TRACKS];
+    private int mTrackCount;
+    private int mPcrPid = -1;
+    private int mPatCounter, mPmtCounter;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(PACKET_SIZE * BUFFERED_PACKETS);
+    /**
+     * PES header and codec prefix(AUD, SPS/PPS or ADTS header) of current sample
+     */
+    private final ByteBuffer mPrefix = ByteBuffer.allocate(1024);
+    private final byte[] mSection = new byte[PACKET_SIZE];
+
+    /**
+     * Constructor
+     *
+     * @param channel channel to write, this is not closed by this writer. can be null and set by #setOutput
+     */
+    public MpegTsWriter(final WritableByteChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * add H.264 video track
+     *
+     * @param sps sequence parameter set without start code
+     * @param pps picture parameter set without start code
+     * @return track index
+     */
+    public int addVideoTrack(final byte[] sps, final byte[] pps) {
+        if ((sps == null) || (pps == null))
+            throw new IllegalArgumentException("invalid sps/pps");
+        final Track track = addTrack(true);
+        track.sps = sps;
+        track.pps = pps;
+        mPcrPid = track.pid;
+        return mTrackCount - 1;
+    }
+
+    /**
+     * add AAC audio track
+     *
+     * @param audioSpecificConfig AudioSpecificConfig(csd-0 of AAC encoder)
+     * @return track index
+     */
+    public int addAudioTrack(final byte[] audioSpecificConfig) {
+        if ((audioSpecificConfig == null) || (audioSpecificConfig.length < 2))
+            throw new IllegalArgumentException("invalid AudioSpecificConfig");
+        final Track track = addTrack(false);
+        final int objectType = (audioSpecificConfig[0] & 0xff) >> 3;
+        final int frequencyIndex = ((audioSpecificConfig[0] & 0x07) << 1) | ((audioSpecificConfig[1] & 0xff) >> 7);
+        final int channelConfig = (audioSpecificConfig[1] >> 3) & 0x0f;
+        final byte[] adts = new byte[7];
+        adts[0] = (byte) 0xff;
+        adts[1] = (byte) 0xf1;  // MPEG-4, layer 0, no CRC
+        adts[2] = (byte) (((objectType - 1) << 6) | (frequencyIndex << 2) | (channelConfig >> 2));
+        adts[3] = (byte) ((channelConfig & 0x03) << 6);
+        adts[5] = (byte) 0x1f;  // buffer fullness 0x7ff(VBR)
+        adts[6] = (byte) 0xfc;
+        track.adts = adts;
+        if (mPcrPid < 0) {
+            mPcrPid = track.pid;
+        }
+        return mTrackCount - 1;
+    }
+
+    private Track addTrack(final boolean isVideo) {
+        if (mTrackCount >= MAX_TRACKS) throw new IllegalStateException("too many tracks");
+        for (int i = 0; i < mTrackCount; i++) {
+            if (mTracks[i].isVideo == isVideo)
+                throw new IllegalStateException((isVideo ? "video" : "audio") + " track already added");
+        }
+        final Track track = new Track(isVideo);
+        mTracks[mTrackCount++] = track;
+        return track;
+    }
+
+    /**
+     * flush packets to current output and switch to new output, PAT/PMT are written at its beginning.
+     * continuity counters and timestamps continue across outputs
+     *
+     * @param channel new output, this is not closed by this writer
+     */
+    public void setOutput(final WritableByteChannel channel) throws IOException {
+        flush();
+        mChannel = channel;
+        writeTables();
+    }
+
+    /**
+     * write PAT and PMT, this should be called once before the first sample
+     */
+    public void start() throws IOException {
+        if (mTrackCount == 0) throw new IllegalStateException("no track");
+        writeTables();
+    }
+
+    /**
+     * write one encoded sample as a PES packet
+     *
+     * @param trackIndex track index returned from #addVideoTrack or #addAudioTrack
+     * @param data       encoded data from position to limit(Annex-B for H.264, raw AAC frame),
+     *                   position is moved to limit
+     * @param ptsUs      presentation time
+     * @param isSync     true if this is a sync frame
+     */
+    public void writeSample(final int trackIndex, final ByteBuffer data, final long ptsUs, final boolean isSync)
+        throws IOException {
+
+        final Track track = mTracks[trackIndex];
+        if (track.isVideo && isSync) {
+            // every sync frame can be a random access point, e.g. for HLS segments
+            writeTables();
+        }
+        final ByteBuffer prefix = mPrefix;
+        prefix.clear();
+        // PES header
+        prefix.put((byte) 0).put((byte) 0).put((byte) 1).put((byte) track.streamId);
+        final int lengthPos = prefix.position();
+        prefix.putShort((short) 0);
+        prefix.put((byte) 0x80);  // marker bits
+        prefix.put((byte) 0x80);  // PTS only
+        prefix.put((byte) 5);
+        final long pts = (ptsUs + PTS_OFFSET_US) * 9 / 100;
+        prefix.put((byte) (0x21 | ((pts >> 29) & 0x0e)));
+        prefix.putShort((short) (((pts >> 14) & 0xfffe) | 1));
+        prefix.putShort((short) (((pts << 1) & 0xfffe) | 1));
+        if (track.isVideo) {
+            prefix.put(AUD);
+            if (isSync) {
+                prefix.put(START_CODE).put(track.sps);
+                prefix.put(START_CODE).put(track.pps);
+            }
+        } else {
+            final int frameLength = track.adts.length + data.remaining();
+            prefix.put(track.adts, 0, 3);
+            prefix.put((byte) ((track.adts[3] & 0xc0) | ((frameLength >> 11) & 0x03)));
+            prefix.put((byte) (frameLength >> 3));
+            prefix.put((byte) (((frameLength & 0x07) << 5) | (track.adts[5] & 0x1f)));
+            prefix.put(track.adts[6]);
+        }
+        final int pesLength = prefix.position() - (lengthPos + 2) + data.remaining();
+        // PES_packet_length can be 0 only for video
+        prefix.putShort(lengthPos, (short) (track.isVideo || (pesLength > 0xffff) ? 0 : pesLength));
+        prefix.flip();
+        writePes(track, prefix, data, track.pid == mPcrPid ? ptsUs * 9 / 100 : -1,
+            track.isVideo ? isSync : true);
+    }
+
+    /**
+     * write buffered packets to the channel
+     */
+    public void flush() throws IOException {
+        if ((mChannel != null) && (mBuffer.position() > 0)) {
+            mBuffer.flip();
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer);
+            }
+        }
+        mBuffer.clear();
+    }
+
+//********************************************************************************
+
+    /**
+     * split PES into TS packets
+     *
+     * @param pcr PCR base(90kHz) on the first packet, -1 for none
+     */
+    private void writePes(final Track track, final ByteBuffer prefix, final ByteBuffer data,
+                          final long pcr, final boolean randomAccess) throws IOException {
+
+        boolean first = true;
+        final int dataLimit = data.limit();
+        while (prefix.hasRemaining() || data.hasRemaining()) {
+            final ByteBuffer buf = obtainPacket();
+            final int remaining = prefix.remaining() + data.remaining();
+            buf.put((byte) 0x47);
+            buf.put((byte) ((first ? 0x40 : 0) | (track.pid >> 8)));
+            buf.put((byte) track.pid);
+            // adaptation field: PCR and random access indicator on the first packet, stuffing on the last
+            int adaptation = first && (pcr >= 0) ? 8 : 0;
+            if (184 - adaptation > remaining) {
+                adaptation = 184 - remaining;
+            }
+            buf.put((byte) ((adaptation > 0 ? 0x30 : 0x10) | track.continuityCounter));
+            track.continuityCounter = (track.continuityCounter + 1) & 0x0f;
+            if (adaptation > 0) {
+                final int start = buf.position();
+                buf.put((byte) (adaptation - 1));
+                if (adaptation > 1) {
+                    int flags = 0;
+                    if (first && (pcr >= 0)) {
+                        flags |= 0x10;
+                        if (randomAccess) flags |= 0x40;
+                    }
+                    buf.put((byte) flags);
+                    if ((flags & 0x10) != 0) {
+                        buf.putInt((int) (pcr >> 1));
+                        buf.put((byte) (((pcr & 1) << 7) | 0x7e));
+                        buf.put((byte) 0);
+                    }
+                    while (buf.position() - start < adaptation) {
+                        buf.put((byte) 0xff);
+                    }
+                }
+            }
+            // payload
+            int n = 184 - adaptation;
+            if (prefix.hasRemaining()) {
+                final int m = Math.min(n, prefix.remaining());
+                buf.put(prefix.array(), prefix.position(), m);
+                prefix.position(prefix.position() + m);
+                n -= m;
+            }
+            if (n > 0) {
+                data.limit(data.position() + n);
+                buf.put(data);
+                data.limit(dataLimit);
+            }
+            first = false;
+        }
+    }
+
+    private void writeTables() throws IOException {
+        // PAT
+        byte[] s = mSection;
+        int n = 0;
+        s[n++] = 0x00;  // table_id
+        final int patLengthPos = n;
+        n += 2;
+        s[n++] = 0x00;  // transport_stream_id
+        s[n++] = 0x01;
+        s[n++] = (byte) 0xc1;  // version 0, current_next 1
+        s[n++] = 0x00;
+        s[n++] = 0x00;
+        s[n++] = (byte) (PROGRAM_NUMBER >> 8);
+        s[n++] = (byte) PROGRAM_NUMBER;
+        s[n++] = (byte) (0xe0 | (PID_PMT >> 8));
+        s[n++] = (byte) PID_PMT;
+        n = finishSection(s, patLengthPos, n);
+        mPatCounter = writeSection(PID_PAT, mPatCounter, s, n);
+        // PMT
+        n = 0;
+        s[n++] = 0x02;
+        final int pmtLengthPos = n;
+        n += 2;
+        s[n++] = (byte) (PROGRAM_NUMBER >> 8);
+        s[n++] = (byte) PROGRAM_NUMBER;
+        s[n++] = (byte) 0xc1;
+        s[n++] = 0x00;
+        s[n++] = 0x00;
+        s[n++] = (byte) (0xe0 | (mPcrPid >> 8));
+        s[n++] = (byte) mPcrPid;
+        s[n++] = (byte) 0xf0;  // program_info_length 0
+        s[n++] = 0x00;
+        for (int i = 0; i < mTrackCount; i++) {
+            final Track track = mTracks[i];
+            s[n++] = (byte) (track.isVideo ? STREAM_TYPE_H264 : STREAM_TYPE_AAC);
+            s[n++] = (byte) (0xe0 | (track.pid >> 8));
+            s[n++] = (byte) track.pid;
+            s[n++] = (byte) 0xf0;  // ES_info_length 0
+            s[n++] = 0x00;
+        }
+        n = finishSection(s, pmtLengthPos, n);
+        mPmtCounter = writeSection(PID_PMT, mPmtCounter, s, n);
+    }
+
+    /**
+     * set section_length and append CRC
+     *
+     * @return end of section
+     */
+    private static int finishSection(final byte[] s, final int lengthPos, int n) {
+        final int length = n - lengthPos - 2 + 4;
+        s[lengthPos] = (byte) (0xb0 | (length >> 8));
+        s[lengthPos + 1] = (byte) length;
+        final int crc = crc32(s, 0, n);
+        s[n++] = (byte) (crc >> 24);
+        s[n++] = (byte) (crc >> 16);
+        s[n++] = (byte) (crc >> 8);
+        s[n++] = (byte) crc;
+        return n;
+    }
+
+    /**
+     * write PSI section in one packet
+     *
+     * @return next continuity counter
+     */
+    private int writeSection(final int pid, final int counter, final byte[] section, final int length)
+        throws IOException {
+
+        final ByteBuffer buf = obtainPacket();
+        buf.put((byte) 0x47);
+        buf.put((byte) (0x40 | (pid >> 8)));
+        buf.put((byte) pid);
+        buf.put((byte) (0x10 | counter));
+        buf.put((byte) 0);  // pointer_field
+        buf.put(section, 0, length);
+        for (int i = 5 + length; i < PACKET_SIZE; i++) {
+            buf.put((byte) 0xff);
+        }
+        return (counter + 1) & 0x0f;
+    }
+
+    private ByteBuffer obtainPacket() throws IOException {
+        if (mBuffer.remaining() < PACKET_SIZE) {
+            flush();
+        }
+        return mBuffer;
+    }
+
+    private static int crc32(final byte[] data, final int offset, final int length) {
+        int crc = 0xffffffff;
+        for (int i = offset; i < offset + length; i++) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data[i]) & 0xff];
+        }
+        return crc;
+    }
+}
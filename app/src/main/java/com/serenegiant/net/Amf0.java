@@ -0,0 +1,143 @@
+package com.serenegiant.net;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * minimum AMF0 encoder/decoder for RTMP commands
+ * RTMP 命令用的 AMF0 编解码
+ */
+/*package*/ final class Amf0 {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int TYPE_NUMBER = 0x00;
+    private static final int TYPE_BOOLEAN = 0x01;
+    private static final int TYPE_STRING = 0x02;
+    private static final int TYPE_OBJECT = 0x03;
+    private static final int TYPE_NULL = 0x05;
+    private static final int TYPE_UNDEFINED = 0x06;
+    private static final int TYPE_ECMA_ARRAY = 0x08;
+    private static final int TYPE_OBJECT_END = 0x09;
+    private static final int TYPE_STRICT_ARRAY = 0x0a;
+
+    private Amf0() {
+    }
+
+    public static void putNumber(final ByteBuffer buf, final double value) {
+        buf.put((byte) TYPE_NUMBER).putDouble(value);
+    }
+
+    public static void putBoolean(final ByteBuffer buf, final boolean value) {
+        buf.put((byte) TYPE_BOOLEAN).put((byte) (value ? 1 : 0));
+    }
+
+    public static void putString(final ByteBuffer buf, final String value) {
+        buf.put((byte) TYPE_STRING);
+        putKey(buf, value);
+    }
+
+    public static void putNull(final ByteBuffer buf) {
+        buf.put((byte) TYPE_NULL);
+    }
+
+    /**
+     * @param map values should be String, Number, Boolean or null
+     */
+    public static void putObject(final ByteBuffer buf, final Map<String, ?> map) {
+        buf.put((byte) TYPE_OBJECT);
+        putProperties(buf, map);
+    }
+
+    public static void putEcmaArray(final ByteBuffer buf, final Map<String, ?> map) {
+        buf.put((byte) TYPE_ECMA_ARRAY).putInt(map.size());
+        putProperties(buf, map);
+    }
+
+    private static void putProperties(final ByteBuffer buf, final Map<String, ?> map) {
+        for (final Map.Entry<String, ?> entry : map.entrySet()) {
+            putKey(buf, entry.getKey());
+            final Object value = entry.getValue();
+            if (value instanceof Number) {
+                putNumber(buf, ((Number) value).doubleValue());
+            } else if (value instanceof Boolean) {
+                putBoolean(buf, (Boolean) value);
+            } else if (value instanceof String) {
+                putString(buf, (String) value);
+            } else {
+                putNull(buf);
+            }
+        }
+        buf.put((byte) 0).put((byte) 0).put((byte) TYPE_OBJECT_END);
+    }
+
+    private static void putKey(final ByteBuffer buf, final String key) {
+        final byte[] bytes = key.getBytes(UTF_8);
+        buf.putShort((short) bytes.length).put(bytes);
+    }
+
+    /**
+     * decode all values in the buffer
+     *
+     * @return list of String, Double, Boolean, Map or null
+     */
+    public static List<Object> decode(final ByteBuffer buf) {
+        final List<Object> result = new ArrayList<Object>();
+        while (buf.hasRemaining()) {
+            result.add(decodeValue(buf));
+        }
+        return result;
+    }
+
+    private static Object decodeValue(final ByteBuffer buf) {
+        final int type = buf.get() & 0xff;
+        switch (type) {
+        case TYPE_NUMBER:
+            return buf.getDouble();
+        case TYPE_BOOLEAN:
+            return buf.get() != 0;
+        case TYPE_STRING:
+            return getKey(buf);
+        case TYPE_OBJECT:
+            return decodeProperties(buf);
+        case TYPE_ECMA_ARRAY:
+            buf.getInt();
+            return decodeProperties(buf);
+        case TYPE_STRICT_ARRAY: {
+            final int n = buf.getInt();
+            final List<Object> list = new ArrayList<Object>(n);
+            for (int i = 0; i < n; i++) {
+                list.add(decodeValue(buf));
+            }
+            return list;
+        }
+        case TYPE_NULL:
+        case TYPE_UNDEFINED:
+            return null;
+        default:
+            throw new IllegalArgumentException("unsupported AMF0 type:" + type);
+        }
+    }
+
+    private static Map<String, Object> decodeProperties(final ByteBuffer buf) {
+        final Map<String, Object> map = new LinkedHashMap<String, Object>();
+        for (; ; ) {
+            final String key = getKey(buf);
+            if (key.isEmpty() && ((buf.get(buf.position()) & 0xff) == TYPE_OBJECT_END)) {
+                buf.get();
+                return map;
+            }
+            map.put(key, decodeValue(buf));
+        }
+    }
+
+    private static String getKey(final ByteBuffer buf) {
+        final int length = buf.getShort() & 0xffff;
+        final byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
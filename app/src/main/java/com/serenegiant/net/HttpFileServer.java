@@ -0,0 +1,554 @@
+package com.serenegiant.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Embedded HTTP/1.1 server that serves files under a directory(e.g. recording directory)
+ * 内嵌的 HTTP 服务器，用于在局域网内取回录像文件
+ * <p>
+ * All connections are handled by one non-blocking selector loop on a low priority thread,
+ * so this never competes with encoder threads. File bodies are sent by FileChannel#transferTo
+ * without copying into Java heap. Files that are still growing are served up to their size
+ * at the time of the request, clients can fetch the rest with Range request later.
+ * Only GET and HEAD with single byte range are supported. Directories are listed as simple html.
+ * This class does not depend on Android framework, so it can run on JVM.
+ */
+public class HttpFileServer implements Runnable {
+
+    public static final int DEFAULT_PORT = 8080;
+    private static final int MAX_REQUEST_SIZE = 8 * 1024;
+    private static final long MAX_TRANSFER_SIZE = 256 * 1024;
+    private static final long IDLE_TIMEOUT_MS = 30000;
+    private static final long SELECT_TIMEOUT_MS = 1000;
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final class Connection {
+        final SocketChannel channel;
+        final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        /**
+         * status line, headers and small body(e.g. directory listing)
+         */
+        ByteBuffer header;
+        RandomAccessFile file;
+        long position, end;
+        boolean keepAlive;
+        long lastActiveMs;
+
+        Connection(final SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void closeFile() {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (final IOException e) {
+                    // ignore
+                }
+                file = null;
+            }
+        }
+    }
+
+    private final File mRoot;
+    private final String mRootPath;
+    private final int mPort;
+    private ServerSocketChannel mServerChannel;
+    private Selector mSelector;
+    private Thread mThread;
+    private volatile boolean mIsRunning;
+    private final StringBuilder mText = new StringBuilder();
+
+    /**
+     * Constructor
+     *
+     * @param root directory to serve
+     * @param port port to listen, 0 for any free port
+     */
+    public HttpFileServer(final File root, final int port) throws IOException {
+        mRoot = root.getCanonicalFile();
+        mRootPath = mRoot.getPath();
+        mPort = port;
+    }
+
+    /**
+     * bind and start the server thread
+     */
+    public synchronized void start() throws IOException {
+        if (mThread != null) return;
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().setReuseAddress(true);
+        mServerChannel.socket().bind(new InetSocketAddress(mPort));
+        mServerChannel.configureBlocking(false);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        mIsRunning = true;
+        mThread = new Thread(this, "HttpFileServer");
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * stop the server thread and close all connections
+     */
+    public void stop() {
+        final Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread == null) return;
+        mIsRunning = false;
+        mSelector.wakeup();
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * @return local port the server is listening, this is available after #start
+     */
+    public int getPort() {
+        final ServerSocketChannel channel = mServerChannel;
+        return channel != null ? channel.socket().getLocalPort() : mPort;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (mIsRunning) {
+                mSelector.select(SELECT_TIMEOUT_MS);
+                final long now = System.currentTimeMillis();
+                final Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) {
+                            accept(now);
+                        } else if (key.isReadable()) {
+                            read(key, now);
+                        } else if (key.isWritable()) {
+                            write(key, now);
+                        }
+                    } catch (final IOException e) {
+                        // client closed connection or file error
+                        close(key);
+                    }
+                }
+                closeIdleConnections(now);
+            }
+        } catch (final IOException e) {
+            // selector failed
+        } finally {
+            for (final SelectionKey key : mSelector.keys()) {
+                close(key);
+            }
+            try {
+                mServerChannel.close();
+                mSelector.close();
+            } catch (final IOException e) {
+                // ignore
+            }
+        }
+    }
+
+//********************************************************************************
+
+    private void accept(final long now) throws IOException {
+        final SocketChannel channel = mServerChannel.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        final Connection connection = new Connection(channel);
+        connection.lastActiveMs = now;
+        channel.register(mSelector, SelectionKey.OP_READ, connection);
+    }
+
+    private void read(final SelectionKey key, final long now) throws IOException {
+        final Connection connection = (Connection) key.attachment();
+        if (connection.channel.read(connection.request) < 0) {
+            close(key);
+            return;
+        }
+        connection.lastActiveMs = now;
+        handleRequest(key, connection);
+    }
+
+    /**
+     * parse request if whole header is received and prepare response
+     */
+    private void handleRequest(final SelectionKey key, final Connection connection) throws IOException {
+        final ByteBuffer request = connection.request;
+        final int headerEnd = findHeaderEnd(request);
+        if (headerEnd < 0) {
+            if (!request.hasRemaining()) {
+                // too large header
+                connection.keepAlive = false;
+                respondError(connection, 431, "Request Header Fields Too Large", isHeadRequest(request));
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            return;
+        }
+        final String text = new String(request.array(), 0, headerEnd, ISO_8859_1);
+        // keep pipelined request if any
+        request.flip();
+        request.position(headerEnd + 4);
+        request.compact();
+        final String[] lines = text.split("\r\n");
+        final String[] requestLine = lines[0].split(" ");
+        String range = null;
+        String connectionHeader = null;
+        for (int i = 1; i < lines.length; i++) {
+            final int colon = lines[i].indexOf(':');
+            if (colon <= 0) continue;
+            final String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.US);
+            final String value = lines[i].substring(colon + 1).trim();
+            if ("range".equals(name)) {
+                range = value;
+            } else if ("connection".equals(name)) {
+                connectionHeader = value.toLowerCase(Locale.US);
+            }
+        }
+        final String method = requestLine[0];
+        final boolean head = "HEAD".equals(method);
+        if (requestLine.length < 3) {
+            connection.keepAlive = false;
+            respondError(connection, 400, "Bad Request", head);
+        } else {
+            final boolean http11 = "HTTP/1.1".equals(requestLine[2]);
+            connection.keepAlive = http11 ? !"close".equals(connectionHeader) : "keep-alive".equals(connectionHeader);
+            if (!head && !"GET".equals(method)) {
+                respondError(connection, 405, "Method Not Allowed", head);
+            } else {
+                respondFile(connection, requestLine[1], range, head);
+            }
+        }
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void write(final SelectionKey key, final long now) throws IOException {
+        final Connection connection = (Connection) key.attachment();
+        final SocketChannel channel = connection.channel;
+        if ((connection.header != null) && connection.header.hasRemaining()) {
+            channel.write(connection.header);
+            if (connection.header.hasRemaining()) return;
+        }
+        if (connection.file != null) {
+            final long count = Math.min(MAX_TRANSFER_SIZE, connection.end - connection.position);
+            if (count > 0) {
+                // zero copy from file to socket
+                final long sent = connection.file.getChannel().transferTo(connection.position, count, channel);
+                if (sent > 0) {
+                    connection.position += sent;
+                    connection.lastActiveMs = now;
+                }
+            }
+            if (connection.position < connection.end) return;
+        }
+        // response completed
+        connection.closeFile();
+        connection.header = null;
+        if (!connection.keepAlive) {
+            close(key);
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        if (connection.request.position() > 0) {
+            handleRequest(key, connection);
+        }
+    }
+
+    private void respondFile(final Connection connection, final String target,
+                             final String range, final boolean head) throws IOException {
+
+        final File file = resolve(target);
+        if ((file == null) || !file.exists()) {
+            respondError(connection, 404, "Not Found", head);
+            return;
+        }
+        if (file.isDirectory()) {
+            respondDirectory(connection, target, file, head);
+            return;
+        }
+        final RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(file, "r");
+        } catch (final IOException e) {
+            respondError(connection, 403, "Forbidden", head);
+            return;
+        }
+        // size at this moment, the file may be still growing
+        final long length = raf.getChannel().size();
+        long start = 0, end = length;
+        boolean partial = false;
+        if (range != null) {
+            final long[] r = parseRange(range, length);
+            if (r == null) {
+                raf.close();
+                final StringBuilder sb = beginResponse(416, "Range Not Satisfiable");
+                sb.append("Content-Range: bytes */").append(length).append("\r\n");
+                endResponse(connection, sb, null, head);
+                return;
+            } else if (r.length == 2) {
+                start = r[0];
+                end = r[1] + 1;
+                partial = true;
+            }
+        }
+        final StringBuilder sb = partial ? beginResponse(206, "Partial Content") : beginResponse(200, "OK");
+        sb.append("Content-Type: ").append(getContentType(file.getName())).append("\r\n");
+        sb.append("Content-Length: ").append(end - start).append("\r\n");
+        sb.append("Accept-Ranges: bytes\r\n");
+        if (partial) {
+            sb.append("Content-Range: bytes ").append(start).append('-').append(end - 1)
+                .append('/').append(length).append("\r\n");
+        }
+        sb.append("Cache-Control: no-cache\r\n");
+        sb.append("Connection: ").append(connection.keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+        connection.header = ISO_8859_1.encode(sb.toString());
+        if (head || (start >= end)) {
+            raf.close();
+        } else {
+            connection.file = raf;
+            connection.position = start;
+            connection.end = end;
+        }
+    }
+
+    private void respondDirectory(final Connection connection, final String target,
+                                  final File dir, final boolean head) {
+        final String[] names = dir.list();
+        if (names != null) {
+            Arrays.sort(names);
+        }
+        final int query = target.indexOf('?');
+        final String path = query >= 0 ? target.substring(0, query) : target;
+        // target is already escaped by the client, names are escaped here
+        final String base = path.endsWith("/") ? path : path + "/";
+        final StringBuilder body = new StringBuilder();
+        body.append("<html><body><ul>\n");
+        if (names != null) {
+            for (final String name : names) {
+                final File file = new File(dir, name);
+                body.append("<li><a href=\"").append(escapeHtml(base + escapeUrl(name)))
+                    .append(file.isDirectory() ? "/" : "").append("\">").append(escapeHtml(name)).append("</a>");
+                if (file.isFile()) {
+                    body.append(" (").append(file.length()).append(')');
+                }
+                body.append("</li>\n");
+            }
+        }
+        body.append("</ul></body></html>\n");
+        final StringBuilder sb = beginResponse(200, "OK");
+        sb.append("Content-Type: text/html; charset=utf-8\r\n");
+        endResponse(connection, sb, body.toString().getBytes(UTF_8), head);
+    }
+
+    /**
+     * @param head true if the request was HEAD, then only headers are sent
+     */
+    private void respondError(final Connection connection, final int status, final String reason,
+                              final boolean head) {
+        endResponse(connection, beginResponse(status, reason), (status + " " + reason + "\n").getBytes(UTF_8), head);
+    }
+
+    /**
+     * check the method of the request whose header is not parsed(e.g. too large header)
+     */
+    private static boolean isHeadRequest(final ByteBuffer request) {
+        final byte[] bytes = request.array();
+        return (request.position() >= 5) && (bytes[0] == 'H') && (bytes[1] == 'E')
+            && (bytes[2] == 'A') && (bytes[3] == 'D') && (bytes[4] == ' ');
+    }
+
+    /**
+     * escape a path segment for URL, space is %20 and not '+'
+     */
+    private static String escapeUrl(final String segment) {
+        try {
+            return URLEncoder.encode(segment, "UTF-8").replace("+", "%20");
+        } catch (final UnsupportedEncodingException e) {
+            // never happens
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String escapeHtml(final String text) {
+        final StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            switch (c) {
+            case '&':
+                sb.append("&amp;");
+                break;
+            case '<':
+                sb.append("&lt;");
+                break;
+            case '>':
+                sb.append("&gt;");
+                break;
+            case '"':
+                sb.append("&quot;");
+                break;
+            case '\'':
+                sb.append("&#39;");
+                break;
+            default:
+                sb.append(c);
+                break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private StringBuilder beginResponse(final int status, final String reason) {
+        final StringBuilder sb = mText;
+        sb.setLength(0);
+        sb.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        return sb;
+    }
+
+    /**
+     * finish headers and set them with small body as response
+     */
+    private void endResponse(final Connection connection, final StringBuilder sb,
+                             final byte[] body, final boolean head) {
+        sb.append("Content-Length: ").append(body != null ? body.length : 0).append("\r\n");
+        sb.append("Connection: ").append(connection.keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+        final byte[] header = sb.toString().getBytes(ISO_8859_1);
+        final int bodyLength = (body != null) && !head ? body.length : 0;
+        final ByteBuffer buf = ByteBuffer.allocate(header.length + bodyLength);
+        buf.put(header);
+        if (bodyLength > 0) {
+            buf.put(body);
+        }
+        buf.flip();
+        connection.header = buf;
+    }
+
+    /**
+     * @return file under the root, null if the target is outside of the root
+     */
+    private File resolve(final String target) {
+        String path = target;
+        final int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        try {
+            // '+' is not a space in path
+            path = URLDecoder.decode(path.replace("+", "%2B"), "UTF-8");
+            final File file = new File(mRoot, path).getCanonicalFile();
+            final String filePath = file.getPath();
+            if (filePath.equals(mRootPath) || filePath.startsWith(mRootPath + File.separator)) {
+                return file;
+            }
+        } catch (final UnsupportedEncodingException e) {
+            // never happens
+        } catch (final IllegalArgumentException e) {
+            // malformed escape
+        } catch (final IOException e) {
+            // invalid path
+        }
+        return null;
+    }
+
+    /**
+     * parse single byte range
+     *
+     * @return {start, end(inclusive)}, empty array to ignore the header, null if not satisfiable
+     */
+    private static long[] parseRange(final String range, final long length) {
+        if (!range.startsWith("bytes=") || (range.indexOf(',') >= 0)) {
+            // multiple ranges are not supported, send whole file
+            return new long[0];
+        }
+        final String spec = range.substring(6).trim();
+        final int hyphen = spec.indexOf('-');
+        if (hyphen < 0) return new long[0];
+        try {
+            final String first = spec.substring(0, hyphen).trim();
+            final String last = spec.substring(hyphen + 1).trim();
+            long start, end;
+            if (first.isEmpty()) {
+                // suffix range
+                final long suffix = Long.parseLong(last);
+                if (suffix <= 0) return null;
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+            }
+            if ((start >= length) || (start > end)) return null;
+            return new long[]{start, end};
+        } catch (final NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    private static int findHeaderEnd(final ByteBuffer request) {
+        final byte[] data = request.array();
+        final int n = request.position();
+        for (int i = 0; i + 3 < n; i++) {
+            if ((data[i] == '\r') && (data[i + 1] == '\n') && (data[i + 2] == '\r') && (data[i + 3] == '\n')) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String getContentType(final String name) {
+        final String lower = name.toLowerCase(Locale.US);
+        if (lower.endsWith(".mp4")) return "video/mp4";
+        if (lower.endsWith(".m4a")) return "audio/mp4";
+        if (lower.endsWith(".m3u8")) return "application/vnd.apple.mpegurl";
+        if (lower.endsWith(".ts")) return "video/mp2t";
+        if (lower.endsWith(".png")) return "image/png";
+        if (lower.endsWith(".jpg")) return "image/jpeg";
+        return "application/octet-stream";
+    }
+
+    private void closeIdleConnections(final long now) {
+        for (final SelectionKey key : mSelector.keys()) {
+            final Object attachment = key.attachment();
+            if ((attachment instanceof Connection)
+                && (now - ((Connection) attachment).lastActiveMs > IDLE_TIMEOUT_MS)) {
+                close(key);
+            }
+        }
+    }
+
+    private void close(final SelectionKey key) {
+        key.cancel();
+        final Object attachment = key.attachment();
+        if (attachment instanceof Connection) {
+            ((Connection) attachment).closeFile();
+        }
+        try {
+            key.channel().close();
+        } catch (final IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,859 @@
+package com.serenegiant.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * RTMP client that publishes H.264/AAC encoded samples as FLV tags without re-encoding
+ * RTMP 推流客户端，将编码后的 H.264/AAC 数据封装为 FLV tag 发送
+ * <p>
+ * #writeSample copies the sample into SendQueue, then returns immediately.
+ * Connection, handshake and all socket I/O run on one network thread with non-blocking SocketChannel.
+ * Only small amount of data is kept in the output buffer, so backlog stays in the SendQueue
+ * that drops video frames when the network is slower than the encoders(see SendQueue),
+ * so the network never blocks the caller nor other sinks such as local file and latency recovers
+ * after the network becomes fast again. The queue has own pool separated from the one of local writer,
+ * so network backlog never takes memory from local recording.
+ * Video should not have B-frames: FLV tag timestamp is decode time and composition time is
+ * the difference to presentation time, but encoders only give presentation time, so this sends
+ * composition time 0 and stops publishing with IOException if presentation time of video goes back.
+ * This class does not depend on Android framework, so it can run on JVM.
+ */
+public class RtmpPublisher implements Runnable {
+
+    public static final int DEFAULT_PORT = 1935;
+    public static final long DEFAULT_CAPACITY = 8L * 1024 * 1024;
+    private static final int OUT_CHUNK_SIZE = 4096;
+    private static final int INITIAL_OUTPUT_SIZE = 512 * 1024;
+    /**
+     * samples are moved from the queue into the output buffer only while it has less than this
+     */
+    private static final int OUTPUT_LOW_WATER = 64 * 1024;
+    private static final long SETUP_TIMEOUT_MS = 10000;
+    private static final long CLOSE_TIMEOUT_MS = 1000;
+    private static final int HANDSHAKE_SIZE = 1536;
+    // chunk stream ids
+    private static final int CSID_CONTROL = 2;
+    private static final int CSID_COMMAND = 3;
+    private static final int CSID_AUDIO = 4;
+    private static final int CSID_DATA = 5;
+    private static final int CSID_VIDEO = 6;
+    private static final int CSID_STREAM_COMMAND = 8;
+    // message types
+    private static final int MSG_SET_CHUNK_SIZE = 1;
+    private static final int MSG_ACK = 3;
+    private static final int MSG_USER_CONTROL = 4;
+    private static final int MSG_WINDOW_ACK_SIZE = 5;
+    private static final int MSG_AUDIO = 8;
+    private static final int MSG_VIDEO = 9;
+    private static final int MSG_DATA_AMF0 = 18;
+    private static final int MSG_COMMAND_AMF0 = 20;
+
+    /**
+     * callbacks on the network thread
+     */
+    public interface Listener {
+        void onPublishStarted();
+
+        /**
+         * @param reason null if stopped by #stop
+         */
+        void onStopped(Exception reason);
+    }
+
+    /**
+     * state of incoming chunk stream
+     */
+    private static final class ChunkStream {
+        int timestamp, timestampDelta;
+        int length, type, streamId;
+        boolean extended;
+        byte[] payload = new byte[0];
+        int received;
+    }
+
+    private final String mHost;
+    private final int mPort;
+    private final String mApp;
+    private final String mStreamName;
+    private final String mTcUrl;
+    private final Listener mListener;
+    private final SendQueue mQueue;
+    private int mVideoTrack = -1, mAudioTrack = -1;
+    private int mTrackCount;
+    private byte[] mSps, mPps, mAudioSpecificConfig;
+    private int mWidth, mHeight, mSampleRate, mChannelCount;
+    private volatile boolean mIsPublishing;
+    private volatile boolean mRequestStop;
+    private volatile long mSentBytes;
+    private Thread mThread;
+    /**
+     * opened on the network thread, #writeSample and #stop wake it up from other threads
+     */
+    private volatile Selector mSelector;
+    // followings are only accessed on the network thread
+    private SocketChannel mChannel;
+    private final ByteBuffer mIn = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer mOut = ByteBuffer.allocateDirect(INITIAL_OUTPUT_SIZE);
+    private ByteBuffer mBody = ByteBuffer.allocate(64 * 1024);
+    private final Map<Integer, ChunkStream> mChunkStreams = new HashMap<Integer, ChunkStream>();
+    private int mInChunkSize = 128;
+    private long mReceivedBytes, mAckedBytes;
+    private int mAckWindow = 2500000;
+    private int mStreamId;
+    private long mBaseUs = -1;
+    private long mLastVideoUs = -1;
+    private SendQueue.Entry mPending;
+
+    /**
+     * Constructor
+     *
+     * @param url      rtmp://host[:port]/app/stream
+     * @param listener can be null
+     */
+    public RtmpPublisher(final String url, final Listener listener) {
+        this(url, listener, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param url      rtmp://host[:port]/app/stream
+     * @param listener can be null
+     * @param capacity size limit of memory for queued samples
+     */
+    public RtmpPublisher(final String url, final Listener listener, final long capacity) {
+        if ((url == null) || !url.startsWith("rtmp://"))
+            throw new IllegalArgumentException("invalid url:" + url);
+        final String rest = url.substring(7);
+        final int slash = rest.indexOf('/');
+        final int last = rest.lastIndexOf('/');
+        if ((slash <= 0) || (last <= slash))
+            throw new IllegalArgumentException("url should be rtmp://host[:port]/app/stream:" + url);
+        final String authority = rest.substring(0, slash);
+        final int colon = authority.indexOf(':');
+        mHost = colon > 0 ? authority.substring(0, colon) : authority;
+        mPort = colon > 0 ? Integer.parseInt(authority.substring(colon + 1)) : DEFAULT_PORT;
+        mApp = rest.substring(slash + 1, last);
+        mStreamName = rest.substring(last + 1);
+        mTcUrl = "rtmp://" + authority + "/" + mApp;
+        mListener = listener;
+        mQueue = new SendQueue(capacity);
+    }
+
+    /**
+     * @param sps sequence parameter set without start code
+     * @param pps picture parameter set without start code
+     * @return track index
+     */
+    public int addVideoTrack(final int width, final int height, final byte[] sps, final byte[] pps) {
+        if ((sps == null) || (sps.length < 4) || (pps == null))
+            throw new IllegalArgumentException("invalid sps/pps");
+        if (mVideoTrack >= 0) throw new IllegalStateException("video track already added");
+        mWidth = width;
+        mHeight = height;
+        mSps = sps;
+        mPps = pps;
+        mVideoTrack = mTrackCount++;
+        return mVideoTrack;
+    }
+
+    /**
+     * @param audioSpecificConfig AudioSpecificConfig(csd-0 of AAC encoder)
+     * @return track index
+     */
+    public int addAudioTrack(final int sampleRate, final int channelCount, final byte[] audioSpecificConfig) {
+        if ((audioSpecificConfig == null) || (audioSpecificConfig.length < 2))
+            throw new IllegalArgumentException("invalid AudioSpecificConfig");
+        if (mAudioTrack >= 0) throw new IllegalStateException("audio track already added");
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mAudioSpecificConfig = audioSpecificConfig;
+        mAudioTrack = mTrackCount++;
+        return mAudioTrack;
+    }
+
+    /**
+     * start connecting on the network thread
+     */
+    public synchronized void start() {
+        if (mThread != null) return;
+        mThread = new Thread(this, "RtmpPublisher");
+        mThread.start();
+    }
+
+    /**
+     * request to stop publishing, this does not wait for the network thread
+     */
+    public void stop() {
+        mRequestStop = true;
+        final Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    public boolean isPublishing() {
+        return mIsPublishing;
+    }
+
+    /**
+     * set task to request sync frame to video encoder, this is called after video frames are dropped
+     */
+    public void setSyncFrameRequest(final Runnable request) {
+        mQueue.setSyncFrameRequest(request);
+    }
+
+    /**
+     * @return queue of samples to send, e.g. to get backlog, throughput and dropped frames
+     */
+    public SendQueue getSendQueue() {
+        return mQueue;
+    }
+
+    /**
+     * @return number of samples dropped because network was too slow
+     */
+    public long getDropCount() {
+        return mQueue.getDroppedNonReference() + mQueue.getDroppedVideo() + mQueue.getDroppedAudio();
+    }
+
+    public long getSentBytes() {
+        return mSentBytes;
+    }
+
+    /**
+     * copy encoded sample and queue it, this never blocks.
+     * samples are dropped while not publishing
+     *
+     * @param data   encoded data from position to limit(Annex-B for H.264, raw AAC frame)
+     * @param ptsUs  presentation time, this should not go back on video track(no B-frames)
+     * @param isSync true if this is a sync frame
+     */
+    public void writeSample(final int trackIndex, final ByteBuffer data, final long ptsUs, final boolean isSync) {
+        if (!mIsPublishing || mRequestStop) return;
+        if (mQueue.offer(trackIndex, trackIndex == mVideoTrack, data, ptsUs, isSync)) {
+            final Selector selector = mSelector;
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        Exception reason = null;
+        try {
+            mSelector = Selector.open();
+            final long deadline = System.currentTimeMillis() + SETUP_TIMEOUT_MS;
+            connect(deadline);
+            handshake(deadline);
+            setupStream(deadline);
+            mIsPublishing = true;
+            if (mListener != null) {
+                mListener.onPublishStarted();
+            }
+            sendHeaders();
+            publishLoop();
+            closeStream();
+        } catch (final Exception e) {
+            reason = e;
+        } finally {
+            mIsPublishing = false;
+            try {
+                if (mChannel != null) mChannel.close();
+                if (mSelector != null) mSelector.close();
+            } catch (final IOException e) {
+                // ignore
+            }
+            if (mPending != null) {
+                mQueue.recycle(mPending);
+                mPending = null;
+            }
+            mQueue.clear();
+            if (mListener != null) {
+                mListener.onStopped(reason);
+            }
+        }
+    }
+
+//********************************************************************************
+// connection setup
+
+    private void connect(final long deadline) throws IOException {
+        mChannel = SocketChannel.open();
+        mChannel.configureBlocking(false);
+        mChannel.socket().setTcpNoDelay(true);
+        mChannel.connect(new InetSocketAddress(mHost, mPort));
+        final SelectionKey key = mChannel.register(mSelector, SelectionKey.OP_CONNECT);
+        while (!mChannel.finishConnect()) {
+            await(key, deadline);
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void handshake(final long deadline) throws IOException {
+        // C0 + C1
+        mOut.clear();
+        mOut.put((byte) 3);
+        mOut.putInt(0).putInt(0);
+        final byte[] random = new byte[HANDSHAKE_SIZE - 8];
+        new Random().nextBytes(random);
+        mOut.put(random);
+        flushOut(deadline);
+        // S0 + S1 + S2
+        final int size = 1 + HANDSHAKE_SIZE * 2;
+        while (mIn.position() < size) {
+            readSome(deadline);
+        }
+        mIn.flip();
+        if (mIn.get() != 3) throw new IOException("unsupported RTMP version");
+        // C2 echoes S1
+        mOut.clear();
+        mOut.put(mIn.array(), 1, HANDSHAKE_SIZE);
+        mIn.position(size);
+        mIn.compact();
+        flushOut(deadline);
+        mReceivedBytes = mIn.position();
+    }
+
+    private void setupStream(final long deadline) throws IOException {
+        sendControl(MSG_SET_CHUNK_SIZE, OUT_CHUNK_SIZE);
+        final Map<String, Object> connect = new LinkedHashMap<String, Object>();
+        connect.put("app", mApp);
+        connect.put("type", "nonprivate");
+        connect.put("flashVer", "FMLE/3.0 (compatible; FMSc/1.0)");
+        connect.put("tcUrl", mTcUrl);
+        ByteBuffer body = beginBody();
+        Amf0.putString(body, "connect");
+        Amf0.putNumber(body, 1);
+        Amf0.putObject(body, connect);
+        sendCommand(CSID_COMMAND, 0, body);
+        flushOut(deadline);
+        waitResult(1, deadline);
+
+        body = beginBody();
+        Amf0.putString(body, "releaseStream");
+        Amf0.putNumber(body, 2);
+        Amf0.putNull(body);
+        Amf0.putString(body, mStreamName);
+        sendCommand(CSID_COMMAND, 0, body);
+        body = beginBody();
+        Amf0.putString(body, "FCPublish");
+        Amf0.putNumber(body, 3);
+        Amf0.putNull(body);
+        Amf0.putString(body, mStreamName);
+        sendCommand(CSID_COMMAND, 0, body);
+        body = beginBody();
+        Amf0.putString(body, "createStream");
+        Amf0.putNumber(body, 4);
+        Amf0.putNull(body);
+        sendCommand(CSID_COMMAND, 0, body);
+        flushOut(deadline);
+        final List<Object> result = waitResult(4, deadline);
+        if ((result.size() < 4) || !(result.get(3) instanceof Double))
+            throw new IOException("unexpected result of createStream:" + result);
+        mStreamId = ((Double) result.get(3)).intValue();
+
+        body = beginBody();
+        Amf0.putString(body, "publish");
+        Amf0.putNumber(body, 5);
+        Amf0.putNull(body);
+        Amf0.putString(body, mStreamName);
+        Amf0.putString(body, "live");
+        sendCommand(CSID_STREAM_COMMAND, mStreamId, body);
+        flushOut(deadline);
+        for (; ; ) {
+            final List<Object> command = readCommand(deadline);
+            if ("onStatus".equals(command.get(0))) {
+                final String code = getStatusCode(command);
+                if ("NetStream.Publish.Start".equals(code)) break;
+                throw new IOException("failed to publish:" + code);
+            }
+        }
+    }
+
+    /**
+     * wait for _result of specific transaction
+     */
+    private List<Object> waitResult(final int transactionId, final long deadline) throws IOException {
+        for (; ; ) {
+            final List<Object> command = readCommand(deadline);
+            final Object name = command.get(0);
+            if (("_result".equals(name) || "_error".equals(name))
+                && (command.size() > 1) && (command.get(1) instanceof Double)
+                && (((Double) command.get(1)).intValue() == transactionId)) {
+                if ("_error".equals(name)) throw new IOException("command failed:" + command);
+                return command;
+            }
+        }
+    }
+
+    private List<Object> readCommand(final long deadline) throws IOException {
+        for (; ; ) {
+            final List<Object> command = processInput();
+            if (command != null) return command;
+            flushOut(deadline);
+            readSome(deadline);
+        }
+    }
+
+    private static String getStatusCode(final List<Object> command) {
+        for (final Object value : command) {
+            if (value instanceof Map) {
+                final Object code = ((Map<?, ?>) value).get("code");
+                if (code != null) return code.toString();
+            }
+        }
+        return null;
+    }
+
+//********************************************************************************
+// publishing
+
+    private void sendHeaders() throws IOException {
+        final long deadline = System.currentTimeMillis() + SETUP_TIMEOUT_MS;
+        final Map<String, Object> meta = new LinkedHashMap<String, Object>();
+        meta.put("duration", 0);
+        if (mVideoTrack >= 0) {
+            meta.put("width", mWidth);
+            meta.put("height", mHeight);
+            meta.put("videocodecid", 7);
+        }
+        if (mAudioTrack >= 0) {
+            meta.put("audiocodecid", 10);
+            meta.put("audiosamplerate", mSampleRate);
+            meta.put("audiosamplesize", 16);
+            meta.put("stereo", mChannelCount > 1);
+        }
+        ByteBuffer body = beginBody();
+        Amf0.putString(body, "@setDataFrame");
+        Amf0.putString(body, "onMetaData");
+        Amf0.putEcmaArray(body, meta);
+        body.flip();
+        writeMessage(CSID_DATA, MSG_DATA_AMF0, mStreamId, 0, body);
+        if (mVideoTrack >= 0) {
+            // AVC sequence header(AVCDecoderConfigurationRecord)
+            body = beginBody();
+            body.put((byte) 0x17).put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 0);
+            body.put((byte) 1).put(mSps[1]).put(mSps[2]).put(mSps[3]);
+            body.put((byte) 0xff).put((byte) 0xe1);
+            body.putShort((short) mSps.length).put(mSps);
+            body.put((byte) 1).putShort((short) mPps.length).put(mPps);
+            body.flip();
+            writeMessage(CSID_VIDEO, MSG_VIDEO, mStreamId, 0, body);
+        }
+        if (mAudioTrack >= 0) {
+            // AAC sequence header(AudioSpecificConfig)
+            body = beginBody();
+            body.put((byte) 0xaf).put((byte) 0).put(mAudioSpecificConfig);
+            body.flip();
+            writeMessage(CSID_AUDIO, MSG_AUDIO, mStreamId, 0, body);
+        }
+        flushOut(deadline);
+    }
+
+    private void publishLoop() throws IOException {
+        final SelectionKey key = mChannel.keyFor(mSelector);
+        while (!mRequestStop) {
+            key.interestOps(mOut.position() > 0
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            final boolean canFill = (mOut.position() < OUTPUT_LOW_WATER)
+                && (mPending != null ? mOut.position() == 0 : !mQueue.isEmpty());
+            if (canFill) {
+                mSelector.selectNow();
+            } else {
+                // wait until the socket becomes writable or new sample is queued
+                mSelector.select(100);
+            }
+            mSelector.selectedKeys().clear();
+            if (key.isValid() && key.isReadable() && (readInput() > 0)) {
+                List<Object> command;
+                while ((command = processInput()) != null) {
+                    if ("onStatus".equals(command.get(0))) {
+                        final String code = getStatusCode(command);
+                        if ((code != null) && (code.contains("Failed") || code.contains("Error")))
+                            throw new IOException("publish failed:" + code);
+                    }
+                }
+            }
+            // keep output buffer small so that backlog stays in the queue where it can be dropped
+            while (mOut.position() < OUTPUT_LOW_WATER) {
+                final SendQueue.Entry sample = mPending != null ? mPending : mQueue.poll();
+                if (sample == null) break;
+                if (!writeSample(sample)) {
+                    // output buffer is full, keep this until the socket becomes writable
+                    mPending = sample;
+                    break;
+                }
+                mPending = null;
+                mQueue.recycle(sample);
+            }
+            if (mOut.position() > 0) {
+                mOut.flip();
+                final int n = mChannel.write(mOut);
+                mOut.compact();
+                mSentBytes += n;
+                mQueue.onSent(n);
+            }
+        }
+    }
+
+    private void closeStream() throws IOException {
+        final long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS;
+        ByteBuffer body = beginBody();
+        Amf0.putString(body, "FCUnpublish");
+        Amf0.putNumber(body, 6);
+        Amf0.putNull(body);
+        Amf0.putString(body, mStreamName);
+        sendCommand(CSID_COMMAND, 0, body);
+        body = beginBody();
+        Amf0.putString(body, "deleteStream");
+        Amf0.putNumber(body, 7);
+        Amf0.putNull(body);
+        Amf0.putNumber(body, mStreamId);
+        sendCommand(CSID_COMMAND, 0, body);
+        flushOut(deadline);
+    }
+
+    /**
+     * convert the sample into FLV tag and put it into the output buffer
+     *
+     * @return false if the output buffer does not have enough space
+     */
+    private boolean writeSample(final SendQueue.Entry sample) throws IOException {
+        final ByteBuffer data = sample.data();
+        final int estimate = data.remaining() + 64 + (data.remaining() / OUT_CHUNK_SIZE + 1) * 8;
+        if (mOut.remaining() < estimate) {
+            if (mOut.position() > 0) return false;
+            growOutput(estimate);
+        }
+        if (mBaseUs < 0) {
+            mBaseUs = sample.ptsUs;
+        }
+        final int timestamp = (int) Math.max(0, (sample.ptsUs - mBaseUs) / 1000);
+        final ByteBuffer body;
+        if (sample.isVideo) {
+            // samples come in decode order, so presentation time going back means B-frames.
+            // dropping in the queue never reorders samples
+            if (sample.ptsUs < mLastVideoUs)
+                throw new IOException("B-frames are not supported:" + sample.ptsUs + "us after " + mLastVideoUs + "us");
+            mLastVideoUs = sample.ptsUs;
+            body = beginBody(data.remaining() + 64);
+            body.put((byte) (sample.isSync ? 0x17 : 0x27)).put((byte) 1);
+            // composition time, decode time equals to presentation time without B-frames
+            body.put((byte) 0).put((byte) 0).put((byte) 0);
+            putAsLengthPrefixed(body, data);
+            body.flip();
+            writeMessage(CSID_VIDEO, MSG_VIDEO, mStreamId, timestamp, body);
+        } else {
+            body = beginBody(data.remaining() + 2);
+            body.put((byte) 0xaf).put((byte) 1).put(data);
+            body.flip();
+            writeMessage(CSID_AUDIO, MSG_AUDIO, mStreamId, timestamp, body);
+        }
+        return true;
+    }
+
+    /**
+     * convert Annex-B to 4 bytes length prefixed NAL units, parameter sets and AUD are removed
+     * because they are sent as sequence header
+     */
+    private static void putAsLengthPrefixed(final ByteBuffer dst, final ByteBuffer src) {
+        final int start = src.position();
+        final int limit = src.limit();
+        int nal = findNalStart(src, start, limit);
+        if (nal < 0) {
+            // already length prefixed
+            dst.put(src);
+            return;
+        }
+        while (nal >= 0) {
+            final int next = findNalStart(src, nal, limit);
+            int end = next >= 0 ? next : limit;
+            // remove start code of next NAL unit
+            while ((end > nal) && (next >= 0) && (src.get(end - 1) == 0)) {
+                end--;
+            }
+            final int type = src.get(nal) & 0x1f;
+            if ((type != 7) && (type != 8) && (type != 9) && (end > nal)) {
+                dst.putInt(end - nal);
+                src.limit(end).position(nal);
+                dst.put(src);
+                src.limit(limit);
+            }
+            nal = next;
+        }
+        src.position(limit);
+    }
+
+    /**
+     * @return position just after next start code(00 00 01), -1 if not found
+     */
+    private static int findNalStart(final ByteBuffer buf, final int from, final int limit) {
+        for (int i = from; i + 2 < limit; i++) {
+            if ((buf.get(i) == 0) && (buf.get(i + 1) == 0) && (buf.get(i + 2) == 1)) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+//********************************************************************************
+// chunk stream
+
+    private ByteBuffer beginBody() {
+        return beginBody(1024);
+    }
+
+    private ByteBuffer beginBody(final int size) {
+        if (mBody.capacity() < size) {
+            mBody = ByteBuffer.allocate(Math.max(size, mBody.capacity() * 2));
+        }
+        mBody.clear();
+        return mBody;
+    }
+
+    private void sendControl(final int type, final int value) {
+        final ByteBuffer body = beginBody();
+        body.putInt(value);
+        body.flip();
+        writeMessage(CSID_CONTROL, type, 0, 0, body);
+    }
+
+    private void sendCommand(final int csid, final int streamId, final ByteBuffer body) {
+        body.flip();
+        writeMessage(csid, MSG_COMMAND_AMF0, streamId, 0, body);
+    }
+
+    /**
+     * split message into chunks(fmt 0 + fmt 3) and put them into the output buffer
+     */
+    private void writeMessage(final int csid, final int type, final int streamId,
+                              final int timestamp, final ByteBuffer body) {
+        final int length = body.remaining();
+        final boolean extended = timestamp >= 0xffffff;
+        final int needed = length + 16 + (length / OUT_CHUNK_SIZE + 1) * 5;
+        if (mOut.remaining() < needed) {
+            growOutput(mOut.position() + needed);
+        }
+        final ByteBuffer out = mOut;
+        out.put((byte) csid);
+        putInt24(out, extended ? 0xffffff : timestamp);
+        putInt24(out, length);
+        out.put((byte) type);
+        // message stream id is little endian
+        out.put((byte) streamId).put((byte) (streamId >> 8)).put((byte) (streamId >> 16)).put((byte) (streamId >> 24));
+        if (extended) out.putInt(timestamp);
+        final int limit = body.limit();
+        boolean first = true;
+        while (first || body.hasRemaining()) {
+            if (!first) {
+                out.put((byte) (0xc0 | csid));
+                if (extended) out.putInt(timestamp);
+            }
+            body.limit(Math.min(limit, body.position() + OUT_CHUNK_SIZE));
+            out.put(body);
+            body.limit(limit);
+            first = false;
+        }
+    }
+
+    private static void putInt24(final ByteBuffer buf, final int value) {
+        buf.put((byte) (value >> 16)).put((byte) (value >> 8)).put((byte) value);
+    }
+
+    private static int getInt24(final ByteBuffer buf) {
+        return ((buf.get() & 0xff) << 16) | ((buf.get() & 0xff) << 8) | (buf.get() & 0xff);
+    }
+
+    private void growOutput(final int size) {
+        final ByteBuffer out = ByteBuffer.allocateDirect(Math.max(size, mOut.capacity() * 2));
+        mOut.flip();
+        out.put(mOut);
+        mOut = out;
+    }
+
+    /**
+     * parse received chunks and handle protocol control messages
+     *
+     * @return AMF0 command if received, null if no more complete command
+     */
+    private List<Object> processInput() throws IOException {
+        final ByteBuffer in = mIn;
+        in.flip();
+        try {
+            int start;
+            for (; ; ) {
+                start = in.position();
+                if (in.remaining() < 1) return null;
+                final int b = in.get() & 0xff;
+                final int fmt = b >> 6;
+                int csid = b & 0x3f;
+                if (csid == 0) {
+                    if (in.remaining() < 1) break;
+                    csid = 64 + (in.get() & 0xff);
+                } else if (csid == 1) {
+                    if (in.remaining() < 2) break;
+                    csid = 64 + (in.get() & 0xff) + ((in.get() & 0xff) << 8);
+                }
+                final int headerSize = fmt == 0 ? 11 : (fmt == 1 ? 7 : (fmt == 2 ? 3 : 0));
+                if (in.remaining() < headerSize) break;
+                ChunkStream cs = mChunkStreams.get(csid);
+                if (cs == null) {
+                    cs = new ChunkStream();
+                    mChunkStreams.put(csid, cs);
+                }
+                int timestamp = cs.timestamp, delta = cs.timestampDelta;
+                int length = cs.length, type = cs.type, streamId = cs.streamId;
+                boolean extended = cs.extended;
+                if (fmt <= 2) {
+                    final int ts = getInt24(in);
+                    extended = ts == 0xffffff;
+                    if (fmt <= 1) {
+                        length = getInt24(in);
+                        type = in.get() & 0xff;
+                        if (fmt == 0) {
+                            streamId = (in.get() & 0xff) | ((in.get() & 0xff) << 8)
+                                | ((in.get() & 0xff) << 16) | ((in.get() & 0xff) << 24);
+                        }
+                    }
+                    if (fmt == 0) {
+                        timestamp = ts;
+                        delta = 0;
+                    } else {
+                        delta = ts;
+                    }
+                }
+                if (extended) {
+                    if (in.remaining() < 4) break;
+                    final int ts = in.getInt();
+                    if (fmt == 0) timestamp = ts; else if (fmt <= 2) delta = ts;
+                }
+                final int chunk = Math.min(mInChunkSize, length - (cs.received));
+                if (in.remaining() < chunk) break;
+                // whole chunk is available, commit the header
+                if ((cs.received == 0) && (fmt != 0)) {
+                    timestamp += delta;
+                }
+                cs.timestamp = timestamp;
+                cs.timestampDelta = delta;
+                cs.length = length;
+                cs.type = type;
+                cs.streamId = streamId;
+                cs.extended = extended;
+                if (cs.payload.length < length) {
+                    cs.payload = new byte[length];
+                }
+                in.get(cs.payload, cs.received, chunk);
+                cs.received += chunk;
+                if (cs.received >= length) {
+                    cs.received = 0;
+                    final List<Object> command = handleMessage(cs.type, ByteBuffer.wrap(cs.payload, 0, length));
+                    if (command != null) return command;
+                }
+            }
+            // incomplete chunk, rewind to the beginning of it
+            in.position(start);
+            return null;
+        } finally {
+            in.compact();
+        }
+    }
+
+    private List<Object> handleMessage(final int type, final ByteBuffer payload) throws IOException {
+        switch (type) {
+        case MSG_SET_CHUNK_SIZE:
+            mInChunkSize = payload.getInt() & 0x7fffffff;
+            break;
+        case MSG_WINDOW_ACK_SIZE:
+            mAckWindow = payload.getInt();
+            break;
+        case MSG_USER_CONTROL:
+            if (payload.getShort() == 6) {
+                // ping request, reply ping response with same timestamp
+                final int value = payload.getInt();
+                final ByteBuffer body = beginBody();
+                body.putShort((short) 7).putInt(value);
+                body.flip();
+                writeMessage(CSID_CONTROL, MSG_USER_CONTROL, 0, 0, body);
+            }
+            break;
+        case MSG_COMMAND_AMF0:
+            try {
+                final List<Object> command = Amf0.decode(payload);
+                if (!command.isEmpty()) return command;
+            } catch (final RuntimeException e) {
+                throw new IOException("invalid command", e);
+            }
+            break;
+        default:
+            break;
+        }
+        return null;
+    }
+
+//********************************************************************************
+// socket I/O
+
+    private void await(final SelectionKey key, final long deadline) throws IOException {
+        final long timeout = deadline - System.currentTimeMillis();
+        if (timeout <= 0) throw new IOException("timeout");
+        if (mRequestStop) throw new IOException("stopped");
+        mSelector.select(timeout);
+        mSelector.selectedKeys().clear();
+    }
+
+    private void readSome(final long deadline) throws IOException {
+        final SelectionKey key = mChannel.keyFor(mSelector);
+        key.interestOps(SelectionKey.OP_READ);
+        while (readInput() == 0) {
+            await(key, deadline);
+        }
+    }
+
+    /**
+     * read available data without blocking and acknowledge it when needed
+     *
+     * @return number of bytes read
+     */
+    private int readInput() throws IOException {
+        if (!mIn.hasRemaining()) throw new IOException("input buffer overflow");
+        final int n = mChannel.read(mIn);
+        if (n < 0) throw new EOFException("closed by server");
+        mReceivedBytes += n;
+        if (mReceivedBytes - mAckedBytes >= mAckWindow) {
+            mAckedBytes = mReceivedBytes;
+            sendControl(MSG_ACK, (int) mReceivedBytes);
+        }
+        return n;
+    }
+
+    private void flushOut(final long deadline) throws IOException {
+        final SelectionKey key = mChannel.keyFor(mSelector);
+        mOut.flip();
+        try {
+            while (mOut.hasRemaining()) {
+                final int n = mChannel.write(mOut);
+                mSentBytes += n;
+                if (n == 0) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    await(key, deadline);
+                }
+            }
+        } finally {
+            mOut.compact();
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package com.serenegiant.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+
+import com.serenegiant.encoder.SlabPool;
+
+/**
+ * Bounded congestion-aware queue of encoded samples for network outputs
+ * 面向网络输出的有界发送队列，拥塞时按优先级丢帧
+ * <p>
+ * Producers(encoder threads) #offer samples, they are copied into blocks of own SlabPool.
+ * The sender thread #poll samples and reports sent bytes by #onSent, this queue estimates
+ * throughput from them. Congestion is the larger of the age of the oldest queued sample and
+ * the time to send all queued bytes at the estimated throughput. Under congestion this drops
+ * non-reference video frames(nal_ref_idc == 0) first, then whole GOPs of video up to the next
+ * key frame, and audio only when it alone exceeds twice of the maximum latency.
+ * Video starts from a sync frame, and after video frames are dropped without following key frame
+ * in the queue, new video frames are dropped until a sync frame arrives. The sync frame request
+ * task is called when the queue starts waiting a sync frame.
+ * This class is thread safe.
+ */
+public class SendQueue {
+
+    public static final long DEFAULT_MAX_LATENCY_US = 1000000L;
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+    /**
+     * interval to update throughput estimation
+     */
+    private static final long THROUGHPUT_INTERVAL_NS = 250000000L;
+
+    /**
+     * queued sample
+     */
+    public static final class Entry {
+        public int trackIndex;
+        public boolean isVideo;
+        public boolean isSync;
+        /**
+         * true if no other frame refers this frame(nal_ref_idc == 0)
+         */
+        boolean isNonReference;
+        public long ptsUs;
+        long enqueueTimeNs;
+        SlabPool.Block block;
+
+        /**
+         * @return encoded data, this is valid until the entry is recycled
+         */
+        public ByteBuffer data() {
+            return block.buffer();
+        }
+    }
+
+    private final SlabPool mPool;
+    private final int mMaxEntries;
+    private final long mMaxLatencyUs;
+    private final ArrayDeque<Entry> mQueue = new ArrayDeque<Entry>();
+    private final ArrayDeque<Entry> mFreeEntries = new ArrayDeque<Entry>();
+    private long mQueuedBytes;
+    private boolean mWaitSync = true;
+    private boolean mSyncRequested;
+    private volatile Runnable mSyncFrameRequest;
+    // throughput estimation, updated on the sender thread
+    private long mIntervalStartNs = -1;
+    private long mIntervalBytes;
+    private boolean mSaturated;
+    private volatile long mThroughputBps;
+    /**
+     * true if the throughput was measured while the link was saturated,
+     * otherwise it is only lower bound and is not used to predict the latency
+     */
+    private volatile boolean mThroughputSaturated;
+    // statistics
+    private volatile long mDroppedNonReference, mDroppedVideo, mDroppedAudio;
+
+    public SendQueue(final long capacity) {
+        this(capacity, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_LATENCY_US);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param capacity     size limit of memory for queued samples
+     * @param maxEntries   maximum number of queued samples
+     * @param maxLatencyUs acceptable latency, non-reference frames are dropped over half of this
+     *                     and whole GOPs are dropped over this
+     */
+    public SendQueue(final long capacity, final int maxEntries, final long maxLatencyUs) {
+        mPool = new SlabPool(capacity, (int) Math.min(SlabPool.DEFAULT_MAX_BLOCK_SIZE, capacity));
+        mMaxEntries = maxEntries;
+        mMaxLatencyUs = maxLatencyUs;
+    }
+
+    /**
+     * set task to request sync frame to video encoder, this is called when video frames
+     * are dropped and the queue waits for next sync frame
+     */
+    public void setSyncFrameRequest(final Runnable request) {
+        mSyncFrameRequest = request;
+    }
+
+    /**
+     * copy and queue encoded sample, this never blocks
+     *
+     * @param data encoded data from position to limit, position is moved to limit
+     * @return false if the sample was dropped
+     */
+    public boolean offer(final int trackIndex, final boolean isVideo, final ByteBuffer data,
+                         final long ptsUs, final boolean isSync) {
+
+        final boolean nonReference = isVideo && !isSync && isNonReference(data);
+        boolean requestSync = false;
+        try {
+            synchronized (this) {
+                if (isVideo && mWaitSync) {
+                    if (!isSync) {
+                        mDroppedVideo++;
+                        requestSync = !mSyncRequested;
+                        mSyncRequested = true;
+                        return false;
+                    }
+                    mWaitSync = false;
+                    mSyncRequested = false;
+                }
+                if (mQueue.size() >= mMaxEntries) {
+                    requestSync = makeRoom(isVideo);
+                }
+                SlabPool.Block block = mQueue.size() < mMaxEntries ? mPool.acquire(data.remaining()) : null;
+                while ((block == null) && (mQueue.size() > 0)) {
+                    // pool is full
+                    final int before = mQueue.size();
+                    requestSync |= makeRoom(isVideo);
+                    if (mQueue.size() == before) break;
+                    block = mPool.acquire(data.remaining());
+                }
+                if ((block != null) && isVideo && !isSync && mWaitSync) {
+                    // the queued frames this one refers to were dropped while making room
+                    block.release();
+                    block = null;
+                }
+                if (block == null) {
+                    if (isVideo) {
+                        mDroppedVideo++;
+                        // following frames can not be decoded without this frame
+                        requestSync |= waitSync();
+                    } else {
+                        mDroppedAudio++;
+                    }
+                    return false;
+                }
+                block.buffer().put(data);
+                block.buffer().flip();
+                Entry entry = mFreeEntries.pollFirst();
+                if (entry == null) {
+                    entry = new Entry();
+                }
+                entry.trackIndex = trackIndex;
+                entry.isVideo = isVideo;
+                entry.isSync = isSync;
+                entry.isNonReference = nonReference;
+                entry.ptsUs = ptsUs;
+                entry.enqueueTimeNs = nanoTime();
+                entry.block = block;
+                mQueue.addLast(entry);
+                mQueuedBytes += block.buffer().remaining();
+                return true;
+            }
+        } finally {
+            if (requestSync) {
+                requestSyncFrame();
+            }
+        }
+    }
+
+    /**
+     * get next sample to send after dropping samples if congested
+     *
+     * @return null if the queue is empty, the entry should be returned by #recycle after sending
+     */
+    public Entry poll() {
+        final boolean requestSync;
+        final Entry entry;
+        synchronized (this) {
+            requestSync = dropIfCongested(nanoTime());
+            entry = mQueue.pollFirst();
+            if (entry != null) {
+                mQueuedBytes -= entry.block.buffer().remaining();
+            }
+        }
+        if (requestSync) {
+            requestSyncFrame();
+        }
+        return entry;
+    }
+
+    public synchronized void recycle(final Entry entry) {
+        if (entry.block != null) {
+            entry.block.release();
+            entry.block = null;
+        }
+        mFreeEntries.addLast(entry);
+    }
+
+    public synchronized boolean isEmpty() {
+        return mQueue.isEmpty();
+    }
+
+    /**
+     * drop all queued samples, video restarts from next sync frame
+     */
+    public synchronized void clear() {
+        Entry entry;
+        while ((entry = mQueue.pollFirst()) != null) {
+            recycle(entry);
+        }
+        mQueuedBytes = 0;
+        mWaitSync = true;
+        mSyncRequested = false;
+    }
+
+    /**
+     * report bytes written to the network, this should be called on the sender thread
+     */
+    public void onSent(final long bytes) {
+        final long now = nanoTime();
+        if (mIntervalStartNs < 0) {
+            mIntervalStartNs = now;
+        }
+        mIntervalBytes += bytes;
+        synchronized (this) {
+            // the link was fully used if something is still waiting
+            mSaturated |= !mQueue.isEmpty();
+        }
+        final long elapsed = now - mIntervalStartNs;
+        if (elapsed >= THROUGHPUT_INTERVAL_NS) {
+            final long measured = mIntervalBytes * 8 * 1000000000L / elapsed;
+            final long estimate = mThroughputBps;
+            if (mSaturated) {
+                mThroughputBps = mThroughputSaturated ? (estimate * 3 + measured) / 4 : measured;
+                mThroughputSaturated = true;
+            } else if (measured > estimate) {
+                // not saturated, this is only lower bound of the throughput
+                mThroughputBps = measured;
+            }
+            mIntervalStartNs = now;
+            mIntervalBytes = 0;
+            mSaturated = false;
+        }
+    }
+
+    /**
+     * @return estimated throughput of the network [bits/sec], 0 if not estimated yet
+     */
+    public long getThroughputBps() {
+        return mThroughputBps;
+    }
+
+    /**
+     * @return time since the oldest queued sample was queued [msec]
+     */
+    public synchronized long getBacklogAgeMs() {
+        final Entry head = mQueue.peekFirst();
+        return head != null ? (nanoTime() - head.enqueueTimeNs) / 1000000L : 0;
+    }
+
+    public synchronized long getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    public synchronized int getQueuedCount() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return number of non-reference video frames dropped by congestion
+     */
+    public long getDroppedNonReference() {
+        return mDroppedNonReference;
+    }
+
+    /**
+     * @return number of other video frames dropped(whole GOP or waiting sync frame)
+     */
+    public long getDroppedVideo() {
+        return mDroppedVideo;
+    }
+
+    public long getDroppedAudio() {
+        return mDroppedAudio;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+            "SendQueue(queued=%d/%dbytes,age=%dms,throughput=%dbps,drop=nonref:%d,video:%d,audio:%d)",
+            getQueuedCount(), getQueuedBytes(), getBacklogAgeMs(), mThroughputBps,
+            mDroppedNonReference, mDroppedVideo, mDroppedAudio);
+    }
+
+//********************************************************************************
+
+    /**
+     * clock of enqueue time and throughput measurement, unit tests override this to emulate the network
+     */
+    long nanoTime() {
+        return System.nanoTime();
+    }
+
+    private void requestSyncFrame() {
+        final Runnable request = mSyncFrameRequest;
+        if (request != null) {
+            request.run();
+        }
+    }
+
+    /**
+     * @return congestion as latency [usec]
+     */
+    private long congestionUs(final long now) {
+        final Entry head = mQueue.peekFirst();
+        if (head == null) return 0;
+        long result = (now - head.enqueueTimeNs) / 1000L;
+        final long throughput = mThroughputBps;
+        if (mThroughputSaturated && (throughput > 0)) {
+            // time to send all queued bytes
+            result = Math.max(result, mQueuedBytes * 8 * 1000000L / throughput);
+        }
+        return result;
+    }
+
+    /**
+     * @return true if sync frame should be requested
+     */
+    private boolean dropIfCongested(final long now) {
+        if (congestionUs(now) <= mMaxLatencyUs / 2) return false;
+        dropNonReference();
+        boolean requestSync = false;
+        while ((congestionUs(now) > mMaxLatencyUs) && hasVideo()) {
+            requestSync |= dropGop();
+        }
+        // keep audio as long as possible
+        while ((congestionUs(now) > mMaxLatencyUs * 2) && !mQueue.isEmpty()) {
+            final Entry head = mQueue.peekFirst();
+            if ((now - head.enqueueTimeNs) / 1000L <= mMaxLatencyUs) break;
+            removeFirst();
+            mDroppedAudio++;
+        }
+        return requestSync;
+    }
+
+    /**
+     * drop samples to make room for new sample when the queue is full
+     *
+     * @return true if sync frame should be requested
+     */
+    private boolean makeRoom(final boolean isVideo) {
+        final int before = mQueue.size();
+        dropNonReference();
+        if (mQueue.size() < before) return false;
+        if (hasVideo()) {
+            return dropGop();
+        } else if (!isVideo && !mQueue.isEmpty()) {
+            // only audio is queued, drop the oldest one
+            removeFirst();
+            mDroppedAudio++;
+        }
+        return false;
+    }
+
+    private void dropNonReference() {
+        final Iterator<Entry> it = mQueue.iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            if (entry.isNonReference) {
+                it.remove();
+                mQueuedBytes -= entry.block.buffer().remaining();
+                recycle(entry);
+                mDroppedNonReference++;
+            }
+        }
+    }
+
+    /**
+     * drop the oldest video frames up to the next sync frame, audio is kept
+     *
+     * @return true if there was no following sync frame and sync frame should be requested
+     */
+    private boolean dropGop() {
+        final Iterator<Entry> it = mQueue.iterator();
+        boolean first = true;
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            if (!entry.isVideo) continue;
+            if (entry.isSync && !first) {
+                // remaining video begins with this sync frame
+                return false;
+            }
+            first = false;
+            it.remove();
+            mQueuedBytes -= entry.block.buffer().remaining();
+            recycle(entry);
+            mDroppedVideo++;
+        }
+        return waitSync();
+    }
+
+    /**
+     * @return true if the queue started waiting sync frame
+     */
+    private boolean waitSync() {
+        if (mWaitSync) return false;
+        mWaitSync = true;
+        mSyncRequested = true;
+        return true;
+    }
+
+    private boolean hasVideo() {
+        for (final Entry entry : mQueue) {
+            if (entry.isVideo) return true;
+        }
+        return false;
+    }
+
+    private void removeFirst() {
+        final Entry entry = mQueue.pollFirst();
+        mQueuedBytes -= entry.block.buffer().remaining();
+        recycle(entry);
+    }
+
+    /**
+     * check nal_ref_idc of the first slice in Annex-B access unit
+     */
+    private static boolean isNonReference(final ByteBuffer data) {
+        final int limit = data.limit();
+        for (int i = data.position(); i + 3 < limit; i++) {
+            if ((data.get(i) == 0) && (data.get(i + 1) == 0) && (data.get(i + 2) == 1)) {
+                final int header = data.get(i + 3) & 0xff;
+                final int type = header & 0x1f;
+                if ((type == 1) || (type == 5)) {
+                    return (header & 0x60) == 0;
+                }
+                i += 3;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,53 @@
+package com.serenegiant.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Helper methods for files that are shared by caches of the app
+ * 文件操作辅助方法
+ */
+public final class FileUtils {
+
+	/**
+	 * writes the contents of a file
+	 */
+	public interface DataWriter {
+		void write(final DataOutputStream out) throws IOException;
+	}
+
+	private FileUtils() {
+	}
+
+	/**
+	 * write into temporary file and rename it, so that reader never sees partial file.
+	 * The parent directory is created if it does not exist, and the temporary file is removed on failure
+	 */
+	public static void writeAtomically(final File file, final DataWriter writer) throws IOException {
+		final File dir = file.getParentFile();
+		if ((dir != null) && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("failed to create " + dir);
+		}
+		final File temp = new File(file.getPath() + ".tmp");
+		boolean success = false;
+		try {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				writer.write(out);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(file)) {
+				throw new IOException("failed to rename " + temp);
+			}
+			success = true;
+		} finally {
+			if (!success) {
+				temp.delete();
+			}
+		}
+	}
+}
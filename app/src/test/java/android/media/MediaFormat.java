@@ -0,0 +1,116 @@
+package android.media;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * MediaFormat of mockable android.jar returns default values and stores nothing,
+ * this replaces it in unit tests with the same behavior as the framework(values are kept in a map)
+ * 单元测试用的 MediaFormat，用 Map 保存数值
+ * <p>
+ * This is a final shadow of android.media.MediaFormat: test classes come first on the classpath,
+ * so main code that runs in unit tests sees only the members declared here, not the ones of android.jar.
+ * Every method of MediaFormat used by main code(encoder package, media package etc.) must be mirrored here
+ * with the same signature, otherwise unit tests fail with NoSuchMethodError at runtime
+ * although everything compiles against android.jar. Keep the KEY_XXX/MIMETYPE_XXX constants in sync too.
+ */
+public final class MediaFormat {
+    public static final String MIMETYPE_VIDEO_AVC = "video/avc";
+    public static final String MIMETYPE_VIDEO_HEVC = "video/hevc";
+    public static final String MIMETYPE_AUDIO_AAC = "audio/mp4a-latm";
+
+    public static final String KEY_MIME = "mime";
+    public static final String KEY_WIDTH = "width";
+    public static final String KEY_HEIGHT = "height";
+    public static final String KEY_COLOR_FORMAT = "color-format";
+    public static final String KEY_BIT_RATE = "bitrate";
+    public static final String KEY_BITRATE_MODE = "bitrate-mode";
+    public static final String KEY_FRAME_RATE = "frame-rate";
+    public static final String KEY_I_FRAME_INTERVAL = "i-frame-interval";
+    public static final String KEY_AAC_PROFILE = "aac-profile";
+    public static final String KEY_CHANNEL_MASK = "channel-mask";
+    public static final String KEY_CHANNEL_COUNT = "channel-count";
+    public static final String KEY_SAMPLE_RATE = "sample-rate";
+    public static final String KEY_MAX_INPUT_SIZE = "max-input-size";
+    public static final String KEY_DURATION = "durationUs";
+    public static final String KEY_PROFILE = "profile";
+    public static final String KEY_LEVEL = "level";
+    public static final String KEY_QUALITY = "quality";
+    public static final String KEY_REPEAT_PREVIOUS_FRAME_AFTER = "repeat-previous-frame-after";
+
+    private final Map<String, Object> mMap = new HashMap<String, Object>();
+
+    public MediaFormat() {
+    }
+
+    public static MediaFormat createVideoFormat(final String mime, final int width, final int height) {
+        final MediaFormat format = new MediaFormat();
+        format.setString(KEY_MIME, mime);
+        format.setInteger(KEY_WIDTH, width);
+        format.setInteger(KEY_HEIGHT, height);
+        return format;
+    }
+
+    public static MediaFormat createAudioFormat(final String mime, final int sampleRate, final int channelCount) {
+        final MediaFormat format = new MediaFormat();
+        format.setString(KEY_MIME, mime);
+        format.setInteger(KEY_SAMPLE_RATE, sampleRate);
+        format.setInteger(KEY_CHANNEL_COUNT, channelCount);
+        return format;
+    }
+
+    public boolean containsKey(final String name) {
+        return mMap.containsKey(name);
+    }
+
+    public int getInteger(final String name) {
+        return (Integer) mMap.get(name);
+    }
+
+    public int getInteger(final String name, final int defaultValue) {
+        final Object value = mMap.get(name);
+        return value != null ? (Integer) value : defaultValue;
+    }
+
+    public long getLong(final String name) {
+        return (Long) mMap.get(name);
+    }
+
+    public float getFloat(final String name) {
+        return (Float) mMap.get(name);
+    }
+
+    public String getString(final String name) {
+        return (String) mMap.get(name);
+    }
+
+    public ByteBuffer getByteBuffer(final String name) {
+        return (ByteBuffer) mMap.get(name);
+    }
+
+    public void setInteger(final String name, final int value) {
+        mMap.put(name, value);
+    }
+
+    public void setLong(final String name, final long value) {
+        mMap.put(name, value);
+    }
+
+    public void setFloat(final String name, final float value) {
+        mMap.put(name, value);
+    }
+
+    public void setString(final String name, final String value) {
+        mMap.put(name, value);
+    }
+
+    public void setByteBuffer(final String name, final ByteBuffer bytes) {
+        mMap.put(name, bytes);
+    }
+
+    @Override
+    public String toString() {
+        return mMap.toString();
+    }
+}
@@ -0,0 +1,161 @@
+package com.serenegiant.encoder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BitrateController against a simulated network link
+ */
+public class BitrateControllerTest {
+
+    private static final int MIN_BITRATE = 300000;
+    private static final int MAX_BITRATE = 4000000;
+    private static final long AUDIO_BPS = 128000;
+    private static final long STEP_MS = 100;
+
+    /**
+     * link with fixed capacity and unlimited send buffer, like SendQueue in front of a socket
+     */
+    private static final class Link {
+        long capacityBps;
+        /**
+         * bits waiting to be sent
+         */
+        long queuedBits;
+
+        Link(final long capacityBps) {
+            this.capacityBps = capacityBps;
+        }
+
+        void step(final long videoBps) {
+            queuedBits += (videoBps + AUDIO_BPS) * STEP_MS / 1000;
+            queuedBits = Math.max(0, queuedBits - capacityBps * STEP_MS / 1000);
+        }
+
+        /**
+         * @return age of the oldest queued bits, same as time to send all of them on FIFO link
+         */
+        long backlogMs() {
+            return queuedBits * 1000 / capacityBps;
+        }
+
+        /**
+         * throughput is only measured while the link is saturated, otherwise it is lower bound
+         */
+        long estimatedBps(final long videoBps) {
+            return queuedBits > 0 ? capacityBps : Math.min(capacityBps, videoBps + AUDIO_BPS);
+        }
+    }
+
+    private static final class Simulation {
+        final BitrateController controller = new BitrateController(MIN_BITRATE, MAX_BITRATE);
+        final BitrateController.Signals signals = new BitrateController.Signals();
+        final Link link;
+        long nowMs;
+        int changes;
+        long maxBacklogMs;
+
+        Simulation(final long capacityBps) {
+            link = new Link(capacityBps);
+        }
+
+        void run(final long durationMs) {
+            final long end = nowMs + durationMs;
+            for (; nowMs < end; nowMs += STEP_MS) {
+                final int bitrate = controller.getBitrate();
+                link.step(bitrate);
+                maxBacklogMs = Math.max(maxBacklogMs, link.backlogMs());
+                signals.reset();
+                signals.storageQueueRatio = 0;
+                signals.liveBacklogMs = link.backlogMs();
+                signals.liveBps = link.estimatedBps(bitrate);
+                final int result = controller.update(nowMs, signals);
+                if (result != 0) {
+                    assertEquals(result, controller.getBitrate());
+                    changes++;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void bitrateConvergesBelowLinkCapacity() {
+        final Simulation sim = new Simulation(2000000);
+        sim.run(10000);
+        // backlog is bounded although the initial bitrate is twice of the link
+        assertTrue("backlog=" + sim.maxBacklogMs, sim.maxBacklogMs < 3000);
+        sim.changes = 0;
+        sim.maxBacklogMs = 0;
+        long total = 0;
+        int count = 0;
+        for (int i = 0; i < 60; i++) {
+            sim.run(1000);
+            total += sim.controller.getBitrate();
+            count++;
+            assertTrue(sim.controller.getBitrate() >= MIN_BITRATE);
+        }
+        final long average = total / count;
+        // the link is mostly used but not overloaded on average
+        assertTrue("average=" + average, average > 2000000 / 2);
+        assertTrue("average=" + average, average + AUDIO_BPS <= 2000000);
+        assertTrue("backlog=" + sim.maxBacklogMs, sim.maxBacklogMs < 2 * BitrateController.BACKLOG_HIGH_MS);
+        // the encoder is not retuned on every update
+        assertTrue("changes=" + sim.changes, sim.changes <= 60 / 3);
+    }
+
+    @Test
+    public void bitrateRecoversAfterLinkImproves() {
+        final Simulation sim = new Simulation(800000);
+        sim.run(20000);
+        assertTrue(sim.controller.toString(), sim.controller.getBitrate() < 800000);
+        sim.link.capacityBps = 20000000;
+        // additive increase of 10% of max bitrate every 3 seconds
+        sim.run(40000);
+        assertEquals(MAX_BITRATE, sim.controller.getBitrate());
+        // congestion never comes back on the fast link
+        sim.changes = 0;
+        sim.run(30000);
+        assertEquals(0, sim.changes);
+    }
+
+    @Test
+    public void bitrateIsKeptBetweenThresholds() {
+        final BitrateController controller = new BitrateController(MIN_BITRATE, MAX_BITRATE);
+        final BitrateController.Signals signals = new BitrateController.Signals();
+        // the link is fast enough, so only multiplicative decrease applies
+        signals.liveBps = 20000000;
+        signals.liveBacklogMs = BitrateController.BACKLOG_HIGH_MS;
+        assertEquals(3000000, controller.update(0, signals));
+        // decreased again only after interval
+        assertEquals(0, controller.update(500, signals));
+        assertEquals(2250000, controller.update(1000, signals));
+        // neither congested nor clear
+        signals.liveBacklogMs = (BitrateController.BACKLOG_HIGH_MS + BitrateController.BACKLOG_LOW_MS) / 2;
+        for (long now = 2000; now < 20000; now += STEP_MS) {
+            assertEquals(0, controller.update(now, signals));
+        }
+        signals.liveBacklogMs = 0;
+        assertEquals(2650000, controller.update(20000, signals));
+    }
+
+    @Test
+    public void ceilingAndStorageLimitBitrate() {
+        final BitrateController controller = new BitrateController(MIN_BITRATE, MAX_BITRATE);
+        final BitrateController.Signals signals = new BitrateController.Signals();
+        controller.setCeiling(10000000);
+        assertEquals(MAX_BITRATE, controller.getCeiling());
+        controller.setCeiling(2000000);
+        signals.liveBacklogMs = 0;
+        signals.storageQueueRatio = 0;
+        assertEquals(2000000, controller.update(0, signals));
+        // video may use half of the storage throughput
+        signals.storageBps = 3000000;
+        assertEquals(1500000, controller.update(100, signals));
+        // never below lower limit even if storage is very slow
+        signals.storageBps = 100000;
+        assertEquals(MIN_BITRATE, controller.update(200, signals));
+        assertEquals(0, controller.update(300, signals));
+    }
+}
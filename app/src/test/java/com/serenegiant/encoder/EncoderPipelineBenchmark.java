@@ -0,0 +1,97 @@
+package com.serenegiant.encoder;
+
+import java.util.Locale;
+
+/**
+ * Benchmark of the recording pipeline(MediaVideoEncoder, MediaAudioEncoder, MediaMuxerWrapper and MuxerWriter)
+ * on the plain JVM with FakeCodecBackend, FakeAudioSourceBackend and FakeMuxerBackend
+ * 在 JVM 上以快于实时的速度运行录制管线的基准测试
+ * <p>
+ * Sources run #speed times faster than realtime, so the pipeline has to process #speed seconds of
+ * 30fps video and 44.1kHz AAC in each second. Each run prints samples lost between the sources and the muxer,
+ * the worst interleave lag and the time spent, the highest speed without loss is the headroom of
+ * threading/drain/muxing logic itself. This is not a unit test, run #main on the unit test classpath.
+ * <pre>
+ * usage: EncoderPipelineBenchmark [seconds of media] [speed...]
+ * </pre>
+ */
+public class EncoderPipelineBenchmark {
+
+    private static final long FRAME_INTERVAL_US = 33333L;
+    private static final long AAC_FRAME_US = 1024L * 1000000L / 44100;
+    private static final int[] DEFAULT_SPEEDS = {1, 2, 4, 8, 16, 32, 64};
+
+    private static final MediaEncoder.MediaEncoderListener LISTENER = new MediaEncoder.MediaEncoderListener() {
+        @Override
+        public void onPrepared(final MediaEncoder encoder) {
+        }
+
+        @Override
+        public void onStopped(final MediaEncoder encoder) {
+        }
+    };
+
+    public static void main(final String[] args) throws Exception {
+        final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int[] speeds = DEFAULT_SPEEDS;
+        if (args.length > 1) {
+            speeds = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                speeds[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        // first run warms up JIT
+        run(seconds, speeds[0]);
+        System.out.println("speed,video(rendered/written),audio(captured/written),maxLagMs,wallMs,realtime");
+        for (final int speed : speeds) {
+            System.out.println(run(seconds, speed));
+        }
+    }
+
+    /**
+     * record seconds of media at speed times faster than realtime
+     *
+     * @return one line of the result
+     */
+    private static String run(final int seconds, final int speed) throws Exception {
+        final FakeMuxerBackend muxer = new FakeMuxerBackend();
+        // latencies are on wall clock, so they are scaled to be 3 video frames and 1 AAC frame
+        final FakeCodecBackend.Factory factory = new FakeCodecBackend.Factory(
+            new FakeCodecBackend.Params(40000, 6000, 30, 3 * FRAME_INTERVAL_US / speed),
+            new FakeCodecBackend.Params(400, 400, 1, AAC_FRAME_US / speed));
+        final FakeAudioSourceBackend.Factory sourceFactory = new FakeAudioSourceBackend.Factory(speed);
+        final MediaMuxerWrapper wrapper = new MediaMuxerWrapper("/dev/null", muxer, factory);
+        final MediaVideoEncoder videoEncoder = new MediaVideoEncoder(wrapper, LISTENER, 1280, 720);
+        final MediaAudioEncoder audioEncoder = new MediaAudioEncoder(wrapper, LISTENER, false,
+            MediaAudioEncoder.CAPTURE_RING, MediaAudioEncoder.DEFAULT_RING_DEPTH, sourceFactory);
+        wrapper.prepare();
+        wrapper.startRecording();
+
+        final FakeCodecBackend codec = factory.getVideoEncoder();
+        final int frames = (int) (seconds * 1000000L / FRAME_INTERVAL_US);
+        final long startNs = System.nanoTime();
+        final long startUs = startNs / 1000L;
+        int rendered = 0;
+        for (int i = 0; i < frames; i++) {
+            final long dueNs = startNs + i * FRAME_INTERVAL_US * 1000L / speed;
+            for (long waitNs = dueNs - System.nanoTime(); waitNs > 0; waitNs = dueNs - System.nanoTime()) {
+                Thread.sleep(waitNs / 1000000L, (int) (waitNs % 1000000L));
+            }
+            if (codec.renderFrame(startUs + i * FRAME_INTERVAL_US)) {
+                rendered++;
+            }
+            videoEncoder.frameAvailableSoon();
+        }
+        wrapper.stopRecording();
+        if (!muxer.awaitStopped(10000)) {
+            throw new IllegalStateException("muxer was not stopped");
+        }
+        final long wallNs = System.nanoTime() - startNs;
+        final long captured = sourceFactory.getSource().getReadBytes() / (1024 * 2);
+        return String.format(Locale.US, "%d,%d/%d,%d/%d,%.1f,%d,%.1f",
+            speed, rendered, muxer.getSampleCount(videoEncoder.mTrackIndex),
+            captured, muxer.getSampleCount(audioEncoder.mTrackIndex),
+            muxer.getMaxInterleaveLagUs() / 1000.0, wallNs / 1000000L,
+            seconds * 1000000000.0 / wallNs);
+    }
+}
@@ -0,0 +1,131 @@
+package com.serenegiant.encoder;
+
+import com.serenegiant.glutilsOld.RenderHandler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * run MediaVideoEncoder, MediaMuxerWrapper and MuxerWriter on the plain JVM with FakeCodecBackend
+ */
+public class EncoderPipelineTest {
+
+    private static final int FRAMES = 60;
+    private static final long FRAME_INTERVAL_US = 33333L;
+    private static final long AAC_FRAME_US = 1024L * 1000000L / 44100;
+    /**
+     * clock of the sources runs this times faster than realtime
+     */
+    private static final int SPEED = 4;
+
+    private static final MediaEncoder.MediaEncoderListener LISTENER = new MediaEncoder.MediaEncoderListener() {
+        @Override
+        public void onPrepared(final MediaEncoder encoder) {
+        }
+
+        @Override
+        public void onStopped(final MediaEncoder encoder) {
+        }
+    };
+
+    private static boolean hasRenderThread() {
+        for (final StackTraceElement[] stack : Thread.getAllStackTraces().values()) {
+            for (final StackTraceElement element : stack) {
+                if (element.getClassName().equals(RenderHandler.class.getName())) return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void videoIsEncodedAndMuxedWithoutDevice() throws Exception {
+        final FakeMuxerBackend muxer = new FakeMuxerBackend();
+        // 10 frames of latency and a key frame every 30 frames, no audio
+        final FakeCodecBackend.Factory factory = new FakeCodecBackend.Factory(
+            new FakeCodecBackend.Params(20000, 3000, 30, 10 * FRAME_INTERVAL_US), null);
+        final MediaMuxerWrapper wrapper = new MediaMuxerWrapper("/dev/null", muxer, factory);
+        final MediaVideoEncoder encoder = new MediaVideoEncoder(wrapper, LISTENER, 640, 480);
+        wrapper.prepare();
+        wrapper.startRecording();
+
+        final FakeCodecBackend codec = factory.getVideoEncoder();
+        assertTrue(codec != null);
+        final long startUs = System.nanoTime() / 1000L;
+        int rendered = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            if (codec.renderFrame(startUs + i * FRAME_INTERVAL_US)) {
+                rendered++;
+            }
+            encoder.frameAvailableSoon();
+            Thread.sleep(5);
+        }
+        // no EGL context was given, so render thread should not be started
+        assertFalse(hasRenderThread());
+        wrapper.stopRecording();
+
+        assertTrue(muxer.awaitStopped(5000));
+        assertEquals(1, muxer.getTrackCount());
+        assertTrue(rendered > 0);
+        // every rendered frame is drained before EOS and written in order(FakeMuxerBackend checks PTS)
+        assertEquals(rendered, muxer.getSampleCount(0));
+        assertTrue(muxer.getLastPTSUs(0) > 0);
+    }
+
+    @Test
+    public void videoAndAudioAreInterleavedInOrder() throws Exception {
+        final FakeMuxerBackend muxer = new FakeMuxerBackend();
+        // latencies are on wall clock, they are divided by SPEED to be 3 video frames and 1 AAC frame
+        final FakeCodecBackend.Factory factory = new FakeCodecBackend.Factory(
+            new FakeCodecBackend.Params(20000, 3000, 30, 3 * FRAME_INTERVAL_US / SPEED),
+            new FakeCodecBackend.Params(400, 400, 1, AAC_FRAME_US / SPEED));
+        final FakeAudioSourceBackend.Factory sourceFactory = new FakeAudioSourceBackend.Factory(SPEED);
+        final MediaMuxerWrapper wrapper = new MediaMuxerWrapper("/dev/null", muxer, factory);
+        final MediaVideoEncoder videoEncoder = new MediaVideoEncoder(wrapper, LISTENER, 640, 480);
+        final MediaAudioEncoder audioEncoder = new MediaAudioEncoder(wrapper, LISTENER, false,
+            MediaAudioEncoder.CAPTURE_COPY, MediaAudioEncoder.DEFAULT_RING_DEPTH, sourceFactory);
+        wrapper.prepare();
+        wrapper.startRecording();
+
+        final FakeCodecBackend codec = factory.getVideoEncoder();
+        assertTrue(codec != null);
+        // video frames are rendered on the same scaled clock as audio samples are captured
+        final long startNs = System.nanoTime();
+        final long startUs = startNs / 1000L;
+        int rendered = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            final long dueNs = startNs + i * FRAME_INTERVAL_US * 1000L / SPEED;
+            for (long waitNs = dueNs - System.nanoTime(); waitNs > 0; waitNs = dueNs - System.nanoTime()) {
+                Thread.sleep(waitNs / 1000000L, (int) (waitNs % 1000000L));
+            }
+            if (codec.renderFrame(startUs + i * FRAME_INTERVAL_US)) {
+                rendered++;
+            }
+            videoEncoder.frameAvailableSoon();
+        }
+        wrapper.stopRecording();
+
+        assertTrue(muxer.awaitStopped(5000));
+        assertEquals(2, muxer.getTrackCount());
+        final int videoTrack = videoEncoder.mTrackIndex;
+        final int audioTrack = audioEncoder.mTrackIndex;
+        assertEquals(1, videoTrack + audioTrack);
+        assertTrue(rendered > 0);
+        assertEquals(rendered, muxer.getSampleCount(videoTrack));
+        // every encoded AAC frame was captured from the source and audio covers the recording
+        final FakeAudioSourceBackend source = sourceFactory.getSource();
+        final long audioSamples = muxer.getSampleCount(audioTrack);
+        assertTrue(audioSamples > 0);
+        assertTrue(audioSamples <= source.getReadBytes() / (1024 * 2));
+        assertTrue("video=" + muxer.getLastPTSUs(videoTrack) + ",audio=" + muxer.getLastPTSUs(audioTrack),
+            Math.abs(muxer.getLastPTSUs(videoTrack) - muxer.getLastPTSUs(audioTrack))
+                < MuxerWriter.DEFAULT_INTERLEAVE_WINDOW_US);
+        // samples of both tracks are written in order of presentation time(within the interleave window),
+        // not one track after another
+        assertTrue("lag=" + muxer.getMaxInterleaveLagUs(),
+            muxer.getMaxInterleaveLagUs() <= MuxerWriter.DEFAULT_INTERLEAVE_WINDOW_US);
+        assertTrue("switches=" + muxer.getTrackSwitches(), muxer.getTrackSwitches() >= rendered);
+    }
+}
@@ -0,0 +1,108 @@
+package com.serenegiant.encoder;
+
+import java.nio.ByteBuffer;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.AudioTimestamp;
+
+/**
+ * In-memory AudioSourceBackend that generates silent 16bit PCM data,
+ * #read blocks until the data is due like AudioRecord, but the clock can run faster than realtime.
+ * Use with FakeCodecBackend to run MediaAudioEncoder on the plain JVM.
+ */
+public class FakeAudioSourceBackend implements AudioSourceBackend {
+
+    /**
+     * create FakeAudioSourceBackend that runs speed times faster than realtime
+     */
+    public static class Factory implements AudioSourceBackend.Factory {
+        private final double mSpeed;
+        private volatile FakeAudioSourceBackend mSource;
+
+        public Factory(final double speed) {
+            if (speed <= 0) throw new IllegalArgumentException("invalid speed");
+            mSpeed = speed;
+        }
+
+        @Override
+        public AudioSourceBackend createSource(final int sampleRate, final int channelMask, final int frameBytes) {
+            final int channelCount = channelMask == AudioFormat.CHANNEL_IN_STEREO ? 2 : 1;
+            final FakeAudioSourceBackend result = new FakeAudioSourceBackend(sampleRate, channelCount, mSpeed);
+            mSource = result;
+            return result;
+        }
+
+        /**
+         * @return source that was created last
+         */
+        public FakeAudioSourceBackend getSource() {
+            return mSource;
+        }
+    }
+
+    private final int mSampleRate;
+    private final int mBytesPerFrame;
+    private final double mSpeed;
+    private volatile boolean mIsRecording;
+    private long mStartNs;
+    private volatile long mReadBytes;
+
+    public FakeAudioSourceBackend(final int sampleRate, final int channelCount, final double speed) {
+        mSampleRate = sampleRate;
+        mBytesPerFrame = channelCount * 2;
+        mSpeed = speed;
+    }
+
+    /**
+     * @return total bytes returned by #read
+     */
+    public long getReadBytes() {
+        return mReadBytes;
+    }
+
+    @Override
+    public void startRecording() {
+        mStartNs = System.nanoTime();
+        mIsRecording = true;
+    }
+
+    @Override
+    public void stop() {
+        mIsRecording = false;
+    }
+
+    @Override
+    public void release() {
+        mIsRecording = false;
+    }
+
+    @Override
+    public int read(final ByteBuffer audioBuffer, final int sizeInBytes) {
+        if (!mIsRecording) return AudioRecord.ERROR_INVALID_OPERATION;
+        final int size = Math.min(sizeInBytes, audioBuffer.capacity()) / mBytesPerFrame * mBytesPerFrame;
+        if (size <= 0) return AudioRecord.ERROR_BAD_VALUE;
+        // the data is available when its last sample was captured on the scaled clock
+        final long samples = (mReadBytes + size) / mBytesPerFrame;
+        final long dueNs = mStartNs + (long) (samples * 1000000000L / mSampleRate / mSpeed);
+        for (long waitNs = dueNs - System.nanoTime(); waitNs > 0; waitNs = dueNs - System.nanoTime()) {
+            try {
+                Thread.sleep(waitNs / 1000000L, (int) (waitNs % 1000000L));
+            } catch (final InterruptedException e) {
+                return AudioRecord.ERROR;
+            }
+        }
+        // AudioRecord writes from the head of the buffer regardless of its position
+        for (int i = 0; i < size; i++) {
+            audioBuffer.put(i, (byte) 0);
+        }
+        mReadBytes += size;
+        return size;
+    }
+
+    @Override
+    public boolean getTimestamp(final AudioTimestamp outTimestamp) {
+        // the clock of MediaAudioEncoder falls back to System#nanoTime
+        return false;
+    }
+}
@@ -0,0 +1,518 @@
+package com.serenegiant.encoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Surface;
+
+import com.serenegiant.audiovideosample.BuildConfig;
+
+/**
+ * In-memory CodecBackend that emits synthetic encoded samples with configurable sizes and latencies.
+ * This does not need any device/codec, so the threading/drain/muxing logic of the encoders
+ * can run on the plain JVM(unit test/benchmark) faster than realtime.
+ * Video samples are Annex-B NAL units(IDR for key frame) so that they can pass through parsers.
+ * When #createInputSurface is called, there is no actual Surface and
+ * #renderFrame should be called instead of rendering to the Surface.
+ */
+public class FakeCodecBackend implements CodecBackend {
+
+    private static final boolean DEBUG = BuildConfig.DEBUG;
+    private static final String TAG = FakeCodecBackend.class.getSimpleName();
+
+    private static final int NUM_INPUT_BUFFERS = 4;
+    private static final int NUM_OUTPUT_BUFFERS = 8;
+    private static final int INPUT_BUFFER_SIZE = 16384;
+    // codec specific data reported in output format: H.264 baseline SPS/PPS and AAC-LC 44.1kHz mono
+    private static final byte[] FAKE_SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0x80, 0x1f, (byte) 0xda, 0x01, 0x40, 0x16, (byte) 0xe8};
+    private static final byte[] FAKE_PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x06, (byte) 0xe2};
+    private static final byte[] FAKE_ASC = {0x12, 0x08};
+
+    /**
+     * parameters of synthetic encoded samples
+     */
+    public static class Params {
+        /**
+         * size of encoded key frame in bytes
+         */
+        public final int keyFrameSize;
+        /**
+         * size of encoded non key frame in bytes
+         */
+        public final int frameSize;
+        /**
+         * number of frames between key frames, 1 means every frame is key frame(e.g. audio)
+         */
+        public final int keyFrameInterval;
+        /**
+         * delay between input and output of each frame
+         */
+        public final long latencyUs;
+
+        public Params(final int keyFrameSize, final int frameSize, final int keyFrameInterval,
+                      final long latencyUs) {
+            if ((keyFrameSize <= 0) || (frameSize <= 0) || (keyFrameInterval <= 0))
+                throw new IllegalArgumentException("invalid params");
+            this.keyFrameSize = keyFrameSize;
+            this.frameSize = frameSize;
+            this.keyFrameInterval = keyFrameInterval;
+            this.latencyUs = latencyUs;
+        }
+    }
+
+    /**
+     * create FakeCodecBackend with Params for video and audio
+     */
+    public static class Factory implements CodecBackend.Factory {
+        private final Params mVideoParams;
+        private final Params mAudioParams;
+        private volatile FakeCodecBackend mVideoEncoder;
+
+        public Factory(final Params videoParams, final Params audioParams) {
+            mVideoParams = videoParams;
+            mAudioParams = audioParams;
+        }
+
+        @Override
+        public CodecBackend createEncoder(final MediaFormat format) {
+            final String mimeType = format.getString(MediaFormat.KEY_MIME);
+            final boolean isVideo = mimeType.startsWith("video/");
+            final Params params = isVideo ? mVideoParams : mAudioParams;
+            if (params == null) return null;
+            final FakeCodecBackend result = new FakeCodecBackend(mimeType, params);
+            if (isVideo) {
+                mVideoEncoder = result;
+            }
+            return result;
+        }
+
+        /**
+         * @return video encoder that was created last, caller should call #renderFrame on this
+         */
+        public FakeCodecBackend getVideoEncoder() {
+            return mVideoEncoder;
+        }
+    }
+
+    /**
+     * encoded sample waiting for output
+     */
+    private static class Pending {
+        final long readyAtNs;
+        final long presentationTimeUs;
+        final int size;
+        final int flags;
+
+        Pending(final long readyAtNs, final long presentationTimeUs, final int size, final int flags) {
+            this.readyAtNs = readyAtNs;
+            this.presentationTimeUs = presentationTimeUs;
+            this.size = size;
+            this.flags = flags;
+        }
+    }
+
+    private final Object mSync = new Object();
+    private final String mMimeType;
+    private final Params mParams;
+    private final boolean mIsVideo;
+    private final ByteBuffer[] mInputBuffers = new ByteBuffer[NUM_INPUT_BUFFERS];
+    private final ByteBuffer[] mOutputBuffers = new ByteBuffer[NUM_OUTPUT_BUFFERS];
+    private final MediaCodec.BufferInfo[] mCallbackInfos = new MediaCodec.BufferInfo[NUM_OUTPUT_BUFFERS];
+    private final ArrayDeque<Integer> mFreeInputs = new ArrayDeque<>();
+    private final ArrayDeque<Integer> mFreeOutputs = new ArrayDeque<>();
+    private final ArrayDeque<Pending> mPending = new ArrayDeque<>();
+    private MediaFormat mOutputFormat;
+    private Callback mCallback;
+    private boolean mSurfaceInput;
+    private boolean mIsRunning;
+    private boolean mInputEOS;
+    private boolean mFormatChangedPending;
+    private long mFrameCount;
+    private boolean mRequestSyncFrame;
+    /**
+     * bitrate in the format of #configure and current bitrate, sizes of samples are scaled by the ratio
+     */
+    private int mConfiguredBitrate, mBitrate;
+    private Thread mCallbackThread;
+
+    public FakeCodecBackend(final String mimeType, final Params params) {
+        mMimeType = mimeType;
+        mParams = params;
+        mIsVideo = mimeType.startsWith("video/");
+        final int outputSize = Math.max(params.keyFrameSize, params.frameSize);
+        for (int i = 0; i < NUM_INPUT_BUFFERS; i++) {
+            mInputBuffers[i] = ByteBuffer.allocateDirect(INPUT_BUFFER_SIZE);
+        }
+        for (int i = 0; i < NUM_OUTPUT_BUFFERS; i++) {
+            mOutputBuffers[i] = ByteBuffer.allocateDirect(outputSize);
+            mCallbackInfos[i] = new MediaCodec.BufferInfo();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "fake." + mMimeType;
+    }
+
+    /**
+     * callbacks are called on private thread of this class, handler is ignored
+     */
+    @Override
+    public void setCallback(final Callback callback, final Handler handler) {
+        synchronized (mSync) {
+            mCallback = callback;
+        }
+    }
+
+    @Override
+    public void configure(final MediaFormat format, final int flags) {
+        synchronized (mSync) {
+            mOutputFormat = format;
+            if (format.containsKey(MediaFormat.KEY_BIT_RATE)) {
+                mConfiguredBitrate = mBitrate = format.getInteger(MediaFormat.KEY_BIT_RATE);
+            }
+            // real encoders report codec specific data in output format
+            if (mIsVideo) {
+                format.setByteBuffer("csd-0", ByteBuffer.wrap(FAKE_SPS));
+                format.setByteBuffer("csd-1", ByteBuffer.wrap(FAKE_PPS));
+            } else {
+                format.setByteBuffer("csd-0", ByteBuffer.wrap(FAKE_ASC));
+            }
+        }
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        synchronized (mSync) {
+            mSurfaceInput = true;
+        }
+        return null;
+    }
+
+    /**
+     * persistent Surface is not supported, so #createInputSurface is used every time
+     */
+    @Override
+    public Surface createPersistentInputSurface() {
+        return null;
+    }
+
+    @Override
+    public void setInputSurface(final Surface surface) {
+        synchronized (mSync) {
+            mSurfaceInput = true;
+        }
+    }
+
+    @Override
+    public void start() {
+        if (DEBUG) Log.v(TAG, "start:" + mMimeType);
+        synchronized (mSync) {
+            if (mIsRunning) throw new IllegalStateException("already started");
+            mFreeInputs.clear();
+            mFreeOutputs.clear();
+            mPending.clear();
+            for (int i = 0; i < NUM_INPUT_BUFFERS; i++) {
+                mFreeInputs.add(i);
+            }
+            for (int i = 0; i < NUM_OUTPUT_BUFFERS; i++) {
+                mFreeOutputs.add(i);
+            }
+            mFrameCount = 0;
+            mInputEOS = false;
+            mFormatChangedPending = true;
+            mIsRunning = true;
+            if (mCallback != null) {
+                mCallbackThread = new Thread(mCallbackTask, TAG + ":callback");
+                mCallbackThread.start();
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (DEBUG) Log.v(TAG, "stop:" + mMimeType);
+        final Thread callback;
+        synchronized (mSync) {
+            mIsRunning = false;
+            callback = mCallbackThread;
+            mCallbackThread = null;
+            mSync.notifyAll();
+        }
+        join(callback);
+    }
+
+    @Override
+    public void release() {
+        stop();
+        synchronized (mSync) {
+            mCallback = null;
+            mPending.clear();
+        }
+    }
+
+    @Override
+    public void reset() {
+        stop();
+        synchronized (mSync) {
+            mCallback = null;
+            mPending.clear();
+            mOutputFormat = null;
+            mSurfaceInput = false;
+            mRequestSyncFrame = false;
+            mConfiguredBitrate = mBitrate = 0;
+        }
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        synchronized (mSync) {
+            if (!mSurfaceInput) throw new IllegalStateException("not a surface input");
+            if (!mInputEOS) {
+                mInputEOS = true;
+                schedule(mLastRenderedPTSUs, true);
+            }
+        }
+    }
+
+    private long mLastRenderedPTSUs;
+
+    /**
+     * emulate rendering a frame to the input Surface
+     *
+     * @return false if the frame was dropped because encoder is busy or not running
+     */
+    public boolean renderFrame(final long presentationTimeUs) {
+        synchronized (mSync) {
+            if (!mSurfaceInput) throw new IllegalStateException("not a surface input");
+            // Surface of a real codec also drops frames when nobody drains output
+            if (!mIsRunning || mInputEOS || (mPending.size() >= NUM_OUTPUT_BUFFERS)) {
+                return false;
+            }
+            mLastRenderedPTSUs = presentationTimeUs;
+            schedule(presentationTimeUs, false);
+            return true;
+        }
+    }
+
+    @Override
+    public int dequeueInputBuffer(final long timeoutUs) {
+        synchronized (mSync) {
+            final long deadlineNs = System.nanoTime() + timeoutUs * 1000L;
+            while (mIsRunning && mFreeInputs.isEmpty()) {
+                final long waitNs = deadlineNs - System.nanoTime();
+                if ((timeoutUs >= 0) && (waitNs <= 0)) break;
+                waitNs(timeoutUs < 0 ? 0 : waitNs);
+            }
+            if (!mIsRunning || mFreeInputs.isEmpty()) {
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+            return mFreeInputs.removeFirst();
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(final int index) {
+        return mInputBuffers[index];
+    }
+
+    @Override
+    public void queueInputBuffer(final int index, final int offset, final int size,
+                                 final long presentationTimeUs, final int flags) {
+        synchronized (mSync) {
+            if (mInputEOS) throw new IllegalStateException("queueInputBuffer after EOS");
+            // input data is consumed immediately
+            mFreeInputs.add(index);
+            final boolean eos = (flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            if (size > 0) {
+                schedule(presentationTimeUs, false);
+            }
+            if (eos) {
+                mInputEOS = true;
+                schedule(presentationTimeUs, true);
+            }
+        }
+    }
+
+    @Override
+    public int dequeueOutputBuffer(final MediaCodec.BufferInfo info, final long timeoutUs) {
+        synchronized (mSync) {
+            final long deadlineNs = System.nanoTime() + timeoutUs * 1000L;
+            for (; mIsRunning; ) {
+                if (mFormatChangedPending) {
+                    mFormatChangedPending = false;
+                    return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+                }
+                final long now = System.nanoTime();
+                final Pending head = mPending.peekFirst();
+                if ((head != null) && (head.readyAtNs <= now) && !mFreeOutputs.isEmpty()) {
+                    mPending.removeFirst();
+                    final int index = mFreeOutputs.removeFirst();
+                    fill(mOutputBuffers[index], head);
+                    // BufferInfo#set is not available with mockable android.jar
+                    info.offset = 0;
+                    info.size = head.size;
+                    info.presentationTimeUs = head.presentationTimeUs;
+                    info.flags = head.flags;
+                    return index;
+                }
+                long waitNs = deadlineNs - now;
+                if ((timeoutUs >= 0) && (waitNs <= 0)) break;
+                if ((head != null) && !mFreeOutputs.isEmpty()) {
+                    waitNs = timeoutUs >= 0 ? Math.min(waitNs, head.readyAtNs - now) : head.readyAtNs - now;
+                } else if (timeoutUs < 0) {
+                    waitNs = 0;
+                }
+                waitNs(waitNs);
+            }
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(final int index) {
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public void releaseOutputBuffer(final int index) {
+        synchronized (mSync) {
+            mFreeOutputs.add(index);
+            mSync.notifyAll();
+        }
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        synchronized (mSync) {
+            return mOutputFormat;
+        }
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        synchronized (mSync) {
+            mRequestSyncFrame = true;
+        }
+    }
+
+    @Override
+    public void setVideoBitrate(final int bitrate) {
+        synchronized (mSync) {
+            mBitrate = bitrate;
+        }
+    }
+
+//********************************************************************************
+//********************************************************************************
+
+    /**
+     * add encoded sample that will be available after latency, should be called while holding mSync
+     */
+    private void schedule(final long presentationTimeUs, final boolean eos) {
+        final long readyAtNs = System.nanoTime() + mParams.latencyUs * 1000L;
+        if (eos) {
+            mPending.addLast(new Pending(readyAtNs, presentationTimeUs, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM));
+        } else {
+            if (mRequestSyncFrame) {
+                // restart GOP like real encoders
+                mRequestSyncFrame = false;
+                mFrameCount = 0;
+            }
+            final boolean isKeyFrame = (mFrameCount % mParams.keyFrameInterval) == 0;
+            mFrameCount++;
+            int size = isKeyFrame ? mParams.keyFrameSize : mParams.frameSize;
+            if ((mConfiguredBitrate > 0) && (mBitrate < mConfiguredBitrate)) {
+                // output buffers are allocated for the configured bitrate, so only scale down
+                size = Math.max(16, (int) ((long) size * mBitrate / mConfiguredBitrate));
+            }
+            mPending.addLast(new Pending(readyAtNs, presentationTimeUs, size,
+                    isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0));
+        }
+        mSync.notifyAll();
+    }
+
+    /**
+     * write synthetic payload
+     */
+    private void fill(final ByteBuffer buffer, final Pending pending) {
+        buffer.clear();
+        int n = pending.size;
+        if (mIsVideo && (n >= 5)) {
+            // Annex-B start code and NAL header(5: IDR slice, 1: non-IDR slice)
+            buffer.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1);
+            buffer.put((byte) ((pending.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0 ? 0x65 : 0x41));
+            n -= 5;
+        }
+        final byte v = (byte) pending.presentationTimeUs;
+        for (int i = 0; i < n; i++) {
+            buffer.put(v);
+        }
+        buffer.flip();
+    }
+
+    private void waitNs(final long waitNs) {
+        try {
+            if (waitNs > 0) {
+                mSync.wait(waitNs / 1000000L, (int) (waitNs % 1000000L));
+            } else {
+                mSync.wait();
+            }
+        } catch (final InterruptedException e) {
+            mIsRunning = false;
+        }
+    }
+
+    private static void join(final Thread thread) {
+        if ((thread != null) && (thread != Thread.currentThread())) {
+            try {
+                thread.join();
+            } catch (final InterruptedException ignored) {
+            }
+        }
+    }
+
+    /**
+     * deliver buffers to Callback for async mode
+     */
+    private final Runnable mCallbackTask = new Runnable() {
+        @Override
+        public void run() {
+            final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            for (; ; ) {
+                final Callback callback;
+                synchronized (mSync) {
+                    if (!mIsRunning) break;
+                    callback = mCallback;
+                }
+                if (callback == null) break;
+                try {
+                    if (!mSurfaceInput) {
+                        int inputIndex;
+                        while ((inputIndex = dequeueInputBuffer(0)) >= 0) {
+                            callback.onInputBufferAvailable(inputIndex);
+                        }
+                    }
+                    final int outputIndex = dequeueOutputBuffer(info, 10000);
+                    if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                        callback.onOutputFormatChanged(getOutputFormat());
+                    } else if (outputIndex >= 0) {
+                        final MediaCodec.BufferInfo outInfo = mCallbackInfos[outputIndex];
+                        outInfo.offset = info.offset;
+                        outInfo.size = info.size;
+                        outInfo.presentationTimeUs = info.presentationTimeUs;
+                        outInfo.flags = info.flags;
+                        callback.onOutputBufferAvailable(outputIndex, outInfo);
+                    }
+                } catch (final Exception e) {
+                    callback.onError(e);
+                    break;
+                }
+            }
+        }
+    };
+}
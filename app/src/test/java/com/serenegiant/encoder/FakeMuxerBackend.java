@@ -0,0 +1,124 @@
+package com.serenegiant.encoder;
+
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+/**
+ * MuxerBackend that only counts written samples in memory,
+ * use with FakeCodecBackend to run/benchmark encoding pipeline on the plain JVM.
+ */
+public class FakeMuxerBackend implements MuxerBackend {
+
+    private static final int MAX_TRACKS = 8;
+
+    private final long[] mSampleCounts = new long[MAX_TRACKS];
+    private final long[] mByteCounts = new long[MAX_TRACKS];
+    private final long[] mLastPTSUs = new long[MAX_TRACKS];
+    private int mTrackCount;
+    private int mLastTrackIndex = -1;
+    private int mTrackSwitches;
+    private long mMaxInterleaveLagUs;
+    private boolean mIsStarted;
+    private boolean mIsStopped;
+
+    @Override
+    public synchronized int addTrack(final MediaFormat format) {
+        if (mIsStarted) throw new IllegalStateException("muxer already started");
+        if (mTrackCount >= MAX_TRACKS) throw new IllegalStateException("too many tracks");
+        return mTrackCount++;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (mIsStarted) throw new IllegalStateException("muxer already started");
+        mIsStarted = true;
+    }
+
+    @Override
+    public synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+        if (!mIsStarted || mIsStopped) throw new IllegalStateException("muxer is not started");
+        if ((trackIndex < 0) || (trackIndex >= mTrackCount)) throw new IllegalArgumentException("invalid track index");
+        if (bufferInfo.presentationTimeUs < mLastPTSUs[trackIndex])
+            throw new IllegalArgumentException("presentationTimeUs should be monotonic");
+        for (int i = 0; i < mTrackCount; i++) {
+            if ((i != trackIndex) && (mSampleCounts[i] > 0)) {
+                mMaxInterleaveLagUs = Math.max(mMaxInterleaveLagUs,
+                    mLastPTSUs[i] - bufferInfo.presentationTimeUs);
+            }
+        }
+        if (trackIndex != mLastTrackIndex) {
+            if (mLastTrackIndex >= 0) mTrackSwitches++;
+            mLastTrackIndex = trackIndex;
+        }
+        mSampleCounts[trackIndex]++;
+        mByteCounts[trackIndex] += bufferInfo.size;
+        mLastPTSUs[trackIndex] = bufferInfo.presentationTimeUs;
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!mIsStarted) throw new IllegalStateException("muxer is not started");
+        mIsStopped = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void release() {
+        mIsStarted = false;
+    }
+
+    public synchronized int getTrackCount() {
+        return mTrackCount;
+    }
+
+    public synchronized long getSampleCount(final int trackIndex) {
+        return mSampleCounts[trackIndex];
+    }
+
+    public synchronized long getByteCount(final int trackIndex) {
+        return mByteCounts[trackIndex];
+    }
+
+    /**
+     * @return presentationTimeUs of the last written sample of the track
+     */
+    public synchronized long getLastPTSUs(final int trackIndex) {
+        return mLastPTSUs[trackIndex];
+    }
+
+    /**
+     * @return number of times that the written track changed from the previous sample
+     */
+    public synchronized int getTrackSwitches() {
+        return mTrackSwitches;
+    }
+
+    /**
+     * @return maximum of how much earlier a sample was than the samples already written on other tracks,
+     * 0 if samples were written in order of presentation time
+     */
+    public synchronized long getMaxInterleaveLagUs() {
+        return mMaxInterleaveLagUs;
+    }
+
+    public synchronized boolean isStopped() {
+        return mIsStopped;
+    }
+
+    /**
+     * wait until muxer is stopped
+     *
+     * @return true if muxer stopped
+     */
+    public synchronized boolean awaitStopped(final long timeoutMs) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!mIsStopped) {
+            final long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) break;
+            wait(wait);
+        }
+        return mIsStopped;
+    }
+}
@@ -0,0 +1,95 @@
+package com.serenegiant.encoder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LoopRecorderTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File createSegment(final String name, final int bytes, final long modified) throws IOException {
+        final File file = new File(mFolder.getRoot(), name);
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[bytes]);
+        } finally {
+            out.close();
+        }
+        assertTrue(file.setLastModified(modified));
+        return file;
+    }
+
+    /**
+     * listener is called on the cleaner thread after the segment is added
+     */
+    private static class Finished implements MediaMuxerWrapper.OnSegmentListener {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        @Override
+        public void onSegmentFinished(final String path, final long durationUs, final long bytes) {
+            latch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(latch.await(1, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void existingSegmentsAreSeededOldestFirst() throws Exception {
+        final long now = System.currentTimeMillis() / 1000 * 1000;
+        final File old0 = createSegment("2020-01-01 00:00:00_000.mp4", 100, now - 5000);
+        final File old1 = createSegment("2020-01-01 00:00:00_001.mp4", 100, now - 4000);
+        final File new0 = createSegment("2020-01-02 00:00:00_000.mp4", 100, now - 3000);
+        final File other = createSegment("snapshot.png", 100, now - 6000);
+        final Finished finished = new Finished();
+        final LoopRecorder loop = new LoopRecorder(mFolder.getRoot(), ".mp4", 3, 0, finished);
+        final File new1 = createSegment("2020-01-02 00:00:00_001.mp4", 100, now - 2000);
+        loop.onSegmentFinished(new1.getPath(), 1000000L, 50);
+        finished.await();
+        loop.release();
+        assertEquals(1, loop.getDeletedCount());
+        assertFalse(old0.exists());
+        assertTrue(old1.exists() && new0.exists() && new1.exists() && other.exists());
+        // size of the finalized file is used instead of reported payload size
+        assertEquals(300, loop.getTotalBytes());
+    }
+
+    @Test
+    public void seededSegmentIsNotCountedTwice() throws Exception {
+        final long now = System.currentTimeMillis() / 1000 * 1000;
+        // segment which is being written when LoopRecorder is created
+        final File current = createSegment("2020-01-01 00:00:00_000.mp4", 10, now);
+        final Finished finished = new Finished();
+        final LoopRecorder loop = new LoopRecorder(mFolder.getRoot(), ".mp4", 0, 1000, finished);
+        // the file grows until it is finalized
+        createSegment(current.getName(), 400, now);
+        loop.onSegmentFinished(current.getPath(), 1000000L, 300);
+        finished.await();
+        loop.release();
+        assertEquals(0, loop.getDeletedCount());
+        assertEquals(400, loop.getTotalBytes());
+    }
+
+    @Test
+    public void reportedSizeIsUsedWithoutFile() throws Exception {
+        final Finished finished = new Finished();
+        final LoopRecorder loop = new LoopRecorder(2, 0, finished);
+        loop.onSegmentFinished(new File(mFolder.getRoot(), "missing_000.mp4").getPath(), 1000000L, 123);
+        finished.await();
+        loop.release();
+        assertEquals(123, loop.getTotalBytes());
+    }
+}
@@ -0,0 +1,193 @@
+package com.serenegiant.encoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MuxerWriterTest {
+
+    private static final int FRAME_BYTES = 100 * 1024;
+
+    /**
+     * records flags of written samples
+     */
+    private static class RecordingMuxer implements MuxerBackend {
+        final List<Integer> flags = new ArrayList<Integer>();
+        final List<byte[]> data = new ArrayList<byte[]>();
+        final CountDownLatch released = new CountDownLatch(1);
+
+        @Override
+        public int addTrack(final MediaFormat format) {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf,
+                                                 final MediaCodec.BufferInfo bufferInfo) {
+            flags.add(bufferInfo.flags);
+            final byte[] bytes = new byte[bufferInfo.size];
+            final ByteBuffer src = byteBuf.duplicate();
+            src.position(bufferInfo.offset);
+            src.get(bytes);
+            data.add(bytes);
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+            released.countDown();
+        }
+    }
+
+    private static void write(final MuxerWriter writer, final boolean keyFrame, final long ptsUs) {
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.offset = 0;
+        info.size = FRAME_BYTES;
+        info.presentationTimeUs = ptsUs;
+        info.flags = keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+        writer.write(0, ByteBuffer.allocate(FRAME_BYTES), info);
+    }
+
+    @Test
+    public void dropsRestOfGopAndRequestsSyncFrame() throws Exception {
+        final RecordingMuxer muxer = new RecordingMuxer();
+        // only 4 blocks of 128KiB
+        final SlabPool pool = new SlabPool(512 * 1024, 512 * 1024);
+        final AtomicInteger requests = new AtomicInteger();
+        final MuxerWriter writer = new MuxerWriter(muxer, pool, 1,
+            MuxerWriter.DEFAULT_INTERLEAVE_WINDOW_US, 0, new Runnable() {
+            @Override
+            public void run() {
+                requests.incrementAndGet();
+            }
+        });
+        long pts = 0;
+        // writer thread is not started yet, so the pool becomes full
+        write(writer, true, pts += 33333);
+        for (int i = 0; i < 3; i++) {
+            write(writer, false, pts += 33333);
+        }
+        assertEquals(0, writer.getDropCount());
+        write(writer, false, pts += 33333);
+        assertEquals(1, writer.getDropCount());
+        assertEquals(1, requests.get());
+
+        writer.start();
+        for (int i = 0; (i < 100) && (pool.getUsedBytes() > 0); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, pool.getUsedBytes());
+        // frames refer to the dropped frame are dropped even though the pool has room
+        write(writer, false, pts += 33333);
+        write(writer, false, pts += 33333);
+        assertEquals(3, writer.getDropCount());
+        assertEquals(1, requests.get());
+        // writing resumes from the key frame
+        write(writer, true, pts += 33333);
+        write(writer, false, pts += 33333);
+        assertEquals(3, writer.getDropCount());
+
+        writer.finish();
+        assertTrue(muxer.released.await(1, TimeUnit.SECONDS));
+        assertEquals(6, muxer.flags.size());
+        assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, (int) muxer.flags.get(4));
+    }
+
+    @Test
+    public void dropsAudioOneByOne() {
+        final RecordingMuxer muxer = new RecordingMuxer();
+        final SlabPool pool = new SlabPool(512 * 1024, 512 * 1024);
+        final AtomicInteger requests = new AtomicInteger();
+        // track 0 is audio, video is track 1
+        final MuxerWriter writer = new MuxerWriter(muxer, pool, 2,
+            MuxerWriter.DEFAULT_INTERLEAVE_WINDOW_US, 1, new Runnable() {
+            @Override
+            public void run() {
+                requests.incrementAndGet();
+            }
+        });
+        for (int i = 0; i < 6; i++) {
+            write(writer, false, i * 23219L);
+        }
+        assertEquals(2, writer.getDropCount());
+        assertEquals(0, requests.get());
+        writer.finish();
+    }
+
+    @Test
+    public void writeKeepsPositionAndLimitOfCallerBuffer() throws Exception {
+        final RecordingMuxer muxer = new RecordingMuxer();
+        final SlabPool pool = new SlabPool(512 * 1024, 512 * 1024);
+        final MuxerWriter writer = new MuxerWriter(muxer, pool, 1, MuxerWriter.DEFAULT_INTERLEAVE_WINDOW_US);
+        final ByteBuffer buf = ByteBuffer.allocate(100);
+        for (int i = 0; i < 100; i++) {
+            buf.put(i, (byte) i);
+        }
+        buf.position(3);
+        buf.limit(90);
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.offset = 10;
+        info.size = 20;
+        info.flags = MediaCodec.BUFFER_FLAG_KEY_FRAME;
+        writer.write(0, buf, info);
+        // the same buffer is passed to live sinks after the writer
+        assertEquals(3, buf.position());
+        assertEquals(90, buf.limit());
+        writer.start();
+        writer.finish();
+        assertTrue(muxer.released.await(5, TimeUnit.SECONDS));
+        assertEquals(1, muxer.data.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(10 + i, muxer.data.get(0)[i]);
+        }
+    }
+
+    @Test
+    public void skippedVideoFrameWaitsForKeyFrame() throws Exception {
+        final RecordingMuxer muxer = new RecordingMuxer();
+        final SlabPool pool = new SlabPool(2 * 1024 * 1024, 2 * 1024 * 1024);
+        final AtomicInteger requests = new AtomicInteger();
+        final MuxerWriter writer = new MuxerWriter(muxer, pool, 1,
+            MuxerWriter.DEFAULT_INTERLEAVE_WINDOW_US, 0, new Runnable() {
+            @Override
+            public void run() {
+                requests.incrementAndGet();
+            }
+        });
+        writer.start();
+        // key frame was captured before the session and skipped by MediaMuxerWrapper
+        writer.skip(0);
+        writer.skip(0);
+        assertEquals(1, requests.get());
+        long pts = 0;
+        write(writer, false, pts += 33333);
+        write(writer, false, pts += 33333);
+        write(writer, true, pts += 33333);
+        write(writer, false, pts += 33333);
+        writer.finish();
+        assertTrue(muxer.released.await(5, TimeUnit.SECONDS));
+        // frames referring to the skipped one are dropped, writing restarts from the key frame
+        assertEquals(2, muxer.flags.size());
+        assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, (int) muxer.flags.get(0));
+        assertEquals(2, writer.getDropCount());
+        assertEquals(1, requests.get());
+    }
+}
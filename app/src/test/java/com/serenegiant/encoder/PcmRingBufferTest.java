@@ -0,0 +1,143 @@
+package com.serenegiant.encoder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PcmRingBufferTest {
+
+    private static final int CHUNK_SIZE = 64;
+
+    private static void write(final PcmRingBuffer ring, final int value, final int length) {
+        final ByteBuffer buf = ring.obtainWriteBuffer();
+        assertNotNull(buf);
+        buf.putInt(0, value);
+        ring.commitWrite(length, value * 1000L);
+    }
+
+    private static void read(final PcmRingBuffer ring, final int value, final int length) {
+        final ByteBuffer buf = ring.peekReadBuffer(0);
+        assertNotNull(buf);
+        assertEquals(0, buf.position());
+        assertEquals(length, buf.remaining());
+        assertEquals(value, buf.getInt(0));
+        assertEquals(value * 1000L, ring.getReadPTSUs());
+        ring.releaseRead();
+    }
+
+    @Test
+    public void depthIsRoundedUpToPowerOf2() {
+        assertEquals(1, new PcmRingBuffer(CHUNK_SIZE, 1).getDepth());
+        assertEquals(4, new PcmRingBuffer(CHUNK_SIZE, 3).getDepth());
+        assertEquals(16, new PcmRingBuffer(CHUNK_SIZE, 16).getDepth());
+        assertEquals(CHUNK_SIZE, new PcmRingBuffer(CHUNK_SIZE, 16).getChunkSize());
+    }
+
+    @Test
+    public void chunksWrapAroundInOrder() {
+        final PcmRingBuffer ring = new PcmRingBuffer(CHUNK_SIZE, 4);
+        int written = 0, read = 0;
+        // producer runs ahead by 1 to 4 chunks, positions pass the end of the array several times
+        for (int round = 0; round < 10; round++) {
+            final int ahead = (round % 4) + 1;
+            for (int i = 0; i < ahead; i++, written++) {
+                write(ring, written, 8 + written % CHUNK_SIZE / 2);
+            }
+            assertEquals(ahead, ring.size());
+            while (read < written) {
+                read(ring, read, 8 + read % CHUNK_SIZE / 2);
+                read++;
+            }
+            assertEquals(0, ring.size());
+        }
+        assertEquals(0, ring.getOverrunCount());
+        assertEquals(0, ring.getUnderrunCount());
+    }
+
+    @Test
+    public void fullRingIsOverrun() {
+        final PcmRingBuffer ring = new PcmRingBuffer(CHUNK_SIZE, 4);
+        for (int i = 0; i < 4; i++) {
+            write(ring, i, CHUNK_SIZE);
+        }
+        // producer never waits, the chunk is dropped
+        assertNull(ring.obtainWriteBuffer());
+        assertNull(ring.obtainWriteBuffer());
+        assertEquals(2, ring.getOverrunCount());
+        assertEquals(4, ring.size());
+        // committed chunks are not overwritten
+        read(ring, 0, CHUNK_SIZE);
+        write(ring, 4, CHUNK_SIZE);
+        for (int i = 1; i <= 4; i++) {
+            read(ring, i, CHUNK_SIZE);
+        }
+        ring.clear();
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void emptyRingIsUnderrunOnlyAfterTimeout() {
+        final PcmRingBuffer ring = new PcmRingBuffer(CHUNK_SIZE, 4);
+        // polling without timeout is not starvation
+        assertNull(ring.peekReadBuffer(0));
+        assertEquals(0, ring.getUnderrunCount());
+        final long start = System.nanoTime();
+        assertNull(ring.peekReadBuffer(20000));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(1, ring.getUnderrunCount());
+        // interrupted wait is not counted
+        Thread.currentThread().interrupt();
+        assertNull(ring.peekReadBuffer(1000000));
+        assertTrue(Thread.interrupted());
+        assertEquals(1, ring.getUnderrunCount());
+    }
+
+    @Test
+    public void waitingConsumerIsWokenByCommit() throws Exception {
+        final PcmRingBuffer ring = new PcmRingBuffer(CHUNK_SIZE, 4);
+        final int count = 2000;
+        final CountDownLatch started = new CountDownLatch(1);
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                for (int i = 0; i < count; i++) {
+                    ByteBuffer buf;
+                    while ((buf = ring.obtainWriteBuffer()) == null) {
+                        Thread.yield();
+                    }
+                    buf.putInt(0, i);
+                    ring.commitWrite(CHUNK_SIZE, i);
+                    if (i % 64 == 0) {
+                        // let the consumer catch up and park
+                        try {
+                            Thread.sleep(1);
+                        } catch (final InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+        });
+        producer.start();
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            // a lost wakeup would wait until this long timeout and count underrun
+            final ByteBuffer buf = ring.peekReadBuffer(5000000);
+            assertNotNull(buf);
+            assertEquals(i, buf.getInt(0));
+            ring.releaseRead();
+        }
+        producer.join();
+        assertEquals(0, ring.getUnderrunCount());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+}
@@ -0,0 +1,234 @@
+package com.serenegiant.encoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PreRecordMuxerBackendTest {
+
+    private static final long FRAME_US = 33333L;
+    private static final long AAC_FRAME_US = 23220L;
+
+    /**
+     * output muxer, this checks presentation time is monotonic in each track like MediaMuxer
+     */
+    private static class OutputMuxer implements MuxerBackend {
+        /**
+         * {trackIndex, presentationTimeUs, flags, index written in the sample}
+         */
+        final List<long[]> samples = new ArrayList<long[]>();
+        final long[] lastPTSUs = {-1, -1};
+        int trackCount;
+        boolean started, stopped;
+
+        @Override
+        public int addTrack(final MediaFormat format) {
+            return trackCount++;
+        }
+
+        @Override
+        public void start() {
+            started = true;
+        }
+
+        @Override
+        public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+            if (!started || stopped) throw new IllegalStateException("muxer is not started");
+            if (bufferInfo.presentationTimeUs < lastPTSUs[trackIndex])
+                throw new IllegalArgumentException("presentationTimeUs should be monotonic");
+            lastPTSUs[trackIndex] = bufferInfo.presentationTimeUs;
+            samples.add(new long[]{trackIndex, bufferInfo.presentationTimeUs, bufferInfo.flags,
+                byteBuf.getInt(bufferInfo.offset)});
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void release() {
+        }
+
+        List<long[]> track(final int trackIndex) {
+            final List<long[]> result = new ArrayList<long[]>();
+            for (final long[] sample : samples) {
+                if (sample[0] == trackIndex) result.add(sample);
+            }
+            return result;
+        }
+    }
+
+    private static class Factory implements SegmentedMuxerBackend.SegmentFactory {
+        OutputMuxer output;
+
+        @Override
+        public MuxerBackend createSegment(final int segmentIndex) throws IOException {
+            assertEquals(0, segmentIndex);
+            assertNull(output);
+            output = new OutputMuxer();
+            return output;
+        }
+    }
+
+    /**
+     * writes samples in the order that they come from encoders,
+     * video key frame comes every keyFrameInterval frames or on request
+     */
+    private static class Writer implements Runnable {
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        final ByteBuffer buffer;
+        final int keyFrameInterval;
+        final boolean withAudio;
+        int video, audio;
+        int requests;
+        boolean requested;
+
+        Writer(final int sampleSize, final int keyFrameInterval, final boolean withAudio) {
+            buffer = ByteBuffer.allocate(sampleSize);
+            this.keyFrameInterval = keyFrameInterval;
+            this.withAudio = withAudio;
+        }
+
+        @Override
+        public void run() {
+            requests++;
+            requested = true;
+        }
+
+        void write(final PreRecordMuxerBackend muxer, final int videoFrames) {
+            final int end = video + videoFrames;
+            while (video < end) {
+                final long videoUs = video * FRAME_US;
+                final long audioUs = audio * AAC_FRAME_US;
+                info.offset = 0;
+                info.size = buffer.capacity();
+                if (!withAudio || (videoUs <= audioUs)) {
+                    final boolean isKeyFrame = requested || (video % keyFrameInterval == 0);
+                    requested = false;
+                    buffer.clear();
+                    buffer.putInt(0, video);
+                    info.presentationTimeUs = videoUs;
+                    info.flags = isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+                    muxer.writeSampleData(0, buffer, info);
+                    video++;
+                } else {
+                    buffer.clear();
+                    buffer.putInt(0, audio);
+                    info.presentationTimeUs = audioUs;
+                    info.flags = 0;
+                    muxer.writeSampleData(1, buffer, info);
+                    audio++;
+                }
+            }
+        }
+    }
+
+    private static PreRecordMuxerBackend create(final Factory factory, final Writer writer,
+                                                final long preRecordUs, final long capacity) {
+        final PreRecordMuxerBackend muxer = new PreRecordMuxerBackend(factory, preRecordUs, capacity);
+        muxer.setSyncFrameRequest(writer);
+        muxer.addTrack(MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 640, 480));
+        if (writer.withAudio) {
+            muxer.addTrack(MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, 44100, 1));
+        }
+        muxer.start();
+        return muxer;
+    }
+
+    @Test
+    public void ringIsTrimmedByGopAndFlushedOnTrigger() {
+        final Factory factory = new Factory();
+        final Writer writer = new Writer(100, 30, true);
+        final PreRecordMuxerBackend muxer = create(factory, writer, 2000000L, PreRecordMuxerBackend.DEFAULT_CAPACITY);
+        writer.write(muxer, 300);
+        assertNull(factory.output);
+        assertTrue(muxer.trigger());
+        assertTrue(!muxer.trigger());
+        writer.write(muxer, 30);
+        muxer.stop();
+        muxer.release();
+
+        // key frames at 7, 8 and 9 sec are kept, the ring covers 2 sec at least with whole GOPs
+        final OutputMuxer output = factory.output;
+        assertNotNull(output);
+        assertTrue(output.stopped);
+        final List<long[]> video = output.track(0);
+        assertEquals(330 - 210, video.size());
+        for (int i = 0; i < video.size(); i++) {
+            final long[] sample = video.get(i);
+            assertEquals(210 + i, sample[3]);
+            // presentation time is rebased to the key frame at the head of the ring
+            assertEquals((210 + i) * FRAME_US - 210 * FRAME_US, sample[1]);
+            assertEquals((210 + i) % 30 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0, sample[2]);
+        }
+        // audio before the head key frame is not written, and no audio is lost after it
+        final List<long[]> audio = output.track(1);
+        final long firstAudio = (210 * FRAME_US + AAC_FRAME_US - 1) / AAC_FRAME_US;
+        assertEquals(firstAudio, audio.get(0)[3]);
+        for (int i = 0; i < audio.size(); i++) {
+            assertEquals(firstAudio + i, audio.get(i)[3]);
+            assertEquals((firstAudio + i) * AAC_FRAME_US - 210 * FRAME_US, audio.get(i)[1]);
+        }
+        assertEquals(writer.audio - firstAudio, audio.size());
+        assertEquals(0, writer.requests);
+    }
+
+    @Test
+    public void ringStartsOverFromRequestedKeyFrameOnOverflow() {
+        final Factory factory = new Factory();
+        // 64 blocks of 16KB, a GOP of 300 frames never fits
+        final Writer writer = new Writer(10000, 300, false);
+        final PreRecordMuxerBackend muxer = create(factory, writer, 5000000L, 1024 * 1024);
+        writer.write(muxer, 100);
+        assertEquals(1, writer.requests);
+        assertEquals(1, muxer.getDropCount());
+        muxer.trigger();
+        writer.write(muxer, 10);
+        muxer.stop();
+        muxer.release();
+
+        // frame 64 did not fit, the ring was cleared and restarted from the requested key frame
+        final List<long[]> video = factory.output.track(0);
+        assertEquals(110 - 65, video.size());
+        assertEquals(65, video.get(0)[3]);
+        assertEquals(0, video.get(0)[1]);
+        assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, video.get(0)[2]);
+        assertEquals(1, writer.requests);
+    }
+
+    @Test
+    public void emptyRingRequestsSyncFrameOnTrigger() {
+        final Factory factory = new Factory();
+        final Writer writer = new Writer(100, 300, true);
+        final PreRecordMuxerBackend muxer = create(factory, writer, 0, PreRecordMuxerBackend.DEFAULT_CAPACITY);
+        // ring is empty because pre-record duration is 0 and the encoder started before
+        writer.video = 1;
+        writer.audio = 2;
+        muxer.trigger();
+        writer.write(muxer, 30);
+        muxer.stop();
+        muxer.release();
+
+        // only the first video frame(and an audio sample before the next frame) after trigger is dropped,
+        // live video continues from the next frame
+        assertEquals(1, writer.requests);
+        assertEquals(2, muxer.getDropCount());
+        final List<long[]> video = factory.output.track(0);
+        assertEquals(29, video.size());
+        assertEquals(2, video.get(0)[3]);
+        assertEquals(0, video.get(0)[1]);
+        assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, video.get(0)[2]);
+    }
+}
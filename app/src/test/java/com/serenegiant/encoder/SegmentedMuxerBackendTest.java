@@ -0,0 +1,289 @@
+package com.serenegiant.encoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedMuxerBackendTest {
+
+    private static final long FRAME_US = 33333L;
+    private static final long AAC_FRAME_US = 23220L;
+    private static final int KEY_FRAME_INTERVAL = 15;
+    /**
+     * audio samples are written this much later than video samples of same presentation time
+     */
+    private static final long AUDIO_DELAY_US = 100000L;
+
+    /**
+     * muxer of a segment, this checks presentation time is monotonic in each track like MediaMuxer
+     */
+    private static class SegmentMuxer implements MuxerBackend {
+        final List<long[]> samples = new ArrayList<long[]>();
+        final long[] lastPTSUs = {-1, -1};
+        /**
+         * stop blocks until this is counted down, to emulate finalization of a large file
+         */
+        final CountDownLatch stopGate = new CountDownLatch(1);
+        int trackCount;
+        boolean stopped;
+
+        @Override
+        public int addTrack(final MediaFormat format) {
+            return trackCount++;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf,
+                                                 final MediaCodec.BufferInfo bufferInfo) {
+            if (stopped) throw new IllegalStateException("already stopped");
+            if (bufferInfo.presentationTimeUs < lastPTSUs[trackIndex])
+                throw new IllegalArgumentException("presentationTimeUs should be monotonic");
+            lastPTSUs[trackIndex] = bufferInfo.presentationTimeUs;
+            samples.add(new long[]{trackIndex, bufferInfo.presentationTimeUs});
+        }
+
+        @Override
+        public void stop() {
+            try {
+                stopGate.await();
+            } catch (final InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            synchronized (this) {
+                stopped = true;
+            }
+        }
+
+        @Override
+        public void release() {
+        }
+
+        synchronized int count(final int trackIndex) {
+            int result = 0;
+            for (final long[] sample : samples) {
+                if (sample[0] == trackIndex) result++;
+            }
+            return result;
+        }
+    }
+
+    private static class Factory implements SegmentedMuxerBackend.SegmentFactory {
+        final List<SegmentMuxer> segments = new ArrayList<SegmentMuxer>();
+        final AtomicInteger calls = new AtomicInteger();
+        final int failFrom;
+        /**
+         * creation of segment 1 blocks until this is counted down
+         */
+        final CountDownLatch gate = new CountDownLatch(1);
+        /**
+         * stop of segment 0 blocks until its stopGate is counted down
+         */
+        boolean holdFirstStop;
+
+        Factory(final int failFrom) {
+            this.failFrom = failFrom;
+            gate.countDown();
+        }
+
+        Factory(final int failFrom, final boolean blockSecond) {
+            this.failFrom = failFrom;
+            if (!blockSecond) gate.countDown();
+        }
+
+        @Override
+        public MuxerBackend createSegment(final int segmentIndex) throws IOException {
+            calls.incrementAndGet();
+            if (segmentIndex == 1) {
+                try {
+                    gate.await();
+                } catch (final InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (segmentIndex >= failFrom) throw new IOException("no space left");
+            final SegmentMuxer muxer = new SegmentMuxer();
+            if ((segmentIndex > 0) || !holdFirstStop) {
+                muxer.stopGate.countDown();
+            }
+            synchronized (this) {
+                segments.add(muxer);
+            }
+            return muxer;
+        }
+
+        synchronized SegmentMuxer get(final int segmentIndex) {
+            return segments.get(segmentIndex);
+        }
+
+        synchronized int size() {
+            return segments.size();
+        }
+    }
+
+    /**
+     * writes video and audio in the order that they come from encoders, audio is delayed
+     */
+    private static class Writer {
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        final ByteBuffer buffer = ByteBuffer.allocate(100);
+        int video, audio;
+
+        /**
+         * @return number of written samples in total
+         */
+        int write(final SegmentedMuxerBackend muxer, final long durationUs) throws InterruptedException {
+            while (true) {
+                final long videoUs = video * FRAME_US;
+                final long audioUs = audio * AAC_FRAME_US;
+                if ((videoUs >= durationUs) && (audioUs >= durationUs)) break;
+                info.size = 100;
+                if ((videoUs < durationUs) && (videoUs <= audioUs + AUDIO_DELAY_US)) {
+                    final boolean isKeyFrame = video % KEY_FRAME_INTERVAL == 0;
+                    if (isKeyFrame) {
+                        // give preparing thread a chance like real time encoding
+                        Thread.sleep(5);
+                    }
+                    info.presentationTimeUs = videoUs;
+                    info.flags = isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+                    muxer.writeSampleData(0, buffer, info);
+                    video++;
+                } else {
+                    info.presentationTimeUs = audioUs;
+                    info.flags = 0;
+                    muxer.writeSampleData(1, buffer, info);
+                    audio++;
+                }
+            }
+            return video + audio;
+        }
+    }
+
+    private static SegmentedMuxerBackend create(final Factory factory, final SegmentedMuxerBackend.SegmentListener listener) {
+        final SegmentedMuxerBackend muxer = new SegmentedMuxerBackend(factory, listener, 1000000L, 0);
+        muxer.addTrack(MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 640, 480));
+        muxer.addTrack(MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, 44100, 1));
+        muxer.start();
+        return muxer;
+    }
+
+    @Test
+    public void lateSamplesGoToPreviousSegment() throws Exception {
+        final Factory factory = new Factory(Integer.MAX_VALUE);
+        final CountDownLatch firstFinished = new CountDownLatch(1);
+        final SegmentedMuxerBackend muxer = create(factory, new SegmentedMuxerBackend.SegmentListener() {
+            @Override
+            public void onSegmentFinished(final int segmentIndex, final long durationUs, final long bytes) {
+                if (segmentIndex == 0) firstFinished.countDown();
+            }
+
+            @Override
+            public void onSegmentDiscarded(final int segmentIndex) {
+            }
+        });
+        final int written = new Writer().write(muxer, 3000000L);
+        // previous segment is finalized while recording once every track passed the boundary
+        assertTrue(firstFinished.await(1, TimeUnit.SECONDS));
+        muxer.stop();
+        muxer.release();
+
+        assertEquals(0, muxer.getDropCount());
+        int total = 0;
+        for (final SegmentMuxer segment : factory.segments) {
+            // next segment that was prepared but not used is not stopped
+            assertTrue(segment.stopped || segment.samples.isEmpty());
+            total += segment.samples.size();
+        }
+        assertEquals(written, total);
+        // first segment is cut on the key frame at 1.5 sec, audio before it still goes to the first segment
+        final SegmentMuxer first = factory.segments.get(0);
+        final long boundaryUs = 45 * FRAME_US;
+        assertEquals(45, first.count(0));
+        assertEquals((boundaryUs + AAC_FRAME_US - 1) / AAC_FRAME_US, first.count(1));
+        // audio of the next segment starts within a frame after the boundary
+        final SegmentMuxer second = factory.segments.get(1);
+        for (final long[] sample : second.samples) {
+            if (sample[0] == 1) {
+                assertTrue(sample[1] < AAC_FRAME_US);
+                break;
+            }
+        }
+    }
+
+    @Test
+    public void failingFactoryIsRetriedWithBackoff() throws Exception {
+        final Factory factory = new Factory(1);
+        final AtomicInteger requests = new AtomicInteger();
+        final SegmentedMuxerBackend muxer = create(factory, null);
+        muxer.setSyncFrameRequest(new Runnable() {
+            @Override
+            public void run() {
+                requests.incrementAndGet();
+            }
+        });
+        final int written = new Writer().write(muxer, 10000000L);
+        muxer.stop();
+        muxer.release();
+
+        // prepared when recording started, failure is found at the key frame after rollover(1.5sec)
+        // then retried after 1, 2 and 4 sec
+        assertEquals(1, factory.segments.size());
+        assertEquals(written, factory.segments.get(0).samples.size());
+        assertEquals(5, factory.calls.get());
+        assertEquals(4, requests.get());
+    }
+
+    @Test(timeout = 10000)
+    public void writerNeverWaitsForNextSegment() throws Exception {
+        final Factory factory = new Factory(Integer.MAX_VALUE, true);
+        final SegmentedMuxerBackend muxer = create(factory, null);
+        final Writer writer = new Writer();
+        // key frames at 1.5 and 2.0 sec come while the next segment is still being prepared
+        writer.write(muxer, 2200000L);
+        assertEquals(1, factory.size());
+        assertEquals(67, factory.get(0).count(0));
+        factory.gate.countDown();
+        // switched on the first key frame after the next segment became ready(2.5 sec)
+        final int written = writer.write(muxer, 3000000L);
+        muxer.stop();
+        muxer.release();
+
+        assertEquals(75, factory.get(0).count(0));
+        assertEquals(written, factory.get(0).samples.size() + factory.get(1).samples.size());
+        assertEquals(0, muxer.getDropCount());
+    }
+
+    @Test(timeout = 10000)
+    public void slowFinalizationDoesNotDelayRollover() throws Exception {
+        final Factory factory = new Factory(Integer.MAX_VALUE);
+        factory.holdFirstStop = true;
+        final SegmentedMuxerBackend muxer = create(factory, null);
+        // finalization of the first segment does not end while writing
+        new Writer().write(muxer, 4000000L);
+        final SegmentMuxer first = factory.get(0);
+        assertTrue(!first.stopped);
+        // segments are cut at 1.5 and 3.0 sec(key frame at 2.5 sec is slightly shorter than the limit)
+        assertTrue(factory.size() >= 3);
+        assertEquals(45, factory.get(1).count(0));
+        assertEquals(31, factory.get(2).count(0));
+        first.stopGate.countDown();
+        muxer.stop();
+        muxer.release();
+        assertTrue(first.stopped);
+    }
+}
@@ -0,0 +1,217 @@
+package com.serenegiant.media;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FragmentedMp4WriterTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final long FRAME_US = 33333L;
+    private static final long AAC_FRAME_US = 23220L;
+    private static final int FRAMES = 90;
+    private static final int KEY_FRAME_INTERVAL = 30;
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0x80, 0x1f, (byte) 0xda, 0x01, 0x40};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x06, (byte) 0xe2};
+    private static final byte[] ASC = {0x12, 0x08};
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * ISO base media file format box
+     */
+    private static class Box {
+        final String type;
+        final int offset;
+        final int size;
+        final List<Box> children = new ArrayList<Box>();
+
+        Box(final String type, final int offset, final int size) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        Box child(final String type) {
+            for (final Box box : children) {
+                if (box.type.equals(type)) return box;
+            }
+            throw new AssertionError("no " + type + " in " + this.type);
+        }
+
+        List<Box> children(final String type) {
+            final List<Box> result = new ArrayList<Box>();
+            for (final Box box : children) {
+                if (box.type.equals(type)) result.add(box);
+            }
+            return result;
+        }
+    }
+
+    private static final List<String> CONTAINERS = Arrays.asList(
+        "moov", "trak", "mdia", "minf", "stbl", "dinf", "mvex", "moof", "traf");
+
+    /**
+     * parse boxes between offset and end, sizes of every box should fit in its parent
+     */
+    private static List<Box> parse(final ByteBuffer buf, int offset, final int end) {
+        final List<Box> result = new ArrayList<Box>();
+        while (offset < end) {
+            final int size = buf.getInt(offset);
+            final String type = new String(buf.array(), offset + 4, 4, ASCII);
+            assertTrue(type + " size=" + size, (size >= 8) && (offset + size <= end));
+            final Box box = new Box(type, offset, size);
+            if (CONTAINERS.contains(type)) {
+                box.children.addAll(parse(buf, offset + 8, offset + size));
+            } else if (type.equals("stsd")) {
+                box.children.addAll(parse(buf, offset + 16, offset + size));
+            } else if (type.equals("avc1")) {
+                box.children.addAll(parse(buf, offset + 86, offset + size));
+            } else if (type.equals("mp4a")) {
+                box.children.addAll(parse(buf, offset + 36, offset + size));
+            }
+            result.add(box);
+            offset += size;
+        }
+        assertEquals(end, offset);
+        return result;
+    }
+
+    private static byte[] bytes(final ByteBuffer buf, final int offset, final int length) {
+        return Arrays.copyOfRange(buf.array(), offset, offset + length);
+    }
+
+    private static Box sampleEntry(final Box trak) {
+        return trak.child("mdia").child("minf").child("stbl").child("stsd").children.get(0);
+    }
+
+    /**
+     * Annex-B access unit, AUD and parameter sets precede IDR like MediaCodec output
+     */
+    private static byte[] accessUnit(final int index, final boolean isSync) {
+        final ByteBuffer buf = ByteBuffer.allocate(200);
+        buf.put(new byte[]{0, 0, 0, 1, 0x09, (byte) 0xf0});
+        if (isSync) {
+            buf.put(new byte[]{0, 0, 0, 1}).put(SPS).put(new byte[]{0, 0, 0, 1}).put(PPS);
+        }
+        buf.put(new byte[]{0, 0, 0, 1, (byte) (isSync ? 0x65 : 0x41), (byte) index});
+        final byte[] payload = new byte[50 + index];
+        Arrays.fill(payload, (byte) 0x5a);
+        buf.put(payload);
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    @Test
+    public void fragmentsAreConsistent() throws Exception {
+        final File file = mFolder.newFile("test.mp4");
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        final FragmentedMp4Writer writer = new FragmentedMp4Writer(raf.getChannel(), 1000000L);
+        final int video = writer.addVideoTrack(640, 480, SPS, PPS);
+        final int audio = writer.addAudioTrack(44100, 1, ASC);
+        writer.start();
+        final List<byte[]> audioFrames = new ArrayList<byte[]>();
+        int audioCount = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            final long ptsUs = i * FRAME_US;
+            while (audioCount * AAC_FRAME_US <= ptsUs) {
+                final byte[] frame = new byte[20 + (audioCount % 7)];
+                Arrays.fill(frame, (byte) audioCount);
+                audioFrames.add(frame);
+                writer.writeSample(audio, ByteBuffer.wrap(frame), audioCount * AAC_FRAME_US, true);
+                audioCount++;
+            }
+            final boolean isSync = i % KEY_FRAME_INTERVAL == 0;
+            writer.writeSample(video, ByteBuffer.wrap(accessUnit(i, isSync)), ptsUs, isSync);
+        }
+        writer.stop();
+        raf.close();
+
+        final ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        final List<Box> top = parse(buf, 0, buf.limit());
+        assertEquals("ftyp", top.get(0).type);
+        assertEquals("moov", top.get(1).type);
+        assertTrue(top.size() > 4);
+        assertEquals(0, (top.size() - 2) % 2);
+
+        final Box moov = top.get(1);
+        final List<Box> traks = moov.children("trak");
+        assertEquals(2, traks.size());
+        assertEquals(2, moov.child("mvex").children("trex").size());
+        // avcC has the parameter sets without start code
+        final Box avcC = sampleEntry(traks.get(0)).child("avcC");
+        assertArrayEquals(SPS, bytes(buf, avcC.offset + 8 + 8, SPS.length));
+        assertArrayEquals(PPS, bytes(buf, avcC.offset + 8 + 8 + SPS.length + 3, PPS.length));
+        // DecoderSpecificInfo of esds is the AudioSpecificConfig
+        final Box esds = sampleEntry(traks.get(1)).child("esds");
+        assertArrayEquals(ASC, bytes(buf, esds.offset + esds.size - 3 - ASC.length, ASC.length));
+
+        final Map<Integer, Long> nextDecodeTime = new HashMap<Integer, Long>();
+        final int[] sampleCounts = new int[3];
+        int audioIndex = 0;
+        for (int i = 2; i < top.size(); i += 2) {
+            final Box moof = top.get(i);
+            final Box mdat = top.get(i + 1);
+            assertEquals("moof", moof.type);
+            assertEquals("mdat", mdat.type);
+            assertEquals(i / 2, buf.getInt(moof.child("mfhd").offset + 12));
+            for (final Box traf : moof.children("traf")) {
+                final int trackId = buf.getInt(traf.child("tfhd").offset + 12);
+                final Box tfdt = traf.child("tfdt");
+                assertEquals(1, buf.get(tfdt.offset + 8));
+                final long baseDecodeTime = buf.getLong(tfdt.offset + 12);
+                if (nextDecodeTime.containsKey(trackId)) {
+                    // no gap or overlap between fragments
+                    assertEquals((long) nextDecodeTime.get(trackId), baseDecodeTime);
+                }
+                final Box trun = traf.child("trun");
+                assertEquals(0x000701, buf.getInt(trun.offset + 8));
+                final int count = buf.getInt(trun.offset + 12);
+                int data = moof.offset + buf.getInt(trun.offset + 16);
+                assertTrue(data >= mdat.offset + 8);
+                long duration = 0;
+                for (int j = 0; j < count; j++) {
+                    final int entry = trun.offset + 20 + j * 12;
+                    duration += buf.getInt(entry);
+                    final int size = buf.getInt(entry + 4);
+                    final int flags = buf.getInt(entry + 8);
+                    assertTrue(data + size <= mdat.offset + mdat.size);
+                    if (trackId == 1) {
+                        // length prefixed NAL units, AUD and parameter sets are removed
+                        final int length = buf.getInt(data);
+                        assertEquals(size, 4 + length);
+                        final int nalType = buf.get(data + 4) & 0x1f;
+                        assertEquals(nalType == 5 ? 0x02000000 : 0x01010000, flags);
+                        assertEquals(sampleCounts[1] % KEY_FRAME_INTERVAL == 0 ? 5 : 1, nalType);
+                        assertEquals((byte) sampleCounts[1], buf.get(data + 5));
+                    } else {
+                        assertArrayEquals(audioFrames.get(audioIndex++), bytes(buf, data, size));
+                    }
+                    data += size;
+                    sampleCounts[trackId]++;
+                }
+                nextDecodeTime.put(trackId, baseDecodeTime + duration);
+            }
+        }
+        assertEquals(FRAMES, sampleCounts[1]);
+        assertEquals(audioCount, sampleCounts[2]);
+        // durations add up to the presentation time of the last sample and its duration
+        assertEquals(FRAMES * FRAME_US * 90000L / 1000000L, (long) nextDecodeTime.get(1), 90);
+        assertEquals(audioCount * 1024L, (long) nextDecodeTime.get(2), audioCount);
+    }
+}
@@ -0,0 +1,123 @@
+package com.serenegiant.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HlsPackagerTest {
+
+    private static final long FRAME_US = 33333L;
+    private static final long AAC_FRAME_US = 23220L;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static List<String> readLines(final File file) throws IOException {
+        return Files.readAllLines(file.toPath(), Charset.forName("US-ASCII"));
+    }
+
+    private static int targetDuration(final List<String> playlist) {
+        for (final String line : playlist) {
+            if (line.startsWith("#EXT-X-TARGETDURATION:")) {
+                return Integer.parseInt(line.substring(22));
+            }
+        }
+        throw new AssertionError("no target duration");
+    }
+
+    private static List<Double> durations(final List<String> playlist) {
+        final List<Double> result = new ArrayList<Double>();
+        for (final String line : playlist) {
+            if (line.startsWith("#EXTINF:")) {
+                result.add(Double.parseDouble(line.substring(8, line.indexOf(','))));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * write 30fps video whose key frame interval is 3 seconds
+     *
+     * @param requested sync frame is requested by the packager, next frame becomes a key frame
+     */
+    private List<String> writeVideo(final boolean[] requested, final int frames) throws IOException {
+        final File playlist = new File(mFolder.getRoot(), "live.m3u8");
+        final HlsPackager packager = new HlsPackager(playlist, 2000000L, 0);
+        if (requested != null) {
+            packager.setSyncFrameRequest(new Runnable() {
+                @Override
+                public void run() {
+                    requested[0] = true;
+                }
+            });
+        }
+        final int track = packager.addVideoTrack(new byte[]{0x67, 0x42}, new byte[]{0x68, (byte) 0xce});
+        packager.start();
+        final byte[] frame = new byte[500];
+        for (int i = 0; i < frames; i++) {
+            boolean isSync = (i % 90) == 0;
+            if ((requested != null) && requested[0]) {
+                requested[0] = false;
+                isSync = true;
+            }
+            packager.writeSample(track, ByteBuffer.wrap(frame), i * FRAME_US, isSync);
+        }
+        packager.stop();
+        return readLines(playlist);
+    }
+
+    @Test
+    public void targetDurationIsNeverExceeded() throws Exception {
+        final List<String> playlist = writeVideo(null, 300);
+        assertEquals(2, targetDuration(playlist));
+        // without sync frame request, segments are cut before exceeding target duration
+        for (final double duration : durations(playlist)) {
+            assertTrue(String.valueOf(duration), Math.round(duration) <= 2);
+        }
+    }
+
+    @Test
+    public void segmentsAreCutOnRequestedSyncFrame() throws Exception {
+        final List<String> playlist = writeVideo(new boolean[1], 300);
+        assertEquals(2, targetDuration(playlist));
+        final List<Double> durations = durations(playlist);
+        // sync frame is requested at 61st frame(first one reached target) and comes on the next frame
+        assertEquals(62 * FRAME_US / 1000000.0, durations.get(0), 0.0011);
+        for (final double duration : durations) {
+            assertTrue(String.valueOf(duration), Math.round(duration) <= 2);
+        }
+    }
+
+    @Test
+    public void lastSegmentIncludesDurationOfLastSample() throws Exception {
+        final File playlist = new File(mFolder.getRoot(), "audio.m3u8");
+        final HlsPackager packager = new HlsPackager(playlist, 1000000L, 0);
+        final int track = packager.addAudioTrack(new byte[]{0x12, 0x08});
+        packager.start();
+        final byte[] frame = new byte[100];
+        for (int i = 0; i < 100; i++) {
+            packager.writeSample(track, ByteBuffer.wrap(frame), i * AAC_FRAME_US, true);
+        }
+        packager.stop();
+        final List<String> lines = readLines(playlist);
+        assertEquals(1, targetDuration(lines));
+        final List<Double> durations = durations(lines);
+        assertEquals(3, durations.size());
+        // 44 frames, 44 frames and 12 frames
+        assertEquals(44 * AAC_FRAME_US / 1000000.0, durations.get(0), 0.0011);
+        assertEquals(44 * AAC_FRAME_US / 1000000.0, durations.get(1), 0.0011);
+        assertEquals(12 * AAC_FRAME_US / 1000000.0, durations.get(2), 0.0011);
+        assertEquals("#EXT-X-ENDLIST", lines.get(lines.size() - 1));
+    }
+}
@@ -0,0 +1,172 @@
+package com.serenegiant.media;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class MpegTsWriterTest {
+
+    /**
+     * PAT of transport_stream_id 1 with program 1 on PID 0x1000, same as ffmpeg writes
+     */
+    private static final byte[] REFERENCE_PAT = bytes(
+        0x47, 0x40, 0x00, 0x10, 0x00,
+        0x00, 0xb0, 0x0d, 0x00, 0x01, 0xc1, 0x00, 0x00, 0x00, 0x01, 0xf0, 0x00,
+        0x2a, 0xb1, 0x04, 0xb2);
+    /**
+     * AudioSpecificConfig of AAC LC, 44.1kHz, mono
+     */
+    private static final byte[] ASC = bytes(0x12, 0x08);
+    private static final byte[] SPS = bytes(0x67, 0x42, 0x00, 0x1e, 0x95);
+    private static final byte[] PPS = bytes(0x68, 0xce, 0x3c, 0x80);
+
+    private static byte[] bytes(final int... values) {
+        final byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    private static byte[] packet(final byte[] stream, final int index) {
+        return Arrays.copyOfRange(stream, index * MpegTsWriter.PACKET_SIZE, (index + 1) * MpegTsWriter.PACKET_SIZE);
+    }
+
+    private static int pid(final byte[] packet) {
+        return ((packet[1] & 0x1f) << 8) | (packet[2] & 0xff);
+    }
+
+    /**
+     * CRC-32/MPEG-2 over a section including its CRC should be 0
+     */
+    private static int crc32(final byte[] data, final int offset, final int length) {
+        int crc = 0xffffffff;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= (data[i] & 0xff) << 24;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+            }
+        }
+        return crc;
+    }
+
+    private static class Output {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final WritableByteChannel channel = Channels.newChannel(bytes);
+    }
+
+    @Test
+    public void tablesMatchReference() throws Exception {
+        final Output out = new Output();
+        final MpegTsWriter writer = new MpegTsWriter(out.channel);
+        writer.addVideoTrack(SPS, PPS);
+        writer.addAudioTrack(ASC);
+        writer.start();
+        writer.flush();
+        final byte[] stream = out.bytes.toByteArray();
+        assertEquals(2 * MpegTsWriter.PACKET_SIZE, stream.length);
+        final byte[] pat = packet(stream, 0);
+        assertArrayEquals(REFERENCE_PAT, Arrays.copyOf(pat, REFERENCE_PAT.length));
+        for (int i = REFERENCE_PAT.length; i < pat.length; i++) {
+            assertEquals((byte) 0xff, pat[i]);
+        }
+        final byte[] pmt = packet(stream, 1);
+        assertEquals(0x1000, pid(pmt));
+        final int sectionLength = ((pmt[6] & 0x0f) << 8) | (pmt[7] & 0xff);
+        assertEquals(0, crc32(pmt, 5, 3 + sectionLength));
+        // PCR on video PID, H.264 on 0x100 and AAC(ADTS) on 0x101
+        assertArrayEquals(bytes(0xe1, 0x00, 0xf0, 0x00,
+            0x1b, 0xe1, 0x00, 0xf0, 0x00,
+            0x0f, 0xe1, 0x01, 0xf0, 0x00), Arrays.copyOfRange(pmt, 13, 27));
+    }
+
+    @Test
+    public void audioPacketMatchesReference() throws Exception {
+        final Output out = new Output();
+        final MpegTsWriter writer = new MpegTsWriter(out.channel);
+        writer.addAudioTrack(ASC);
+        writer.start();
+        final byte[] frame = new byte[10];
+        Arrays.fill(frame, (byte) 0x5a);
+        writer.writeSample(0, ByteBuffer.wrap(frame), 0, true);
+        writer.flush();
+        final byte[] stream = out.bytes.toByteArray();
+        assertEquals(3 * MpegTsWriter.PACKET_SIZE, stream.length);
+
+        final ByteBuffer expected = ByteBuffer.allocate(MpegTsWriter.PACKET_SIZE);
+        // PID 0x101 with payload_unit_start_indicator, adaptation field and payload
+        expected.put(bytes(0x47, 0x41, 0x01, 0x30));
+        // adaptation field with random access indicator and PCR=0, stuffed to fill the packet
+        expected.put(bytes(152, 0x50, 0x00, 0x00, 0x00, 0x00, 0x7e, 0x00));
+        while (expected.position() < MpegTsWriter.PACKET_SIZE - 31) {
+            expected.put((byte) 0xff);
+        }
+        // PES header of audio stream with PTS=45000(0.5sec offset)
+        expected.put(bytes(0x00, 0x00, 0x01, 0xc0, 0x00, 0x19, 0x80, 0x80, 0x05, 0x21, 0x00, 0x03, 0x5f, 0x91));
+        // ADTS header: AAC LC, 44.1kHz, mono, 17 bytes
+        expected.put(bytes(0xff, 0xf1, 0x50, 0x40, 0x02, 0x3f, 0xfc));
+        expected.put(frame);
+        assertArrayEquals(expected.array(), packet(stream, 2));
+    }
+
+    @Test
+    public void videoSampleIsSplitIntoPackets() throws Exception {
+        final Output out = new Output();
+        final MpegTsWriter writer = new MpegTsWriter(out.channel);
+        writer.addVideoTrack(SPS, PPS);
+        writer.addAudioTrack(ASC);
+        writer.start();
+        final byte[] frame = new byte[1000];
+        frame[3] = 1;
+        frame[4] = 0x65;
+        writer.writeSample(0, ByteBuffer.wrap(frame), 0, true);
+        frame[4] = 0x41;
+        writer.writeSample(0, ByteBuffer.wrap(frame), 33333, false);
+        writer.flush();
+        final byte[] stream = out.bytes.toByteArray();
+        assertEquals(0, stream.length % MpegTsWriter.PACKET_SIZE);
+
+        int patCount = 0, pesStarts = 0, expectedCounter = 0;
+        final ByteArrayOutputStream firstPes = new ByteArrayOutputStream();
+        for (int i = 0; i < stream.length / MpegTsWriter.PACKET_SIZE; i++) {
+            final byte[] packet = packet(stream, i);
+            assertEquals(0x47, packet[0]);
+            final int pid = pid(packet);
+            if (pid == 0) {
+                patCount++;
+                continue;
+            }
+            if (pid != 0x100) continue;
+            assertEquals(expectedCounter, packet[3] & 0x0f);
+            expectedCounter = (expectedCounter + 1) & 0x0f;
+            final boolean start = (packet[1] & 0x40) != 0;
+            if (start) pesStarts++;
+            int offset = 4;
+            if ((packet[3] & 0x20) != 0) {
+                offset += 1 + (packet[4] & 0xff);
+            }
+            if (pesStarts == 1) {
+                firstPes.write(packet, offset, packet.length - offset);
+            }
+        }
+        // PAT/PMT at the beginning and again before the sync frame
+        assertEquals(2, patCount);
+        assertEquals(2, pesStarts);
+        final byte[] pes = firstPes.toByteArray();
+        final int headerLength = 9 + (pes[8] & 0xff);
+        // AUD, SPS and PPS precede the sync frame
+        final ByteBuffer es = ByteBuffer.allocate(6 + 4 + SPS.length + 4 + PPS.length + frame.length);
+        es.put(bytes(0, 0, 0, 1, 0x09, 0xf0)).put(bytes(0, 0, 0, 1)).put(SPS).put(bytes(0, 0, 0, 1)).put(PPS);
+        frame[4] = 0x65;
+        es.put(frame);
+        assertEquals(headerLength + es.capacity(), pes.length);
+        assertArrayEquals(es.array(), Arrays.copyOfRange(pes, headerLength, pes.length));
+    }
+}
@@ -0,0 +1,186 @@
+package com.serenegiant.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * HttpFileServer on loopback interface
+ */
+public class HttpFileServerTest {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mRoot;
+    private byte[] mContent;
+    private HttpFileServer mServer;
+    private Socket mSocket;
+
+    private static class Response {
+        int status;
+        final Map<String, String> headers = new HashMap<String, String>();
+        byte[] body;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = mFolder.newFolder("root");
+        // larger than the size that is sent at once
+        mContent = new byte[1024 * 1024 + 123];
+        new Random(1).nextBytes(mContent);
+        final FileOutputStream out = new FileOutputStream(new File(mRoot, "video 1.mp4"));
+        try {
+            out.write(mContent);
+        } finally {
+            out.close();
+        }
+        // outside of the root
+        mFolder.newFile("secret.txt");
+        mServer = new HttpFileServer(mRoot, 0);
+        mServer.start();
+        mSocket = new Socket(InetAddress.getLoopbackAddress(), mServer.getPort());
+        mSocket.setSoTimeout(5000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSocket.close();
+        mServer.stop();
+    }
+
+    private void send(final String request) throws IOException {
+        final OutputStream out = mSocket.getOutputStream();
+        out.write(request.getBytes(ISO_8859_1));
+        out.flush();
+    }
+
+    private Response receive(final boolean head) throws IOException {
+        final InputStream in = mSocket.getInputStream();
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        while (true) {
+            final int c = in.read();
+            if (c < 0) throw new IOException("connection closed");
+            header.write(c);
+            final byte[] data = header.toByteArray();
+            final int n = data.length;
+            if ((n >= 4) && (data[n - 4] == '\r') && (data[n - 3] == '\n') && (data[n - 2] == '\r') && (data[n - 1] == '\n')) {
+                break;
+            }
+        }
+        final String[] lines = new String(header.toByteArray(), ISO_8859_1).split("\r\n");
+        final Response response = new Response();
+        response.status = Integer.parseInt(lines[0].split(" ")[1]);
+        for (int i = 1; i < lines.length; i++) {
+            final int colon = lines[i].indexOf(':');
+            response.headers.put(lines[i].substring(0, colon).toLowerCase(Locale.US), lines[i].substring(colon + 1).trim());
+        }
+        final int length = head ? 0 : Integer.parseInt(response.headers.get("content-length"));
+        response.body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            final int n = in.read(response.body, read, length - read);
+            if (n < 0) throw new IOException("connection closed");
+            read += n;
+        }
+        return response;
+    }
+
+    private Response get(final String target, final String... headers) throws IOException {
+        final StringBuilder sb = new StringBuilder("GET ").append(target).append(" HTTP/1.1\r\nHost: localhost\r\n");
+        for (final String header : headers) {
+            sb.append(header).append("\r\n");
+        }
+        send(sb.append("\r\n").toString());
+        return receive(false);
+    }
+
+    @Test
+    public void wholeFileIsServed() throws Exception {
+        final Response response = get("/video%201.mp4");
+        assertEquals(200, response.status);
+        assertEquals("video/mp4", response.headers.get("content-type"));
+        assertEquals("bytes", response.headers.get("accept-ranges"));
+        assertEquals("keep-alive", response.headers.get("connection"));
+        assertArrayEquals(mContent, response.body);
+    }
+
+    @Test
+    public void rangeRequests() throws Exception {
+        Response response = get("/video%201.mp4", "Range: bytes=100-199");
+        assertEquals(206, response.status);
+        assertEquals("bytes 100-199/" + mContent.length, response.headers.get("content-range"));
+        assertArrayEquals(Arrays.copyOfRange(mContent, 100, 200), response.body);
+        // suffix range on the same connection
+        response = get("/video%201.mp4", "Range: bytes=-10");
+        assertEquals(206, response.status);
+        assertArrayEquals(Arrays.copyOfRange(mContent, mContent.length - 10, mContent.length), response.body);
+        // open ended range
+        response = get("/video%201.mp4", "Range: bytes=1048576-");
+        assertEquals(206, response.status);
+        assertArrayEquals(Arrays.copyOfRange(mContent, 1048576, mContent.length), response.body);
+        response = get("/video%201.mp4", "Range: bytes=" + mContent.length + "-");
+        assertEquals(416, response.status);
+        assertEquals("bytes */" + mContent.length, response.headers.get("content-range"));
+    }
+
+    @Test
+    public void pipelinedRequestsAreAnsweredInOrder() throws Exception {
+        send("HEAD /video%201.mp4 HTTP/1.1\r\nHost: localhost\r\n\r\n"
+            + "GET /video%201.mp4 HTTP/1.1\r\nHost: localhost\r\nRange: bytes=0-9\r\n\r\n"
+            + "GET /missing.mp4 HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+        Response response = receive(true);
+        assertEquals(200, response.status);
+        assertEquals(String.valueOf(mContent.length), response.headers.get("content-length"));
+        response = receive(false);
+        assertEquals(206, response.status);
+        assertArrayEquals(Arrays.copyOf(mContent, 10), response.body);
+        response = receive(false);
+        assertEquals(404, response.status);
+        assertEquals("close", response.headers.get("connection"));
+        assertEquals(-1, mSocket.getInputStream().read());
+    }
+
+    @Test
+    public void filesOutsideOfRootAreNotServed() throws Exception {
+        assertEquals(404, get("/../secret.txt").status);
+        assertEquals(404, get("/%2e%2e/secret.txt").status);
+    }
+
+    @Test
+    public void directoryIsListed() throws Exception {
+        final Response response = get("/");
+        assertEquals(200, response.status);
+        assertTrue(response.headers.get("content-type").startsWith("text/html"));
+        assertTrue(new String(response.body, "UTF-8").contains(">video 1.mp4</a>"));
+    }
+
+    @Test
+    public void unsupportedMethodIsRejected() throws Exception {
+        send("POST /video%201.mp4 HTTP/1.1\r\nHost: localhost\r\nContent-Length: 0\r\n\r\n");
+        assertEquals(405, receive(false).status);
+    }
+}
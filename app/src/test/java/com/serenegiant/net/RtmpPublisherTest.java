@@ -0,0 +1,484 @@
+package com.serenegiant.net;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * RtmpPublisher against a minimal RTMP server on loopback interface
+ */
+public class RtmpPublisherTest {
+
+    private static final int MSG_SET_CHUNK_SIZE = 1;
+    private static final int MSG_AUDIO = 8;
+    private static final int MSG_VIDEO = 9;
+    private static final int MSG_DATA_AMF0 = 18;
+    private static final int MSG_COMMAND_AMF0 = 20;
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0x80, 0x1f, (byte) 0xda, 0x01, 0x40};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x06, (byte) 0xe2};
+    private static final byte[] ASC = {0x12, 0x08};
+
+    private static final class Message {
+        final int type;
+        final int timestamp;
+        final int streamId;
+        final byte[] payload;
+
+        Message(final int type, final int timestamp, final int streamId, final byte[] payload) {
+            this.type = type;
+            this.timestamp = timestamp;
+            this.streamId = streamId;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * accepts one publisher, answers connect/createStream/publish and records all messages
+     */
+    private static final class Server implements Runnable {
+        final ServerSocket socket;
+        final List<Message> messages = new ArrayList<Message>();
+        final CountDownLatch closed = new CountDownLatch(1);
+        /**
+         * media messages are not read until this is counted down, to emulate slow network
+         */
+        final CountDownLatch readMedia = new CountDownLatch(1);
+        volatile Exception error;
+        private DataInputStream mIn;
+        private OutputStream mOut;
+        private int mInChunkSize = 128;
+
+        Server(final boolean slow) throws IOException {
+            socket = new ServerSocket();
+            if (slow) {
+                socket.setReceiveBufferSize(4096);
+            } else {
+                readMedia.countDown();
+            }
+            socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            new Thread(this, "RtmpServer").start();
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        synchronized List<Message> getMessages(final int type) {
+            final List<Message> result = new ArrayList<Message>();
+            for (final Message message : messages) {
+                if (message.type == type) result.add(message);
+            }
+            return result;
+        }
+
+        List<Object> getCommand(final String name) {
+            for (final Message message : getMessages(MSG_COMMAND_AMF0)) {
+                final List<Object> command = Amf0.decode(ByteBuffer.wrap(message.payload));
+                if (name.equals(command.get(0))) return command;
+            }
+            return null;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final Socket client = socket.accept();
+                try {
+                    mIn = new DataInputStream(client.getInputStream());
+                    mOut = client.getOutputStream();
+                    handshake();
+                    final Map<Integer, int[]> headers = new HashMap<Integer, int[]>();
+                    final Map<Integer, ByteBuffer> bodies = new HashMap<Integer, ByteBuffer>();
+                    for (; ; ) {
+                        readChunk(headers, bodies);
+                    }
+                } finally {
+                    client.close();
+                }
+            } catch (final EOFException e) {
+                // publisher closed the connection
+            } catch (final Exception e) {
+                error = e;
+            } finally {
+                try {
+                    socket.close();
+                } catch (final IOException e) {
+                    // ignore
+                }
+                closed.countDown();
+            }
+        }
+
+        private void handshake() throws IOException {
+            final byte[] c0c1 = new byte[1537];
+            mIn.readFully(c0c1);
+            assertEquals(3, c0c1[0]);
+            final byte[] s0s1s2 = new byte[1 + 1536 * 2];
+            s0s1s2[0] = 3;
+            System.arraycopy(c0c1, 1, s0s1s2, 1 + 1536, 1536);
+            mOut.write(s0s1s2);
+            final byte[] c2 = new byte[1536];
+            mIn.readFully(c2);
+            // C2 echoes S1
+            assertArrayEquals(Arrays.copyOfRange(s0s1s2, 1, 1537), c2);
+        }
+
+        /**
+         * @param headers  timestamp, length, type and stream id of each chunk stream
+         * @param bodies   partially received message of each chunk stream
+         */
+        private void readChunk(final Map<Integer, int[]> headers, final Map<Integer, ByteBuffer> bodies)
+            throws Exception {
+
+            final int b = mIn.readUnsignedByte();
+            final int fmt = b >> 6;
+            final int csid = b & 0x3f;
+            assertTrue("csid=" + csid, csid >= 2);
+            int[] header = headers.get(csid);
+            if (header == null) {
+                header = new int[4];
+                headers.put(csid, header);
+            }
+            if (fmt <= 2) {
+                int timestamp = readInt24();
+                if (fmt <= 1) {
+                    header[1] = readInt24();
+                    header[2] = mIn.readUnsignedByte();
+                }
+                if (fmt == 0) {
+                    header[3] = Integer.reverseBytes(mIn.readInt());
+                }
+                if (timestamp == 0xffffff) {
+                    timestamp = mIn.readInt();
+                }
+                header[0] = fmt == 0 ? timestamp : header[0] + timestamp;
+            }
+            ByteBuffer body = bodies.get(csid);
+            if (body == null) {
+                body = ByteBuffer.allocate(header[1]);
+                bodies.put(csid, body);
+            }
+            final int n = Math.min(mInChunkSize, body.remaining());
+            mIn.readFully(body.array(), body.position(), n);
+            body.position(body.position() + n);
+            if (!body.hasRemaining()) {
+                bodies.remove(csid);
+                handle(new Message(header[2], header[0], header[3], body.array()));
+            }
+        }
+
+        private void handle(final Message message) throws Exception {
+            synchronized (this) {
+                messages.add(message);
+            }
+            switch (message.type) {
+            case MSG_SET_CHUNK_SIZE:
+                mInChunkSize = ByteBuffer.wrap(message.payload).getInt();
+                break;
+            case MSG_COMMAND_AMF0:
+                final List<Object> command = Amf0.decode(ByteBuffer.wrap(message.payload));
+                final String name = (String) command.get(0);
+                if ("connect".equals(name)) {
+                    final Map<String, Object> properties = new LinkedHashMap<String, Object>();
+                    properties.put("fmsVer", "FMS/3,0,1,123");
+                    final Map<String, Object> info = new LinkedHashMap<String, Object>();
+                    info.put("level", "status");
+                    info.put("code", "NetConnection.Connect.Success");
+                    // longer than default chunk size
+                    info.put("description", "Connection succeeded. Connection succeeded. Connection succeeded. "
+                        + "Connection succeeded. Connection succeeded.");
+                    final ByteBuffer body = ByteBuffer.allocate(1024);
+                    Amf0.putString(body, "_result");
+                    Amf0.putNumber(body, (Double) command.get(1));
+                    Amf0.putObject(body, properties);
+                    Amf0.putObject(body, info);
+                    send(3, MSG_COMMAND_AMF0, 0, body);
+                } else if ("createStream".equals(name)) {
+                    final ByteBuffer body = ByteBuffer.allocate(64);
+                    Amf0.putString(body, "_result");
+                    Amf0.putNumber(body, (Double) command.get(1));
+                    Amf0.putNull(body);
+                    Amf0.putNumber(body, 1);
+                    send(3, MSG_COMMAND_AMF0, 0, body);
+                } else if ("publish".equals(name)) {
+                    final Map<String, Object> info = new LinkedHashMap<String, Object>();
+                    info.put("level", "status");
+                    info.put("code", "NetStream.Publish.Start");
+                    final ByteBuffer body = ByteBuffer.allocate(256);
+                    Amf0.putString(body, "onStatus");
+                    Amf0.putNumber(body, 0);
+                    Amf0.putNull(body);
+                    Amf0.putObject(body, info);
+                    send(5, MSG_COMMAND_AMF0, 1, body);
+                }
+                break;
+            case MSG_AUDIO:
+            case MSG_VIDEO:
+                readMedia.await();
+                break;
+            default:
+                break;
+            }
+        }
+
+        private int readInt24() throws IOException {
+            return (mIn.readUnsignedByte() << 16) | (mIn.readUnsignedByte() << 8) | mIn.readUnsignedByte();
+        }
+
+        /**
+         * send message in chunks of default size(128)
+         */
+        private void send(final int csid, final int type, final int streamId, final ByteBuffer body) throws IOException {
+            body.flip();
+            final ByteBuffer out = ByteBuffer.allocate(12 + body.remaining() * 2);
+            out.put((byte) csid);
+            out.put((byte) 0).putShort((short) 0);
+            out.put((byte) (body.remaining() >> 16)).putShort((short) body.remaining());
+            out.put((byte) type);
+            out.putInt(Integer.reverseBytes(streamId));
+            for (int i = 0; body.hasRemaining(); i++) {
+                if (i > 0) out.put((byte) (0xc0 | csid));
+                final int n = Math.min(128, body.remaining());
+                out.put(body.array(), body.position(), n);
+                body.position(body.position() + n);
+            }
+            mOut.write(out.array(), 0, out.position());
+            mOut.flush();
+        }
+    }
+
+    private static final class Listener implements RtmpPublisher.Listener {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        volatile Exception reason;
+
+        @Override
+        public void onPublishStarted() {
+            started.countDown();
+        }
+
+        @Override
+        public void onStopped(final Exception reason) {
+            this.reason = reason;
+            stopped.countDown();
+        }
+    }
+
+    private Server mServer;
+    private Listener mListener;
+    private RtmpPublisher mPublisher;
+
+    @Before
+    public void setUp() {
+        mListener = new Listener();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mPublisher != null) {
+            mPublisher.stop();
+            assertTrue(mListener.stopped.await(5, TimeUnit.SECONDS));
+        }
+        if (mServer != null) {
+            mServer.readMedia.countDown();
+            assertTrue(mServer.closed.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private void start(final boolean slow, final long capacity) throws Exception {
+        mServer = new Server(slow);
+        mPublisher = new RtmpPublisher("rtmp://127.0.0.1:" + mServer.getPort() + "/live/test", mListener, capacity);
+        mPublisher.addVideoTrack(640, 480, SPS, PPS);
+        mPublisher.addAudioTrack(44100, 1, ASC);
+        mPublisher.start();
+        assertTrue(mListener.started.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Annex-B access unit like MediaCodec output, index of the frame is in the payload
+     */
+    private static ByteBuffer accessUnit(final int index, final boolean isSync, final int size) {
+        final ByteBuffer buf = ByteBuffer.allocate(size + 64);
+        buf.put(new byte[]{0, 0, 0, 1, 0x09, (byte) 0xf0});
+        if (isSync) {
+            buf.put(new byte[]{0, 0, 0, 1}).put(SPS).put(new byte[]{0, 0, 0, 1}).put(PPS);
+        }
+        // index and payload never contain start code
+        buf.put(new byte[]{0, 0, 0, 1, (byte) (isSync ? 0x65 : 0x41)});
+        buf.put((byte) (0x80 | (index >> 7))).put((byte) (0x80 | (index & 0x7f)));
+        final byte[] payload = new byte[size];
+        Arrays.fill(payload, (byte) 0x5a);
+        buf.put(payload);
+        buf.flip();
+        return buf;
+    }
+
+    private static int frameIndex(final byte[] payload) {
+        return ((payload[10] & 0x7f) << 7) | (payload[11] & 0x7f);
+    }
+
+    private void awaitVideo(final int count) throws InterruptedException {
+        for (int i = 0; (i < 500) && (mServer.getMessages(MSG_VIDEO).size() < count); i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void samplesArePublishedAsFlvTags() throws Exception {
+        start(false, RtmpPublisher.DEFAULT_CAPACITY);
+        final List<Object> connect = mServer.getCommand("connect");
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> properties = (Map<String, Object>) connect.get(2);
+        assertEquals("live", properties.get("app"));
+        assertEquals("rtmp://127.0.0.1:" + mServer.getPort() + "/live", properties.get("tcUrl"));
+        assertEquals("test", mServer.getCommand("publish").get(3));
+
+        int audio = 0;
+        for (int i = 0; i < 30; i++) {
+            final long ptsUs = 1000000L + i * 33333L;
+            while (1000000L + audio * 23220L <= ptsUs) {
+                final byte[] frame = new byte[20];
+                Arrays.fill(frame, (byte) audio);
+                mPublisher.writeSample(1, ByteBuffer.wrap(frame), 1000000L + audio * 23220L, true);
+                audio++;
+            }
+            mPublisher.writeSample(0, accessUnit(i, i % 15 == 0, 1000), ptsUs, i % 15 == 0);
+        }
+        // sequence header and 30 frames
+        awaitVideo(31);
+        mPublisher.stop();
+        assertTrue(mListener.stopped.await(5, TimeUnit.SECONDS));
+        assertNull(mListener.reason);
+        assertTrue(mServer.closed.await(5, TimeUnit.SECONDS));
+        assertNull(mServer.error);
+        assertTrue(mServer.getCommand("deleteStream") != null);
+        assertEquals(0, mPublisher.getDropCount());
+
+        final List<Message> data = mServer.getMessages(MSG_DATA_AMF0);
+        assertEquals(1, data.size());
+        final List<Object> meta = Amf0.decode(ByteBuffer.wrap(data.get(0).payload));
+        assertEquals("@setDataFrame", meta.get(0));
+        assertEquals("onMetaData", meta.get(1));
+        assertEquals(640.0, ((Map<?, ?>) meta.get(2)).get("width"));
+
+        final List<Message> videos = mServer.getMessages(MSG_VIDEO);
+        assertEquals(31, videos.size());
+        // AVC sequence header
+        final byte[] header = videos.get(0).payload;
+        assertEquals(0x17, header[0]);
+        assertEquals(0, header[1]);
+        assertArrayEquals(SPS, Arrays.copyOfRange(header, 13, 13 + SPS.length));
+        int lastTimestamp = -1;
+        for (int i = 1; i < videos.size(); i++) {
+            final Message video = videos.get(i);
+            assertEquals(1, video.streamId);
+            final byte[] payload = video.payload;
+            assertEquals((i - 1) % 15 == 0 ? 0x17 : 0x27, payload[0] & 0xff);
+            assertEquals(1, payload[1]);
+            // one length prefixed NAL unit, AUD and parameter sets are removed
+            assertEquals(payload.length - 9, ByteBuffer.wrap(payload, 5, 4).getInt());
+            assertEquals(i - 1, frameIndex(payload));
+            // timestamp in milliseconds from the first sample
+            assertEquals((i - 1) * 33333L / 1000, video.timestamp, 1);
+            assertTrue(video.timestamp >= lastTimestamp);
+            lastTimestamp = video.timestamp;
+        }
+        final List<Message> audios = mServer.getMessages(MSG_AUDIO);
+        // AAC sequence header
+        assertArrayEquals(new byte[]{(byte) 0xaf, 0, ASC[0], ASC[1]}, audios.get(0).payload);
+        for (int i = 1; i < audios.size(); i++) {
+            final byte[] payload = audios.get(i).payload;
+            assertEquals(0xaf, payload[0] & 0xff);
+            assertEquals(1, payload[1]);
+            assertEquals((byte) (i - 1), payload[2]);
+        }
+    }
+
+    @Test
+    public void bFramesStopPublishing() throws Exception {
+        start(false, RtmpPublisher.DEFAULT_CAPACITY);
+        // decode order I0 P3 B1, presentation time of B1 goes back
+        mPublisher.writeSample(0, accessUnit(0, true, 100), 0, true);
+        mPublisher.writeSample(0, accessUnit(3, false, 100), 3 * 33333L, false);
+        mPublisher.writeSample(0, accessUnit(1, false, 100), 33333L, false);
+        assertTrue(mListener.stopped.await(5, TimeUnit.SECONDS));
+        assertTrue(String.valueOf(mListener.reason), mListener.reason instanceof IOException);
+        assertTrue(!mPublisher.isPublishing());
+    }
+
+    @Test
+    public void videoIsDroppedUntilKeyFrameOnSlowNetwork() throws Exception {
+        start(true, 2 * 1024 * 1024);
+        final boolean[] syncRequested = new boolean[1];
+        mPublisher.setSyncFrameRequest(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (syncRequested) {
+                    syncRequested[0] = true;
+                }
+            }
+        });
+        // much more than socket buffers while the server does not read
+        final int frames = 600;
+        for (int i = 0; i < frames; i++) {
+            boolean isSync = i % 300 == 0;
+            synchronized (syncRequested) {
+                if (syncRequested[0]) {
+                    syncRequested[0] = false;
+                    isSync = true;
+                }
+            }
+            mPublisher.writeSample(0, accessUnit(i, isSync, 20000), i * 33333L, isSync);
+            Thread.sleep(1);
+        }
+        assertTrue(mPublisher.getDropCount() > 0);
+        mServer.readMedia.countDown();
+        final int last = frames - 1;
+        for (int i = 0; i < 500; i++) {
+            final List<Message> videos = mServer.getMessages(MSG_VIDEO);
+            if (frameIndex(videos.get(videos.size() - 1).payload) == last) break;
+            Thread.sleep(10);
+        }
+        mPublisher.stop();
+        assertTrue(mServer.closed.await(5, TimeUnit.SECONDS));
+        assertNull(mServer.error);
+
+        final List<Message> videos = mServer.getMessages(MSG_VIDEO);
+        assertTrue(videos.size() - 1 < frames);
+        int previous = -1;
+        for (int i = 1; i < videos.size(); i++) {
+            final byte[] payload = videos.get(i).payload;
+            final int index = frameIndex(payload);
+            assertTrue(index > previous);
+            if (index != previous + 1) {
+                // decoding restarts from a key frame after dropped frames
+                assertEquals("frame " + index, 0x17, payload[0] & 0xff);
+            }
+            previous = index;
+        }
+        assertEquals(last, previous);
+    }
+}
@@ -0,0 +1,258 @@
+package com.serenegiant.net;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SendQueue on a controlled clock, the sender emulates a network link of fixed throughput
+ */
+public class SendQueueTest {
+
+    private static final long MAX_LATENCY_US = 1000000L;
+    private static final long FRAME_US = 33333L;
+    private static final long AAC_FRAME_US = 23220L;
+    /**
+     * nal_unit_type 5(IDR), 1(non-IDR slice) with nal_ref_idc 2, and 1 with nal_ref_idc 0
+     */
+    private static final int NAL_IDR = 0x65;
+    private static final int NAL_REFERENCE = 0x41;
+    private static final int NAL_NON_REFERENCE = 0x01;
+
+    /**
+     * SendQueue with manually advanced clock
+     */
+    private static final class TestQueue extends SendQueue {
+        long nowNs;
+        int syncRequests;
+
+        TestQueue(final long capacity, final int maxEntries) {
+            super(capacity, maxEntries, MAX_LATENCY_US);
+            setSyncFrameRequest(new Runnable() {
+                @Override
+                public void run() {
+                    syncRequests++;
+                }
+            });
+        }
+
+        @Override
+        long nanoTime() {
+            return nowNs;
+        }
+
+        void advanceMs(final long ms) {
+            nowNs += ms * 1000000L;
+        }
+
+        boolean video(final int nalHeader, final int index, final int size) {
+            return offer(0, true, accessUnit(nalHeader, index, size), index * FRAME_US, nalHeader == NAL_IDR);
+        }
+
+        boolean audio(final int index, final int size) {
+            final ByteBuffer data = ByteBuffer.allocate(size);
+            data.putInt(0, index);
+            return offer(1, false, data, index * AAC_FRAME_US, false);
+        }
+
+        /**
+         * poll and recycle next entry
+         *
+         * @return {trackIndex, index written in the sample, sync flag, size}, null if the queue is empty
+         */
+        int[] take() {
+            final Entry entry = poll();
+            if (entry == null) return null;
+            final ByteBuffer data = entry.data();
+            final int[] result = {entry.trackIndex,
+                data.getInt(data.position() + (entry.isVideo ? 5 : 0)),
+                entry.isSync ? 1 : 0, data.remaining()};
+            recycle(entry);
+            return result;
+        }
+    }
+
+    /**
+     * Annex-B access unit of one slice NAL unit, frame index follows the NAL header
+     */
+    private static ByteBuffer accessUnit(final int nalHeader, final int index, final int size) {
+        final ByteBuffer data = ByteBuffer.allocate(size);
+        data.put(new byte[]{0, 0, 0, 1, (byte) nalHeader});
+        data.putInt(index);
+        data.clear();
+        return data;
+    }
+
+    @Test
+    public void nonReferenceFramesAreDroppedFirst() {
+        final TestQueue queue = new TestQueue(1024 * 1024, SendQueue.DEFAULT_MAX_ENTRIES);
+        assertTrue(queue.video(NAL_IDR, 0, 1000));
+        for (int i = 1; i <= 10; i++) {
+            assertTrue(queue.video((i % 2) == 0 ? NAL_NON_REFERENCE : NAL_REFERENCE, i, 1000));
+            assertTrue(queue.audio(i, 200));
+        }
+        // not congested yet
+        queue.advanceMs(MAX_LATENCY_US / 2000);
+        assertEquals(0, queue.take()[1]);
+        assertEquals(0, queue.getDroppedNonReference());
+        // over half of max latency, only non-reference frames are dropped
+        queue.advanceMs(100);
+        int video = 0, audio = 0;
+        for (int[] sample = queue.take(); sample != null; sample = queue.take()) {
+            if (sample[0] == 0) {
+                assertTrue("frame " + sample[1], (sample[1] % 2) == 1);
+                video++;
+            } else {
+                audio++;
+            }
+        }
+        assertEquals(5, video);
+        assertEquals(10, audio);
+        assertEquals(5, queue.getDroppedNonReference());
+        assertEquals(0, queue.getDroppedVideo());
+        assertEquals(0, queue.getDroppedAudio());
+        assertEquals(0, queue.syncRequests);
+    }
+
+    @Test
+    public void audioIsKeptWhileVideoIsDroppedUnderCongestion() {
+        final TestQueue queue = new TestQueue(4 * 1024 * 1024, SendQueue.DEFAULT_MAX_ENTRIES);
+        // 30fps video of 1.2Mbps and 44.1kHz AAC of 138kbps on a link of 400kbps
+        final long linkBps = 400000;
+        final int videoSize = 5000;
+        final int audioSize = 400;
+        int video = 0, audio = 0;
+        int lastVideo = -1;
+        int sentVideo = 0, sentAudio = 0;
+        int lastAudio = -1;
+        int handledRequests = 0;
+        long maxBacklogMs = 0;
+        final long endNs = 20000000000L;
+        while (queue.nowNs < endNs) {
+            // encoders, a key frame comes every second or on request
+            while (video * FRAME_US * 1000L <= queue.nowNs) {
+                final boolean sync = (video % 30 == 0) || (queue.syncRequests > handledRequests);
+                handledRequests = queue.syncRequests;
+                queue.video(sync ? NAL_IDR : NAL_REFERENCE, video++, videoSize);
+            }
+            while (audio * AAC_FRAME_US * 1000L <= queue.nowNs) {
+                assertTrue(queue.audio(audio++, audioSize));
+            }
+            maxBacklogMs = Math.max(maxBacklogMs, queue.getBacklogAgeMs());
+            // sender
+            final int[] sample = queue.take();
+            if (sample == null) {
+                queue.nowNs = Math.min(video * FRAME_US, audio * AAC_FRAME_US) * 1000L;
+                continue;
+            }
+            if (sample[0] == 0) {
+                // decodable: each frame follows the previous one or is a key frame
+                assertTrue("frame " + sample[1], (sample[2] != 0) || (sample[1] == lastVideo + 1));
+                lastVideo = sample[1];
+                sentVideo++;
+            } else {
+                assertEquals(lastAudio + 1, sample[1]);
+                lastAudio = sample[1];
+                sentAudio++;
+            }
+            queue.nowNs += sample[3] * 8 * 1000000000L / linkBps;
+            queue.onSent(sample[3]);
+        }
+        assertEquals(0, queue.getDroppedAudio());
+        assertTrue(queue.toString(), queue.getDroppedVideo() > 0);
+        assertTrue(queue.toString(), queue.syncRequests > 0);
+        assertTrue(sentVideo > 0);
+        assertTrue(sentAudio > 0);
+        // the throughput is measured on the saturated link
+        assertTrue(queue.toString(), Math.abs(queue.getThroughputBps() - linkBps) < linkBps / 10);
+        // latency is bounded by whole GOP drops
+        assertTrue("backlog=" + maxBacklogMs, maxBacklogMs < 2 * MAX_LATENCY_US / 1000);
+    }
+
+    @Test
+    public void makeRoomDropsNonReferenceThenGop() {
+        final TestQueue queue = new TestQueue(1024 * 1024, 8);
+        assertTrue(queue.video(NAL_IDR, 0, 100));
+        assertTrue(queue.video(NAL_REFERENCE, 1, 100));
+        assertTrue(queue.video(NAL_NON_REFERENCE, 2, 100));
+        assertTrue(queue.audio(0, 100));
+        assertTrue(queue.video(NAL_REFERENCE, 3, 100));
+        assertTrue(queue.video(NAL_NON_REFERENCE, 4, 100));
+        assertTrue(queue.audio(1, 100));
+        assertTrue(queue.video(NAL_REFERENCE, 5, 100));
+        assertEquals(8, queue.getQueuedCount());
+        // non-reference frames make room
+        assertTrue(queue.video(NAL_REFERENCE, 6, 100));
+        assertEquals(2, queue.getDroppedNonReference());
+        assertEquals(0, queue.getDroppedVideo());
+        assertEquals(7, queue.getQueuedCount());
+        assertTrue(queue.video(NAL_REFERENCE, 7, 100));
+        // then the GOP without following key frame, audio is kept
+        assertTrue(!queue.video(NAL_REFERENCE, 8, 100));
+        assertEquals(6 + 1, queue.getDroppedVideo());
+        assertEquals(0, queue.getDroppedAudio());
+        assertEquals(2, queue.getQueuedCount());
+        assertEquals(1, queue.syncRequests);
+        // video is dropped until the requested key frame
+        assertTrue(!queue.video(NAL_REFERENCE, 9, 100));
+        assertEquals(1, queue.syncRequests);
+        assertTrue(queue.video(NAL_IDR, 10, 100));
+        assertEquals(1, queue.take()[0]);
+        assertEquals(1, queue.take()[0]);
+        final int[] sample = queue.take();
+        assertEquals(10, sample[1]);
+        assertEquals(1, sample[2]);
+        assertNull(queue.take());
+    }
+
+    @Test
+    public void makeRoomDropsOldestAudioOnlyForAudio() {
+        final TestQueue queue = new TestQueue(1024 * 1024, 4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.audio(i, 100));
+        }
+        assertTrue(queue.audio(4, 100));
+        assertEquals(1, queue.getDroppedAudio());
+        // video does not push audio out
+        assertTrue(!queue.video(NAL_IDR, 0, 100));
+        assertEquals(1, queue.getDroppedVideo());
+        assertEquals(1, queue.syncRequests);
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(i, queue.take()[1]);
+        }
+        assertNull(queue.take());
+    }
+
+    @Test
+    public void backlogAgeAndThroughputAreReported() {
+        final TestQueue queue = new TestQueue(1024 * 1024, SendQueue.DEFAULT_MAX_ENTRIES);
+        assertEquals(0, queue.getBacklogAgeMs());
+        assertEquals(0, queue.getThroughputBps());
+        queue.audio(0, 1000);
+        queue.advanceMs(300);
+        queue.audio(1, 1000);
+        assertEquals(300, queue.getBacklogAgeMs());
+        queue.take();
+        queue.advanceMs(100);
+        assertEquals(100, queue.getBacklogAgeMs());
+        // 1000 bytes per 10ms while the second sample is waiting
+        queue.onSent(0);
+        for (int i = 0; i < 25; i++) {
+            queue.advanceMs(10);
+            queue.onSent(1000);
+        }
+        assertEquals(800000, queue.getThroughputBps());
+        queue.take();
+        assertEquals(0, queue.getBacklogAgeMs());
+        // slower sending on idle link is not a measurement of the throughput
+        for (int i = 0; i < 26; i++) {
+            queue.advanceMs(10);
+            queue.onSent(500);
+        }
+        assertEquals(800000, queue.getThroughputBps());
+    }
+}